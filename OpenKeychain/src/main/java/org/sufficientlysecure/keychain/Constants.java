@@ -101,6 +101,7 @@ public final class Constants {
         public static final int PASSPHRASE_CACHE = 1;
         public static final int KEYSERVER_SYNC_FAIL_ORBOT = 2;
         public static final int KEYSERVER_SYNC = 3;
+        public static final int KEY_IMPORT = 4;
     }
 
     public static final class Pref {
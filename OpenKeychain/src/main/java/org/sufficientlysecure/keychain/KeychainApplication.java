@@ -31,6 +31,7 @@ import android.os.Build;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.sufficientlysecure.keychain.keysync.KeyserverSyncManager;
 import org.sufficientlysecure.keychain.network.TlsCertificatePinning;
+import org.sufficientlysecure.keychain.pgp.SignatureVerificationCache;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.util.PRNGFixes;
 import org.sufficientlysecure.keychain.util.Preferences;
@@ -95,6 +96,9 @@ public class KeychainApplication extends Application {
             return;
         }
 
+        // certificates are only verified in bulk in this process, other processes keep it in memory
+        SignatureVerificationCache.getInstance().enablePersistence(this);
+
         KeyserverSyncManager.updateKeyserverSyncScheduleAsync(this, false);
 
         TemporaryFileProvider.scheduleCleanupImmediately(getApplicationContext());
@@ -22,6 +22,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
 
 import androidx.sqlite.db.SupportSQLiteDatabase;
 import androidx.sqlite.db.SupportSQLiteOpenHelper;
@@ -33,7 +35,10 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteException;
 
-import org.sufficientlysecure.keychain.daos.LocalSecretKeyStorage;
+import org.sufficientlysecure.keychain.UnifiedKeysModel.InsertUnifiedKeyByMasterKeyId;
+import org.sufficientlysecure.keychain.daos.KeyRingBlobStore;
+import org.sufficientlysecure.keychain.model.KeySearchIndex;
+import org.sufficientlysecure.keychain.model.UnifiedKey;
 import org.sufficientlysecure.keychain.util.Preferences;
 import timber.log.Timber;
 
@@ -48,7 +53,7 @@ import timber.log.Timber;
  */
 public class KeychainDatabase {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 34;
+    private static final int DATABASE_VERSION = 38;
     private final SupportSQLiteOpenHelper supportSQLiteOpenHelper;
 
     private static KeychainDatabase sInstance;
@@ -89,6 +94,8 @@ public class KeychainDatabase {
                                             if (Constants.DEBUG) {
                                                 recreateUnifiedKeyView(db);
                                             }
+                                            // any upgrade has been committed at this point
+                                            deleteLegacyKeyRingFiles(context);
                                         }
                                     }
                                 }).build());
@@ -116,10 +123,9 @@ public class KeychainDatabase {
         db.execSQL(OverriddenWarningsModel.CREATE_TABLE);
         db.execSQL(AutocryptPeersModel.CREATE_TABLE);
         db.execSQL(ApiAllowedKeysModel.CREATE_TABLE);
+        db.execSQL(UnifiedKeysModel.CREATE_TABLE);
         db.execSQL(KeysModel.UNIFIEDKEYVIEW);
-        db.execSQL(KeysModel.VALIDKEYSVIEW);
-        db.execSQL(KeysModel.VALIDMASTERKEYSVIEW);
-        db.execSQL(UserPacketsModel.UIDSTATUS);
+        db.execSQL(KeySearchIndex.CREATE_TABLE);
 
         db.execSQL("CREATE INDEX keys_by_rank ON keys (" + KeysModel.RANK + ", " + KeysModel.MASTER_KEY_ID + ");");
         db.execSQL("CREATE INDEX uids_by_rank ON user_packets (" + UserPacketsModel.RANK + ", "
@@ -128,6 +134,8 @@ public class KeychainDatabase {
                 + CertsModel.VERIFIED + ", " + CertsModel.MASTER_KEY_ID + ");");
         db.execSQL("CREATE INDEX uids_by_email ON user_packets ("
                 + UserPacketsModel.EMAIL + ");");
+        createUnifiedKeysIndexes(db);
+        createKeyValidityIndexes(db);
 
         Preferences.getPreferences(context).setKeySignaturesTableInitialized();
     }
@@ -352,9 +360,63 @@ public class KeychainDatabase {
 
             case 33:
                 dropKeyMetadataForeignKey(db);
+
+            case 34:
+                createUnifiedKeysTable(db);
+
+            case 35:
+                // validity views compared against strftime('now') per row, those checks are now
+                // done in the queries themselves, with the current time as a parameter
+                recreateUnifiedKeyView(db);
+                // this index was created with NOCASE collation in version 15, which can't be used for IN lookups
+                db.execSQL("DROP INDEX IF EXISTS uids_by_email");
+                db.execSQL("CREATE INDEX uids_by_email ON user_packets (email);");
+                createKeyValidityIndexes(db);
+
+            case 36:
+                try {
+                    migrateKeyRingsToBlobStore(db, context);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Error migrating keyrings! This is bad!!");
+                }
+
+            case 37:
+                db.execSQL(KeySearchIndex.CREATE_TABLE);
+                KeySearchIndex.rebuild(db);
         }
     }
 
+    @SuppressWarnings("deprecation") // using some sqldelight constants
+    private void createKeyValidityIndexes(SupportSQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS keys_by_key_id ON keys (" + KeysModel.KEY_ID + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS keys_by_master_key_id_can_encrypt ON keys ("
+                + KeysModel.MASTER_KEY_ID + ", " + KeysModel.CAN_ENCRYPT + ");");
+    }
+
+    private void createUnifiedKeysTable(SupportSQLiteDatabase db) {
+        db.execSQL(UnifiedKeysModel.CREATE_TABLE);
+        createUnifiedKeysIndexes(db);
+        recreateUnifiedKeyView(db);
+
+        InsertUnifiedKeyByMasterKeyId insertStatement = UnifiedKey.createInsertStatement(db);
+        Cursor cursor = db.query("SELECT master_key_id FROM keyrings_public");
+        while (cursor.moveToNext()) {
+            insertStatement.bind(cursor.getLong(0));
+            insertStatement.executeInsert();
+        }
+        cursor.close();
+
+        UnifiedKey.createUpdateAllHasDuplicateStatement(db).executeUpdateDelete();
+    }
+
+    @SuppressWarnings("deprecation") // using some sqldelight constants
+    private void createUnifiedKeysIndexes(SupportSQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS unified_keys_by_name_email ON unified_keys ("
+                + UnifiedKeysModel.NAME + " COLLATE NOCASE, " + UnifiedKeysModel.EMAIL + " COLLATE NOCASE);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS autocrypt_peers_by_master_key_id ON autocrypt_peers ("
+                + AutocryptPeersModel.MASTER_KEY_ID + ");");
+    }
+
     private void addSubkeyValidFromField(SupportSQLiteDatabase db) {
         try {
             db.execSQL("ALTER TABLE keys ADD COLUMN validFrom INTEGER NOT NULL DEFAULT 0;");
@@ -368,15 +430,10 @@ public class KeychainDatabase {
         // noinspection deprecation
         db.execSQL("DROP VIEW IF EXISTS " + KeysModel.UNIFIEDKEYVIEW_VIEW_NAME);
         db.execSQL(KeysModel.UNIFIEDKEYVIEW);
-        // noinspection deprecation
-        db.execSQL("DROP VIEW IF EXISTS " + KeysModel.VALIDKEYS_VIEW_NAME);
-        db.execSQL(KeysModel.VALIDKEYSVIEW);
-        // noinspection deprecation
-        db.execSQL("DROP VIEW IF EXISTS " + KeysModel.VALIDMASTERKEYS_VIEW_NAME);
-        db.execSQL(KeysModel.VALIDMASTERKEYSVIEW);
-        // noinspection deprecation
-        db.execSQL("DROP VIEW IF EXISTS " + UserPacketsModel.UIDSTATUS_VIEW_NAME);
-        db.execSQL(UserPacketsModel.UIDSTATUS);
+        // views dropped in version 36
+        db.execSQL("DROP VIEW IF EXISTS validKeys");
+        db.execSQL("DROP VIEW IF EXISTS validMasterKeys");
+        db.execSQL("DROP VIEW IF EXISTS uidStatus");
     }
 
     private void dropKeyMetadataForeignKey(SupportSQLiteDatabase db) {
@@ -389,19 +446,100 @@ public class KeychainDatabase {
     }
 
     private void migrateSecretKeysFromDbToLocalStorage(SupportSQLiteDatabase db, Context context) throws IOException {
-        LocalSecretKeyStorage localSecretKeyStorage = LocalSecretKeyStorage.getInstance(context);
+        KeyRingBlobStore secretKeyRingStore = KeyRingBlobStore.getSecretKeyRingStore(context);
         Cursor cursor = db.query("SELECT master_key_id, key_ring_data FROM keyrings_secret");
         while (cursor.moveToNext()) {
             long masterKeyId = cursor.getLong(0);
             byte[] secretKeyBlob = cursor.getBlob(1);
-            localSecretKeyStorage.writeSecretKey(masterKeyId, secretKeyBlob);
+            secretKeyRingStore.put(masterKeyId, secretKeyBlob);
         }
         cursor.close();
+        secretKeyRingStore.sync();
 
         // we'll keep this around for now, but make sure to delete when migration looks ok!!
         // db.execSQL("DROP TABLE keyrings_secret");
     }
 
+    /**
+     * Moves all keyring data into the KeyRingBlobStores. Up to version 36, public keyrings smaller than
+     * 50kb were stored in keyrings_public, larger ones in a file per keyring, and secret keyrings
+     * in a file per keyring.
+     * <p/>
+     * The legacy files are left in place, since this upgrade may still be rolled back. They are
+     * deleted by deleteLegacyKeyRingFiles once the database is opened after a committed upgrade.
+     */
+    private void migrateKeyRingsToBlobStore(SupportSQLiteDatabase db, Context context) throws IOException {
+        File legacyPublicKeysDir = new File(context.getFilesDir(), "public_keys");
+        File legacySecretKeysDir = new File(context.getFilesDir(), "secret_keys");
+
+        KeyRingBlobStore publicKeyRingStore = KeyRingBlobStore.getPublicKeyRingStore(context);
+        Cursor cursor = db.query("SELECT master_key_id, key_ring_data FROM keyrings_public");
+        try {
+            while (cursor.moveToNext()) {
+                long masterKeyId = cursor.getLong(0);
+                byte[] publicKeyBlob = cursor.getBlob(1);
+                if (publicKeyBlob == null) {
+                    File legacyFile = new File(legacyPublicKeysDir, String.format("0x%016x.pub", masterKeyId));
+                    publicKeyBlob = readLegacyKeyRingFile(legacyFile);
+                }
+                if (publicKeyBlob != null) {
+                    publicKeyRingStore.put(masterKeyId, publicKeyBlob);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        publicKeyRingStore.sync();
+
+        KeyRingBlobStore secretKeyRingStore = KeyRingBlobStore.getSecretKeyRingStore(context);
+        File[] legacySecretKeyFiles = legacySecretKeysDir.listFiles();
+        if (legacySecretKeyFiles != null) {
+            for (File legacyFile : legacySecretKeyFiles) {
+                String name = legacyFile.getName();
+                if (!name.startsWith("0x") || !name.endsWith(".sec")) {
+                    continue;
+                }
+                long masterKeyId = new BigInteger(name.substring(2, name.length() - 4), 16).longValue();
+                secretKeyRingStore.put(masterKeyId, readLegacyKeyRingFile(legacyFile));
+            }
+        }
+        secretKeyRingStore.sync();
+
+        db.execSQL("UPDATE keyrings_public SET key_ring_data = NULL");
+    }
+
+    private static byte[] readLegacyKeyRingFile(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(data);
+            return data;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /** Deletes the keyring files of versions up to 36, which only exist until the first open after migration. */
+    private static void deleteLegacyKeyRingFiles(Context context) {
+        deleteLegacyKeyRingFiles(new File(context.getFilesDir(), "public_keys"));
+        deleteLegacyKeyRingFiles(new File(context.getFilesDir(), "secret_keys"));
+    }
+
+    private static void deleteLegacyKeyRingFiles(File legacyDir) {
+        File[] legacyFiles = legacyDir.listFiles();
+        if (legacyFiles != null) {
+            for (File legacyFile : legacyFiles) {
+                if (!legacyFile.delete()) {
+                    Timber.e("Could not delete legacy keyring file %s", legacyFile);
+                }
+            }
+        }
+        legacyDir.delete();
+    }
+
     private void migrateUpdatedKeysToKeyMetadataTable(SupportSQLiteDatabase db) {
         try {
             db.execSQL("ALTER TABLE updated_keys RENAME TO key_metadata;");
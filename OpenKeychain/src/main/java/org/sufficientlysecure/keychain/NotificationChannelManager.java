@@ -15,6 +15,7 @@ public class NotificationChannelManager {
     public static final String PERMISSION_REQUESTS = "permissionRequests";
     public static final String PASSPHRASE_CACHE = "passphraseCache";
     public static final String ORBOT = "orbot";
+    public static final String KEY_IMPORT = "keyImport";
 
     private final Context context;
     private final NotificationManager notificationManager;
@@ -41,6 +42,7 @@ public class NotificationChannelManager {
         createNotificationChannel(PERMISSION_REQUESTS, R.string.notify_channel_permission, NotificationManager.IMPORTANCE_MIN);
         createNotificationChannel(PASSPHRASE_CACHE, R.string.notify_channel_passcache, NotificationManager.IMPORTANCE_NONE);
         createNotificationChannel(ORBOT, R.string.notify_channel_orbot, NotificationManager.IMPORTANCE_DEFAULT);
+        createNotificationChannel(KEY_IMPORT, R.string.notify_channel_key_import, NotificationManager.IMPORTANCE_LOW);
     }
 
     @RequiresApi(api = VERSION_CODES.O)
@@ -22,6 +22,10 @@ class AbstractDao {
         this.databaseNotifyManager = databaseNotifyManager;
     }
 
+    KeychainDatabase getDatabase() {
+        return db;
+    }
+
     SupportSQLiteDatabase getReadableDb() {
         return db.getReadableDatabase();
     }
@@ -34,6 +38,11 @@ class AbstractDao {
         return databaseNotifyManager;
     }
 
+    /** Time bound for validity checks in queries, in the unix time format used by the keys table. */
+    static long getCurrentUnixTime() {
+        return System.currentTimeMillis() / 1000;
+    }
+
     <T> List<T> mapAllRows(SupportSQLiteQuery query, RowMapper<T> mapper) {
         ArrayList<T> result = new ArrayList<>();
         try (Cursor cursor = getReadableDb().query(query)) {
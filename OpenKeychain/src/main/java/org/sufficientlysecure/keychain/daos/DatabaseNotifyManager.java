@@ -13,22 +13,28 @@ public class DatabaseNotifyManager {
     private static final Uri URI_APPS = Uri.parse("content://" + Constants.PROVIDER_AUTHORITY + "/apps");
 
     private ContentResolver contentResolver;
+    private ParsedKeyRingCache parsedKeyRingCache;
 
     public static DatabaseNotifyManager create(Context context) {
         ContentResolver contentResolver = context.getContentResolver();
-        return new DatabaseNotifyManager(contentResolver);
+        ParsedKeyRingCache parsedKeyRingCache = ParsedKeyRingCache.getInstance(context);
+        return new DatabaseNotifyManager(contentResolver, parsedKeyRingCache);
     }
 
-    private DatabaseNotifyManager(ContentResolver contentResolver) {
+    private DatabaseNotifyManager(ContentResolver contentResolver, ParsedKeyRingCache parsedKeyRingCache) {
         this.contentResolver = contentResolver;
+        this.parsedKeyRingCache = parsedKeyRingCache;
     }
 
     public void notifyAllKeysChange() {
+        // observers are notified asynchronously, so drop our own entries right away
+        parsedKeyRingCache.invalidateAll();
         Uri uri = getNotifyUriAllKeys();
         contentResolver.notifyChange(uri, null);
     }
 
     public void notifyKeyChange(long masterKeyId) {
+        parsedKeyRingCache.invalidate(masterKeyId);
         Uri uri = getNotifyUriMasterKeyId(masterKeyId);
         contentResolver.notifyChange(uri, null);
     }
@@ -20,19 +20,29 @@ package org.sufficientlysecure.keychain.daos;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import android.content.Context;
 import android.database.Cursor;
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
+import androidx.collection.LongSparseArray;
+import androidx.sqlite.db.SupportSQLiteQuery;
 
 import com.squareup.sqldelight.SqlDelightQuery;
 import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.sufficientlysecure.keychain.KeychainDatabase;
 import org.sufficientlysecure.keychain.model.Certification;
 import org.sufficientlysecure.keychain.model.KeyRingPublic;
+import org.sufficientlysecure.keychain.model.KeySearchIndex;
 import org.sufficientlysecure.keychain.model.KeySignature;
 import org.sufficientlysecure.keychain.model.SubKey;
+import org.sufficientlysecure.keychain.model.SubKey.EncryptionKeyId;
+import org.sufficientlysecure.keychain.model.SubKey.SubkeyMasterKeyId;
 import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
 import org.sufficientlysecure.keychain.model.UserPacket;
 import org.sufficientlysecure.keychain.model.UserPacket.UserId;
@@ -47,36 +57,38 @@ import timber.log.Timber;
 
 @WorkerThread
 public class KeyRepository extends AbstractDao {
-    final LocalPublicKeyStorage mLocalPublicKeyStorage;
-    final LocalSecretKeyStorage localSecretKeyStorage;
+    final KeyRingBlobStore publicKeyRingStore;
+    final KeyRingBlobStore secretKeyRingStore;
+    private final ParsedKeyRingCache parsedKeyRingCache;
 
     OperationLog mLog;
     int mIndent;
 
     public static KeyRepository create(Context context) {
-        LocalPublicKeyStorage localPublicKeyStorage = LocalPublicKeyStorage.getInstance(context);
-        LocalSecretKeyStorage localSecretKeyStorage = LocalSecretKeyStorage.getInstance(context);
+        KeyRingBlobStore publicKeyRingStore = KeyRingBlobStore.getPublicKeyRingStore(context);
+        KeyRingBlobStore secretKeyRingStore = KeyRingBlobStore.getSecretKeyRingStore(context);
         KeychainDatabase database = KeychainDatabase.getInstance(context);
         DatabaseNotifyManager databaseNotifyManager = DatabaseNotifyManager.create(context);
 
-        return new KeyRepository(database, databaseNotifyManager, localPublicKeyStorage, localSecretKeyStorage);
+        return new KeyRepository(database, databaseNotifyManager, publicKeyRingStore, secretKeyRingStore);
     }
 
     private KeyRepository(KeychainDatabase database,
             DatabaseNotifyManager databaseNotifyManager,
-            LocalPublicKeyStorage localPublicKeyStorage,
-            LocalSecretKeyStorage localSecretKeyStorage) {
-        this(database, databaseNotifyManager, localPublicKeyStorage, localSecretKeyStorage, new OperationLog(), 0);
+            KeyRingBlobStore publicKeyRingStore,
+            KeyRingBlobStore secretKeyRingStore) {
+        this(database, databaseNotifyManager, publicKeyRingStore, secretKeyRingStore, new OperationLog(), 0);
     }
 
     KeyRepository(KeychainDatabase database,
             DatabaseNotifyManager databaseNotifyManager,
-            LocalPublicKeyStorage localPublicKeyStorage,
-            LocalSecretKeyStorage localSecretKeyStorage,
+            KeyRingBlobStore publicKeyRingStore,
+            KeyRingBlobStore secretKeyRingStore,
             OperationLog log, int indent) {
         super(database, databaseNotifyManager);
-        mLocalPublicKeyStorage = localPublicKeyStorage;
-        this.localSecretKeyStorage = localSecretKeyStorage;
+        this.publicKeyRingStore = publicKeyRingStore;
+        this.secretKeyRingStore = secretKeyRingStore;
+        parsedKeyRingCache = ParsedKeyRingCache.getInstance();
         mIndent = indent;
         mLog = log;
     }
@@ -107,8 +119,24 @@ public class KeyRepository extends AbstractDao {
             throw new NotFoundException();
         }
 
-        byte[] publicKeyData = loadPublicKeyRingData(masterKeyId);
-        return new CanonicalizedPublicKeyRing(publicKeyData, unifiedKeyInfo.verified());
+        CanonicalizedPublicKeyRing cachedKeyRing =
+                parsedKeyRingCache.get(getDatabase(), masterKeyId, unifiedKeyInfo.verified());
+        if (cachedKeyRing != null) {
+            return cachedKeyRing;
+        }
+
+        long cacheVersion = parsedKeyRingCache.getVersion();
+        long startTime = System.nanoTime();
+        InputStream publicKeyStream = openPublicKeyRingStream(masterKeyId);
+        int encodedSize;
+        try {
+            encodedSize = publicKeyStream.available();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        CanonicalizedPublicKeyRing keyRing = new CanonicalizedPublicKeyRing(publicKeyStream, unifiedKeyInfo.verified());
+        parsedKeyRingCache.put(getDatabase(), cacheVersion, keyRing, encodedSize, System.nanoTime() - startTime);
+        return keyRing;
     }
 
     public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRing(long masterKeyId) throws NotFoundException {
@@ -139,6 +167,16 @@ public class KeyRepository extends AbstractDao {
         return mapSingleRow(query, SubKey.FACTORY.selectMasterKeyIdBySubkeyMapper());
     }
 
+    /** Returns the master key ids of all given subkey ids that are known, looked up in a single query. */
+    public LongSparseArray<Long> getMasterKeyIdsBySubkeyIds(long[] subKeyIds) {
+        LongSparseArray<Long> result = new LongSparseArray<>(subKeyIds.length);
+        SqlDelightQuery query = SubKey.FACTORY.selectMasterKeyIdsBySubkeyIds(subKeyIds);
+        for (SubkeyMasterKeyId subkeyMasterKeyId : mapAllRows(query, SubKey.SUBKEY_MASTER_KEY_ID_MAPPER)) {
+            result.put(subkeyMasterKeyId.key_id(), subkeyMasterKeyId.master_key_id());
+        }
+        return result;
+    }
+
     public UnifiedKeyInfo getUnifiedKeyInfo(long masterKeyId) {
         SqlDelightQuery query = SubKey.FACTORY.selectUnifiedKeyInfoByMasterKeyId(masterKeyId);
         return mapSingleRow(query, SubKey.UNIFIED_KEY_INFO_MAPPER);
@@ -150,10 +188,34 @@ public class KeyRepository extends AbstractDao {
     }
 
     public List<UnifiedKeyInfo> getUnifiedKeyInfosByMailAddress(String mailAddress) {
-        SqlDelightQuery query = SubKey.FACTORY.selectUnifiedKeyInfoSearchMailAddress('%' + mailAddress + '%');
+        // narrow down candidates with the search index, the LIKE only has to check those
+        SupportSQLiteQuery query = KeySearchIndex.selectUnifiedKeyInfoByMailAddress(mailAddress);
+        if (query == null) {
+            query = SubKey.FACTORY.selectUnifiedKeyInfoSearchMailAddress('%' + mailAddress + '%');
+        }
         return mapAllRows(query, SubKey.UNIFIED_KEY_INFO_MAPPER);
     }
 
+    /**
+     * Returns the master key ids of all keys which match a search string in their user ids, key ids
+     * or fingerprints. Each word of the search string matches as a prefix, and all of them must match.
+     * Returns null if the search string contains no words, i.e. if nothing should be filtered.
+     */
+    @Nullable
+    public Set<Long> getMasterKeyIdsBySearch(String searchString) {
+        SupportSQLiteQuery query = KeySearchIndex.selectMasterKeyIdsBySearch(searchString);
+        if (query == null) {
+            return null;
+        }
+        HashSet<Long> result = new HashSet<>();
+        try (Cursor cursor = getReadableDb().query(query)) {
+            while (cursor.moveToNext()) {
+                result.add(cursor.getLong(0));
+            }
+        }
+        return result;
+    }
+
     public List<UnifiedKeyInfo> getAllUnifiedKeyInfo() {
         SqlDelightQuery query = SubKey.FACTORY.selectAllUnifiedKeyInfo();
         return mapAllRows(query, SubKey.UNIFIED_KEY_INFO_MAPPER);
@@ -217,14 +279,9 @@ public class KeyRepository extends AbstractDao {
     }
 
     public final byte[] loadPublicKeyRingData(long masterKeyId) throws NotFoundException {
-        SqlDelightQuery query = KeyRingPublic.FACTORY.selectByMasterKeyId(masterKeyId);
-        try (Cursor cursor = getReadableDb().query(query)) {
-            if (cursor.moveToFirst()) {
-                KeyRingPublic keyRingPublic = KeyRingPublic.MAPPER.map(cursor);
-                byte[] keyRingData = keyRingPublic.key_ring_data();
-                if (keyRingData == null) {
-                    keyRingData = mLocalPublicKeyStorage.readPublicKey(masterKeyId);
-                }
+        try {
+            byte[] keyRingData = publicKeyRingStore.read(masterKeyId);
+            if (keyRingData != null) {
                 return keyRingData;
             }
         } catch (IOException e) {
@@ -233,30 +290,117 @@ public class KeyRepository extends AbstractDao {
         throw new NotFoundException();
     }
 
+    /** Returns a stream over the stored public keyring, which is read directly from the mapped store. */
+    public final InputStream openPublicKeyRingStream(long masterKeyId) throws NotFoundException {
+        try {
+            InputStream keyRingStream = publicKeyRingStore.openInputStream(masterKeyId);
+            if (keyRingStream != null) {
+                return keyRingStream;
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Error reading public key from storage!");
+        }
+        throw new NotFoundException();
+    }
+
     public final byte[] loadSecretKeyRingData(long masterKeyId) throws NotFoundException {
         try {
-            return localSecretKeyStorage.readSecretKey(masterKeyId);
+            return secretKeyRingStore.read(masterKeyId);
         } catch (IOException e) {
             Timber.e(e, "Error reading secret key from storage!");
             throw new NotFoundException();
         }
     }
 
+    /**
+     * Returns the stored public keyring as it is exported. Stored keyrings are canonicalized
+     * already, so this is the stored data unless there are non-exportable certificates to strip,
+     * and no signature is verified again.
+     */
+    public final byte[] loadExportPublicKeyRingData(long masterKeyId) throws NotFoundException {
+        byte[] keyRingData = loadPublicKeyRingData(masterKeyId);
+        CanonicalizedPublicKeyRing keyRing =
+                new CanonicalizedPublicKeyRing(keyRingData, VerificationStatus.UNVERIFIED);
+        CanonicalizedPublicKeyRing exportKeyRing = keyRing.forExport();
+        if (exportKeyRing == keyRing) {
+            return keyRingData;
+        }
+        try {
+            return exportKeyRing.getEncoded();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Returns the stored secret keyring as it is exported, see loadExportPublicKeyRingData. */
+    public final byte[] loadExportSecretKeyRingData(long masterKeyId) throws NotFoundException {
+        byte[] keyRingData = loadSecretKeyRingData(masterKeyId);
+        if (keyRingData == null) {
+            throw new NotFoundException();
+        }
+        CanonicalizedSecretKeyRing keyRing =
+                new CanonicalizedSecretKeyRing(keyRingData, VerificationStatus.UNVERIFIED);
+        CanonicalizedSecretKeyRing exportKeyRing = keyRing.forExport();
+        if (exportKeyRing == keyRing) {
+            return keyRingData;
+        }
+        try {
+            return exportKeyRing.getEncoded();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Returns the size of the stored public keyring in bytes, or -1 if there is none. */
+    public final int getPublicKeyRingSize(long masterKeyId) {
+        try {
+            return publicKeyRingStore.getSize(masterKeyId);
+        } catch (IOException e) {
+            Timber.e(e, "Error reading public key from storage!");
+            return -1;
+        }
+    }
+
+    /** Returns the size of the stored secret keyring in bytes, or -1 if there is none. */
+    public final int getSecretKeyRingSize(long masterKeyId) {
+        try {
+            return secretKeyRingStore.getSize(masterKeyId);
+        } catch (IOException e) {
+            Timber.e(e, "Error reading secret key from storage!");
+            return -1;
+        }
+    }
+
     public long getSecretSignId(long masterKeyId) throws NotFoundException {
-        SqlDelightQuery query = SubKey.FACTORY.selectEffectiveSignKeyIdByMasterKeyId(masterKeyId);
+        SqlDelightQuery query = SubKey.FACTORY.selectEffectiveSignKeyIdByMasterKeyId(masterKeyId, getCurrentUnixTime());
         return mapSingleRowOrThrow(query, SubKey.FACTORY.selectEffectiveSignKeyIdByMasterKeyIdMapper());
     }
 
     public long getEffectiveAuthenticationKeyId(long masterKeyId) throws NotFoundException {
-        SqlDelightQuery query = SubKey.FACTORY.selectEffectiveAuthKeyIdByMasterKeyId(masterKeyId);
+        SqlDelightQuery query = SubKey.FACTORY.selectEffectiveAuthKeyIdByMasterKeyId(masterKeyId, getCurrentUnixTime());
         return mapSingleRowOrThrow(query, SubKey.FACTORY.selectEffectiveAuthKeyIdByMasterKeyIdMapper());
     }
 
     public List<Long> getPublicEncryptionIds(long masterKeyId) {
-        SqlDelightQuery query = SubKey.FACTORY.selectEffectiveEncryptionKeyIdsByMasterKeyId(masterKeyId);
+        SqlDelightQuery query = SubKey.FACTORY.selectEffectiveEncryptionKeyIdsByMasterKeyId(masterKeyId, getCurrentUnixTime());
         return mapAllRows(query, SubKey.FACTORY.selectEffectiveEncryptionKeyIdsByMasterKeyIdMapper());
     }
 
+    /** Returns the effective encryption subkey ids of all given master keys, looked up in a single query. */
+    public LongSparseArray<List<Long>> getPublicEncryptionIds(long[] masterKeyIds) {
+        LongSparseArray<List<Long>> result = new LongSparseArray<>(masterKeyIds.length);
+        for (long masterKeyId : masterKeyIds) {
+            result.put(masterKeyId, new ArrayList<>());
+        }
+
+        SqlDelightQuery query = SubKey.FACTORY.selectEffectiveEncryptionKeyIdsByMasterKeyIds(
+                masterKeyIds, getCurrentUnixTime());
+        for (EncryptionKeyId encryptionKeyId : mapAllRows(query, SubKey.ENCRYPTION_KEY_ID_MAPPER)) {
+            result.get(encryptionKeyId.master_key_id()).add(encryptionKeyId.key_id());
+        }
+        return result;
+    }
+
     public static class NotFoundException extends Exception {
         public NotFoundException() {
         }
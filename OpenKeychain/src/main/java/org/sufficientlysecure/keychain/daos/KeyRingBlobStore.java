@@ -0,0 +1,695 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.daos;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import androidx.collection.LongSparseArray;
+
+import timber.log.Timber;
+
+
+/**
+ * Append-only store for encoded keyrings, keyed by master key id.
+ * <p/>
+ * Blobs are appended to segment files as records of the form
+ * <pre>
+ *     magic (int) | master key id (long) | length (int, -1 for deletion) | crc32 (int) | data
+ * </pre>
+ * The offset index is kept in memory, and rebuilt by scanning all segments in order when the
+ * store is first used. Segments are memory-mapped for reading, so blobs can be read without
+ * copying them out of the page cache.
+ * <p/>
+ * The store is shared by all processes of the app. Every operation holds a lock on a lock file
+ * in the store directory, exclusive for writes and shared for reads. The lock file also holds a
+ * generation counter, which is incremented by every write. If it changed since the last
+ * operation of this process, records appended by other processes are scanned first, or the whole
+ * index is rebuilt if segments were compacted away.
+ * <p/>
+ * Writes are only durable after sync(), which must be called before the database transaction
+ * that refers to them is committed. A record that was torn by a crash fails its checksum, and
+ * the segment is truncated before it by the next write. Once more than half of the store is taken up by outdated
+ * records, all live records are copied to a fresh segment and the old segments are deleted.
+ * <p/>
+ * For secret keyrings, outdated records are marked as such and wiped right after the write
+ * that replaced them was synced, so no secret key material lingers until the next compaction.
+ * <p/>
+ * Writes that belong to a database transaction can be recorded in an UndoLog, and restored
+ * with rollback() if the transaction is not committed.
+ */
+@WorkerThread
+public class KeyRingBlobStore {
+    private static final String PUBLIC_KEY_RINGS_DIR_NAME = "public_key_rings";
+    private static final String SECRET_KEY_RINGS_DIR_NAME = "secret_key_rings";
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+    private static final String SEGMENT_FILE_SUFFIX = ".blobs";
+    private static final String LOCK_FILE_NAME = "store.lock";
+
+    private static final int RECORD_MAGIC = 0x4f4b5242;
+    private static final int WIPED_RECORD_MAGIC = 0x4f4b5257;
+    private static final int DELETED_LENGTH = -1;
+    private static final int HEADER_SIZE = 20;
+
+    private static final int MAX_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    private static final HashMap<String, KeyRingBlobStore> sInstances = new HashMap<>();
+
+    private final File directory;
+    private final boolean wipeOutdatedRecords;
+
+    private FileChannel lockChannel;
+    private long generation;
+    private boolean isOpen;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final LongSparseArray<BlobLocation> index = new LongSparseArray<>();
+    private final ArrayList<BlobLocation> pendingWipes = new ArrayList<>();
+    private Segment activeSegment;
+    private boolean hasUnsyncedWrites;
+    private long liveBytes;
+    private long totalBytes;
+
+    public static KeyRingBlobStore getPublicKeyRingStore(Context context) {
+        return getInstance(new File(context.getFilesDir(), PUBLIC_KEY_RINGS_DIR_NAME), false);
+    }
+
+    public static KeyRingBlobStore getSecretKeyRingStore(Context context) {
+        return getInstance(new File(context.getFilesDir(), SECRET_KEY_RINGS_DIR_NAME), true);
+    }
+
+    private static synchronized KeyRingBlobStore getInstance(File directory, boolean wipeOutdatedRecords) {
+        String path = directory.getAbsolutePath();
+        KeyRingBlobStore instance = sInstances.get(path);
+        // the directory only disappears if app data was cleared from under us
+        if (instance == null || instance.isDirectoryDeleted()) {
+            instance = new KeyRingBlobStore(directory, wipeOutdatedRecords);
+            sInstances.put(path, instance);
+        }
+        return instance;
+    }
+
+    /** Returns a new store for this directory, as another process would see it. */
+    @VisibleForTesting
+    public static KeyRingBlobStore createForTesting(File directory, boolean wipeOutdatedRecords) {
+        return new KeyRingBlobStore(directory, wipeOutdatedRecords);
+    }
+
+    private KeyRingBlobStore(File directory, boolean wipeOutdatedRecords) {
+        this.directory = directory;
+        this.wipeOutdatedRecords = wipeOutdatedRecords;
+    }
+
+    private synchronized boolean isDirectoryDeleted() {
+        return isOpen && !directory.exists();
+    }
+
+    /** Stores a blob, replacing any previous one for this master key id. Durable only after sync(). */
+    public void put(long masterKeyId, byte[] data) throws IOException {
+        put(masterKeyId, data, null);
+    }
+
+    /** Stores a blob like put(long, byte[]), and records the blob it replaces in undoLog. */
+    public synchronized void put(long masterKeyId, byte[] data, @Nullable UndoLog undoLog) throws IOException {
+        FileLock lock = lock(false);
+        try {
+            putLocked(masterKeyId, data, undoLog);
+            incrementGeneration();
+        } finally {
+            lock.release();
+        }
+    }
+
+    /** Deletes the blob for this master key id, if there is one. Durable only after sync(). */
+    public void delete(long masterKeyId) throws IOException {
+        delete(masterKeyId, null);
+    }
+
+    /** Deletes a blob like delete(long), and records the deleted blob in undoLog. */
+    public synchronized void delete(long masterKeyId, @Nullable UndoLog undoLog) throws IOException {
+        FileLock lock = lock(false);
+        try {
+            if (deleteLocked(masterKeyId, undoLog)) {
+                incrementGeneration();
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    /** Makes all previous writes durable, then compacts the store if necessary. */
+    public synchronized void sync() throws IOException {
+        FileLock lock = lock(false);
+        try {
+            flush();
+            if (totalBytes >= MIN_COMPACTION_SIZE && liveBytes < totalBytes / 2) {
+                compactLocked();
+                incrementGeneration();
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Restores all blobs recorded in undoLog to their state before the first recorded write,
+     * and makes that durable. The undo log is empty afterwards.
+     */
+    public synchronized void rollback(UndoLog undoLog) throws IOException {
+        if (undoLog.replacedBlobs.size() == 0) {
+            return;
+        }
+        FileLock lock = lock(false);
+        try {
+            for (int i = 0, count = undoLog.replacedBlobs.size(); i < count; i++) {
+                long masterKeyId = undoLog.replacedBlobs.keyAt(i);
+                byte[] data = undoLog.replacedBlobs.valueAt(i);
+                if (data != null) {
+                    putLocked(masterKeyId, data, null);
+                } else {
+                    deleteLocked(masterKeyId, null);
+                }
+            }
+            incrementGeneration();
+            flush();
+        } finally {
+            lock.release();
+        }
+        undoLog.replacedBlobs.clear();
+    }
+
+    public synchronized boolean contains(long masterKeyId) throws IOException {
+        FileLock lock = lock(true);
+        try {
+            return index.get(masterKeyId) != null;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /** Returns a copy of the blob for this master key id, or null if there is none. */
+    @Nullable
+    public byte[] read(long masterKeyId) throws IOException {
+        ByteBuffer buffer = readBuffer(masterKeyId);
+        if (buffer == null) {
+            return null;
+        }
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    /**
+     * Returns a read-only view of the blob for this master key id in the mapped segment, or null if
+     * there is none. The view stays readable after the blob was replaced, deleted or compacted away,
+     * though in a store that wipes outdated records it will then read as zeros.
+     */
+    @Nullable
+    public synchronized ByteBuffer readBuffer(long masterKeyId) throws IOException {
+        FileLock lock = lock(true);
+        try {
+            BlobLocation location = index.get(masterKeyId);
+            if (location == null) {
+                return null;
+            }
+            return location.segment.slice(location.offset + HEADER_SIZE, location.length);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /** Returns a stream over the mapped blob for this master key id, or null if there is none. */
+    @Nullable
+    public InputStream openInputStream(long masterKeyId) throws IOException {
+        ByteBuffer buffer = readBuffer(masterKeyId);
+        if (buffer == null) {
+            return null;
+        }
+        return new ByteBufferInputStream(buffer);
+    }
+
+    /** Returns the size of the blob for this master key id, or -1 if there is none. */
+    public synchronized int getSize(long masterKeyId) throws IOException {
+        FileLock lock = lock(true);
+        try {
+            BlobLocation location = index.get(masterKeyId);
+            return location != null ? location.length : -1;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /** Copies all live records to a fresh segment, and deletes all others. */
+    public synchronized void compact() throws IOException {
+        FileLock lock = lock(false);
+        try {
+            compactLocked();
+            incrementGeneration();
+        } finally {
+            lock.release();
+        }
+    }
+
+    private void putLocked(long masterKeyId, byte[] data, @Nullable UndoLog undoLog) throws IOException {
+        BlobLocation oldLocation = index.get(masterKeyId);
+        if (undoLog != null) {
+            undoLog.recordIfFirst(masterKeyId, oldLocation);
+        }
+
+        BlobLocation location = append(masterKeyId, data);
+        if (oldLocation != null) {
+            liveBytes -= oldLocation.getRecordSize();
+            pendingWipes.add(oldLocation);
+        }
+        index.put(masterKeyId, location);
+        liveBytes += location.getRecordSize();
+    }
+
+    private boolean deleteLocked(long masterKeyId, @Nullable UndoLog undoLog) throws IOException {
+        BlobLocation oldLocation = index.get(masterKeyId);
+        if (oldLocation == null) {
+            return false;
+        }
+        if (undoLog != null) {
+            undoLog.recordIfFirst(masterKeyId, oldLocation);
+        }
+        append(masterKeyId, null);
+        index.remove(masterKeyId);
+        liveBytes -= oldLocation.getRecordSize();
+        pendingWipes.add(oldLocation);
+        return true;
+    }
+
+    private void compactLocked() throws IOException {
+        flush();
+        ArrayList<Segment> oldSegments = new ArrayList<>(segments.values());
+        startNewSegment();
+
+        for (int i = 0, count = index.size(); i < count; i++) {
+            BlobLocation location = index.valueAt(i);
+            ByteBuffer buffer = location.segment.slice(location.offset + HEADER_SIZE, location.length);
+            byte[] data = new byte[location.length];
+            buffer.get(data);
+            index.setValueAt(i, append(index.keyAt(i), data));
+        }
+        activeSegment.channel.force(false);
+        hasUnsyncedWrites = false;
+
+        // delete in order, so an interrupted compaction never brings back a deleted blob
+        for (Segment segment : oldSegments) {
+            if (wipeOutdatedRecords) {
+                // including any incomplete records after the indexed ones
+                writeZeros(segment.channel, 0, (int) segment.channel.size());
+                segment.channel.force(false);
+            }
+            segment.close();
+            if (!segment.file.delete()) {
+                throw new IOException("Could not delete compacted segment!");
+            }
+            segments.remove(segment.segmentId);
+            totalBytes -= segment.size;
+        }
+        pendingWipes.clear();
+        liveBytes = totalBytes;
+    }
+
+    private void flush() throws IOException {
+        if (hasUnsyncedWrites && activeSegment != null) {
+            activeSegment.channel.force(false);
+            hasUnsyncedWrites = false;
+        }
+        if (pendingWipes.isEmpty()) {
+            return;
+        }
+        if (wipeOutdatedRecords) {
+            for (BlobLocation location : pendingWipes) {
+                // mark as wiped first, an interrupted wipe must not leave a record that fails its checksum
+                ByteBuffer magic = ByteBuffer.allocate(4);
+                magic.putInt(WIPED_RECORD_MAGIC).flip();
+                writeFully(location.segment.channel, magic, location.offset);
+                writeZeros(location.segment.channel, location.offset + HEADER_SIZE, location.length);
+                location.segment.channel.force(false);
+            }
+        }
+        pendingWipes.clear();
+    }
+
+    private BlobLocation append(long masterKeyId, @Nullable byte[] data) throws IOException {
+        if (activeSegment == null) {
+            startNewSegment();
+        } else if (activeSegment.size >= MAX_SEGMENT_SIZE) {
+            activeSegment.channel.force(false);
+            startNewSegment();
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(RECORD_MAGIC);
+        header.putLong(masterKeyId);
+        header.putInt(data != null ? data.length : DELETED_LENGTH);
+        header.putInt(data != null ? computeCrc(ByteBuffer.wrap(data)) : 0);
+        header.flip();
+
+        int offset = (int) activeSegment.size;
+        writeFully(activeSegment.channel, header, offset);
+        if (data != null) {
+            writeFully(activeSegment.channel, ByteBuffer.wrap(data), offset + HEADER_SIZE);
+        }
+
+        int recordSize = HEADER_SIZE + (data != null ? data.length : 0);
+        activeSegment.size += recordSize;
+        totalBytes += recordSize;
+        hasUnsyncedWrites = true;
+
+        return data != null ? new BlobLocation(activeSegment, offset, data.length) : null;
+    }
+
+    /**
+     * Locks the store against other processes, and brings the index up to date with their writes.
+     * A write lock also truncates incomplete records at the end of the store, which are left
+     * behind by a writer that crashed, so new records are appended right after the last complete one.
+     */
+    private FileLock lock(boolean shared) throws IOException {
+        if (lockChannel == null) {
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Failed creating keyring store directory!");
+            }
+            lockChannel = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw").getChannel();
+        }
+
+        FileLock lock = lockChannel.lock(0, Long.MAX_VALUE, shared);
+        try {
+            refreshIfNecessary();
+            if (!shared && activeSegment != null && activeSegment.channel.size() > activeSegment.size) {
+                Timber.e("Discarding %d bytes of incomplete records in %s",
+                        activeSegment.channel.size() - activeSegment.size, activeSegment.file);
+                activeSegment.channel.truncate(activeSegment.size);
+            }
+        } catch (IOException | RuntimeException e) {
+            lock.release();
+            throw e;
+        }
+        return lock;
+    }
+
+    private void refreshIfNecessary() throws IOException {
+        long storeGeneration = readGeneration();
+        if (isOpen && storeGeneration == generation) {
+            return;
+        }
+
+        // segments only disappear in a compaction, which rewrites all records
+        boolean isIndexOutdated = !isOpen;
+        for (Segment segment : segments.values()) {
+            if (!segment.file.exists()) {
+                isIndexOutdated = true;
+                break;
+            }
+        }
+        if (isIndexOutdated) {
+            resetIndex();
+        }
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                    int segmentId = Integer.parseInt(name.substring(
+                            SEGMENT_FILE_PREFIX.length(), name.length() - SEGMENT_FILE_SUFFIX.length()));
+                    if (!segments.containsKey(segmentId)) {
+                        segments.put(segmentId, new Segment(segmentId, file));
+                    }
+                }
+            }
+        }
+
+        // later records replace earlier ones, so segments must be scanned in order
+        for (Segment segment : segments.values()) {
+            scanSegment(segment);
+        }
+
+        activeSegment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        generation = storeGeneration;
+        isOpen = true;
+    }
+
+    private void resetIndex() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+        index.clear();
+        // a compaction wipes all old segments of a store that wipes outdated records
+        pendingWipes.clear();
+        activeSegment = null;
+        hasUnsyncedWrites = false;
+        liveBytes = 0;
+        totalBytes = 0;
+    }
+
+    /** Indexes the records of a segment after those indexed already, up to the first incomplete one. */
+    private void scanSegment(Segment segment) throws IOException {
+        long fileSize = segment.channel.size();
+        if (fileSize <= segment.size) {
+            return;
+        }
+        ByteBuffer buffer = segment.slice(0, (int) fileSize);
+
+        int offset = (int) segment.size;
+        while (offset + HEADER_SIZE <= fileSize) {
+            int magic = buffer.getInt(offset);
+            long masterKeyId = buffer.getLong(offset + 4);
+            int length = buffer.getInt(offset + 12);
+            int crc = buffer.getInt(offset + 16);
+
+            boolean isDeletion = length == DELETED_LENGTH;
+            int dataLength = isDeletion ? 0 : length;
+            boolean isValidHeader = (magic == RECORD_MAGIC || magic == WIPED_RECORD_MAGIC) && dataLength >= 0
+                    && offset + HEADER_SIZE + (long) dataLength <= fileSize;
+            if (!isValidHeader) {
+                break;
+            }
+
+            if (magic == RECORD_MAGIC) {
+                if (!isDeletion) {
+                    ByteBuffer data = segment.slice(offset + HEADER_SIZE, length);
+                    if (computeCrc(data) != crc) {
+                        break;
+                    }
+                }
+
+                BlobLocation oldLocation = index.get(masterKeyId);
+                if (oldLocation != null) {
+                    liveBytes -= oldLocation.getRecordSize();
+                }
+                if (isDeletion) {
+                    index.remove(masterKeyId);
+                } else {
+                    BlobLocation location = new BlobLocation(segment, offset, length);
+                    index.put(masterKeyId, location);
+                    liveBytes += location.getRecordSize();
+                }
+            }
+
+            offset += HEADER_SIZE + dataLength;
+        }
+
+        totalBytes += offset - segment.size;
+        segment.size = offset;
+    }
+
+    private long readGeneration() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        while (buffer.hasRemaining()) {
+            if (lockChannel.read(buffer, buffer.position()) < 0) {
+                // no write happened yet
+                return 0;
+            }
+        }
+        return buffer.getLong(0);
+    }
+
+    private void incrementGeneration() throws IOException {
+        generation += 1;
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(generation).flip();
+        writeFully(lockChannel, buffer, 0);
+    }
+
+    private void startNewSegment() throws IOException {
+        int segmentId = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        File file = new File(directory, SEGMENT_FILE_PREFIX + String.format("%08d", segmentId) + SEGMENT_FILE_SUFFIX);
+        Segment segment = new Segment(segmentId, file);
+        segments.put(segmentId, segment);
+        activeSegment = segment;
+    }
+
+    private static int computeCrc(ByteBuffer data) {
+        CRC32 crc32 = new CRC32();
+        byte[] buf = new byte[8192];
+        ByteBuffer source = data.duplicate();
+        while (source.hasRemaining()) {
+            int chunkSize = Math.min(buf.length, source.remaining());
+            source.get(buf, 0, chunkSize);
+            crc32.update(buf, 0, chunkSize);
+        }
+        return (int) crc32.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void writeZeros(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(Math.min(length, 8192));
+        while (length > 0) {
+            zeros.clear();
+            zeros.limit(Math.min(length, zeros.capacity()));
+            int written = zeros.limit();
+            writeFully(channel, zeros, position);
+            position += written;
+            length -= written;
+        }
+    }
+
+    private static class Segment {
+        private final int segmentId;
+        private final File file;
+        private final FileChannel channel;
+        // the size of all complete records, which have been indexed
+        private long size;
+        private MappedByteBuffer mappedBuffer;
+
+        Segment(int segmentId, File file) throws IOException {
+            this.segmentId = segmentId;
+            this.file = file;
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+
+        /** Returns a read-only view of the given range, remapping the segment if it grew beyond the mapping. */
+        ByteBuffer slice(int offset, int length) throws IOException {
+            if (mappedBuffer == null || mappedBuffer.capacity() < offset + length) {
+                // records being scanned lie beyond the indexed size, but never beyond the end of the file
+                mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.max(size, offset + length));
+            }
+            ByteBuffer buffer = mappedBuffer.duplicate();
+            buffer.position(offset);
+            buffer.limit(offset + length);
+            return buffer.slice();
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /** The blobs replaced by writes of one transaction, see rollback(). */
+    public static class UndoLog {
+        // a null value means there was no blob before
+        private final LongSparseArray<byte[]> replacedBlobs = new LongSparseArray<>();
+
+        private void recordIfFirst(long masterKeyId, @Nullable BlobLocation oldLocation) throws IOException {
+            if (replacedBlobs.indexOfKey(masterKeyId) >= 0) {
+                return;
+            }
+            byte[] oldData = null;
+            if (oldLocation != null) {
+                ByteBuffer buffer = oldLocation.segment.slice(oldLocation.offset + HEADER_SIZE, oldLocation.length);
+                oldData = new byte[oldLocation.length];
+                buffer.get(oldData);
+            }
+            replacedBlobs.put(masterKeyId, oldData);
+        }
+    }
+
+    private static class BlobLocation {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        BlobLocation(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int getRecordSize() {
+            return HEADER_SIZE + length;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.reset();
+        }
+    }
+}
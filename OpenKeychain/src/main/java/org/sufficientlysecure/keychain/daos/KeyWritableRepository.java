@@ -23,25 +23,35 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 
 import androidx.sqlite.db.SupportSQLiteDatabase;
 import android.content.Context;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.collection.LongSparseArray;
 
 import org.openintents.openpgp.util.OpenPgpUtils;
+import org.sufficientlysecure.keychain.CertsModel.DeleteCert;
 import org.sufficientlysecure.keychain.KeyRingsPublicModel.DeleteByMasterKeyId;
 import org.sufficientlysecure.keychain.KeychainDatabase;
 import org.sufficientlysecure.keychain.KeysModel.UpdateHasSecretByKeyId;
 import org.sufficientlysecure.keychain.KeysModel.UpdateHasSecretByMasterKeyId;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.UnifiedKeysModel.DeleteUnifiedKeyByMasterKeyId;
+import org.sufficientlysecure.keychain.UnifiedKeysModel.InsertUnifiedKeyByMasterKeyId;
+import org.sufficientlysecure.keychain.UnifiedKeysModel.UpdateHasDuplicateByNameAndEmail;
+import org.sufficientlysecure.keychain.UserPacketsModel.DeleteUserPacketsByMasterKeyId;
 import org.sufficientlysecure.keychain.daos.DatabaseBatchInteractor.BatchOp;
 import org.sufficientlysecure.keychain.model.Certification;
 import org.sufficientlysecure.keychain.model.KeyRingPublic;
+import org.sufficientlysecure.keychain.model.KeySearchIndex;
 import org.sufficientlysecure.keychain.model.KeySignature;
 import org.sufficientlysecure.keychain.model.SubKey;
 import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
+import org.sufficientlysecure.keychain.model.UnifiedKey;
 import org.sufficientlysecure.keychain.model.UserPacket;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
@@ -56,6 +66,7 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.pgp.SignatureVerificationCache;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedPublicKey;
 import org.sufficientlysecure.keychain.pgp.WrappedSignature;
@@ -79,45 +90,73 @@ import timber.log.Timber;
  * method is called to start a new one specifically.
  */
 public class KeyWritableRepository extends KeyRepository {
-    private static final int MAX_CACHED_KEY_SIZE = 1024 * 50;
 
     private final Context context;
+    private final KeychainDatabase database;
     private final DatabaseNotifyManager databaseNotifyManager;
+    private final TrustedMasterKeyCache trustedMasterKeyCache;
     private AutocryptPeerDao autocryptPeerDao;
     private DatabaseBatchInteractor databaseBatchInteractor;
 
     public static KeyWritableRepository create(Context context) {
-        LocalPublicKeyStorage localPublicKeyStorage = LocalPublicKeyStorage.getInstance(context);
-        LocalSecretKeyStorage localSecretKeyStorage = LocalSecretKeyStorage.getInstance(context);
+        KeyRingBlobStore publicKeyRingStore = KeyRingBlobStore.getPublicKeyRingStore(context);
+        KeyRingBlobStore secretKeyRingStore = KeyRingBlobStore.getSecretKeyRingStore(context);
         DatabaseNotifyManager databaseNotifyManager = DatabaseNotifyManager.create(context);
         AutocryptPeerDao autocryptPeerDao = AutocryptPeerDao.getInstance(context);
         KeychainDatabase database = KeychainDatabase.getInstance(context);
 
         return new KeyWritableRepository(context, database,
-                localPublicKeyStorage, localSecretKeyStorage, databaseNotifyManager, autocryptPeerDao);
+                publicKeyRingStore, secretKeyRingStore, databaseNotifyManager, autocryptPeerDao);
         }
 
     private KeyWritableRepository(Context context,
-            KeychainDatabase database, LocalPublicKeyStorage localPublicKeyStorage,
-            LocalSecretKeyStorage localSecretKeyStorage,
+            KeychainDatabase database, KeyRingBlobStore publicKeyRingStore,
+            KeyRingBlobStore secretKeyRingStore,
             DatabaseNotifyManager databaseNotifyManager, AutocryptPeerDao autocryptPeerDao) {
-        this(context, database, localPublicKeyStorage, localSecretKeyStorage, databaseNotifyManager, new OperationLog(), 0,
+        this(context, database, publicKeyRingStore, secretKeyRingStore, databaseNotifyManager, new OperationLog(), 0,
                 autocryptPeerDao);
     }
 
     private KeyWritableRepository(Context context, KeychainDatabase database,
-            LocalPublicKeyStorage localPublicKeyStorage,
-            LocalSecretKeyStorage localSecretKeyStorage, DatabaseNotifyManager databaseNotifyManager,
+            KeyRingBlobStore publicKeyRingStore,
+            KeyRingBlobStore secretKeyRingStore, DatabaseNotifyManager databaseNotifyManager,
             OperationLog log, int indent, AutocryptPeerDao autocryptPeerDao) {
-        super(database, databaseNotifyManager, localPublicKeyStorage, localSecretKeyStorage, log, indent);
+        super(database, databaseNotifyManager, publicKeyRingStore, secretKeyRingStore, log, indent);
 
         this.context = context;
+        this.database = database;
         this.databaseNotifyManager = databaseNotifyManager;
+        this.trustedMasterKeyCache = TrustedMasterKeyCache.getInstance();
         this.autocryptPeerDao = autocryptPeerDao;
         this.databaseBatchInteractor = new DatabaseBatchInteractor(getWritableDb());
     }
 
-    private LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys() {
+    /**
+     * Returns a repository which shares database and storage with this one, but keeps its own log.
+     * Used to prepare keyrings on worker threads, since the log of a single instance is not thread-safe.
+     */
+    public KeyWritableRepository createWorkerRepository() {
+        return new KeyWritableRepository(context, database, publicKeyRingStore, secretKeyRingStore,
+                databaseNotifyManager, new OperationLog(), 0, autocryptPeerDao);
+    }
+
+    /**
+     * Returns the master keys of all secret keyrings. The result is cached across repository
+     * instances until a secret keyring is saved or deleted, see TrustedMasterKeyCache.
+     */
+    public LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys() {
+        LongSparseArray<CanonicalizedPublicKey> cachedKeys = trustedMasterKeyCache.get(database);
+        if (cachedKeys != null) {
+            return cachedKeys;
+        }
+
+        long cacheVersion = trustedMasterKeyCache.getVersion();
+        LongSparseArray<CanonicalizedPublicKey> result = loadTrustedMasterKeys();
+        trustedMasterKeyCache.put(database, cacheVersion, result);
+        return result;
+    }
+
+    private LongSparseArray<CanonicalizedPublicKey> loadTrustedMasterKeys() {
         LongSparseArray<CanonicalizedPublicKey> result = new LongSparseArray<>();
 
         List<UnifiedKeyInfo> unifiedKeyInfoWithSecret = getAllUnifiedKeyInfoWithSecret();
@@ -167,14 +206,12 @@ public class KeyWritableRepository extends KeyRepository {
      * to inserting. All public data is effectively re-inserted, secret keyrings are left deleted
      * and need to be saved externally to be preserved past the operation.
      */
-    @SuppressWarnings("unchecked")
     private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing, boolean selfCertsAreTrusted) {
 
         // start with ok result
         int result = SaveKeyringResult.SAVED_PUBLIC;
 
         long masterKeyId = keyRing.getMasterKeyId();
-        UncachedPublicKey masterKey = keyRing.getPublicKey();
 
         log(LogType.MSG_IP_PREPARE);
         mIndent += 1;
@@ -187,13 +224,67 @@ public class KeyWritableRepository extends KeyRepository {
             return SaveKeyringResult.RESULT_ERROR;
         }
 
+        ArrayList<BatchOp> operations;
+        // get a list of owned secret keys, for verification filtering
+        LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeys();
+        try {
+            operations = buildPublicKeyRingOperations(keyRing, encodedKeyRing, selfCertsAreTrusted, trustedKeys);
+        } finally {
+            mIndent -= 1;
+        }
+        if (operations == null) {
+            return SaveKeyringResult.RESULT_ERROR;
+        }
+
+        SupportSQLiteDatabase db = databaseBatchInteractor.getDb();
+        KeyRingBlobStore.UndoLog undoLog = new KeyRingBlobStore.UndoLog();
+        boolean isSuccessful = false;
+        try {
+            db.beginTransaction();
+
+            boolean replacedOldVersion = replacePublicKeyRing(db, masterKeyId, encodedKeyRing, operations, undoLog);
+            publicKeyRingStore.sync();
+            if (replacedOldVersion) {
+                result |= SaveKeyringResult.UPDATED;
+            }
+
+            db.setTransactionSuccessful();
+            isSuccessful = true;
+            log(LogType.MSG_IP_SUCCESS);
+            return result;
+        } catch (IOException e) {
+            log(LogType.MSG_IP_ERROR_OP_EXC);
+            Timber.e(e, "OperationApplicationException during import");
+            return SaveKeyringResult.RESULT_ERROR;
+        } finally {
+            if (endTransaction(db, isSuccessful, undoLog)) {
+                // the public part of one of our own keys changed
+                if (trustedKeys.indexOfKey(masterKeyId) >= 0) {
+                    trustedMasterKeyCache.invalidate();
+                }
+                databaseNotifyManager.notifyKeyChange(masterKeyId);
+            }
+        }
+
+    }
+
+    /**
+     * Builds the database operations for a canonicalized public keyring, without touching the database.
+     * <p/>
+     * Certificates by keys in trustedKeys are verified and marked as such. Returns null on error,
+     * the reason is written to the log.
+     */
+    private ArrayList<BatchOp> buildPublicKeyRingOperations(CanonicalizedPublicKeyRing keyRing,
+            byte[] encodedKeyRing, boolean selfCertsAreTrusted, LongSparseArray<CanonicalizedPublicKey> trustedKeys) {
+        long masterKeyId = keyRing.getMasterKeyId();
+
         ArrayList<BatchOp> operations = new ArrayList<>();
 
         try {
             log(LogType.MSG_IP_INSERT_KEYRING);
 
-            byte[] encodedRingIfDbCachable = encodedKeyRing.length < MAX_CACHED_KEY_SIZE ? encodedKeyRing : null;
-            KeyRingPublic keyRingPublic = KeyRingPublic.create(masterKeyId, encodedRingIfDbCachable);
+            // the keyring data itself is written to the KeyRingBlobStore
+            KeyRingPublic keyRingPublic = KeyRingPublic.create(masterKeyId, null);
             operations.add(DatabaseBatchInteractor.createInsertKeyRingPublic(keyRingPublic));
 
             log(LogType.MSG_IP_INSERT_SUBKEYS);
@@ -250,319 +341,396 @@ public class KeyWritableRepository extends KeyRepository {
             }
             mIndent -= 1;
 
-            // get a list of owned secret keys, for verification filtering
-            LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeys();
+            buildUserPacketOperations(keyRing, selfCertsAreTrusted, trustedKeys, operations);
+            SignatureVerificationCache.getInstance().persist();
+        } catch (IOException e) {
+            log(LogType.MSG_IP_ERROR_IO_EXC);
+            Timber.e(e, "IOException during import");
+            return null;
+        }
 
-            // classify and order user ids. primary are moved to the front, revoked to the back,
-            // otherwise the order in the keyfile is preserved.
-            List<UserPacketItem> uids = new ArrayList<>();
+        return operations;
+    }
 
-            List<Long> signerKeyIds = new ArrayList<>();
+    /**
+     * Classifies and orders the user ids and attributes of a canonicalized public keyring, and builds
+     * the database operations for them, including their certificates and signers.
+     */
+    private void buildUserPacketOperations(CanonicalizedPublicKeyRing keyRing, boolean selfCertsAreTrusted,
+            LongSparseArray<CanonicalizedPublicKey> trustedKeys, List<BatchOp> operations) throws IOException {
+        long masterKeyId = keyRing.getMasterKeyId();
+        UncachedPublicKey masterKey = keyRing.getPublicKey();
 
-            if (trustedKeys.size() == 0) {
-                log(LogType.MSG_IP_UID_CLASSIFYING_ZERO);
-            } else {
-                log(LogType.MSG_IP_UID_CLASSIFYING, trustedKeys.size());
-            }
-            mIndent += 1;
-            for (byte[] rawUserId : masterKey.getUnorderedRawUserIds()) {
-                String userId = Utf8Util.fromUTF8ByteArrayReplaceBadEncoding(rawUserId);
-                UserPacketItem item = new UserPacketItem();
-                uids.add(item);
-                OpenPgpUtils.UserId splitUserId = KeyRing.splitUserId(userId);
-                item.userId = userId;
-                item.name = splitUserId.name;
-                item.email = splitUserId.email;
-                item.comment = splitUserId.comment;
-                int unknownCerts = 0;
-
-                log(LogType.MSG_IP_UID_PROCESSING, userId);
-                mIndent += 1;
-                // look through signatures for this specific key
-                for (WrappedSignature cert : new IterableIterator<>(
-                        masterKey.getSignaturesForRawId(rawUserId))) {
-                    long certId = cert.getKeyId();
-                    // self signature
-                    if (certId == masterKeyId) {
-
-                        // NOTE self-certificates are already verified during canonicalization,
-                        // AND we know there is at most one cert plus at most one revocation
-                        if (!cert.isRevocation()) {
-                            item.selfCert = cert;
-                            item.isPrimary = cert.isPrimaryUserId();
-                        } else {
-                            item.selfRevocation = cert;
-                            log(LogType.MSG_IP_UID_REVOKED);
-                        }
-                        continue;
+        // classify and order user ids. primary are moved to the front, revoked to the back,
+        // otherwise the order in the keyfile is preserved.
+        List<UserPacketItem> uids = new ArrayList<>();
 
-                    }
+        List<Long> signerKeyIds = new ArrayList<>();
 
-                    // keep a note about the issuer of this key signature
-                    if (!signerKeyIds.contains(certId)) {
-                        KeySignature keySignature = KeySignature.create(masterKeyId, certId);
-                        operations.add(DatabaseBatchInteractor.createInsertSignerKey(keySignature));
-                        signerKeyIds.add(certId);
+        if (trustedKeys.size() == 0) {
+            log(LogType.MSG_IP_UID_CLASSIFYING_ZERO);
+        } else {
+            log(LogType.MSG_IP_UID_CLASSIFYING, trustedKeys.size());
+        }
+        mIndent += 1;
+        for (byte[] rawUserId : masterKey.getUnorderedRawUserIds()) {
+            String userId = Utf8Util.fromUTF8ByteArrayReplaceBadEncoding(rawUserId);
+            UserPacketItem item = new UserPacketItem();
+            uids.add(item);
+            OpenPgpUtils.UserId splitUserId = KeyRing.splitUserId(userId);
+            item.userId = userId;
+            item.name = splitUserId.name;
+            item.email = splitUserId.email;
+            item.comment = splitUserId.comment;
+            int unknownCerts = 0;
+
+            log(LogType.MSG_IP_UID_PROCESSING, userId);
+            mIndent += 1;
+            // look through signatures for this specific key
+            for (WrappedSignature cert : new IterableIterator<>(
+                    masterKey.getSignaturesForRawId(rawUserId))) {
+                long certId = cert.getKeyId();
+                // self signature
+                if (certId == masterKeyId) {
+
+                    // NOTE self-certificates are already verified during canonicalization,
+                    // AND we know there is at most one cert plus at most one revocation
+                    if (!cert.isRevocation()) {
+                        item.selfCert = cert;
+                        item.isPrimary = cert.isPrimaryUserId();
+                    } else {
+                        item.selfRevocation = cert;
+                        log(LogType.MSG_IP_UID_REVOKED);
                     }
+                    continue;
+
+                }
+
+                // keep a note about the issuer of this key signature
+                if (!signerKeyIds.contains(certId)) {
+                    KeySignature keySignature = KeySignature.create(masterKeyId, certId);
+                    operations.add(DatabaseBatchInteractor.createInsertSignerKey(keySignature));
+                    signerKeyIds.add(certId);
+                }
 
-                    boolean isSignatureFromTrustedKey = trustedKeys.indexOfKey(certId) >= 0;
-                    if (!isSignatureFromTrustedKey) {
-                        unknownCerts += 1;
+                boolean isSignatureFromTrustedKey = trustedKeys.indexOfKey(certId) >= 0;
+                if (!isSignatureFromTrustedKey) {
+                    unknownCerts += 1;
+                    continue;
+                }
+
+                // verify signatures from known private keys
+                CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
+
+                try {
+                    cert.init(trustedKey);
+                    // if it doesn't certify, leave a note and skip
+                    if (!cert.verifySignature(masterKey, rawUserId)) {
+                        log(LogType.MSG_IP_UID_CERT_BAD);
                         continue;
                     }
 
-                    // verify signatures from known private keys
-                    CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
+                    log(cert.isRevocation()
+                                    ? LogType.MSG_IP_UID_CERT_GOOD_REVOKE
+                                    : LogType.MSG_IP_UID_CERT_GOOD,
+                            KeyFormattingUtils.convertKeyIdToHexShort(trustedKey.getKeyId())
+                    );
 
-                    try {
-                        cert.init(trustedKey);
-                        // if it doesn't certify, leave a note and skip
-                        if (!cert.verifySignature(masterKey, rawUserId)) {
-                            log(LogType.MSG_IP_UID_CERT_BAD);
+                    // check if there is a previous certificate
+                    WrappedSignature prev = item.trustedCerts.get(cert.getKeyId());
+                    if (prev != null) {
+                        // if it's newer, skip this one
+                        if (prev.getCreationTime().after(cert.getCreationTime())) {
+                            log(LogType.MSG_IP_UID_CERT_OLD);
                             continue;
                         }
-
-                        log(cert.isRevocation()
-                                        ? LogType.MSG_IP_UID_CERT_GOOD_REVOKE
-                                        : LogType.MSG_IP_UID_CERT_GOOD,
-                                KeyFormattingUtils.convertKeyIdToHexShort(trustedKey.getKeyId())
-                        );
-
-                        // check if there is a previous certificate
-                        WrappedSignature prev = item.trustedCerts.get(cert.getKeyId());
-                        if (prev != null) {
-                            // if it's newer, skip this one
-                            if (prev.getCreationTime().after(cert.getCreationTime())) {
-                                log(LogType.MSG_IP_UID_CERT_OLD);
-                                continue;
-                            }
-                            // if the previous one was a non-revokable certification, no need to look further
-                            if (!prev.isRevocation() && !prev.isRevokable()) {
-                                log(LogType.MSG_IP_UID_CERT_NONREVOKE);
-                                continue;
-                            }
-                            log(LogType.MSG_IP_UID_CERT_NEW);
+                        // if the previous one was a non-revokable certification, no need to look further
+                        if (!prev.isRevocation() && !prev.isRevokable()) {
+                            log(LogType.MSG_IP_UID_CERT_NONREVOKE);
+                            continue;
                         }
-                        item.trustedCerts.put(cert.getKeyId(), cert);
-
-                    } catch (PgpGeneralException e) {
-                        log(LogType.MSG_IP_UID_CERT_ERROR,
-                                KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
+                        log(LogType.MSG_IP_UID_CERT_NEW);
                     }
+                    item.trustedCerts.put(cert.getKeyId(), cert);
 
+                } catch (PgpGeneralException e) {
+                    log(LogType.MSG_IP_UID_CERT_ERROR,
+                            KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
                 }
 
-                if (unknownCerts > 0) {
-                    log(LogType.MSG_IP_UID_CERTS_UNKNOWN, unknownCerts);
-                }
-                mIndent -= 1;
+            }
 
+            if (unknownCerts > 0) {
+                log(LogType.MSG_IP_UID_CERTS_UNKNOWN, unknownCerts);
             }
             mIndent -= 1;
 
-            ArrayList<WrappedUserAttribute> userAttributes = masterKey.getUnorderedUserAttributes();
-            // Don't spam the log if there aren't even any attributes
-            if (!userAttributes.isEmpty()) {
-                log(LogType.MSG_IP_UAT_CLASSIFYING);
-            }
+        }
+        mIndent -= 1;
 
+        ArrayList<WrappedUserAttribute> userAttributes = masterKey.getUnorderedUserAttributes();
+        // Don't spam the log if there aren't even any attributes
+        if (!userAttributes.isEmpty()) {
+            log(LogType.MSG_IP_UAT_CLASSIFYING);
+        }
+
+        mIndent += 1;
+        for (WrappedUserAttribute userAttribute : userAttributes) {
+
+            UserPacketItem item = new UserPacketItem();
+            uids.add(item);
+            item.type = userAttribute.getType();
+            item.attributeData = userAttribute.getEncoded();
+
+            int unknownCerts = 0;
+
+            switch (item.type) {
+                case WrappedUserAttribute.UAT_IMAGE:
+                    log(LogType.MSG_IP_UAT_PROCESSING_IMAGE);
+                    break;
+                default:
+                    log(LogType.MSG_IP_UAT_PROCESSING_UNKNOWN);
+                    break;
+            }
             mIndent += 1;
-            for (WrappedUserAttribute userAttribute : userAttributes) {
-
-                UserPacketItem item = new UserPacketItem();
-                uids.add(item);
-                item.type = userAttribute.getType();
-                item.attributeData = userAttribute.getEncoded();
-
-                int unknownCerts = 0;
-
-                switch (item.type) {
-                    case WrappedUserAttribute.UAT_IMAGE:
-                        log(LogType.MSG_IP_UAT_PROCESSING_IMAGE);
-                        break;
-                    default:
-                        log(LogType.MSG_IP_UAT_PROCESSING_UNKNOWN);
-                        break;
+            // look through signatures for this specific key
+            for (WrappedSignature cert : new IterableIterator<>(
+                    masterKey.getSignaturesForUserAttribute(userAttribute))) {
+                long certId = cert.getKeyId();
+                // self signature
+                if (certId == masterKeyId) {
+
+                    // NOTE self-certificates are already verified during canonicalization,
+                    // AND we know there is at most one cert plus at most one revocation
+                    // AND the revocation only exists if there is no newer certification
+                    if (!cert.isRevocation()) {
+                        item.selfCert = cert;
+                    } else {
+                        item.selfRevocation = cert;
+                        log(LogType.MSG_IP_UAT_REVOKED);
+                    }
+                    continue;
+
                 }
-                mIndent += 1;
-                // look through signatures for this specific key
-                for (WrappedSignature cert : new IterableIterator<>(
-                        masterKey.getSignaturesForUserAttribute(userAttribute))) {
-                    long certId = cert.getKeyId();
-                    // self signature
-                    if (certId == masterKeyId) {
-
-                        // NOTE self-certificates are already verified during canonicalization,
-                        // AND we know there is at most one cert plus at most one revocation
-                        // AND the revocation only exists if there is no newer certification
-                        if (!cert.isRevocation()) {
-                            item.selfCert = cert;
-                        } else {
-                            item.selfRevocation = cert;
-                            log(LogType.MSG_IP_UAT_REVOKED);
-                        }
-                        continue;
 
-                    }
+                // do we have a trusted key for this?
+                if (trustedKeys.indexOfKey(certId) < 0) {
+                    unknownCerts += 1;
+                    continue;
+                }
 
-                    // do we have a trusted key for this?
-                    if (trustedKeys.indexOfKey(certId) < 0) {
-                        unknownCerts += 1;
+                // verify signatures from known private keys
+                CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
+
+                try {
+                    cert.init(trustedKey);
+                    // if it doesn't certify, leave a note and skip
+                    if (!cert.verifySignature(masterKey, userAttribute)) {
+                        log(LogType.MSG_IP_UAT_CERT_BAD);
                         continue;
                     }
 
-                    // verify signatures from known private keys
-                    CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
+                    log(cert.isRevocation()
+                                    ? LogType.MSG_IP_UAT_CERT_GOOD_REVOKE
+                                    : LogType.MSG_IP_UAT_CERT_GOOD,
+                            KeyFormattingUtils.convertKeyIdToHexShort(trustedKey.getKeyId())
+                    );
 
-                    try {
-                        cert.init(trustedKey);
-                        // if it doesn't certify, leave a note and skip
-                        if (!cert.verifySignature(masterKey, userAttribute)) {
-                            log(LogType.MSG_IP_UAT_CERT_BAD);
+                    // check if there is a previous certificate
+                    WrappedSignature prev = item.trustedCerts.get(cert.getKeyId());
+                    if (prev != null) {
+                        // if it's newer, skip this one
+                        if (prev.getCreationTime().after(cert.getCreationTime())) {
+                            log(LogType.MSG_IP_UAT_CERT_OLD);
                             continue;
                         }
-
-                        log(cert.isRevocation()
-                                        ? LogType.MSG_IP_UAT_CERT_GOOD_REVOKE
-                                        : LogType.MSG_IP_UAT_CERT_GOOD,
-                                KeyFormattingUtils.convertKeyIdToHexShort(trustedKey.getKeyId())
-                        );
-
-                        // check if there is a previous certificate
-                        WrappedSignature prev = item.trustedCerts.get(cert.getKeyId());
-                        if (prev != null) {
-                            // if it's newer, skip this one
-                            if (prev.getCreationTime().after(cert.getCreationTime())) {
-                                log(LogType.MSG_IP_UAT_CERT_OLD);
-                                continue;
-                            }
-                            // if the previous one was a non-revokable certification, no need to look further
-                            if (!prev.isRevocation() && !prev.isRevokable()) {
-                                log(LogType.MSG_IP_UAT_CERT_NONREVOKE);
-                                continue;
-                            }
-                            log(LogType.MSG_IP_UAT_CERT_NEW);
+                        // if the previous one was a non-revokable certification, no need to look further
+                        if (!prev.isRevocation() && !prev.isRevokable()) {
+                            log(LogType.MSG_IP_UAT_CERT_NONREVOKE);
+                            continue;
                         }
-                        item.trustedCerts.put(cert.getKeyId(), cert);
-
-                    } catch (PgpGeneralException e) {
-                        log(LogType.MSG_IP_UAT_CERT_ERROR,
-                                KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
+                        log(LogType.MSG_IP_UAT_CERT_NEW);
                     }
+                    item.trustedCerts.put(cert.getKeyId(), cert);
 
+                } catch (PgpGeneralException e) {
+                    log(LogType.MSG_IP_UAT_CERT_ERROR,
+                            KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
                 }
 
-                if (unknownCerts > 0) {
-                    log(LogType.MSG_IP_UAT_CERTS_UNKNOWN, unknownCerts);
-                }
-                mIndent -= 1;
+            }
 
+            if (unknownCerts > 0) {
+                log(LogType.MSG_IP_UAT_CERTS_UNKNOWN, unknownCerts);
             }
             mIndent -= 1;
 
-            log(LogType.MSG_IP_UID_REORDER);
-            // primary before regular before revoked (see UserIdItem.compareTo)
-            // this is a stable sort, so the order of keys is otherwise preserved.
-            Collections.sort(uids);
-            // iterate and put into db
-            for (int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
-                UserPacketItem item = uids.get(userIdRank);
-                Long type = item.type != null ? item.type.longValue() : null;
-                UserPacket userPacket = UserPacket.create(masterKeyId, userIdRank, type, item.userId, item.name, item.email,
-                        item.comment, item.attributeData, item.isPrimary, item.selfRevocation != null);
-                operations.add(DatabaseBatchInteractor.createInsertUserPacket(userPacket));
-
-                if (item.selfRevocation != null) {
-                    operations.add(buildCertOperations(masterKeyId, userIdRank, item.selfRevocation,
-                            VerificationStatus.VERIFIED_SELF));
-                    // don't bother with trusted certs if the uid is revoked, anyways
-                    continue;
-                }
+        }
+        mIndent -= 1;
+
+        log(LogType.MSG_IP_UID_REORDER);
+        // primary before regular before revoked (see UserIdItem.compareTo)
+        // this is a stable sort, so the order of keys is otherwise preserved.
+        Collections.sort(uids);
+        // iterate and put into db
+        for (int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
+            UserPacketItem item = uids.get(userIdRank);
+            Long type = item.type != null ? item.type.longValue() : null;
+            UserPacket userPacket = UserPacket.create(masterKeyId, userIdRank, type, item.userId, item.name, item.email,
+                    item.comment, item.attributeData, item.isPrimary, item.selfRevocation != null);
+            operations.add(DatabaseBatchInteractor.createInsertUserPacket(userPacket));
+
+            if (item.selfRevocation != null) {
+                operations.add(buildCertOperations(masterKeyId, userIdRank, item.selfRevocation,
+                        VerificationStatus.VERIFIED_SELF));
+                // don't bother with trusted certs if the uid is revoked, anyways
+                continue;
+            }
 
-                if (item.selfCert == null) {
-                    throw new AssertionError("User ids MUST be self-certified at this point!!");
-                }
+            if (item.selfCert == null) {
+                throw new AssertionError("User ids MUST be self-certified at this point!!");
+            }
 
-                operations.add(buildCertOperations(masterKeyId, userIdRank, item.selfCert,
-                        selfCertsAreTrusted ? VerificationStatus.VERIFIED_SECRET : VerificationStatus.VERIFIED_SELF));
+            operations.add(buildCertOperations(masterKeyId, userIdRank, item.selfCert,
+                    selfCertsAreTrusted ? VerificationStatus.VERIFIED_SECRET : VerificationStatus.VERIFIED_SELF));
 
-                // iterate over signatures
-                for (int i = 0; i < item.trustedCerts.size(); i++) {
-                    WrappedSignature sig = item.trustedCerts.valueAt(i);
-                    // if it's a revocation
-                    if (sig.isRevocation()) {
-                        // don't further process it
-                        continue;
-                    }
-                    // otherwise, build database operation
-                    operations.add(buildCertOperations(
-                            masterKeyId, userIdRank, sig, VerificationStatus.VERIFIED_SECRET));
+            // iterate over signatures
+            for (int i = 0; i < item.trustedCerts.size(); i++) {
+                WrappedSignature sig = item.trustedCerts.valueAt(i);
+                // if it's a revocation
+                if (sig.isRevocation()) {
+                    // don't further process it
+                    continue;
                 }
+                // otherwise, build database operation
+                operations.add(buildCertOperations(
+                        masterKeyId, userIdRank, sig, VerificationStatus.VERIFIED_SECRET));
             }
+        }
+    }
 
-        } catch (IOException e) {
-            log(LogType.MSG_IP_ERROR_IO_EXC);
-            Timber.e(e, "IOException during import");
-            return SaveKeyringResult.RESULT_ERROR;
+    /**
+     * Ends a transaction, and restores the keyring blobs recorded in undoLog unless it was committed.
+     * Returns true if the transaction was committed.
+     */
+    private boolean endTransaction(SupportSQLiteDatabase db, boolean isSuccessful, KeyRingBlobStore.UndoLog undoLog) {
+        boolean isCommitted = false;
+        try {
+            db.endTransaction();
+            isCommitted = isSuccessful;
         } finally {
-            mIndent -= 1;
+            if (!isCommitted) {
+                try {
+                    publicKeyRingStore.rollback(undoLog);
+                } catch (IOException e) {
+                    Timber.e(e, "Could not restore keyring data after failed transaction!");
+                }
+            }
         }
+        return isCommitted;
+    }
 
-        SupportSQLiteDatabase db = databaseBatchInteractor.getDb();
-        try {
-            db.beginTransaction();
+    /**
+     * Replaces the stored version of a public keyring with the given operations. This must be
+     * called inside a transaction on db, and the public keyring store must be synced before it
+     * is committed. The replaced blob is recorded in undoLog, to be restored if the transaction
+     * is not committed. Returns true if an old version of the keyring was replaced.
+     */
+    private boolean replacePublicKeyRing(SupportSQLiteDatabase db, long masterKeyId, byte[] encodedKeyRing,
+            List<BatchOp> operations, KeyRingBlobStore.UndoLog undoLog) throws IOException {
+        UnifiedKeyInfo oldUnifiedKeyInfo = getUnifiedKeyInfo(masterKeyId);
 
-            // delete old version of this keyRing (from database only!), which also deletes all keys and userIds on cascade
-            DeleteByMasterKeyId deleteStatement = new DeleteByMasterKeyId(db);
-            deleteStatement.bind(masterKeyId);
-            int deletedRows = deleteStatement.executeUpdateDelete();
+        // delete old version of this keyRing (from database only!), which also deletes all keys and userIds on cascade
+        DeleteByMasterKeyId deleteStatement = new DeleteByMasterKeyId(db);
+        deleteStatement.bind(masterKeyId);
+        int deletedRows = deleteStatement.executeUpdateDelete();
 
-            if (deletedRows > 0) {
-                log(LogType.MSG_IP_DELETE_OLD_OK);
-                result |= SaveKeyringResult.UPDATED;
-            } else {
-                log(LogType.MSG_IP_DELETE_OLD_FAIL);
-            }
+        if (deletedRows > 0) {
+            log(LogType.MSG_IP_DELETE_OLD_OK);
+        } else {
+            log(LogType.MSG_IP_DELETE_OLD_FAIL);
+        }
 
-            log(LogType.MSG_IP_APPLY_BATCH);
-            databaseBatchInteractor.applyBatch(operations);
-            if (encodedKeyRing.length >= MAX_CACHED_KEY_SIZE) {
-                mLocalPublicKeyStorage.writePublicKey(masterKeyId, encodedKeyRing);
-            }
-            databaseNotifyManager.notifyKeyChange(masterKeyId);
+        log(LogType.MSG_IP_APPLY_BATCH);
+        databaseBatchInteractor.applyBatch(operations);
+        updateUnifiedKey(masterKeyId, oldUnifiedKeyInfo);
+        KeySearchIndex.updateForMasterKeyId(db, masterKeyId);
+        publicKeyRingStore.put(masterKeyId, encodedKeyRing, undoLog);
 
-            db.setTransactionSuccessful();
-            log(LogType.MSG_IP_SUCCESS);
-            return result;
-        } catch (IOException e) {
-            log(LogType.MSG_IP_ERROR_OP_EXC);
-            Timber.e(e, "OperationApplicationException during import");
-            return SaveKeyringResult.RESULT_ERROR;
-        } finally {
-            db.endTransaction();
-        }
+        return deletedRows > 0;
+    }
 
+    private void updateUnifiedKey(long masterKeyId) {
+        updateUnifiedKey(masterKeyId, getUnifiedKeyInfo(masterKeyId));
+    }
+
+    /**
+     * Recomputes the materialized unified_keys row of a keyring from the keys, user_packets and certs
+     * tables. The duplicate flag depends on other keys, so it is updated for all keys that share the
+     * primary name and email with this one, before or after the change.
+     */
+    private void updateUnifiedKey(long masterKeyId, @Nullable UnifiedKeyInfo oldUnifiedKeyInfo) {
+        SupportSQLiteDatabase db = getWritableDb();
+
+        DeleteUnifiedKeyByMasterKeyId deleteStatement = UnifiedKey.createDeleteStatement(db);
+        deleteStatement.bind(masterKeyId);
+        deleteStatement.executeUpdateDelete();
+
+        InsertUnifiedKeyByMasterKeyId insertStatement = UnifiedKey.createInsertStatement(db);
+        insertStatement.bind(masterKeyId);
+        insertStatement.executeInsert();
+
+        UpdateHasDuplicateByNameAndEmail updateStatement = UnifiedKey.createUpdateHasDuplicateStatement(db);
+        if (oldUnifiedKeyInfo != null && oldUnifiedKeyInfo.name() != null && oldUnifiedKeyInfo.email() != null) {
+            updateStatement.bind(oldUnifiedKeyInfo.name(), oldUnifiedKeyInfo.email());
+            updateStatement.executeUpdateDelete();
+        }
+        UnifiedKeyInfo newUnifiedKeyInfo = getUnifiedKeyInfo(masterKeyId);
+        if (newUnifiedKeyInfo != null && newUnifiedKeyInfo.name() != null && newUnifiedKeyInfo.email() != null) {
+            updateStatement.bind(newUnifiedKeyInfo.name(), newUnifiedKeyInfo.email());
+            updateStatement.executeUpdateDelete();
+        }
     }
 
     private void writeSecretKeyRing(CanonicalizedSecretKeyRing keyRing, long masterKeyId) throws IOException {
         byte[] encodedKey = keyRing.getEncoded();
-        localSecretKeyStorage.writeSecretKey(masterKeyId, encodedKey);
+        secretKeyRingStore.put(masterKeyId, encodedKey);
+        secretKeyRingStore.sync();
     }
 
     public boolean deleteKeyRing(long masterKeyId) {
+        SupportSQLiteDatabase db = getWritableDb();
+        int deletedRows;
         try {
-            mLocalPublicKeyStorage.deletePublicKey(masterKeyId);
-            localSecretKeyStorage.deleteSecretKey(masterKeyId);
-        } catch (IOException e) {
-            Timber.e(e, "Could not delete file!");
-            return false;
+            db.beginTransaction();
+
+            autocryptPeerDao.deleteByMasterKeyId(masterKeyId);
+
+            UnifiedKeyInfo oldUnifiedKeyInfo = getUnifiedKeyInfo(masterKeyId);
+            DeleteByMasterKeyId deleteStatement = new DeleteByMasterKeyId(db);
+            deleteStatement.bind(masterKeyId);
+            deletedRows = deleteStatement.executeUpdateDelete();
+            // the unified_keys row is deleted on cascade, this only updates duplicate flags of other keys
+            updateUnifiedKey(masterKeyId, oldUnifiedKeyInfo);
+            KeySearchIndex.updateForMasterKeyId(db, masterKeyId);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-        autocryptPeerDao.deleteByMasterKeyId(masterKeyId);
 
-        DeleteByMasterKeyId deleteStatement = new DeleteByMasterKeyId(getWritableDb());
-        deleteStatement.bind(masterKeyId);
-        int deletedRows = deleteStatement.executeUpdateDelete();
+        // only after the commit, so the database never refers to missing keyring data. if this
+        // fails, the blobs are left without rows, and replaced when the key is imported again.
+        try {
+            publicKeyRingStore.delete(masterKeyId);
+            publicKeyRingStore.sync();
+            secretKeyRingStore.delete(masterKeyId);
+            secretKeyRingStore.sync();
+        } catch (IOException e) {
+            Timber.e(e, "Could not delete keyring data!");
+        }
 
+        trustedMasterKeyCache.invalidate();
         databaseNotifyManager.notifyKeyChange(masterKeyId);
 
         return deletedRows > 0;
@@ -630,7 +798,10 @@ public class KeyWritableRepository extends KeyRepository {
                 return SaveKeyringResult.RESULT_ERROR;
             }
 
-            {
+            SupportSQLiteDatabase db = getWritableDb();
+            try {
+                db.beginTransaction();
+
                 UpdateHasSecretByMasterKeyId resetStatement =
                         SubKey.createUpdateHasSecretByMasterKeyIdStatement(getWritableDb());
                 resetStatement.bind(masterKeyId, SecretKeyType.GNU_DUMMY);
@@ -669,8 +840,15 @@ public class KeyWritableRepository extends KeyRepository {
 
                 // this implicitly leaves all keys which were not in the secret key ring
                 // with has_secret = 1
-            }
 
+                updateUnifiedKey(masterKeyId);
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            // not before the commit, or the old state could be cached again in between
+            trustedMasterKeyCache.invalidate();
             databaseNotifyManager.notifyKeyChange(masterKeyId);
 
             log(LogType.MSG_IS_SUCCESS);
@@ -960,6 +1138,251 @@ public class KeyWritableRepository extends KeyRepository {
         return saveSecretKeyRing(secretRing, null, false);
     }
 
+    /**
+     * Prepares a public keyring for bulk import.
+     * <p>
+     * This performs the CPU-bound part of savePublicKeyRing, i.e. merging with the stored version,
+     * canonicalization and verification of certificates by trustedKeys, without writing anything.
+     * This method does not write to the database, so it may be called on a worker repository (see
+     * createWorkerRepository) in parallel. The result can be written together with others using
+     * writePreparedKeyRings.
+     * <p>
+     * Returns null if the keyring can't be imported in bulk because there is a secret keyring for
+     * it, which needs to be merged as well. Those must be saved using savePublicKeyRing.
+     */
+    public PreparedKeyRing preparePublicKeyRing(UncachedKeyRing publicRing,
+            LongSparseArray<CanonicalizedPublicKey> trustedKeys) {
+        return preparePublicKeyRing(publicRing, trustedKeys, null, false);
+    }
+
+    /**
+     * Like preparePublicKeyRing above, with the expectedFingerprint and forceRefresh semantics of
+     * savePublicKeyRing. Since the stored keyring may change before the result is written, callers
+     * which don't hold a lock over both steps must check isPreparedKeyRingStale before writing.
+     */
+    public PreparedKeyRing preparePublicKeyRing(UncachedKeyRing publicRing,
+            LongSparseArray<CanonicalizedPublicKey> trustedKeys, byte[] expectedFingerprint, boolean forceRefresh) {
+        clearLog();
+
+        long masterKeyId = publicRing.getMasterKeyId();
+        log(LogType.MSG_IP, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+        mIndent += 1;
+
+        try {
+            if (publicRing.isSecret()) {
+                log(LogType.MSG_IP_BAD_TYPE_SECRET);
+                return PreparedKeyRing.createError(masterKeyId, mLog);
+            }
+
+            if (secretKeyRingStore.contains(masterKeyId)) {
+                return null;
+            }
+
+            CanonicalizedPublicKeyRing canPublicRing;
+            byte[] storedKeyRingData = null;
+
+            // If there is an old keyring, merge it
+            try {
+                storedKeyRingData = loadPublicKeyRingData(masterKeyId);
+
+                // If this is exactly the stored keyring, e.g. from an earlier attempt of the same
+                // import, there is no need to merge and canonicalize it again. The stored keyring is
+                // written apart from the database though, so only skip it if its rows are there.
+                if (!forceRefresh && expectedFingerprint == null
+                        && Arrays.equals(publicRing.getEncoded(), storedKeyRingData)
+                        && hasMatchingSubKeyRows(masterKeyId, publicRing)) {
+                    log(LogType.MSG_IP_SUCCESS_IDENTICAL);
+                    return new PreparedKeyRing(masterKeyId, new SaveKeyringResult(SaveKeyringResult.UPDATED,
+                            mLog, null), null, storedKeyRingData, null, null);
+                }
+
+                UncachedKeyRing oldPublicRing = UncachedKeyRing.decodeFromData(storedKeyRingData);
+
+                log(LogType.MSG_IP_MERGE_PUBLIC);
+                UncachedKeyRing mergedRing = oldPublicRing.merge(publicRing, mLog, mIndent);
+                if (mergedRing == null) {
+                    return PreparedKeyRing.createError(masterKeyId, mLog);
+                }
+
+                canPublicRing = (CanonicalizedPublicKeyRing) mergedRing.canonicalize(mLog, mIndent);
+                if (canPublicRing == null) {
+                    return PreparedKeyRing.createError(masterKeyId, mLog);
+                }
+
+                // Early breakout if nothing changed
+                if (!forceRefresh && Arrays.equals(mergedRing.getEncoded(), oldPublicRing.getEncoded())
+                        && hasMatchingSubKeyRows(masterKeyId, oldPublicRing)) {
+                    log(LogType.MSG_IP_SUCCESS_IDENTICAL);
+                    return new PreparedKeyRing(masterKeyId, new SaveKeyringResult(SaveKeyringResult.UPDATED,
+                            mLog, canPublicRing), canPublicRing, storedKeyRingData, null, null);
+                }
+            } catch (PgpGeneralException | NotFoundException e) {
+                // Not an issue, just means we are dealing with a new keyring.
+                storedKeyRingData = null;
+                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                if (canPublicRing == null) {
+                    return PreparedKeyRing.createError(masterKeyId, mLog);
+                }
+            }
+
+            // If we have an expected fingerprint, make sure it matches
+            if (expectedFingerprint != null) {
+                if (!canPublicRing.containsBoundSubkey(expectedFingerprint)) {
+                    log(LogType.MSG_IP_FINGERPRINT_ERROR);
+                    return PreparedKeyRing.createError(masterKeyId, mLog);
+                } else {
+                    log(LogType.MSG_IP_FINGERPRINT_OK);
+                }
+            }
+
+            log(LogType.MSG_IP_PREPARE);
+            mIndent += 1;
+
+            byte[] encodedKeyRing;
+            ArrayList<BatchOp> operations;
+            try {
+                encodedKeyRing = canPublicRing.getEncoded();
+                operations = buildPublicKeyRingOperations(canPublicRing, encodedKeyRing, false, trustedKeys);
+            } finally {
+                mIndent -= 1;
+            }
+            if (operations == null) {
+                return PreparedKeyRing.createError(masterKeyId, mLog);
+            }
+
+            int result = SaveKeyringResult.SAVED_PUBLIC | (storedKeyRingData != null ? SaveKeyringResult.UPDATED : 0);
+            return new PreparedKeyRing(masterKeyId, new SaveKeyringResult(result, mLog, canPublicRing),
+                    canPublicRing, storedKeyRingData, encodedKeyRing, operations);
+        } catch (IOException e) {
+            log(LogType.MSG_IP_ERROR_IO_EXC);
+            return PreparedKeyRing.createError(masterKeyId, mLog);
+        } finally {
+            mIndent -= 1;
+        }
+    }
+
+    /**
+     * Returns true if the keys table holds exactly the keys of this keyring, in the same order.
+     * A stored keyring alone doesn't mean it was indexed, e.g. if the database was recreated
+     * while the keyring store was kept.
+     */
+    private boolean hasMatchingSubKeyRows(long masterKeyId, UncachedKeyRing keyRing) {
+        List<SubKey> subKeys = getSubKeysByMasterKeyId(masterKeyId);
+        Iterator<UncachedPublicKey> publicKeys = keyRing.getPublicKeys();
+        int rank = 0;
+        while (publicKeys.hasNext()) {
+            if (rank >= subKeys.size()
+                    || !Arrays.equals(publicKeys.next().getFingerprint(), subKeys.get(rank).fingerprint())) {
+                return false;
+            }
+            rank += 1;
+        }
+        return rank == subKeys.size();
+    }
+
+    /**
+     * Writes a number of keyrings prepared by preparePublicKeyRing in a single transaction.
+     * <p>
+     * If this throws, none of the keyrings have been written to the database, and the keyring
+     * store is restored to its previous state.
+     */
+    public void writePreparedKeyRings(List<PreparedKeyRing> preparedKeyRings) throws IOException {
+        SupportSQLiteDatabase db = databaseBatchInteractor.getDb();
+        KeyRingBlobStore.UndoLog undoLog = new KeyRingBlobStore.UndoLog();
+        boolean isSuccessful = false;
+        try {
+            db.beginTransaction();
+
+            for (PreparedKeyRing preparedKeyRing : preparedKeyRings) {
+                if (preparedKeyRing.operations == null) {
+                    continue;
+                }
+                replacePublicKeyRing(db, preparedKeyRing.masterKeyId, preparedKeyRing.encodedKeyRing,
+                        preparedKeyRing.operations, undoLog);
+            }
+            publicKeyRingStore.sync();
+
+            db.setTransactionSuccessful();
+            isSuccessful = true;
+        } finally {
+            endTransaction(db, isSuccessful, undoLog);
+        }
+
+        if (preparedKeyRings.size() == 1) {
+            databaseNotifyManager.notifyKeyChange(preparedKeyRings.get(0).masterKeyId);
+        } else {
+            // a single notification for the whole batch is much cheaper than one per key
+            databaseNotifyManager.notifyAllKeysChange();
+        }
+    }
+
+    /**
+     * Returns true if the keyring was prepared against a different state of the database than the
+     * current one, i.e. the stored public keyring changed, or a secret keyring was added since.
+     * In that case, it must not be written, but prepared or saved again.
+     */
+    public boolean isPreparedKeyRingStale(PreparedKeyRing preparedKeyRing) {
+        long masterKeyId = preparedKeyRing.masterKeyId;
+        try {
+            if (secretKeyRingStore.contains(masterKeyId)) {
+                return true;
+            }
+        } catch (IOException e) {
+            // can't tell, so save it again the slow way
+            return true;
+        }
+        byte[] storedKeyRingData;
+        try {
+            storedKeyRingData = loadPublicKeyRingData(masterKeyId);
+        } catch (NotFoundException e) {
+            storedKeyRingData = null;
+        }
+        return !Arrays.equals(storedKeyRingData, preparedKeyRing.storedKeyRingData);
+    }
+
+    public static class PreparedKeyRing {
+        private final long masterKeyId;
+        private final SaveKeyringResult result;
+        private final CanonicalizedPublicKeyRing canonicalizedKeyRing;
+        // the stored keyring this one was merged with, or null if there was none
+        private final byte[] storedKeyRingData;
+        private final byte[] encodedKeyRing;
+        private final List<BatchOp> operations;
+
+        private PreparedKeyRing(long masterKeyId, SaveKeyringResult result,
+                CanonicalizedPublicKeyRing canonicalizedKeyRing, byte[] storedKeyRingData,
+                byte[] encodedKeyRing, List<BatchOp> operations) {
+            this.masterKeyId = masterKeyId;
+            this.result = result;
+            this.canonicalizedKeyRing = canonicalizedKeyRing;
+            this.storedKeyRingData = storedKeyRingData;
+            this.encodedKeyRing = encodedKeyRing;
+            this.operations = operations;
+        }
+
+        private static PreparedKeyRing createError(long masterKeyId, OperationLog log) {
+            return new PreparedKeyRing(masterKeyId,
+                    new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, log, null), null, null, null, null);
+        }
+
+        public long getMasterKeyId() {
+            return masterKeyId;
+        }
+
+        public SaveKeyringResult getResult() {
+            return result;
+        }
+
+        /** Returns the merged and canonicalized keyring, or null if preparing it failed. */
+        public CanonicalizedPublicKeyRing getCanonicalizedKeyRing() {
+            return canonicalizedKeyRing;
+        }
+
+        public boolean needsWrite() {
+            return operations != null;
+        }
+    }
+
     @NonNull
     public UpdateTrustResult updateTrustDb(List<Long> signerMasterKeyIds, Progressable progress) {
         OperationLog log = new OperationLog();
@@ -987,15 +1410,23 @@ public class KeyWritableRepository extends KeyRepository {
             log.add(LogType.MSG_TRUST_COUNT, 1, totalKeys);
         }
 
+        // the set of trusted keys doesn't change while we are updating
+        LongSparseArray<CanonicalizedPublicKey> trustedKeys = isTrustDbInitialized ? getTrustedMasterKeys() : null;
+
         for (long masterKeyId : masterKeyIds) {
             try {
                 log.add(LogType.MSG_TRUST_KEY, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
 
-                byte[] pubKeyData = loadPublicKeyRingData(masterKeyId);
-                UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(pubKeyData);
-
                 clearLog();
-                SaveKeyringResult result = savePublicKeyRing(uncachedKeyRing, true);
+                SaveKeyringResult result;
+                if (isTrustDbInitialized) {
+                    result = updateCertifications(masterKeyId, trustedKeys);
+                } else {
+                    // the key_signatures table is populated by a full save
+                    byte[] pubKeyData = loadPublicKeyRingData(masterKeyId);
+                    UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(pubKeyData);
+                    result = savePublicKeyRing(uncachedKeyRing, true);
+                }
 
                 log.add(result, 1);
                 progress.setProgress(processedKeys++, totalKeys);
@@ -1011,6 +1442,107 @@ public class KeyWritableRepository extends KeyRepository {
         return new UpdateTrustResult(UpdateTrustResult.RESULT_OK, log);
     }
 
+    /**
+     * Updates the certifications of a stored public keyring after the set of trusted keys changed.
+     * <p>
+     * Unlike savePublicKeyRing, this works directly on the stored keyring, which is canonicalized
+     * already, and leaves keyring data, subkeys and key signers alone. User packets are classified
+     * again, and only certifications that differ from the stored ones are deleted or inserted. Only
+     * if the order of user packets changed, all of them are rewritten along with their certifications.
+     */
+    private SaveKeyringResult updateCertifications(long masterKeyId,
+            LongSparseArray<CanonicalizedPublicKey> trustedKeys) throws NotFoundException, IOException {
+        log(LogType.MSG_IP, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+        mIndent += 1;
+
+        try {
+            CanonicalizedPublicKeyRing keyRing = new CanonicalizedPublicKeyRing(openPublicKeyRingStream(masterKeyId), null);
+            boolean selfCertsAreTrusted = secretKeyRingStore.contains(masterKeyId);
+
+            ArrayList<BatchOp> operations = new ArrayList<>();
+            buildUserPacketOperations(keyRing, selfCertsAreTrusted, trustedKeys, operations);
+
+            ArrayList<BatchOp> userPacketOperations = new ArrayList<>();
+            ArrayList<UserPacket> userPackets = new ArrayList<>();
+            HashSet<Certification> certifications = new HashSet<>();
+            for (BatchOp op : operations) {
+                if (op.userPacket != null) {
+                    userPackets.add(op.userPacket);
+                } else if (op.certification != null) {
+                    certifications.add(op.certification);
+                } else {
+                    // key signers are derived from the keyring data only, and did not change
+                    continue;
+                }
+                userPacketOperations.add(op);
+            }
+
+            List<UserPacket> storedUserPackets = mapAllRows(
+                    UserPacket.FACTORY.selectUserPacketsByMasterKeyId(masterKeyId), UserPacket.MAPPER);
+
+            int result = SaveKeyringResult.SAVED_PUBLIC;
+            SupportSQLiteDatabase db = databaseBatchInteractor.getDb();
+            try {
+                db.beginTransaction();
+
+                if (!userPackets.equals(storedUserPackets)) {
+                    log(LogType.MSG_TRUST_USER_PACKETS_REORDERED);
+                    DeleteUserPacketsByMasterKeyId deleteStatement = UserPacket.createDeleteByMasterKeyIdStatement(db);
+                    deleteStatement.bind(masterKeyId);
+                    deleteStatement.executeUpdateDelete();
+
+                    databaseBatchInteractor.applyBatch(userPacketOperations);
+                    result |= SaveKeyringResult.UPDATED;
+                } else {
+                    List<Certification> storedCertifications = mapAllRows(
+                            Certification.FACTORY.selectCertsByMasterKeyId(masterKeyId), Certification.MAPPER);
+
+                    DeleteCert deleteStatement = Certification.createDeleteStatement(db);
+                    int changedCertifications = 0;
+                    for (Certification storedCertification : storedCertifications) {
+                        // certifications that are left over in the set need to be inserted
+                        if (!certifications.remove(storedCertification)) {
+                            storedCertification.bindTo(deleteStatement);
+                            deleteStatement.executeUpdateDelete();
+                            changedCertifications += 1;
+                        }
+                    }
+
+                    ArrayList<BatchOp> insertOperations = new ArrayList<>();
+                    for (Certification certification : certifications) {
+                        insertOperations.add(DatabaseBatchInteractor.createInsertCertification(certification));
+                    }
+                    databaseBatchInteractor.applyBatch(insertOperations);
+                    changedCertifications += insertOperations.size();
+
+                    if (changedCertifications > 0) {
+                        log(LogType.MSG_TRUST_CERTS_UPDATED, changedCertifications);
+                        result |= SaveKeyringResult.UPDATED;
+                    } else {
+                        log(LogType.MSG_TRUST_CERTS_UNCHANGED);
+                    }
+                }
+
+                if ((result & SaveKeyringResult.UPDATED) == SaveKeyringResult.UPDATED) {
+                    updateUnifiedKey(masterKeyId);
+                }
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            if ((result & SaveKeyringResult.UPDATED) == SaveKeyringResult.UPDATED) {
+                databaseNotifyManager.notifyKeyChange(masterKeyId);
+            }
+
+            log(LogType.MSG_IP_SUCCESS);
+            return new SaveKeyringResult(result, mLog, keyRing);
+        } finally {
+            mIndent -= 1;
+        }
+    }
+
     private BatchOp buildCertOperations(long masterKeyId, int rank, WrappedSignature cert, VerificationStatus verificationStatus) {
         try {
             Certification certification = Certification.create(masterKeyId, rank, cert.getKeyId(),
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.daos;
+
+
+import java.util.List;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
+
+import org.sufficientlysecure.keychain.KeychainDatabase;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing.VerificationStatus;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+
+
+/**
+ * Process-wide LRU cache of parsed public keyrings, weighted by encoded size.
+ * <p/>
+ * Entries are dropped by DatabaseNotifyManager on every key change. Changes
+ * made by other processes arrive through a ContentObserver on the key notify
+ * uris, which drops only the affected entry, so a cache hit never touches the
+ * key store. As with TrustedMasterKeyCache, a ring loaded before an
+ * invalidation is never stored. Secret keyrings are never cached, so no secret
+ * key material outlives its use.
+ */
+public class ParsedKeyRingCache {
+    private static final int MAX_CACHE_SIZE_BYTES = 4 * 1024 * 1024;
+
+    private static ParsedKeyRingCache sInstance;
+
+    private final LruCache<Long, CachedKeyRing> cachedKeyRings = new LruCache<Long, CachedKeyRing>(MAX_CACHE_SIZE_BYTES) {
+        @Override
+        protected int sizeOf(Long masterKeyId, CachedKeyRing cachedKeyRing) {
+            return cachedKeyRing.encodedSize;
+        }
+    };
+
+    private long version;
+    private KeychainDatabase cachedDatabase;
+    private Context observedContext;
+
+    private long hitCount;
+    private long missCount;
+    private long decodeTimeNanos;
+    private long decodeCount;
+
+    public static synchronized ParsedKeyRingCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new ParsedKeyRingCache();
+        }
+        return sInstance;
+    }
+
+    /** Returns the instance, making sure it observes key changes made through this context's content resolver. */
+    static synchronized ParsedKeyRingCache getInstance(Context context) {
+        ParsedKeyRingCache instance = getInstance();
+        instance.registerInvalidationObserver(context.getApplicationContext());
+        return instance;
+    }
+
+    private ParsedKeyRingCache() {
+    }
+
+    private synchronized void registerInvalidationObserver(Context context) {
+        if (observedContext == context) {
+            return;
+        }
+        observedContext = context;
+
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                Long masterKeyId = getMasterKeyIdFromNotifyUri(uri);
+                if (masterKeyId != null) {
+                    invalidate(masterKeyId);
+                } else {
+                    invalidateAll();
+                }
+            }
+        };
+        context.getContentResolver().registerContentObserver(
+                DatabaseNotifyManager.getNotifyUriAllKeys(), true, observer);
+    }
+
+    @Nullable
+    private static Long getMasterKeyIdFromNotifyUri(@Nullable Uri uri) {
+        if (uri == null) {
+            return null;
+        }
+        List<String> pathSegments = uri.getPathSegments();
+        if (pathSegments.size() != 2) {
+            return null;
+        }
+        try {
+            return Long.parseLong(pathSegments.get(1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Returns the cached ring, if there is one for this database with the given verification status. */
+    @Nullable
+    synchronized CanonicalizedPublicKeyRing get(KeychainDatabase database, long masterKeyId,
+            VerificationStatus verified) {
+        if (cachedDatabase != database) {
+            missCount += 1;
+            return null;
+        }
+        CachedKeyRing cachedKeyRing = cachedKeyRings.get(masterKeyId);
+        if (cachedKeyRing == null || cachedKeyRing.keyRing.getVerified() != verified) {
+            missCount += 1;
+            return null;
+        }
+        hitCount += 1;
+        return cachedKeyRing.keyRing;
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    synchronized void put(KeychainDatabase database, long loadedVersion, CanonicalizedPublicKeyRing keyRing,
+            int encodedSize, long decodeNanos) {
+        decodeTimeNanos += decodeNanos;
+        decodeCount += 1;
+
+        if (loadedVersion != version) {
+            return;
+        }
+        if (cachedDatabase != database) {
+            cachedKeyRings.evictAll();
+            cachedDatabase = database;
+        }
+        cachedKeyRings.put(keyRing.getMasterKeyId(), new CachedKeyRing(keyRing, encodedSize));
+    }
+
+    synchronized void invalidate(long masterKeyId) {
+        version += 1;
+        cachedKeyRings.remove(masterKeyId);
+    }
+
+    synchronized void invalidateAll() {
+        version += 1;
+        cachedKeyRings.evictAll();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized float getHitRate() {
+        long requestCount = hitCount + missCount;
+        return requestCount == 0 ? 0 : (float) hitCount / requestCount;
+    }
+
+    /** Estimated decode time saved by cache hits, based on the average time of actual decodes. */
+    public synchronized long getDecodeTimeSavedMillis() {
+        if (decodeCount == 0) {
+            return 0;
+        }
+        return hitCount * (decodeTimeNanos / decodeCount) / 1000000;
+    }
+
+    private static class CachedKeyRing {
+        private final CanonicalizedPublicKeyRing keyRing;
+        private final int encodedSize;
+
+        CachedKeyRing(CanonicalizedPublicKeyRing keyRing, int encodedSize) {
+            this.keyRing = keyRing;
+            this.encodedSize = encodedSize;
+        }
+    }
+}
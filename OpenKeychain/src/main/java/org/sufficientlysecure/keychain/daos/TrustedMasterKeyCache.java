@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.daos;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.Nullable;
+import androidx.collection.LongSparseArray;
+
+import org.sufficientlysecure.keychain.KeychainDatabase;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
+
+
+/**
+ * Process-wide cache of the master keys of all secret keyrings, as used for
+ * verification of certifications on import.
+ * <p/>
+ * Every change to the set of secret keys must call invalidate(), which bumps the
+ * version. A set loaded under an older version is never stored, so a load racing
+ * with an invalidation can't leave stale data in the cache.
+ */
+public class TrustedMasterKeyCache {
+    private static TrustedMasterKeyCache sInstance;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private long version;
+    private KeychainDatabase cachedDatabase;
+    private LongSparseArray<CanonicalizedPublicKey> cachedKeys;
+
+    public static synchronized TrustedMasterKeyCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new TrustedMasterKeyCache();
+        }
+        return sInstance;
+    }
+
+    private TrustedMasterKeyCache() {
+    }
+
+    /** Returns a copy of the cached set for this database, or null if it must be loaded. */
+    @Nullable
+    synchronized LongSparseArray<CanonicalizedPublicKey> get(KeychainDatabase database) {
+        if (cachedKeys == null || cachedDatabase != database) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return cachedKeys.clone();
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    synchronized void put(KeychainDatabase database, long loadedVersion,
+            LongSparseArray<CanonicalizedPublicKey> trustedKeys) {
+        if (loadedVersion != version) {
+            return;
+        }
+        cachedDatabase = database;
+        cachedKeys = trustedKeys.clone();
+    }
+
+    synchronized void invalidate() {
+        version += 1;
+        cachedDatabase = null;
+        cachedKeys = null;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
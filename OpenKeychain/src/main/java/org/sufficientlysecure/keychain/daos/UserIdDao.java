@@ -26,12 +26,14 @@ public class UserIdDao extends AbstractDao {
     }
 
     public UidStatus getUidStatusByEmailLike(String emailLike) {
-        SqlDelightQuery query = UserPacket.FACTORY.selectUserIdStatusByEmailLike(emailLike);
-        return mapSingleRow(query, UserPacket.UID_STATUS_MAPPER);
+        SqlDelightQuery query = UserPacket.FACTORY.selectUserIdStatusByEmailLike(
+                emailLike, getCurrentUnixTime(), getCurrentUnixTime());
+        return mapSingleRow(query, UserPacket.UID_STATUS_LIKE_MAPPER);
     }
 
     public Map<String,UidStatus> getUidStatusByEmail(String... emails) {
-        SqlDelightQuery query = UserPacket.FACTORY.selectUserIdStatusByEmail(emails);
+        SqlDelightQuery query = UserPacket.FACTORY.selectUserIdStatusByEmail(
+                emails, getCurrentUnixTime(), getCurrentUnixTime());
         Map<String,UidStatus> result = new HashMap<>();
         try (Cursor cursor = getReadableDb().query(query)) {
             while (cursor.moveToNext()) {
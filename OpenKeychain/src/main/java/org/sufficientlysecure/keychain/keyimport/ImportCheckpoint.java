@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import androidx.annotation.Nullable;
+
+import timber.log.Timber;
+
+
+/**
+ * The progress of an import from a KeyRingFileCache, stored next to the cache file. It holds the
+ * number of entries which are committed to the database, and a hash of the cache file, so it
+ * is only used for exactly the data it was written for.
+ */
+public class ImportCheckpoint {
+    private static final int FORMAT_VERSION = 1;
+    private static final String FILE_SUFFIX = ".checkpoint";
+
+    private final File file;
+    private final byte[] sourceHash;
+    private int committedPosition;
+
+    private ImportCheckpoint(File file, byte[] sourceHash, int committedPosition) {
+        this.file = file;
+        this.sourceHash = sourceHash;
+        this.committedPosition = committedPosition;
+    }
+
+    /**
+     * Returns the checkpoint of an earlier import of this cache, or a new one at position 0 if
+     * there is none, or it belongs to different data.
+     */
+    public static ImportCheckpoint loadOrCreate(KeyRingFileCache cache) throws IOException {
+        File cacheFile = cache.getCacheFile();
+        File checkpointFile = new File(cacheFile.getPath() + FILE_SUFFIX);
+        byte[] sourceHash = hashFile(cacheFile);
+
+        ImportCheckpoint checkpoint = load(checkpointFile);
+        if (checkpoint != null && Arrays.equals(checkpoint.sourceHash, sourceHash)) {
+            Timber.d("Resuming import at entry %d", checkpoint.committedPosition);
+            return checkpoint;
+        }
+        return new ImportCheckpoint(checkpointFile, sourceHash, 0);
+    }
+
+    @Nullable
+    private static ImportCheckpoint load(File checkpointFile) {
+        DataInputStream inputStream;
+        try {
+            inputStream = new DataInputStream(new FileInputStream(checkpointFile));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        try {
+            if (inputStream.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            byte[] sourceHash = new byte[inputStream.readInt()];
+            inputStream.readFully(sourceHash);
+            return new ImportCheckpoint(checkpointFile, sourceHash, inputStream.readInt());
+        } catch (IOException | NegativeArraySizeException e) {
+            Timber.e(e, "Error reading import checkpoint, starting over");
+            return null;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                // nvm
+            }
+        }
+    }
+
+    public int getCommittedPosition() {
+        return committedPosition;
+    }
+
+    /** Records that all entries before position are committed, and writes the checkpoint. */
+    public void commit(int position) throws IOException {
+        committedPosition = position;
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream outputStream = new DataOutputStream(fileOutputStream);
+            outputStream.writeInt(FORMAT_VERSION);
+            outputStream.writeInt(sourceHash.length);
+            outputStream.write(sourceHash);
+            outputStream.writeInt(committedPosition);
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("could not rename checkpoint file!");
+        }
+    }
+
+    public void delete() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private static byte[] hashFile(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always available");
+        }
+
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.app.NotificationManager;
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationCompat.Builder;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+import org.sufficientlysecure.keychain.Constants.NotificationIds;
+import org.sufficientlysecure.keychain.NotificationChannelManager;
+import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.operations.ImportOperation;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.util.ResourceUtils;
+import timber.log.Timber;
+
+
+/**
+ * Imports a KeyRingFileCache in the background. The import is checkpointed, see
+ * ImportOperation.checkpointedKeyRingImport, so if the process is killed WorkManager runs
+ * this again, and it continues where it was interrupted. Imports run one after another.
+ */
+public class KeyImportWorker extends Worker {
+    private static final String WORK_UNIQUE_NAME = "keyImport";
+    private static final String DATA_CACHE_FILE_NAME = "cache_file_name";
+
+    private AtomicBoolean cancellationSignal = new AtomicBoolean(false);
+
+    /**
+     * Writes the keyrings to a new cache file, and schedules a worker to import them.
+     * This does I/O, so it must not be called on the main thread.
+     */
+    public static void enqueueImport(Context context, Iterator<ParcelableKeyRing> keyRings) throws IOException {
+        String cacheFileName = "key_import_" + UUID.randomUUID() + ".kcache";
+        new KeyRingFileCache(context, cacheFileName).writeCache(keyRings);
+
+        Data inputData = new Data.Builder()
+                .putString(DATA_CACHE_FILE_NAME, cacheFileName)
+                .build();
+        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(KeyImportWorker.class)
+                .setInputData(inputData)
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(WORK_UNIQUE_NAME, ExistingWorkPolicy.APPEND, workRequest);
+    }
+
+    public KeyImportWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        String cacheFileName = getInputData().getString(DATA_CACHE_FILE_NAME);
+        if (cacheFileName == null) {
+            return Result.failure();
+        }
+        KeyRingFileCache cache = new KeyRingFileCache(getApplicationContext(), cacheFileName);
+
+        ImportCheckpoint checkpoint;
+        try {
+            checkpoint = ImportCheckpoint.loadOrCreate(cache);
+        } catch (IOException e) {
+            Timber.e(e, "Key import cache not readable, giving up");
+            deleteQuietly(cache);
+            notifyFinished(null);
+            // other imports are appended to this one, so don't fail them as well
+            return Result.success();
+        }
+
+        Timber.d("Starting key import…");
+        KeyWritableRepository keyWritableRepository = KeyWritableRepository.create(getApplicationContext());
+        ImportOperation importOperation = new ImportOperation(getApplicationContext(), keyWritableRepository,
+                notificationShowForProgress(), cancellationSignal);
+        ImportKeyResult result = importOperation.checkpointedKeyRingImport(cache, checkpoint);
+
+        if (isStopped() || result.cancelled()) {
+            // keep cache and checkpoint, WorkManager runs this again later
+            Timber.d("Key import stopped, resuming later");
+            NotificationManager notificationManager = (NotificationManager)
+                    getApplicationContext().getSystemService(Context.NOTIFICATION_SERVICE);
+            if (notificationManager != null) {
+                notificationManager.cancel(NotificationIds.KEY_IMPORT);
+            }
+            return Result.retry();
+        }
+
+        Timber.d("Key import completed: New: %d, Updated: %d, Failed: %d",
+                result.mNewKeys, result.mUpdatedKeys, result.mBadKeys);
+        checkpoint.delete();
+        deleteQuietly(cache);
+        notifyFinished(result);
+        return Result.success();
+    }
+
+    private static void deleteQuietly(KeyRingFileCache cache) {
+        try {
+            cache.delete();
+        } catch (IOException e) {
+            // nvm
+        }
+    }
+
+    private Builder createNotificationBuilder(Context context) {
+        NotificationChannelManager.getInstance(context).createNotificationChannelsIfNecessary();
+
+        return new Builder(context, NotificationChannelManager.KEY_IMPORT)
+                .setSmallIcon(R.drawable.ic_stat_notify_24dp)
+                .setLargeIcon(ResourceUtils.getDrawableAsNotificationBitmap(context, R.mipmap.ic_launcher))
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setVibrate(null)
+                .setSound(null);
+    }
+
+    private Progressable notificationShowForProgress() {
+        final Context context = getApplicationContext();
+        NotificationManager notificationManager =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        if (notificationManager == null) {
+            return null;
+        }
+
+        NotificationCompat.Builder builder = createNotificationBuilder(context)
+                .setContentTitle(context.getString(R.string.notify_title_key_import))
+                .setOngoing(true)
+                .setProgress(0, 0, true);
+
+        return new Progressable() {
+            private int lastCurrent = -1;
+
+            @Override
+            public void setProgress(Integer ignored, int current, int total) {
+                // the operation reports every key, don't flood the notification manager
+                if (total == 0 || current != total && current - lastCurrent < total / 100) {
+                    return;
+                }
+                lastCurrent = current;
+
+                builder.setProgress(total, current, false);
+                builder.setContentText(context.getString(R.string.notify_content_keysync, current, total));
+                notificationManager.notify(NotificationIds.KEY_IMPORT, builder.build());
+            }
+
+            @Override
+            public void setPreventCancel() {
+            }
+        };
+    }
+
+    private void notifyFinished(ImportKeyResult result) {
+        Context context = getApplicationContext();
+        NotificationManager notificationManager =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        if (notificationManager == null) {
+            return;
+        }
+
+        NotificationCompat.Builder builder = createNotificationBuilder(context);
+        if (result == null || !result.success()) {
+            builder.setContentTitle(context.getString(R.string.notify_title_key_import_failed));
+        } else {
+            builder.setContentTitle(context.getString(R.string.notify_title_key_import_finished,
+                    result.mNewKeys + result.mUpdatedKeys));
+        }
+        notificationManager.notify(NotificationIds.KEY_IMPORT, builder.build());
+    }
+
+    @Override
+    public void onStopped() {
+        super.onStopped();
+        cancellationSignal.set(true);
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import android.content.Context;
+
+import org.sufficientlysecure.keychain.util.IteratorWithSize;
+import timber.log.Timber;
+
+
+/**
+ * A file in our private cache directory holding a batch of ParcelableKeyRings, used instead of
+ * sending them through Binder IPC. See ParcelableFileCache for the reason.
+ * <p/>
+ * Unlike ParcelableFileCache, entries are not stored as marshalled Parcels, but in a versioned
+ * binary format:
+ * <pre>
+ * int magic, int version
+ * per entry: byte flags, then for each field present in flags: int length, data
+ * per entry: long offset of the entry
+ * int number of entries, long offset of the offset table
+ * </pre>
+ * The offset table at the end allows random access by index, so a reader can resume at any
+ * entry. The file is written under a temporary name and renamed when complete, so a file that
+ * exists under the final name is never truncated.
+ */
+public class KeyRingFileCache {
+    private static final int MAGIC = 0x4f4b4b43; // "OKKC"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = 12;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Files up to this size are memory mapped for reading, larger ones are read per entry. */
+    private static final long MAX_MAPPED_SIZE = 64 * 1024 * 1024;
+
+    private static final int FLAG_BYTES = 1;
+    private static final int FLAG_EXPECTED_FINGERPRINT = 1 << 1;
+    private static final int FLAG_KEY_ID_HEX = 1 << 2;
+    private static final int FLAG_FB_USERNAME = 1 << 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Context mContext;
+    private final String mFilename;
+
+    public KeyRingFileCache(Context context, String filename) {
+        mContext = context;
+        mFilename = filename;
+    }
+
+    public void writeCache(ParcelableKeyRing keyRing) throws IOException {
+        writeCache(Collections.singletonList(keyRing).iterator());
+    }
+
+    public void writeCache(Iterator<ParcelableKeyRing> it) throws IOException {
+        File cacheFile = getCacheFile();
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+
+        FileOutputStream outputStream = new FileOutputStream(tempFile);
+        try {
+            Writer writer = new Writer(outputStream.getChannel());
+            while (it.hasNext()) {
+                writer.writeEntry(it.next());
+            }
+            writer.finish();
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+
+        if (!tempFile.renameTo(cacheFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("could not rename cache file!");
+        }
+    }
+
+    /**
+     * Opens the cache file for random access. The file is not deleted by this method.
+     *
+     * @throws IOException if the file doesn't exist, or is not in the current format
+     */
+    public Reader openReader() throws IOException {
+        FileInputStream inputStream;
+        try {
+            inputStream = new FileInputStream(getCacheFile());
+        } catch (FileNotFoundException e) {
+            Timber.e(e, "key import cache file not existing");
+            throw new IOException(e);
+        }
+
+        try {
+            return new Reader(inputStream);
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads from cache file and deletes it afterward. Convenience function for readCache(boolean).
+     */
+    public IteratorWithSize<ParcelableKeyRing> readCache() throws IOException {
+        return readCache(true);
+    }
+
+    /**
+     * Returns an iterator over all entries of the cache file. As with ParcelableFileCache, the
+     * iterator ends early if an entry can't be read.
+     *
+     * @param deleteAfterRead if true, the cache file will be deleted once the iterator is exhausted
+     */
+    public IteratorWithSize<ParcelableKeyRing> readCache(final boolean deleteAfterRead) throws IOException {
+        final File cacheFile = getCacheFile();
+        final Reader reader = openReader();
+
+        return new IteratorWithSize<ParcelableKeyRing>() {
+            int position = 0;
+            boolean closed = false;
+
+            @Override
+            public int getSize() {
+                return reader.size();
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (!closed && position >= reader.size()) {
+                    close();
+                }
+                return !closed;
+            }
+
+            @Override
+            public ParcelableKeyRing next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return reader.get(position++);
+                } catch (IOException e) {
+                    Timber.e(e, "Encountered IOException during cache read!");
+                    close();
+                    throw new NoSuchElementException();
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private void close() {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                reader.close();
+                if (deleteAfterRead) {
+                    //noinspection ResultOfMethodCallIgnored
+                    cacheFile.delete();
+                }
+            }
+        };
+    }
+
+    public boolean delete() throws IOException {
+        return getCacheFile().delete();
+    }
+
+    File getCacheFile() throws IOException {
+        File cacheDir = mContext.getCacheDir();
+        if (cacheDir == null) {
+            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
+            throw new IOException("cache dir is null!");
+        }
+        return new File(cacheDir, mFilename);
+    }
+
+    private static class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long position;
+        private long[] offsets = new long[64];
+        private int numEntries;
+
+        Writer(FileChannel channel) throws IOException {
+            this.channel = channel;
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION);
+            position = HEADER_SIZE;
+        }
+
+        void writeEntry(ParcelableKeyRing keyRing) throws IOException {
+            if (numEntries == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[numEntries++] = position;
+
+            byte[] bytes = keyRing.getBytes();
+            byte[] expectedFingerprint = keyRing.getExpectedFingerprint();
+            byte[] keyIdHex = keyRing.getKeyIdHex() != null ? keyRing.getKeyIdHex().getBytes(UTF_8) : null;
+            byte[] fbUsername = keyRing.getFbUsername() != null ? keyRing.getFbUsername().getBytes(UTF_8) : null;
+
+            int flags = (bytes != null ? FLAG_BYTES : 0)
+                    | (expectedFingerprint != null ? FLAG_EXPECTED_FINGERPRINT : 0)
+                    | (keyIdHex != null ? FLAG_KEY_ID_HEX : 0)
+                    | (fbUsername != null ? FLAG_FB_USERNAME : 0);
+            ensureSpace(1);
+            buffer.put((byte) flags);
+            position += 1;
+
+            writeField(bytes);
+            writeField(expectedFingerprint);
+            writeField(keyIdHex);
+            writeField(fbUsername);
+        }
+
+        void finish() throws IOException {
+            long tableOffset = position;
+            for (int i = 0; i < numEntries; i++) {
+                ensureSpace(8);
+                buffer.putLong(offsets[i]);
+            }
+            ensureSpace(TRAILER_SIZE);
+            buffer.putInt(numEntries).putLong(tableOffset);
+            flush();
+        }
+
+        private void writeField(byte[] data) throws IOException {
+            if (data == null) {
+                return;
+            }
+            ensureSpace(4);
+            buffer.putInt(data.length);
+            if (data.length <= buffer.remaining()) {
+                buffer.put(data);
+            } else {
+                // don't copy large keyrings through the buffer
+                flush();
+                ByteBuffer wrapped = ByteBuffer.wrap(data);
+                while (wrapped.hasRemaining()) {
+                    channel.write(wrapped);
+                }
+            }
+            position += 4 + data.length;
+        }
+
+        private void ensureSpace(int length) throws IOException {
+            if (buffer.remaining() < length) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Random access to the entries of a cache file. Access is synchronized, so a Reader may be
+     * shared between threads.
+     */
+    public static class Reader implements Closeable {
+        private final FileInputStream inputStream;
+        private final FileChannel channel;
+        private final ByteBuffer mappedFile;
+        private final long[] offsets;
+        private final long tableOffset;
+
+        private Reader(FileInputStream inputStream) throws IOException {
+            this.inputStream = inputStream;
+            this.channel = inputStream.getChannel();
+
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException("cache file is truncated");
+            }
+            mappedFile = fileSize <= MAX_MAPPED_SIZE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize) : null;
+
+            ByteBuffer header = read(0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("not a key import cache file");
+            }
+            int version = header.getInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("unsupported cache file version " + version);
+            }
+
+            ByteBuffer trailer = read(fileSize - TRAILER_SIZE, TRAILER_SIZE);
+            int numEntries = trailer.getInt();
+            tableOffset = trailer.getLong();
+            if (numEntries < 0 || tableOffset < HEADER_SIZE
+                    || tableOffset + numEntries * 8L + TRAILER_SIZE != fileSize) {
+                throw new IOException("corrupt cache file trailer");
+            }
+
+            offsets = new long[numEntries];
+            read(tableOffset, numEntries * 8).asLongBuffer().get(offsets);
+        }
+
+        public int size() {
+            return offsets.length;
+        }
+
+        public synchronized ParcelableKeyRing get(int index) throws IOException {
+            if (index < 0 || index >= offsets.length) {
+                throw new IndexOutOfBoundsException("Invalid index " + index + ", size is " + offsets.length);
+            }
+            long start = offsets[index];
+            long end = index + 1 < offsets.length ? offsets[index + 1] : tableOffset;
+            if (start < HEADER_SIZE || end < start || end - start > Integer.MAX_VALUE) {
+                throw new IOException("corrupt offset for entry " + index);
+            }
+
+            ByteBuffer entry = read(start, (int) (end - start));
+            try {
+                int flags = entry.get();
+                byte[] bytes = (flags & FLAG_BYTES) != 0 ? readField(entry) : null;
+                byte[] expectedFingerprint = (flags & FLAG_EXPECTED_FINGERPRINT) != 0 ? readField(entry) : null;
+                String keyIdHex = (flags & FLAG_KEY_ID_HEX) != 0 ? new String(readField(entry), UTF_8) : null;
+                String fbUsername = (flags & FLAG_FB_USERNAME) != 0 ? new String(readField(entry), UTF_8) : null;
+
+                if (bytes != null) {
+                    return ParcelableKeyRing.createFromEncodedBytes(bytes);
+                }
+                return ParcelableKeyRing.createFromReference(expectedFingerprint, keyIdHex, fbUsername);
+            } catch (RuntimeException e) {
+                // BufferUnderflowException or NegativeArraySizeException on a bad length
+                throw new IOException("corrupt cache entry " + index, e);
+            }
+        }
+
+        private static byte[] readField(ByteBuffer entry) {
+            byte[] data = new byte[entry.getInt()];
+            entry.get(data);
+            return data;
+        }
+
+        private ByteBuffer read(long position, int length) throws IOException {
+            if (mappedFile != null) {
+                ByteBuffer slice = mappedFile.duplicate();
+                slice.position((int) position);
+                slice.limit((int) position + length);
+                return slice.slice();
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        @Override
+        public void close() {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                // nvm
+            }
+        }
+    }
+}
@@ -0,0 +1,593 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import android.content.Context;
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.bouncycastle.bcpg.PacketTags;
+import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
+import org.sufficientlysecure.keychain.util.IteratorWithSize;
+import timber.log.Timber;
+
+
+/**
+ * An index of the keyrings in a stream of OpenPGP data, as the offset and length of each keyring
+ * in a file. It is built in a single pass which only reads packet headers, so the keyrings
+ * themselves can be parsed on demand, see readKeyRings.
+ * <p/>
+ * Binary input from a uri is indexed in place. ASCII armored input, and input that is only
+ * available as a stream, is decoded into a file from TemporaryFileProvider while it is indexed.
+ * That copy may contain secret keys, so whoever builds the index must call deleteDecodedCopy
+ * once the keyrings are no longer needed.
+ * <p/>
+ * Instead of the keyrings, only the index is passed on to ImportOperation, through a cache file.
+ * See writeCache and readCache.
+ */
+public class KeyRingIndex {
+    public static final String CACHE_FILE_NAME = "key_import.idx";
+
+    private static final String DECODED_FILE_NAME = "key_import.pgp";
+    private static final int CACHE_FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Uri dataUri;
+    private final boolean isDecodedCopy;
+    private final int size;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final BitSet secretKeyRings;
+
+    private KeyRingIndex(Uri dataUri, boolean isDecodedCopy, int size, long[] offsets, int[] lengths,
+            BitSet secretKeyRings) {
+        this.dataUri = dataUri;
+        this.isDecodedCopy = isDecodedCopy;
+        this.size = size;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.secretKeyRings = secretKeyRings;
+    }
+
+    /**
+     * Indexes the keyrings in a stream. If sourceUri is given, it must point to the same data as
+     * the stream, and is used instead of a decoded copy if the data is binary.
+     * <p/>
+     * If the data is malformed after some keyrings, those are still indexed. An IOException is only
+     * thrown if no keyring could be found before the error.
+     */
+    @NonNull
+    public static KeyRingIndex build(Context context, InputStream inputStream, @Nullable Uri sourceUri)
+            throws IOException {
+        BufferedInputStream in = new BufferedInputStream(inputStream, BUFFER_SIZE);
+        Builder builder = new Builder();
+
+        OutputStream decodedOut = null;
+        Uri decodedUri = null;
+        boolean indexed = false;
+        try {
+            if (sourceUri == null || !isBinaryBlock(in)) {
+                decodedUri = TemporaryFileProvider.createFile(context, DECODED_FILE_NAME);
+                if (decodedUri == null) {
+                    throw new IOException("Could not create temporary file!");
+                }
+                decodedOut = context.getContentResolver().openOutputStream(decodedUri);
+                if (decodedOut == null) {
+                    throw new IOException("Could not open temporary file!");
+                }
+                decodedOut = new BufferedOutputStream(decodedOut, BUFFER_SIZE);
+            }
+
+            PacketScanner scanner = new PacketScanner(decodedOut);
+            // files may contain several consecutive blocks, e.g. ASCII armor blocks
+            while (true) {
+                in.mark(1);
+                if (in.read() == -1) {
+                    break;
+                }
+                in.reset();
+
+                if (decodedOut == null || isBinaryBlock(in)) {
+                    scanner.scanPackets(in, builder);
+                } else {
+                    long blockStart = scanner.position;
+                    scanner.scanPackets(new ArmoredInputStream(in), builder);
+                    if (scanner.position == blockStart) {
+                        // nothing but trailing text
+                        break;
+                    }
+                }
+            }
+            indexed = true;
+        } catch (IOException e) {
+            if (builder.size == 0) {
+                throw e;
+            }
+            Timber.e(e, "Error indexing keyrings, keeping the " + builder.size + " found before");
+            indexed = true;
+        } finally {
+            try {
+                in.close();
+                if (decodedOut != null) {
+                    decodedOut.close();
+                }
+            } finally {
+                if (!indexed && decodedUri != null) {
+                    context.getContentResolver().delete(decodedUri, null, null);
+                }
+            }
+        }
+
+        if (decodedUri != null) {
+            return builder.build(decodedUri, true);
+        }
+        return builder.build(sourceUri, false);
+    }
+
+    private static boolean isBinaryBlock(BufferedInputStream in) throws IOException {
+        in.mark(1);
+        int firstByte = in.read();
+        in.reset();
+        // every OpenPGP packet starts with a set high bit, which never happens in ASCII armor
+        return firstByte != -1 && (firstByte & 0x80) != 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isSecret(int index) {
+        return secretKeyRings.get(index);
+    }
+
+    public boolean hasSecretKeyRings() {
+        return !secretKeyRings.isEmpty();
+    }
+
+    /** Returns the uri of the indexed data, which is always binary. */
+    public Uri getDataUri() {
+        return dataUri;
+    }
+
+    /**
+     * Deletes the decoded copy of the input, if build made one. Indexed input from a uri is left
+     * alone. The keyrings can't be read from this index afterwards.
+     */
+    public void deleteDecodedCopy(Context context) {
+        if (isDecodedCopy) {
+            context.getContentResolver().delete(dataUri, null, null);
+        }
+    }
+
+    /**
+     * Reads the encoded keyrings from position from (inclusive) to position to (exclusive).
+     */
+    public List<byte[]> readKeyRings(Context context, int from, int to) throws IOException {
+        ArrayList<byte[]> result = new ArrayList<>(to - from);
+        KeyRingReader reader = new KeyRingReader(context);
+        try {
+            for (int i = from; i < to; i++) {
+                result.add(reader.read(i));
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    /**
+     * Returns all keyrings in a form suitable for ImportOperation, which means public keyrings
+     * before secret ones. Each group is read sequentially from the data file.
+     * <p/>
+     * Like KeyRingFileCache, the iterator ends early if the data can't be read.
+     */
+    public IteratorWithSize<ParcelableKeyRing> openImportIterator(final Context context) {
+        return new IteratorWithSize<ParcelableKeyRing>() {
+            private boolean secretPass = false;
+            private int position = 0;
+            private KeyRingReader reader;
+            private ParcelableKeyRing next;
+
+            @Override
+            public int getSize() {
+                return size;
+            }
+
+            private void readNext() {
+                if (next != null) {
+                    return;
+                }
+                try {
+                    while (true) {
+                        if (position >= size) {
+                            closeReader();
+                            if (secretPass || secretKeyRings.isEmpty()) {
+                                return;
+                            }
+                            secretPass = true;
+                            position = 0;
+                        }
+                        if (isSecret(position) != secretPass) {
+                            position += 1;
+                            continue;
+                        }
+                        if (reader == null) {
+                            reader = new KeyRingReader(context);
+                        }
+                        next = ParcelableKeyRing.createFromEncodedBytes(reader.read(position));
+                        position += 1;
+                        return;
+                    }
+                } catch (IOException e) {
+                    Timber.e(e, "Encountered IOException while reading indexed keyrings!");
+                    closeReader();
+                    position = size;
+                    secretPass = true;
+                }
+            }
+
+            private void closeReader() {
+                if (reader != null) {
+                    reader.close();
+                    reader = null;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                readNext();
+                return next != null;
+            }
+
+            @Override
+            public ParcelableKeyRing next() {
+                readNext();
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return next;
+                } finally {
+                    next = null;
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public void writeCache(Context context) throws IOException {
+        File cacheDir = context.getCacheDir();
+        if (cacheDir == null) {
+            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
+            throw new IOException("cache dir is null!");
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(cacheDir, CACHE_FILE_NAME)), BUFFER_SIZE));
+        try {
+            out.writeInt(CACHE_FORMAT_VERSION);
+            out.writeUTF(dataUri.toString());
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+                out.writeBoolean(secretKeyRings.get(i));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Reads the index written by writeCache, and deletes the cache file. */
+    public static KeyRingIndex readCache(Context context) throws IOException {
+        File cacheDir = context.getCacheDir();
+        if (cacheDir == null) {
+            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
+            throw new IOException("cache dir is null!");
+        }
+
+        File cacheFile = new File(cacheDir, CACHE_FILE_NAME);
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), BUFFER_SIZE));
+        } catch (FileNotFoundException e) {
+            Timber.e(e, "key ring index file not existing");
+            throw new IOException(e);
+        }
+
+        try {
+            if (in.readInt() != CACHE_FORMAT_VERSION) {
+                throw new IOException("Unknown key ring index format!");
+            }
+            Uri dataUri = Uri.parse(in.readUTF());
+            int size = in.readInt();
+            long[] offsets = new long[size];
+            int[] lengths = new int[size];
+            BitSet secretKeyRings = new BitSet(size);
+            for (int i = 0; i < size; i++) {
+                offsets[i] = in.readLong();
+                lengths[i] = in.readInt();
+                secretKeyRings.set(i, in.readBoolean());
+            }
+            // the import only reads the data, the decoded copy stays with the index it was built for
+            return new KeyRingIndex(dataUri, false, size, offsets, lengths, secretKeyRings);
+        } finally {
+            in.close();
+            if (!cacheFile.delete()) {
+                Timber.e("Could not delete key ring index file");
+            }
+        }
+    }
+
+    /** Reads keyrings by position, for increasing positions reusing the same stream. */
+    private class KeyRingReader {
+        private final Context context;
+        private InputStream in;
+        private long position;
+
+        KeyRingReader(Context context) {
+            this.context = context;
+        }
+
+        byte[] read(int index) throws IOException {
+            long offset = offsets[index];
+            if (in == null || offset < position) {
+                close();
+                in = context.getContentResolver().openInputStream(dataUri);
+                if (in == null) {
+                    throw new FileNotFoundException("Could not open keyring data!");
+                }
+                in = new BufferedInputStream(in, BUFFER_SIZE);
+                position = 0;
+            }
+            skipFully(in, offset - position);
+
+            byte[] data = new byte[lengths[index]];
+            new DataInputStream(in).readFully(data);
+            position = offset + data.length;
+            return data;
+        }
+
+        void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                in = null;
+            }
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                // skip may return 0 before the end of the stream, read to tell the difference
+                if (in.read() == -1) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Finds the boundaries of keyrings by reading packet headers only. A keyring starts at a public
+     * or secret key packet, and includes all packets up to the next one. If an output stream is
+     * given, all data is copied there and offsets refer to that copy.
+     */
+    private static class PacketScanner {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private long position;
+
+        PacketScanner(@Nullable OutputStream out) {
+            this.out = out;
+        }
+
+        void scanPackets(InputStream in, Builder builder) throws IOException {
+            try {
+                while (true) {
+                    long packetStart = position;
+                    int header = in.read();
+                    if (header == -1) {
+                        break;
+                    }
+                    if ((header & 0x80) == 0) {
+                        throw new IOException("Invalid packet header!");
+                    }
+                    writeByte(header);
+
+                    boolean newFormat = (header & 0x40) != 0;
+                    int tag = newFormat ? header & 0x3f : (header >> 2) & 0x0f;
+                    if (tag == PacketTags.PUBLIC_KEY || tag == PacketTags.SECRET_KEY) {
+                        builder.startKeyRing(packetStart, tag == PacketTags.SECRET_KEY);
+                    }
+
+                    if (newFormat) {
+                        transferNewFormatBody(in);
+                    } else {
+                        transferOldFormatBody(in, header & 0x03);
+                    }
+                    builder.extendKeyRing(position);
+                }
+            } catch (IOException e) {
+                builder.dropKeyRing();
+                throw e;
+            }
+            builder.finishKeyRing();
+        }
+
+        private void transferNewFormatBody(InputStream in) throws IOException {
+            while (true) {
+                int first = readByte(in);
+                if (first < 192) {
+                    transfer(in, first);
+                    return;
+                } else if (first <= 223) {
+                    transfer(in, ((first - 192) << 8) + readByte(in) + 192);
+                    return;
+                } else if (first == 255) {
+                    transfer(in, readFourOctetLength(in));
+                    return;
+                }
+                // partial body length, followed by another length header
+                transfer(in, 1L << (first & 0x1f));
+            }
+        }
+
+        private void transferOldFormatBody(InputStream in, int lengthType) throws IOException {
+            switch (lengthType) {
+                case 0:
+                    transfer(in, readByte(in));
+                    break;
+                case 1:
+                    transfer(in, (readByte(in) << 8) | readByte(in));
+                    break;
+                case 2:
+                    transfer(in, readFourOctetLength(in));
+                    break;
+                default:
+                    // indeterminate length, the packet extends to the end of the data
+                    transfer(in, Long.MAX_VALUE);
+                    break;
+            }
+        }
+
+        private long readFourOctetLength(InputStream in) throws IOException {
+            return ((long) readByte(in) << 24) | (readByte(in) << 16) | (readByte(in) << 8) | readByte(in);
+        }
+
+        private int readByte(InputStream in) throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Unexpected end of packet!");
+            }
+            writeByte(b);
+            return b;
+        }
+
+        private void writeByte(int b) throws IOException {
+            if (out != null) {
+                out.write(b);
+            }
+            position += 1;
+        }
+
+        private void transfer(InputStream in, long count) throws IOException {
+            boolean untilEnd = count == Long.MAX_VALUE;
+            if (out == null && !untilEnd) {
+                skipFully(in, count);
+                position += count;
+                return;
+            }
+            while (count > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+                if (read == -1) {
+                    if (untilEnd) {
+                        return;
+                    }
+                    throw new EOFException("Unexpected end of packet!");
+                }
+                if (out != null) {
+                    out.write(buffer, 0, read);
+                }
+                position += read;
+                count -= read;
+            }
+        }
+    }
+
+    private static class Builder {
+        private long[] offsets = new long[64];
+        private int[] lengths = new int[64];
+        private final BitSet secretKeyRings = new BitSet();
+        private int size;
+
+        private long currentStart = -1;
+        private long currentEnd;
+        private boolean currentIsSecret;
+
+        void startKeyRing(long offset, boolean isSecret) throws IOException {
+            finishKeyRing();
+            currentStart = offset;
+            currentEnd = offset;
+            currentIsSecret = isSecret;
+        }
+
+        void extendKeyRing(long end) {
+            if (currentStart != -1) {
+                currentEnd = end;
+            }
+        }
+
+        void dropKeyRing() {
+            currentStart = -1;
+        }
+
+        void finishKeyRing() throws IOException {
+            if (currentStart == -1) {
+                return;
+            }
+            if (currentEnd - currentStart > Integer.MAX_VALUE) {
+                throw new IOException("Keyring is too large!");
+            }
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            offsets[size] = currentStart;
+            lengths[size] = (int) (currentEnd - currentStart);
+            secretKeyRings.set(size, currentIsSecret);
+            size += 1;
+            currentStart = -1;
+        }
+
+        KeyRingIndex build(Uri dataUri, boolean isDecodedCopy) {
+            return new KeyRingIndex(dataUri, isDecodedCopy, size, offsets, lengths, secretKeyRings);
+        }
+    }
+}
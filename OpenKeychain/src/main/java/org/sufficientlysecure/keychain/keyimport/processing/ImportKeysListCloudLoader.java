@@ -35,16 +35,17 @@ import org.sufficientlysecure.keychain.util.Preferences;
 import timber.log.Timber;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class ImportKeysListCloudLoader
-        extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
+        extends AsyncTaskLoader<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> {
 
     private Context mContext;
     private CloudLoaderState mState;
     private ParcelableProxy mParcelableProxy;
 
     private ArrayList<ImportKeysListEntry> mEntryList = new ArrayList<>();
-    private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
+    private AsyncTaskResultWrapper<List<ImportKeysListEntry>> mEntryListWrapper;
 
     /**
      * Searches a keyserver as specified in cloudPrefs, using an explicit proxy if passed
@@ -64,7 +65,7 @@ public class ImportKeysListCloudLoader
     }
 
     @Override
-    public AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> loadInBackground() {
+    public AsyncTaskResultWrapper<List<ImportKeysListEntry>> loadInBackground() {
         mEntryListWrapper = new AsyncTaskResultWrapper<>(mEntryList, null);
 
         if (mState.mServerQuery == null) {
@@ -109,7 +110,7 @@ public class ImportKeysListCloudLoader
     }
 
     @Override
-    public void deliverResult(AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> data) {
+    public void deliverResult(AsyncTaskResultWrapper<List<ImportKeysListEntry>> data) {
         super.deliverResult(data);
     }
 
@@ -19,36 +19,37 @@ package org.sufficientlysecure.keychain.keyimport.processing;
 
 
 import android.content.Context;
-import androidx.annotation.NonNull;
+import android.net.Uri;
 import androidx.loader.content.AsyncTaskLoader;
 
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.keyimport.KeyRingIndex;
 import org.sufficientlysecure.keychain.operations.results.GetKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
-import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
-import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
-import org.sufficientlysecure.keychain.util.FileHelper;
-import org.sufficientlysecure.keychain.util.InputData;
-import org.sufficientlysecure.keychain.util.PositionAwareInputStream;
 import timber.log.Timber;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Loads the keyrings in a file or byte array for the import list. The data is only indexed here,
+ * entries are parsed on demand by KeyRingIndexEntryList, so the size of the input is not limited
+ * by memory.
+ */
 public class ImportKeysListLoader
-        extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
+        extends AsyncTaskLoader<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> {
 
     private Context mContext;
     private BytesLoaderState mState;
 
-    private ArrayList<ImportKeysListEntry> mData = new ArrayList<>();
-    private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
+    private List<ImportKeysListEntry> mData = new ArrayList<>();
+    private AsyncTaskResultWrapper<List<ImportKeysListEntry>> mEntryListWrapper;
 
     public ImportKeysListLoader(Context context, BytesLoaderState loaderState) {
         super(context);
@@ -57,7 +58,7 @@ public class ImportKeysListLoader
     }
 
     @Override
-    public AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> loadInBackground() {
+    public AsyncTaskResultWrapper<List<ImportKeysListEntry>> loadInBackground() {
         // This has already been loaded! nvm any further, just return
         if (mEntryListWrapper != null) {
             return mEntryListWrapper;
@@ -74,8 +75,8 @@ public class ImportKeysListLoader
         }
 
         try {
-            InputData inputData = getInputData(mState);
-            generateListOfKeyrings(inputData);
+            InputStream inputStream = getInputStream(mState);
+            indexKeyrings(inputStream);
         } catch (FileNotFoundException e) {
             OperationLog log = new OperationLog();
             log.add(LogType.MSG_GET_FILE_NOT_FOUND, 0);
@@ -92,6 +93,18 @@ public class ImportKeysListLoader
 
         // Ensure the loader is stopped
         onStopLoading();
+
+        deleteDecodedCopy(mData);
+    }
+
+    @Override
+    public void onCanceled(AsyncTaskResultWrapper<List<ImportKeysListEntry>> data) {
+        super.onCanceled(data);
+
+        // a load that was still running when the loader was reset isn't covered by onReset
+        if (isReset()) {
+            deleteDecodedCopy(data.getResult());
+        }
     }
 
     @Override
@@ -105,51 +118,49 @@ public class ImportKeysListLoader
     }
 
     /**
-     * Reads all PGPKeyRing objects from the bytes of an InputData object.
+     * Indexes all keyrings in the input. Binary files are indexed in place, all other input is
+     * decoded into a temporary file on the way.
      */
-    private void generateListOfKeyrings(InputData inputData) {
-        PositionAwareInputStream progressIn = new PositionAwareInputStream(
-                inputData.getInputStream());
-
-        // need to have access to the bufferedInput, so we can reuse it for the possible
-        // PGPObject chunks after the first one, e.g. files with several consecutive ASCII
-        // armor blocks
-        BufferedInputStream bufferedInput = new BufferedInputStream(progressIn);
+    private void indexKeyrings(InputStream inputStream) {
         try {
-            // parse all keyrings
-            IteratorWithIOThrow<UncachedKeyRing> it = UncachedKeyRing.fromStream(bufferedInput);
-            while (it.hasNext()) {
-                mData.add(new ImportKeysListEntry(mContext, it.next()));
+            Uri sourceUri = mState.mKeyBytes == null ? mState.mDataUri : null;
+            KeyRingIndex keyRingIndex = KeyRingIndex.build(mContext, inputStream, sourceUri);
+            KeyRingIndexEntryList entryList = new KeyRingIndexEntryList(mContext, keyRingIndex);
+            if (!entryList.isEmpty()) {
+                // parse the first page here, rather than on the ui thread
+                entryList.get(0);
             }
+            mData = entryList;
+            mEntryListWrapper = new AsyncTaskResultWrapper<>(mData, mEntryListWrapper.getOperationResult());
         } catch (IOException e) {
             Timber.e(e, "IOException on parsing key file! Return NoValidKeysException!");
-            if (mData.isEmpty()) {
-                OperationResult.OperationLog log = new OperationResult.OperationLog();
-                log.add(OperationResult.LogType.MSG_GET_NO_VALID_KEYS, 0);
-                GetKeyResult getKeyResult = new GetKeyResult(GetKeyResult.RESULT_ERROR_NO_VALID_KEYS, log);
-                mData.clear();
-                mEntryListWrapper = new AsyncTaskResultWrapper<>(mData, getKeyResult);
-            }
+            OperationResult.OperationLog log = new OperationResult.OperationLog();
+            log.add(OperationResult.LogType.MSG_GET_NO_VALID_KEYS, 0);
+            GetKeyResult getKeyResult = new GetKeyResult(GetKeyResult.RESULT_ERROR_NO_VALID_KEYS, log);
+            mData.clear();
+            mEntryListWrapper = new AsyncTaskResultWrapper<>(mData, getKeyResult);
         }
     }
 
-    @NonNull
-    private InputData getInputData(BytesLoaderState ls)
-            throws FileNotFoundException {
+    /** The decoded copy of armored input may contain secret keys, so it is deleted with the loader. */
+    private void deleteDecodedCopy(List<ImportKeysListEntry> entries) {
+        if (entries instanceof KeyRingIndexEntryList) {
+            ((KeyRingIndexEntryList) entries).getKeyRingIndex().deleteDecodedCopy(mContext);
+        }
+    }
 
-        InputData inputData;
+    private InputStream getInputStream(BytesLoaderState ls) throws FileNotFoundException {
         if (ls.mKeyBytes != null) {
-            inputData = new InputData(new ByteArrayInputStream(ls.mKeyBytes), ls.mKeyBytes.length);
+            return new ByteArrayInputStream(ls.mKeyBytes);
         } else if (ls.mDataUri != null) {
             InputStream inputStream = mContext.getContentResolver().openInputStream(ls.mDataUri);
-            long length = FileHelper.getFileSize(mContext, ls.mDataUri, -1);
-
-            inputData = new InputData(inputStream, length);
+            if (inputStream == null) {
+                throw new FileNotFoundException("Could not open " + ls.mDataUri);
+            }
+            return inputStream;
         } else {
             throw new AssertionError("Loader state must contain bytes or a data URI. This is a bug!");
         }
-
-        return inputData;
     }
 
 }
@@ -18,6 +18,7 @@
 package org.sufficientlysecure.keychain.keyimport.processing;
 
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.keyimport.KeyRingIndex;
 
 import java.util.List;
 
@@ -27,4 +28,6 @@ public interface ImportKeysListener extends ImportKeysResultListener {
 
     void importKeys(List<ImportKeysListEntry> entries);
 
+    void importKeys(KeyRingIndex keyRingIndex);
+
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport.processing;
+
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+
+import android.content.Context;
+import androidx.collection.LruCache;
+
+import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.keyimport.KeyRingIndex;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import timber.log.Timber;
+
+
+/**
+ * A list of the entries of a KeyRingIndex, which parses keyrings on demand, a page at a time.
+ * Only a few pages are kept in memory, so entries obtained from this list are not necessarily
+ * the same objects on the next call. Keyrings that can't be parsed are shown as insecure entries
+ * without user ids.
+ */
+public class KeyRingIndexEntryList extends AbstractList<ImportKeysListEntry> {
+    private static final int PAGE_SIZE = 25;
+    private static final int MAX_CACHED_PAGES = 8;
+
+    private final Context context;
+    private final KeyRingIndex keyRingIndex;
+    private final LruCache<Integer, ImportKeysListEntry[]> pages = new LruCache<>(MAX_CACHED_PAGES);
+
+    public KeyRingIndexEntryList(Context context, KeyRingIndex keyRingIndex) {
+        this.context = context.getApplicationContext();
+        this.keyRingIndex = keyRingIndex;
+    }
+
+    public KeyRingIndex getKeyRingIndex() {
+        return keyRingIndex;
+    }
+
+    @Override
+    public int size() {
+        return keyRingIndex.size();
+    }
+
+    @Override
+    public synchronized ImportKeysListEntry get(int location) {
+        if (location < 0 || location >= size()) {
+            throw new IndexOutOfBoundsException("Invalid index " + location + ", size is " + size());
+        }
+
+        int pageNumber = location / PAGE_SIZE;
+        ImportKeysListEntry[] page = pages.get(pageNumber);
+        if (page == null) {
+            page = loadPage(pageNumber);
+            pages.put(pageNumber, page);
+        }
+        return page[location % PAGE_SIZE];
+    }
+
+    private ImportKeysListEntry[] loadPage(int pageNumber) {
+        int from = pageNumber * PAGE_SIZE;
+        int to = Math.min(from + PAGE_SIZE, size());
+
+        List<byte[]> encodedKeyRings;
+        try {
+            encodedKeyRings = keyRingIndex.readKeyRings(context, from, to);
+        } catch (IOException e) {
+            Timber.e(e, "Error reading keyrings " + from + " to " + to);
+            encodedKeyRings = Collections.nCopies(to - from, new byte[0]);
+        }
+
+        ImportKeysListEntry[] page = new ImportKeysListEntry[to - from];
+        for (int i = 0; i < page.length; i++) {
+            byte[] encodedKeyRing = encodedKeyRings.get(i);
+            try {
+                page[i] = new ImportKeysListEntry(context, UncachedKeyRing.decodeFromData(encodedKeyRing));
+            } catch (IOException | PgpGeneralException e) {
+                Timber.e(e, "Error parsing keyring " + (from + i));
+                page[i] = createUnreadableEntry(from + i, encodedKeyRing);
+            }
+        }
+        return page;
+    }
+
+    private ImportKeysListEntry createUnreadableEntry(int location, byte[] encodedKeyRing) {
+        ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.setSecretKey(keyRingIndex.isSecret(location));
+        entry.setSecure(false);
+        // importing this fails with a proper error in the log
+        entry.setParcelableKeyRing(ParcelableKeyRing.createFromEncodedBytes(encodedKeyRing));
+        return entry;
+    }
+}
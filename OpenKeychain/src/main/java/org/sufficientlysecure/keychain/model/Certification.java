@@ -15,6 +15,8 @@ public abstract class Certification implements CertsModel {
     public static final CertsModel.Factory<Certification> FACTORY =
             new CertsModel.Factory<>(AutoValue_Certification::new, CustomColumnAdapters.VERIFICATON_STATUS_ADAPTER);
 
+    public static final Mapper<Certification> MAPPER = new Mapper<>(FACTORY);
+
     public static final SelectVerifyingCertDetailsMapper<CertDetails> CERT_DETAILS_MAPPER =
             new SelectVerifyingCertDetailsMapper<>(AutoValue_Certification_CertDetails::new);
 
@@ -28,10 +30,18 @@ public abstract class Certification implements CertsModel {
         return new InsertCert(db, FACTORY);
     }
 
+    public static DeleteCert createDeleteStatement(SupportSQLiteDatabase db) {
+        return new DeleteCert(db);
+    }
+
     public void bindTo(InsertCert statement) {
         statement.bind(master_key_id(), rank(), key_id_certifier(), type(), verified(), creation(), data());
     }
 
+    public void bindTo(DeleteCert statement) {
+        statement.bind(master_key_id(), rank(), key_id_certifier());
+    }
+
     @AutoValue
     public static abstract class CertDetails implements CertsModel.SelectVerifyingCertDetailsModel {
 
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.model;
+
+
+import java.util.Locale;
+
+import android.database.Cursor;
+import androidx.annotation.Nullable;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteStatement;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
+
+
+/**
+ * A full-text index over the user ids, key ids and fingerprints of all keys, backed by an FTS4
+ * table where the docid is the master key id. SQLDelight can't declare virtual tables, so this
+ * one is created and queried with plain sql.
+ * <p/>
+ * The index is maintained by KeyWritableRepository, and searched through KeyRepository. All
+ * text is reduced to lower case words of letters and digits before indexing, and search strings
+ * are reduced the same way. Each word of a search string matches as a prefix, and all words
+ * must match.
+ */
+public class KeySearchIndex {
+    public static final String CREATE_TABLE =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS key_search_index USING fts4 (user_ids, key_ids, fingerprints)";
+
+    private static final String DELETE_BY_MASTER_KEY_ID = "DELETE FROM key_search_index WHERE docid = ?";
+    private static final String DELETE_ALL = "DELETE FROM key_search_index";
+    private static final String INSERT =
+            "INSERT INTO key_search_index (docid, user_ids, key_ids, fingerprints) VALUES (?, ?, ?, ?)";
+    private static final String SELECT_MASTER_KEY_IDS_BY_MATCH =
+            "SELECT docid FROM key_search_index WHERE key_search_index MATCH ?";
+    private static final String SELECT_UNIFIED_KEY_INFO_BY_MATCH_AND_MAIL_ADDRESS =
+            "SELECT * FROM unifiedKeyView WHERE master_key_id IN "
+                    + "(SELECT docid FROM key_search_index WHERE key_search_index MATCH ?) "
+                    + "AND email LIKE ? ORDER BY creation DESC";
+    private static final String SELECT_ALL_MASTER_KEY_IDS = "SELECT master_key_id FROM keyrings_public";
+
+    /** Replaces the indexed data of a keyring with its current user ids and subkeys. */
+    public static void updateForMasterKeyId(SupportSQLiteDatabase db, long masterKeyId) {
+        SupportSQLiteStatement deleteStatement = db.compileStatement(DELETE_BY_MASTER_KEY_ID);
+        deleteStatement.bindLong(1, masterKeyId);
+        deleteStatement.executeUpdateDelete();
+
+        UnifiedKeyInfo unifiedKeyInfo = null;
+        try (Cursor cursor = db.query(SubKey.FACTORY.selectUnifiedKeyInfoByMasterKeyId(masterKeyId))) {
+            if (cursor.moveToNext()) {
+                unifiedKeyInfo = SubKey.UNIFIED_KEY_INFO_MAPPER.map(cursor);
+            }
+        }
+        if (unifiedKeyInfo == null) {
+            return;
+        }
+
+        StringBuilder keyIds = new StringBuilder();
+        StringBuilder fingerprints = new StringBuilder();
+        try (Cursor cursor = db.query(SubKey.FACTORY.selectSubkeysByMasterKeyId(masterKeyId))) {
+            while (cursor.moveToNext()) {
+                SubKey subKey = SubKey.SUBKEY_MAPPER.map(cursor);
+                String keyIdHex = String.format(Locale.ENGLISH, "%016x", subKey.key_id());
+                // long and short key ids are separate words, so both match as a prefix
+                keyIds.append(keyIdHex).append(' ').append(keyIdHex.substring(8)).append(' ');
+                fingerprints.append(Hex.toHexString(subKey.fingerprint())).append(' ');
+            }
+        }
+
+        SupportSQLiteStatement insertStatement = db.compileStatement(INSERT);
+        insertStatement.bindLong(1, masterKeyId);
+        insertStatement.bindString(2, normalize(unifiedKeyInfo.user_id_list()));
+        insertStatement.bindString(3, keyIds.toString());
+        insertStatement.bindString(4, fingerprints.toString());
+        insertStatement.executeInsert();
+    }
+
+    /** Rebuilds the whole index. This is only needed when the table is created in an existing database. */
+    public static void rebuild(SupportSQLiteDatabase db) {
+        db.execSQL(DELETE_ALL);
+        try (Cursor cursor = db.query(SELECT_ALL_MASTER_KEY_IDS)) {
+            while (cursor.moveToNext()) {
+                updateForMasterKeyId(db, cursor.getLong(0));
+            }
+        }
+    }
+
+    /** Returns a query for the master key ids that match a search string, or null if it contains no words. */
+    @Nullable
+    public static SupportSQLiteQuery selectMasterKeyIdsBySearch(String searchString) {
+        String matchExpression = toMatchExpression(searchString);
+        if (matchExpression == null) {
+            return null;
+        }
+        return new SimpleSQLiteQuery(SELECT_MASTER_KEY_IDS_BY_MATCH, new Object[] { matchExpression });
+    }
+
+    /**
+     * Returns a query for the unified key infos with a mail address that contains the given one, or
+     * null if it contains no words. The index narrows down the candidates within the query, so their
+     * number isn't limited by the number of bind arguments.
+     */
+    @Nullable
+    public static SupportSQLiteQuery selectUnifiedKeyInfoByMailAddress(String mailAddress) {
+        String matchExpression = toMatchExpression(mailAddress);
+        if (matchExpression == null) {
+            return null;
+        }
+        return new SimpleSQLiteQuery(SELECT_UNIFIED_KEY_INFO_BY_MATCH_AND_MAIL_ADDRESS,
+                new Object[] { matchExpression, '%' + mailAddress + '%' });
+    }
+
+    @Nullable
+    static String toMatchExpression(String searchString) {
+        StringBuilder matchExpression = new StringBuilder();
+        for (String word : normalize(searchString).split(" ")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            // key ids and fingerprints are commonly entered with a 0x prefix
+            if (word.startsWith("0x") && word.length() > 2) {
+                word = word.substring(2);
+            }
+            // words consist of letters and digits only, so they can't contain query syntax
+            matchExpression.append(word).append("* ");
+        }
+        return matchExpression.length() > 0 ? matchExpression.toString().trim() : null;
+    }
+
+    /** Reduces text to lower case words of letters and digits, separated by single spaces. */
+    static String normalize(@Nullable String text) {
+        if (text == null) {
+            return "";
+        }
+        String lowerCaseText = text.toLowerCase(Locale.ENGLISH);
+        StringBuilder result = new StringBuilder(lowerCaseText.length());
+        boolean lastWasSeparator = true;
+        for (int i = 0; i < lowerCaseText.length(); i++) {
+            char c = lowerCaseText.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                result.append(c);
+                lastWasSeparator = false;
+            } else if (!lastWasSeparator) {
+                result.append(' ');
+                lastWasSeparator = true;
+            }
+        }
+        return result.toString().trim();
+    }
+}
@@ -19,11 +19,15 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 public abstract class SubKey implements KeysModel {
     public static final Factory<SubKey> FACTORY =
             new Factory<>(AutoValue_SubKey::new, CustomColumnAdapters.SECRET_KEY_TYPE_ADAPTER);
-    public static final UnifiedKeyViewMapper<UnifiedKeyInfo, Certification> UNIFIED_KEY_INFO_MAPPER =
+    public static final UnifiedKeyViewMapper<UnifiedKeyInfo, UnifiedKey> UNIFIED_KEY_INFO_MAPPER =
             FACTORY.selectAllUnifiedKeyInfoMapper(
-                    AutoValue_SubKey_UnifiedKeyInfo::new, Certification.FACTORY);
+                    AutoValue_SubKey_UnifiedKeyInfo::new, UnifiedKey.FACTORY);
     public static Mapper<SubKey> SUBKEY_MAPPER = new Mapper<>(FACTORY);
     public static RowMapper<SecretKeyType> SKT_MAPPER = FACTORY.selectSecretKeyTypeMapper();
+    public static final SelectEffectiveEncryptionKeyIdsByMasterKeyIdsMapper<EncryptionKeyId> ENCRYPTION_KEY_ID_MAPPER =
+            FACTORY.selectEffectiveEncryptionKeyIdsByMasterKeyIdsMapper(AutoValue_SubKey_EncryptionKeyId::new);
+    public static final SelectMasterKeyIdsBySubkeyIdsMapper<SubkeyMasterKeyId> SUBKEY_MASTER_KEY_ID_MAPPER =
+            FACTORY.selectMasterKeyIdsBySubkeyIdsMapper(AutoValue_SubKey_SubkeyMasterKeyId::new);
 
     public boolean expires() {
         return expiry() != null;
@@ -58,10 +62,17 @@ public abstract class SubKey implements KeysModel {
                 creation(), expiry(), validFrom());
     }
 
+    @AutoValue
+    public static abstract class EncryptionKeyId implements SelectEffectiveEncryptionKeyIdsByMasterKeyIdsModel {
+    }
+
+    @AutoValue
+    public static abstract class SubkeyMasterKeyId implements SelectMasterKeyIdsBySubkeyIdsModel {
+    }
+
     @AutoValue
     public static abstract class UnifiedKeyInfo implements KeysModel.UnifiedKeyViewModel {
         private List<String> autocryptPackageNames;
-        private String cachedUidSearchString;
 
         public boolean is_expired() {
             Long expiry = expiry();
@@ -91,26 +102,18 @@ public abstract class SubKey implements KeysModel {
         }
 
         public boolean has_auth_key() {
-            return has_auth_key_int() != 0;
+            Long keyId = has_auth_key_int();
+            return keyId != null && keyId != 0;
         }
 
         public boolean has_encrypt_key() {
-            return has_encrypt_key_int() != 0;
+            Long keyId = has_encrypt_key_int();
+            return keyId != null && keyId != 0;
         }
 
         public boolean has_sign_key() {
-            return has_sign_key_int() != 0;
-        }
-
-        public String uidSearchString() {
-            if (cachedUidSearchString == null) {
-                cachedUidSearchString = user_id_list();
-                if (cachedUidSearchString == null) {
-                    cachedUidSearchString = "";
-                }
-                cachedUidSearchString = cachedUidSearchString.toLowerCase();
-            }
-            return cachedUidSearchString;
+            Long keyId = has_sign_key_int();
+            return keyId != null && keyId != 0;
         }
     }
 }
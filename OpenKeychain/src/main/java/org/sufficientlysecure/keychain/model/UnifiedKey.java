@@ -0,0 +1,34 @@
+package org.sufficientlysecure.keychain.model;
+
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import com.google.auto.value.AutoValue;
+import org.sufficientlysecure.keychain.UnifiedKeysModel;
+
+
+/**
+ * A row of the materialized unified_keys table. This table is maintained by
+ * KeyWritableRepository, and read through SubKey.UnifiedKeyInfo.
+ */
+@AutoValue
+public abstract class UnifiedKey implements UnifiedKeysModel {
+    public static final Factory<UnifiedKey> FACTORY =
+            new Factory<>(AutoValue_UnifiedKey::new, CustomColumnAdapters.VERIFICATON_STATUS_ADAPTER);
+
+    public static DeleteUnifiedKeyByMasterKeyId createDeleteStatement(SupportSQLiteDatabase db) {
+        return new DeleteUnifiedKeyByMasterKeyId(db);
+    }
+
+    public static InsertUnifiedKeyByMasterKeyId createInsertStatement(SupportSQLiteDatabase db) {
+        return new InsertUnifiedKeyByMasterKeyId(db);
+    }
+
+    public static UpdateHasDuplicateByNameAndEmail createUpdateHasDuplicateStatement(SupportSQLiteDatabase db) {
+        return new UpdateHasDuplicateByNameAndEmail(db);
+    }
+
+    public static UpdateAllHasDuplicate createUpdateAllHasDuplicateStatement(SupportSQLiteDatabase db) {
+        return new UpdateAllHasDuplicate(db);
+    }
+}
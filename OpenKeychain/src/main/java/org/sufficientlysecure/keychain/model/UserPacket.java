@@ -12,12 +12,15 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing.VerificationStat
 @AutoValue
 public abstract class UserPacket implements UserPacketsModel {
     public static final Factory<UserPacket> FACTORY = new Factory<>(AutoValue_UserPacket::new);
+    public static final Mapper<UserPacket> MAPPER = new Mapper<>(FACTORY);
     public static final SelectUserIdsByMasterKeyIdMapper<UserId> USER_ID_MAPPER =
             FACTORY.selectUserIdsByMasterKeyIdMapper(AutoValue_UserPacket_UserId::new);
     public static final SelectUserAttributesByTypeAndMasterKeyIdMapper<UserAttribute> USER_ATTRIBUTE_MAPPER =
             FACTORY.selectUserAttributesByTypeAndMasterKeyIdMapper(AutoValue_UserPacket_UserAttribute::new);
-    public static final UidStatusMapper<UidStatus> UID_STATUS_MAPPER =
+    public static final SelectUserIdStatusByEmailMapper<UidStatus> UID_STATUS_MAPPER =
             FACTORY.selectUserIdStatusByEmailMapper(AutoValue_UserPacket_UidStatus::new);
+    public static final SelectUserIdStatusByEmailLikeMapper<UidStatus> UID_STATUS_LIKE_MAPPER =
+            FACTORY.selectUserIdStatusByEmailLikeMapper(AutoValue_UserPacket_UidStatus::new);
 
     public static UserPacket create(long masterKeyId, int rank, Long type, String userId, String name, String email,
             String comment, byte[] attribute_data, boolean isPrimary, boolean isRevoked) {
@@ -29,6 +32,10 @@ public abstract class UserPacket implements UserPacketsModel {
         return new InsertUserPacket(db);
     }
 
+    public static DeleteUserPacketsByMasterKeyId createDeleteByMasterKeyIdStatement(SupportSQLiteDatabase db) {
+        return new DeleteUserPacketsByMasterKeyId(db);
+    }
+
     public void bindTo(InsertUserPacket statement) {
         statement.bind(master_key_id(), rank(), type(), user_id(), name(), email(), comment(), attribute_data(),
                 is_primary(), is_revoked());
@@ -59,7 +66,8 @@ public abstract class UserPacket implements UserPacketsModel {
     }
 
     @AutoValue
-    public static abstract class UidStatus implements UidStatusModel {
+    public static abstract class UidStatus implements SelectUserIdStatusByEmailModel,
+            SelectUserIdStatusByEmailLikeModel {
         public VerificationStatus keyStatus() {
             return CustomColumnAdapters.VERIFICATON_STATUS_ADAPTER.decode(key_status_int());
         }
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import android.content.Context;
+import android.text.TextUtils;
+import androidx.annotation.Nullable;
+import androidx.collection.LongSparseArray;
+
+import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import timber.log.Timber;
+
+
+/**
+ * The state of all keys at the time of the last incremental backup: a hash of the exported
+ * canonical encoding of each keyring, by master key id. An incremental backup only contains
+ * keyrings whose hash differs from the manifest, and lists the master key ids which are in the
+ * manifest but were deleted since. After a successful incremental backup, its manifest replaces
+ * the stored one.
+ * <p/>
+ * Each incremental backup starts with an armored block that holds only a marker packet, which
+ * is ignored by anything that reads keyrings. Its armor headers identify the backup, the backup
+ * it is based on, and the deleted keys, so a chain of backups can be restored in order.
+ */
+public class BackupManifest {
+    private static final int FORMAT_VERSION = 1;
+    private static final String FILE_NAME = "backup_manifest";
+
+    static final String HEADER_BACKUP_ID = "Backup-Id";
+    static final String HEADER_BASE_BACKUP_ID = "Backup-Base";
+    static final String HEADER_DELETED_KEYS = "Backup-Deleted";
+
+    // an old format marker packet, see RFC 4880, section 5.8
+    private static final byte[] MARKER_PACKET = { (byte) 0xa8, 0x03, 'P', 'G', 'P' };
+
+    private final String backupId;
+    private final boolean exportSecret;
+    private final boolean exportPublic;
+    private final LongSparseArray<byte[]> keyRingHashes;
+
+    private BackupManifest(String backupId, boolean exportSecret, boolean exportPublic,
+            LongSparseArray<byte[]> keyRingHashes) {
+        this.backupId = backupId;
+        this.exportSecret = exportSecret;
+        this.exportPublic = exportPublic;
+        this.keyRingHashes = keyRingHashes;
+    }
+
+    /** Creates an empty manifest for a new backup, with a random id. */
+    static BackupManifest createForBackup(boolean exportSecret, boolean exportPublic) {
+        String backupId = String.format(Locale.ENGLISH, "%016x", new SecureRandom().nextLong());
+        return new BackupManifest(backupId, exportSecret, exportPublic, new LongSparseArray<byte[]>());
+    }
+
+    String getBackupId() {
+        return backupId;
+    }
+
+    /** Returns true if a backup with these options can be based on this manifest. */
+    boolean hasOptions(boolean exportSecret, boolean exportPublic) {
+        return this.exportSecret == exportSecret && this.exportPublic == exportPublic;
+    }
+
+    synchronized boolean contains(long masterKeyId) {
+        return keyRingHashes.containsKey(masterKeyId);
+    }
+
+    synchronized boolean hasKeyRingHash(long masterKeyId, byte[] keyRingHash) {
+        return Arrays.equals(keyRingHashes.get(masterKeyId), keyRingHash);
+    }
+
+    synchronized void putKeyRingHash(long masterKeyId, byte[] keyRingHash) {
+        keyRingHashes.put(masterKeyId, keyRingHash);
+    }
+
+    synchronized long[] getMasterKeyIds() {
+        long[] masterKeyIds = new long[keyRingHashes.size()];
+        for (int i = 0; i < masterKeyIds.length; i++) {
+            masterKeyIds[i] = keyRingHashes.keyAt(i);
+        }
+        return masterKeyIds;
+    }
+
+    /** Hashes the encodings of the public and secret keyring of one key, either may be null. */
+    static byte[] hashKeyRings(@Nullable byte[] publicKeyRing, @Nullable byte[] secretKeyRing) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always available");
+        }
+        if (publicKeyRing != null) {
+            digest.update(publicKeyRing);
+        }
+        // a separator, so a keyring can't move from one part to the other unnoticed
+        digest.update((byte) (secretKeyRing != null ? 1 : 0));
+        if (secretKeyRing != null) {
+            digest.update(secretKeyRing);
+        }
+        return digest.digest();
+    }
+
+    /** Returns the armored header block of a backup with this manifest. */
+    byte[] createHeaderBlock(@Nullable BackupManifest baseManifest, long[] deletedMasterKeyIds) {
+        ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+        try {
+            ArmoredOutputStream arOutStream = new ArmoredOutputStream(headerBlock);
+            arOutStream.setHeader(HEADER_BACKUP_ID, backupId);
+            if (baseManifest != null) {
+                arOutStream.setHeader(HEADER_BASE_BACKUP_ID, baseManifest.backupId);
+            }
+            if (deletedMasterKeyIds.length > 0) {
+                List<String> deletedKeys = new ArrayList<>(deletedMasterKeyIds.length);
+                for (long masterKeyId : deletedMasterKeyIds) {
+                    deletedKeys.add(KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+                }
+                arOutStream.setHeader(HEADER_DELETED_KEYS, TextUtils.join(",", deletedKeys));
+            }
+            arOutStream.write(MARKER_PACKET);
+            arOutStream.close();
+        } catch (IOException e) {
+            throw new AssertionError("ByteArrayOutputStream doesn't throw IOException");
+        }
+        return headerBlock.toByteArray();
+    }
+
+    /**
+     * Reads the header block at the start of an incremental backup. The stream is left at the
+     * first keyring after it.
+     *
+     * @return the header, or null if the stream doesn't start with a backup header block
+     */
+    @Nullable
+    static BackupHeader readHeaderBlock(InputStream inputStream) throws IOException {
+        ArmoredInputStream armorIn = new ArmoredInputStream(inputStream);
+
+        String backupId = null;
+        String baseBackupId = null;
+        long[] deletedMasterKeyIds = new long[0];
+        for (String header : armorIn.getArmorHeaders()) {
+            int sep = header.indexOf(": ");
+            if (sep < 0) {
+                continue;
+            }
+            String name = header.substring(0, sep);
+            String value = header.substring(sep + 2).trim();
+            if (HEADER_BACKUP_ID.equals(name)) {
+                backupId = value;
+            } else if (HEADER_BASE_BACKUP_ID.equals(name)) {
+                baseBackupId = value;
+            } else if (HEADER_DELETED_KEYS.equals(name)) {
+                deletedMasterKeyIds = parseMasterKeyIds(value);
+            }
+        }
+        if (backupId == null) {
+            return null;
+        }
+
+        // skip the marker packet
+        //noinspection StatementWithEmptyBody
+        while (armorIn.read() != -1) {
+        }
+
+        return new BackupHeader(backupId, baseBackupId, deletedMasterKeyIds);
+    }
+
+    private static long[] parseMasterKeyIds(String value) throws IOException {
+        String[] hexIds = value.split(",");
+        long[] masterKeyIds = new long[hexIds.length];
+        try {
+            for (int i = 0; i < hexIds.length; i++) {
+                masterKeyIds[i] = KeyFormattingUtils.convertKeyIdHexToKeyId(hexIds[i].trim());
+            }
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            throw new IOException("bad key id in backup header", e);
+        }
+        return masterKeyIds;
+    }
+
+    /** Returns the manifest of the last incremental backup, or null if there is none. */
+    @Nullable
+    static BackupManifest load(Context context) {
+        DataInputStream inputStream;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(getManifestFile(context))));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        try {
+            if (inputStream.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            String backupId = inputStream.readUTF();
+            boolean exportSecret = inputStream.readBoolean();
+            boolean exportPublic = inputStream.readBoolean();
+            int count = inputStream.readInt();
+            LongSparseArray<byte[]> keyRingHashes = new LongSparseArray<>(count);
+            for (int i = 0; i < count; i++) {
+                long masterKeyId = inputStream.readLong();
+                byte[] keyRingHash = new byte[inputStream.readInt()];
+                inputStream.readFully(keyRingHash);
+                keyRingHashes.put(masterKeyId, keyRingHash);
+            }
+            return new BackupManifest(backupId, exportSecret, exportPublic, keyRingHashes);
+        } catch (IOException | NegativeArraySizeException e) {
+            Timber.e(e, "Error reading backup manifest, starting a new backup chain");
+            return null;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                // nvm
+            }
+        }
+    }
+
+    synchronized void save(Context context) throws IOException {
+        File file = getManifestFile(context);
+        File tempFile = new File(file.getPath() + ".tmp");
+
+        FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+            outputStream.writeInt(FORMAT_VERSION);
+            outputStream.writeUTF(backupId);
+            outputStream.writeBoolean(exportSecret);
+            outputStream.writeBoolean(exportPublic);
+            outputStream.writeInt(keyRingHashes.size());
+            for (int i = 0, count = keyRingHashes.size(); i < count; i++) {
+                byte[] keyRingHash = keyRingHashes.valueAt(i);
+                outputStream.writeLong(keyRingHashes.keyAt(i));
+                outputStream.writeInt(keyRingHash.length);
+                outputStream.write(keyRingHash);
+            }
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("could not rename backup manifest!");
+        }
+    }
+
+    /** Deletes the stored manifest, so the next incremental backup starts a new chain. */
+    public static void clear(Context context) {
+        //noinspection ResultOfMethodCallIgnored
+        getManifestFile(context).delete();
+    }
+
+    private static File getManifestFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    static class BackupHeader {
+        final String backupId;
+        @Nullable
+        final String baseBackupId;
+        final long[] deletedMasterKeyIds;
+
+        BackupHeader(String backupId, @Nullable String baseBackupId, long[] deletedMasterKeyIds) {
+            this.backupId = backupId;
+            this.baseBackupId = baseBackupId;
+            this.deletedMasterKeyIds = deletedMasterKeyIds;
+        }
+    }
+}
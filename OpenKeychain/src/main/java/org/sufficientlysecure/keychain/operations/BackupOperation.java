@@ -21,42 +21,31 @@ package org.sufficientlysecure.keychain.operations;
 import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.regex.Pattern;
 
 import android.content.Context;
-import android.net.Uri;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.daos.KeyRepository;
-import org.sufficientlysecure.keychain.daos.KeyRepository.NotFoundException;
 import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
 import org.sufficientlysecure.keychain.operations.results.ExportResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
-import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
-import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
-import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
-import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
-import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.BackupKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
-import org.sufficientlysecure.keychain.util.CountingOutputStream;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Numeric9x4PassphraseUtil;
 import org.sufficientlysecure.keychain.util.Passphrase;
@@ -74,8 +63,6 @@ import timber.log.Timber;
  * either the name of a file or an output uri to write to.
  */
 public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
-    // this is a very simple matcher, we only need basic sanitization
-    private static final Pattern HEADER_PATTERN = Pattern.compile("[a-zA-Z0-9_-]+: [^\\n]+");
 
     public BackupOperation(Context context, KeyRepository keyRepository, Progressable
             progressable) {
@@ -103,64 +90,95 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
             log.add(LogType.MSG_BACKUP_ALL, 0);
         }
 
-        try {
-            Uri plainUri = null;
-            OutputStream plainOut;
-            if (backupInput.getIsEncrypted()) {
-                if (cryptoInput == null) {
-                    throw new IllegalStateException("Encrypted backup must supply cryptoInput parameter");
-                }
-
-                plainUri = TemporaryFileProvider.createFile(mContext);
-                plainOut = mContext.getContentResolver().openOutputStream(plainUri);
+        BackupManifest baseManifest = null;
+        BackupManifest newManifest = null;
+        if (backupInput.getIsIncremental()) {
+            baseManifest = BackupManifest.load(mContext);
+            if (baseManifest != null
+                    && !baseManifest.hasOptions(backupInput.getExportSecret(), backupInput.getExportPublic())) {
+                baseManifest = null;
+            }
+            if (baseManifest != null) {
+                log.add(LogType.MSG_BACKUP_INCREMENTAL, 1, baseManifest.getBackupId());
             } else {
-                if (backupInput.getOutputUri() == null || outputStream != null) {
-                    throw new IllegalArgumentException("Unencrypted export to output stream is not supported!");
-                } else {
-                    plainOut = mContext.getContentResolver().openOutputStream(backupInput.getOutputUri());
-                }
+                log.add(LogType.MSG_BACKUP_INCREMENTAL_NEW_CHAIN, 1);
             }
+            newManifest = BackupManifest.createForBackup(backupInput.getExportSecret(), backupInput.getExportPublic());
+        }
 
-            CountingOutputStream outStream = new CountingOutputStream(new BufferedOutputStream(plainOut));
-            boolean backupSuccess = exportKeysToStream(log, backupInput.getMasterKeyIds(),
-                    backupInput.getExportSecret(), backupInput.getExportPublic(), outStream, backupInput.getExtraHeaders());
-
-            if (!backupSuccess) {
-                // if there was an error, it will be in the log so we just have to return
-                return new ExportResult(ExportResult.RESULT_ERROR, log);
+        if (!backupInput.getIsEncrypted()) {
+            if (backupInput.getOutputUri() == null || outputStream != null) {
+                throw new IllegalArgumentException("Unencrypted export to output stream is not supported!");
             }
 
-            if (!backupInput.getIsEncrypted()) {
-                // log.add(LogType.MSG_EXPORT_NO_ENCRYPT, 1);
-                log.add(LogType.MSG_BACKUP_SUCCESS, 1);
-                return new ExportResult(ExportResult.RESULT_OK, log);
+            OutputStream plainOut;
+            try {
+                plainOut = mContext.getContentResolver().openOutputStream(backupInput.getOutputUri());
+            } catch (FileNotFoundException e) {
+                log.add(LogType.MSG_BACKUP_ERROR_URI_OPEN, 1);
+                return new ExportResult(ExportResult.RESULT_ERROR, log);
             }
 
-            long exportedDataSize = outStream.getCount();
-            PgpSignEncryptResult encryptResult =
-                    encryptBackupData(backupInput, cryptoInput, outputStream, plainUri, exportedDataSize);
-
-            if (!encryptResult.success()) {
-                log.addByMerge(encryptResult, 1);
-                // log.add(LogType.MSG_EXPORT_ERROR_ENCRYPT, 1);
+            KeyRingBackupInputStream backupStream = openBackupStream(log, backupInput.getMasterKeyIds(),
+                    backupInput.getExportSecret(), backupInput.getExportPublic(), backupInput.getExtraHeaders(),
+                    baseManifest, newManifest);
+            boolean backupSuccess = copyBackupStream(log, backupStream, new BufferedOutputStream(plainOut));
+            if (!backupSuccess) {
+                // if there was an error, it will be in the log so we just have to return
                 return new ExportResult(ExportResult.RESULT_ERROR, log);
             }
 
-            log.add(encryptResult, 1);
+            saveManifest(newManifest);
             log.add(LogType.MSG_BACKUP_SUCCESS, 1);
             return new ExportResult(ExportResult.RESULT_OK, log);
+        }
 
+        if (cryptoInput == null) {
+            throw new IllegalStateException("Encrypted backup must supply cryptoInput parameter");
+        }
+
+        // keyrings are armored while they are encrypted, the plaintext is never written anywhere
+        KeyRingBackupInputStream backupStream = openBackupStream(log, backupInput.getMasterKeyIds(),
+                backupInput.getExportSecret(), backupInput.getExportPublic(), backupInput.getExtraHeaders(),
+                baseManifest, newManifest);
+        PgpSignEncryptResult encryptResult;
+        try {
+            encryptResult = encryptBackupData(backupInput, cryptoInput, outputStream, backupStream);
         } catch (FileNotFoundException e) {
             log.add(LogType.MSG_BACKUP_ERROR_URI_OPEN, 1);
             return new ExportResult(ExportResult.RESULT_ERROR, log);
+        } finally {
+            backupStream.close();
+        }
+
+        if (!encryptResult.success()) {
+            log.addByMerge(encryptResult, 1);
+            // log.add(LogType.MSG_EXPORT_ERROR_ENCRYPT, 1);
+            return new ExportResult(ExportResult.RESULT_ERROR, log);
         }
 
+        saveManifest(newManifest);
+        log.add(encryptResult, 1);
+        log.add(LogType.MSG_BACKUP_SUCCESS, 1);
+        return new ExportResult(ExportResult.RESULT_OK, log);
+    }
+
+    private void saveManifest(@Nullable BackupManifest newManifest) {
+        if (newManifest == null) {
+            return;
+        }
+        try {
+            newManifest.save(mContext);
+        } catch (IOException e) {
+            // the next incremental backup is then based on the previous one, which is still consistent
+            Timber.e(e, "Error saving backup manifest");
+        }
     }
 
     @NonNull
     private PgpSignEncryptResult encryptBackupData(@NonNull BackupKeyringParcel backupInput,
-            @NonNull CryptoInputParcel cryptoInput, @Nullable OutputStream outputStream, Uri plainUri, long exportedDataSize)
-            throws FileNotFoundException {
+            @NonNull CryptoInputParcel cryptoInput, @Nullable OutputStream outputStream,
+            KeyRingBackupInputStream backupStream) throws FileNotFoundException {
         PgpSignEncryptOperation signEncryptOperation = new PgpSignEncryptOperation(mContext, mKeyRepository, mProgressable, mCancelled);
 
         PgpSignEncryptData.Builder builder = PgpSignEncryptData.builder();
@@ -175,8 +193,6 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         }
         PgpSignEncryptData pgpSignEncryptData = builder.build();
 
-        InputStream inStream = mContext.getContentResolver().openInputStream(plainUri);
-
         String filename;
         long[] masterKeyIds = backupInput.getMasterKeyIds();
         if (masterKeyIds != null && masterKeyIds.length == 1) {
@@ -188,7 +204,8 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         }
         filename += backupInput.getExportSecret() ? Constants.FILE_EXTENSION_BACKUP_SECRET : Constants.FILE_EXTENSION_BACKUP_PUBLIC;
 
-        InputData inputData = new InputData(inStream, exportedDataSize, filename);
+        // the size is only used for progress, so an estimate is good enough
+        InputData inputData = new InputData(backupStream, backupStream.getEstimatedSize(), filename);
 
         OutputStream outStream;
         if (backupInput.getOutputUri() == null) {
@@ -207,54 +224,52 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
                 pgpSignEncryptData, CryptoInputParcel.createCryptoInputParcel(), inputData, outStream);
     }
 
+    private KeyRingBackupInputStream openBackupStream(OperationLog log, long[] masterKeyIds,
+            boolean exportSecret, boolean exportPublic, List<String> extraSecretKeyHeaders,
+            @Nullable BackupManifest baseManifest, @Nullable BackupManifest newManifest) {
+        List<UnifiedKeyInfo> unifiedKeyInfos;
+        if (masterKeyIds == null) {
+            unifiedKeyInfos = mKeyRepository.getAllUnifiedKeyInfo();
+        } else {
+            unifiedKeyInfos = mKeyRepository.getUnifiedKeyInfo(masterKeyIds);
+        }
+        return new KeyRingBackupInputStream(mKeyRepository, log, unifiedKeyInfos,
+                exportSecret, exportPublic, extraSecretKeyHeaders, baseManifest, newManifest);
+    }
+
     boolean exportKeysToStream(OperationLog log, long[] masterKeyIds, boolean exportSecret, boolean exportPublic,
             OutputStream outStream, List<String> extraSecretKeyHeaders) {
-        // noinspection unused TODO use these in a log entry
-        int okSecret = 0, okPublic = 0;
-        int progress = 0;
-
-        try {
-            List<UnifiedKeyInfo> unifiedKeyInfos;
-            if (masterKeyIds == null) {
-                unifiedKeyInfos = mKeyRepository.getAllUnifiedKeyInfo();
-            } else {
-                unifiedKeyInfos = mKeyRepository.getUnifiedKeyInfo(masterKeyIds);
-            }
-            int numKeys = unifiedKeyInfos.size();
+        KeyRingBackupInputStream backupStream = openBackupStream(log, masterKeyIds, exportSecret, exportPublic,
+                extraSecretKeyHeaders, null, null);
+        return copyBackupStream(log, backupStream, outStream);
+    }
 
-            updateProgress(numKeys == 1 ? R.string.progress_exporting_key : R.string.progress_exporting_key, 0, numKeys);
+    private boolean copyBackupStream(OperationLog log, KeyRingBackupInputStream backupStream,
+            OutputStream outStream) {
+        long estimatedSize = backupStream.getEstimatedSize();
 
-            // For each public masterKey id
-            for (UnifiedKeyInfo keyInfo : unifiedKeyInfos) {
-                log.add(LogType.MSG_BACKUP_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(keyInfo.master_key_id()));
+        try {
+            updateProgress(R.string.progress_exporting_key, 0, 100);
 
-                boolean publicKeyWriteOk = false;
-                if (exportPublic) {
-                    publicKeyWriteOk = writePublicKeyToStream(keyInfo.master_key_id(), log, outStream);
-                    if (publicKeyWriteOk) {
-                        okPublic += 1;
-                    }
-                }
+            long alreadyWritten = 0;
+            int length;
+            byte[] buffer = new byte[1 << 16];
+            while ((length = backupStream.read(buffer)) > 0) {
+                outStream.write(buffer, 0, length);
 
-                if (publicKeyWriteOk || !exportPublic) {
-                    if (exportSecret && keyInfo.has_any_secret()) {
-                        log.add(LogType.MSG_BACKUP_SECRET, 2, KeyFormattingUtils.beautifyKeyId(keyInfo.master_key_id()));
-                        if (writeSecretKeyToStream(keyInfo.master_key_id(), log, outStream, extraSecretKeyHeaders)) {
-                            okSecret += 1;
-                        }
-                        extraSecretKeyHeaders = null;
-                    }
+                alreadyWritten += length;
+                if (estimatedSize > 0) {
+                    updateProgress((int) Math.min(100, 100 * alreadyWritten / estimatedSize), 100);
                 }
-
-                updateProgress(progress++, numKeys);
             }
 
-            updateProgress(R.string.progress_done, numKeys, numKeys);
+            updateProgress(R.string.progress_done, 100, 100);
 
         } catch (IOException e) {
             log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
             return false; // new ExportResult(ExportResult.RESULT_ERROR, log);
         } finally {
+            backupStream.close();
             // Make sure the stream is closed
             if (outStream != null) try {
                 outStream.close();
@@ -266,58 +281,4 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         return true;
     }
 
-    private boolean writePublicKeyToStream(long masterKeyId, OperationLog log, OutputStream outStream) throws IOException {
-        ArmoredOutputStream arOutStream = null;
-
-        try {
-            arOutStream = new ArmoredOutputStream(outStream);
-            byte[] data = mKeyRepository.loadPublicKeyRingData(masterKeyId);
-            UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(data);
-            CanonicalizedPublicKeyRing ring = (CanonicalizedPublicKeyRing) uncachedKeyRing.canonicalize(log, 2, true);
-            ring.encode(arOutStream);
-        } catch (PgpGeneralException | NotFoundException e) {
-            log.add(LogType.MSG_UPLOAD_ERROR_IO, 2);
-        } finally {
-            if (arOutStream != null) {
-                arOutStream.close();
-            }
-        }
-        return true;
-    }
-
-    private boolean writeSecretKeyToStream(long masterKeyId, OperationLog log, OutputStream outStream,
-            List<String> extraSecretKeyHeaders)
-            throws IOException {
-        ArmoredOutputStream arOutStream = null;
-
-        try {
-            arOutStream = new ArmoredOutputStream(outStream);
-            if (extraSecretKeyHeaders != null) {
-                addExtraHeadersToStream(arOutStream, extraSecretKeyHeaders);
-            }
-
-            byte[] data = mKeyRepository.loadSecretKeyRingData(masterKeyId);
-            UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(data);
-            CanonicalizedSecretKeyRing ring = (CanonicalizedSecretKeyRing) uncachedKeyRing.canonicalize(log, 2, true);
-            ring.encode(arOutStream);
-        } catch (PgpGeneralException | NotFoundException e) {
-            log.add(LogType.MSG_UPLOAD_ERROR_IO, 2);
-        } finally {
-            if (arOutStream != null) {
-                arOutStream.close();
-            }
-        }
-        return true;
-    }
-
-    private void addExtraHeadersToStream(ArmoredOutputStream arOutStream, List<String> headers) {
-        for (String header : headers) {
-            if (!HEADER_PATTERN.matcher(header).matches()) {
-                throw new IllegalArgumentException("bad header format");
-            }
-            int sep = header.indexOf(':');
-            arOutStream.setHeader(header.substring(0, sep), header.substring(sep + 2));
-        }
-    }
-
 }
\ No newline at end of file
@@ -108,6 +108,8 @@ public class BenchmarkOperation extends BaseOperation<BenchmarkInputParcel> {
             log.add(decryptResult, 1);
             log.add(LogType.MSG_BENCH_DEC_TIME, 2, String.format("%.2f", decryptResult.mOperationTime / 1000.0));
             totalTime += decryptResult.mOperationTime;
+            // the plaintext isn't needed, give the buffers back for the next round
+            decryptResult.releaseOutput();
         } while (++i < numRepeats);
 
         long decryptionTime = totalTime / numRepeats;
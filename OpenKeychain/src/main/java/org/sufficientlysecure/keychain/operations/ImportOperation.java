@@ -18,33 +18,53 @@
 package org.sufficientlysecure.keychain.operations;
 
 
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.content.Context;
+import android.net.Uri;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.collection.LongSparseArray;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.daos.KeyMetadataDao;
 import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository.PreparedKeyRing;
 import org.sufficientlysecure.keychain.keyimport.FacebookKeyserverClient;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserverAddress;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserverClient;
+import org.sufficientlysecure.keychain.keyimport.ImportCheckpoint;
 import org.sufficientlysecure.keychain.keyimport.KeyserverClient;
+import org.sufficientlysecure.keychain.keyimport.KeyRingFileCache;
+import org.sufficientlysecure.keychain.keyimport.KeyRingIndex;
 import org.sufficientlysecure.keychain.keyimport.KeyserverClient.QueryNotFoundException;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.network.orbot.OrbotHelper;
+import org.sufficientlysecure.keychain.operations.BackupManifest.BackupHeader;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
@@ -52,16 +72,19 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult.Operat
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.operations.results.UpdateTrustResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.IteratorWithSize;
-import org.sufficientlysecure.keychain.util.ParcelableFileCache;
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
+import org.sufficientlysecure.keychain.util.PositionAwareInputStream;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 import timber.log.Timber;
@@ -85,12 +108,27 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
 
     private static final int MAX_THREADS = 10;
 
+    private static final int BULK_DEFAULT_KEYS_PER_TRANSACTION = 100;
+    // maximum number of keyrings between the parsing and the writing stage of an import
+    private static final int MAX_PENDING_KEYS = 64;
+    private static final Future<BulkImportEntry> BULK_END_OF_INPUT = new FutureTask<>(() -> null);
+    // number of keyrings committed between two checkpoints of a checkpointed import
+    private static final int CHECKPOINT_INTERVAL = 4 * MAX_PENDING_KEYS;
+
     public static final String CACHE_FILE_NAME = "key_import.pcl";
 
     private final KeyMetadataDao keyMetadataDao;
 
     private FacebookKeyserverClient facebookServer;
 
+    // repositories with their own log, for merging and canonicalizing keyrings outside of the lock
+    private final ThreadLocal<KeyWritableRepository> workerRepositories = new ThreadLocal<KeyWritableRepository>() {
+        @Override
+        protected KeyWritableRepository initialValue() {
+            return mKeyWritableRepository.createWorkerRepository();
+        }
+    };
+
     public ImportOperation(Context context, KeyWritableRepository databaseInteractor, Progressable progressable) {
         super(context, databaseInteractor, progressable);
 
@@ -107,29 +145,204 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
     // Overloaded functions for using progressable supplied in constructor during import
     public ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int num,
             HkpKeyserverAddress keyserver, ParcelableProxy proxy, boolean skipSave, boolean forceReinsert) {
-        return serialKeyRingImport(entries, num, keyserver, mProgressable, proxy, skipSave, forceReinsert);
+        return serialKeyRingImport(entries, num, keyserver, mProgressable, proxy, skipSave, forceReinsert, null);
     }
 
     @NonNull
-    private ImportKeyResult serialKeyRingImport(ParcelableFileCache<ParcelableKeyRing> cache,
-            HkpKeyserverAddress keyserver, ParcelableProxy proxy, boolean skipSave, boolean forceReinsert) {
+    private ImportKeyResult serialKeyRingImport(KeyRingFileCache cache,
+            boolean skipSave, boolean forceReinsert) {
 
         // get entries from cached file
         try {
-            IteratorWithSize<ParcelableKeyRing> it = cache.readCache();
-            int numEntries = it.getSize();
+            return parallelPrepareKeyRingImport(cache.readCache(), skipSave, forceReinsert);
+        } catch (IOException e) {
+            return createCacheReadError();
+        }
 
-            return serialKeyRingImport(it, numEntries, keyserver, mProgressable, proxy, skipSave, forceReinsert);
+    }
+
+    /**
+     * Imports the keyrings of a KeyRingIndex, reading them directly from its source.
+     */
+    @NonNull
+    private ImportKeyResult keyRingIndexImport(boolean skipSave, boolean forceReinsert) {
+        KeyRingIndex keyRingIndex;
+        try {
+            keyRingIndex = KeyRingIndex.readCache(mContext);
         } catch (IOException e) {
+            return createCacheReadError();
+        }
+        return parallelPrepareKeyRingImport(
+                keyRingIndex.openImportIterator(mContext), skipSave, forceReinsert);
+    }
 
-            // Special treatment here, we need a lot
-            OperationLog log = new OperationLog();
-            log.add(LogType.MSG_IMPORT, 0, 0);
-            log.add(LogType.MSG_IMPORT_ERROR_IO, 0, 0);
+    /**
+     * Restores a full backup followed by a chain of incremental backups, see BackupManifest. The
+     * backups are read from the newest to the oldest, and a key is taken from the first backup
+     * that contains it, or dropped if that backup lists it as deleted. Only the resulting keyrings
+     * are imported, older versions of a key are skipped.
+     *
+     * @param backupUris the backups in the order they were made, already decrypted
+     */
+    @NonNull
+    private ImportKeyResult backupChainImport(List<Uri> backupUris) {
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IMPORT_BACKUP_CHAIN, 0, backupUris.size());
+
+        ArrayList<ParcelableKeyRing> keyRings = new ArrayList<>();
+        HashSet<Long> decidedMasterKeyIds = new HashSet<>();
+        String expectedBackupId = null;
+        try {
+            for (int i = backupUris.size() - 1; i >= 0; i--) {
+                InputStream inputStream = new BufferedInputStream(
+                        FileHelper.openInputStreamSafe(mContext.getContentResolver(), backupUris.get(i)));
+                try {
+                    BackupHeader header = BackupManifest.readHeaderBlock(inputStream);
+                    if (header == null) {
+                        log.add(LogType.MSG_IMPORT_BACKUP_CHAIN_ERROR_NO_HEADER, 1);
+                        return new ImportKeyResult(ImportKeyResult.RESULT_ERROR, log);
+                    }
+                    // only the first backup of the chain is a full one
+                    boolean isFullBackup = header.baseBackupId == null;
+                    if ((expectedBackupId != null && !expectedBackupId.equals(header.backupId))
+                            || isFullBackup != (i == 0)) {
+                        log.add(LogType.MSG_IMPORT_BACKUP_CHAIN_ERROR_BROKEN, 1, header.backupId);
+                        return new ImportKeyResult(ImportKeyResult.RESULT_ERROR, log);
+                    }
+                    expectedBackupId = header.baseBackupId;
+
+                    // a backup contains both the public and secret keyring of a key
+                    HashSet<Long> backupMasterKeyIds = new HashSet<>();
+                    IteratorWithIOThrow<UncachedKeyRing> it = UncachedKeyRing.fromStream(inputStream);
+                    while (it.hasNext()) {
+                        UncachedKeyRing keyRing = it.next();
+                        long masterKeyId = keyRing.getMasterKeyId();
+                        backupMasterKeyIds.add(masterKeyId);
+                        if (!decidedMasterKeyIds.contains(masterKeyId)) {
+                            keyRings.add(ParcelableKeyRing.createFromEncodedBytes(keyRing.getEncoded()));
+                        }
+                    }
 
+                    decidedMasterKeyIds.addAll(backupMasterKeyIds);
+                    for (long masterKeyId : header.deletedMasterKeyIds) {
+                        decidedMasterKeyIds.add(masterKeyId);
+                    }
+                } finally {
+                    inputStream.close();
+                }
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Error reading backup");
+            log.add(LogType.MSG_IMPORT_ERROR_IO, 1);
             return new ImportKeyResult(ImportKeyResult.RESULT_ERROR, log);
         }
 
+        return parallelPrepareKeyRingImport(keyRings.iterator(), keyRings.size(), false, false);
+    }
+
+    /**
+     * Imports the keyrings of a cache file in chunks of CHECKPOINT_INTERVAL keyrings, and records in
+     * the checkpoint after each chunk that it is committed. If the import is interrupted, calling
+     * this again with the same data continues after the last committed chunk. Keyrings of a chunk
+     * that was only partly saved are identical to their stored versions on the next attempt, and
+     * skipped by preparePublicKeyRing without canonicalizing them again.
+     * <p>
+     * Like the bulk import, this doesn't keep canonicalized keyrings or the log of each key.
+     */
+    @NonNull
+    public ImportKeyResult checkpointedKeyRingImport(KeyRingFileCache cache, ImportCheckpoint checkpoint) {
+        KeyRingFileCache.Reader reader;
+        try {
+            reader = cache.openReader();
+        } catch (IOException e) {
+            return createCacheReadError();
+        }
+
+        int numTotalKeys = reader.size();
+        int position = checkpoint.getCommittedPosition();
+
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IMPORT, 0, numTotalKeys);
+        if (position > 0) {
+            log.add(LogType.MSG_IMPORT_RESUME, 1, position);
+        }
+        BulkImportAccumulator accumulator = new BulkImportAccumulator(log);
+
+        boolean cancelled = false;
+        ExecutorService prepareExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            while (position < numTotalKeys) {
+                if (checkCancelled()) {
+                    cancelled = true;
+                    break;
+                }
+
+                int chunkEnd = Math.min(position + CHECKPOINT_INTERVAL, numTotalKeys);
+                ArrayList<ParcelableKeyRing> chunk = new ArrayList<>(chunkEnd - position);
+                for (int i = position; i < chunkEnd; i++) {
+                    chunk.add(reader.get(i));
+                }
+
+                ImportKeyResult chunkResult = serialKeyRingImport(chunk.iterator(), chunk.size(), null,
+                        new ProgressScaler(mProgressable, position, chunkEnd, numTotalKeys), null, false, false,
+                        prepareExecutor);
+                accumulator.addResult(chunkResult);
+                if (chunkResult.cancelled()) {
+                    cancelled = true;
+                    break;
+                }
+
+                position = chunkEnd;
+                try {
+                    checkpoint.commit(position);
+                } catch (IOException e) {
+                    // not fatal, an interrupted import would just repeat more keys
+                    Timber.e(e, "Error writing import checkpoint");
+                }
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Error reading key import cache");
+            log.add(LogType.MSG_IMPORT_ERROR_IO, 1);
+            accumulator.addBadKey();
+        } finally {
+            prepareExecutor.shutdownNow();
+            reader.close();
+        }
+
+        return accumulator.getResult(cancelled);
+    }
+
+    @NonNull
+    private ImportKeyResult createCacheReadError() {
+        // Special treatment here, we need a lot
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IMPORT, 0, 0);
+        log.add(LogType.MSG_IMPORT_ERROR_IO, 0, 0);
+
+        return new ImportKeyResult(ImportKeyResult.RESULT_ERROR, log);
+    }
+
+    /**
+     * Imports keyrings given as bytes. They are decoded, merged and canonicalized on a pool of
+     * worker threads ahead of time, while saving them is still done one by one in their original
+     * order.
+     */
+    @NonNull
+    private ImportKeyResult parallelPrepareKeyRingImport(IteratorWithSize<ParcelableKeyRing> entries,
+            boolean skipSave, boolean forceReinsert) {
+        return parallelPrepareKeyRingImport(entries, entries.getSize(), skipSave, forceReinsert);
+    }
+
+    @NonNull
+    private ImportKeyResult parallelPrepareKeyRingImport(Iterator<ParcelableKeyRing> entries, int numTotalKeys,
+            boolean skipSave, boolean forceReinsert) {
+        ExecutorService prepareExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            return serialKeyRingImport(entries, numTotalKeys, null, mProgressable, null, skipSave,
+                    forceReinsert, prepareExecutor);
+        } finally {
+            prepareExecutor.shutdownNow();
+        }
     }
 
     /**
@@ -138,11 +351,13 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
      * @param hkpKeyserver contains uri of keyserver to import from, if it is an import from cloud
      * @param progressable Allows multi-threaded import to supply a progressable that ignores the
      *                     progress of a single key being imported
+     * @param prepareExecutor if not null, entries with byte data are decoded and prepared on
+     *                        this executor, up to MAX_PENDING_KEYS entries ahead
      */
     @NonNull
     private ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int numTotalKeys,
             HkpKeyserverAddress hkpKeyserver, Progressable progressable, @NonNull ParcelableProxy proxy,
-            boolean skipSave, boolean forceReinsert) {
+            boolean skipSave, boolean forceReinsert, @Nullable ExecutorService prepareExecutor) {
         if (progressable != null) {
             progressable.setProgress(R.string.progress_importing, 0, 100);
         }
@@ -164,9 +379,19 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         boolean cancelled = false;
         int keyImportsFinished = 0;
 
+        ArrayDeque<PendingImportEntry> pendingEntries = new ArrayDeque<>();
+
         // iterate over all entries
-        while (entries.hasNext()) {
-            ParcelableKeyRing entry = entries.next();
+        while (true) {
+            while (entries.hasNext() && (pendingEntries.isEmpty()
+                    || prepareExecutor != null && pendingEntries.size() < MAX_PENDING_KEYS)) {
+                pendingEntries.add(submitPrepare(prepareExecutor, entries.next(), forceReinsert));
+            }
+            PendingImportEntry pendingEntry = pendingEntries.poll();
+            if (pendingEntry == null) {
+                break;
+            }
+            ParcelableKeyRing entry = pendingEntry.entry;
 
             // Has this action been cancelled? If so, don't proceed any further
             if (checkCancelled()) {
@@ -179,9 +404,14 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
             try {
 
                 UncachedKeyRing key = null;
+                PreparedKeyRing preparedKeyRing = null;
 
                 // If there is already byte data, use that
-                if (entry.getBytes() != null) {
+                if (pendingEntry.preparedKey != null) {
+                    PreparedImportKey preparedKey = getPreparedKey(pendingEntry.preparedKey);
+                    key = preparedKey.key;
+                    preparedKeyRing = preparedKey.preparedKeyRing;
+                } else if (entry.getBytes() != null) {
                     key = UncachedKeyRing.decodeFromData(entry.getBytes());
                 } else {
                     try {
@@ -216,18 +446,12 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
                     continue;
                 }
 
-                SaveKeyringResult result;
-                // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
-                // and https://github.com/open-keychain/open-keychain/issues/1480
-                synchronized (mKeyRepository) {
-                    mKeyRepository.clearLog();
-                    if (key.isSecret()) {
-                        result = mKeyWritableRepository.saveSecretKeyRing(key, canKeyRings, skipSave);
-                    } else {
-                        result = mKeyWritableRepository.savePublicKeyRing(key, entry.getExpectedFingerprint(), canKeyRings,
-                                forceReinsert, skipSave);
-                    }
+                if (preparedKeyRing == null && !key.isSecret()) {
+                    preparedKeyRing = preparePublicKeyRing(key, entry.getExpectedFingerprint(), forceReinsert);
                 }
+
+                SaveKeyringResult result = saveKeyRing(key, preparedKeyRing, entry.getExpectedFingerprint(),
+                        canKeyRings, skipSave, forceReinsert);
                 if (!result.success()) {
                     badKeys += 1;
                 } else {
@@ -258,6 +482,12 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
             progressable.setProgress(keyImportsFinished, numTotalKeys);
         }
 
+        for (PendingImportEntry pendingEntry : pendingEntries) {
+            if (pendingEntry.preparedKey != null) {
+                pendingEntry.preparedKey.cancel(true);
+            }
+        }
+
         // Special: consolidate on secret key import (cannot be cancelled!)
         // synchronized on mProviderHelper to prevent
         // https://github.com/open-keychain/open-keychain/issues/1221 since a consolidate deletes
@@ -420,6 +650,109 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         }
     }
 
+    private PendingImportEntry submitPrepare(@Nullable ExecutorService prepareExecutor, ParcelableKeyRing entry,
+            boolean forceReinsert) {
+        if (prepareExecutor == null || entry.getBytes() == null) {
+            return new PendingImportEntry(entry, null);
+        }
+        return new PendingImportEntry(entry, prepareExecutor.submit(() -> {
+            UncachedKeyRing key = UncachedKeyRing.decodeFromData(entry.getBytes());
+            if (key.isSecret()) {
+                return new PreparedImportKey(key, null);
+            }
+            return new PreparedImportKey(key,
+                    preparePublicKeyRing(key, entry.getExpectedFingerprint(), forceReinsert));
+        }));
+    }
+
+    private static PreparedImportKey getPreparedKey(Future<PreparedImportKey> preparedKey)
+            throws IOException, PgpGeneralException {
+        try {
+            return preparedKey.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof PgpGeneralException) {
+                throw (PgpGeneralException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Merges, canonicalizes and verifies a public keyring without holding the lock, so this may
+     * run for several keyrings in parallel. Returns null if it must be saved by saveKeyRing alone.
+     */
+    @Nullable
+    private PreparedKeyRing preparePublicKeyRing(UncachedKeyRing key, byte[] expectedFingerprint,
+            boolean forceReinsert) {
+        return workerRepositories.get().preparePublicKeyRing(
+                key, mKeyWritableRepository.getTrustedMasterKeys(), expectedFingerprint, forceReinsert);
+    }
+
+    /**
+     * Saves a keyring. Only writing a prepared keyring happens under the lock, unless it went
+     * stale in the meantime, e.g. because the same key occurred twice. That and keyrings which
+     * could not be prepared are saved completely under the lock, the way it was done before.
+     */
+    private SaveKeyringResult saveKeyRing(UncachedKeyRing key, @Nullable PreparedKeyRing preparedKeyRing,
+            byte[] expectedFingerprint, ArrayList<CanonicalizedKeyRing> canKeyRings, boolean skipSave,
+            boolean forceReinsert) {
+        // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
+        // and https://github.com/open-keychain/open-keychain/issues/1480
+        synchronized (mKeyRepository) {
+            if (preparedKeyRing != null && !mKeyWritableRepository.isPreparedKeyRingStale(preparedKeyRing)) {
+                SaveKeyringResult result = preparedKeyRing.getResult();
+                if (!skipSave && preparedKeyRing.needsWrite()) {
+                    try {
+                        mKeyWritableRepository.writePreparedKeyRings(Collections.singletonList(preparedKeyRing));
+                    } catch (IOException e) {
+                        Timber.e(e, "Error writing key on import");
+                        result.getLog().add(LogType.MSG_IP_ERROR_IO_EXC, 1);
+                        return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, result.getLog(), null);
+                    }
+                }
+                if (canKeyRings != null && preparedKeyRing.getCanonicalizedKeyRing() != null) {
+                    canKeyRings.add(preparedKeyRing.getCanonicalizedKeyRing());
+                }
+                return result;
+            }
+
+            mKeyRepository.clearLog();
+            if (key.isSecret()) {
+                return mKeyWritableRepository.saveSecretKeyRing(key, canKeyRings, skipSave);
+            } else {
+                return mKeyWritableRepository.savePublicKeyRing(key, expectedFingerprint, canKeyRings,
+                        forceReinsert, skipSave);
+            }
+        }
+    }
+
+    private static class PendingImportEntry {
+        final ParcelableKeyRing entry;
+        // null if the entry is decoded and prepared on the importing thread
+        final Future<PreparedImportKey> preparedKey;
+
+        PendingImportEntry(ParcelableKeyRing entry, Future<PreparedImportKey> preparedKey) {
+            this.entry = entry;
+            this.preparedKey = preparedKey;
+        }
+    }
+
+    private static class PreparedImportKey {
+        final UncachedKeyRing key;
+        // null if this keyring must be saved under the lock
+        final PreparedKeyRing preparedKeyRing;
+
+        PreparedImportKey(UncachedKeyRing key, PreparedKeyRing preparedKeyRing) {
+            this.key = key;
+            this.preparedKeyRing = preparedKeyRing;
+        }
+    }
+
     @Nullable
     private UncachedKeyRing mergeKeysOrUseEither(OperationLog log, int indent,
             UncachedKeyRing firstKey, UncachedKeyRing otherKey) {
@@ -447,10 +780,15 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         boolean forceReinsert = importInput.isForceReinsert();
 
         ImportKeyResult result;
-        if (keyList == null) {// import from file, do serially
-            ParcelableFileCache<ParcelableKeyRing> cache =
-                    new ParcelableFileCache<>(mContext, CACHE_FILE_NAME);
-            result = serialKeyRingImport(cache, null, null, skipSave, forceReinsert);
+        if (importInput.getBulkImportUri() != null) {
+            result = bulkKeyRingImport(importInput.getBulkImportUri(), importInput.getBulkKeysPerTransaction());
+        } else if (importInput.getBackupChainUris() != null) {
+            result = backupChainImport(importInput.getBackupChainUris());
+        } else if (importInput.isFromKeyRingIndex()) {
+            result = keyRingIndexImport(skipSave, forceReinsert);
+        } else if (keyList == null) {// import from file, prepare in parallel but save serially
+            KeyRingFileCache cache = new KeyRingFileCache(mContext, CACHE_FILE_NAME);
+            result = serialKeyRingImport(cache, skipSave, forceReinsert);
         } else {
             ParcelableProxy proxy;
             if (cryptoInput.getParcelableProxy() == null) {
@@ -470,6 +808,305 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         return result;
     }
 
+    /**
+     * Imports all keyrings from a stream in three stages: Keyrings are parsed on a dedicated thread,
+     * merged and canonicalized on a pool of worker threads, and written to the database on the
+     * calling thread, in transactions of keysPerTransaction keys each. The queue between the stages
+     * is bounded, so memory usage does not depend on the size of the input.
+     * <p>
+     * Secret keys, public keys for which we have a secret key, and keys that occur more than once in
+     * the input are saved one by one in their original position, as in serialKeyRingImport.
+     */
+    @NonNull
+    private ImportKeyResult bulkKeyRingImport(Uri inputUri, int keysPerTransaction) {
+        updateProgress(R.string.progress_importing, 0, 100);
+
+        if (keysPerTransaction <= 0) {
+            keysPerTransaction = BULK_DEFAULT_KEYS_PER_TRANSACTION;
+        }
+
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IMPORT_BULK, 0, keysPerTransaction);
+
+        InputStream inputStream;
+        try {
+            inputStream = FileHelper.openInputStreamSafe(mContext.getContentResolver(), inputUri);
+        } catch (FileNotFoundException e) {
+            log.add(LogType.MSG_IMPORT_ERROR_IO, 1);
+            return new ImportKeyResult(ImportKeyResult.RESULT_ERROR, log);
+        }
+        long inputSize = FileHelper.getFileSize(mContext, inputUri);
+
+        // secret keys imported below are only taken into account by the trust db update at the end
+        LongSparseArray<CanonicalizedPublicKey> trustedKeys = mKeyWritableRepository.getTrustedMasterKeys();
+
+        ExecutorService prepareExecutor =
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        BlockingQueue<Future<BulkImportEntry>> pendingEntries = new ArrayBlockingQueue<>(MAX_PENDING_KEYS);
+        AtomicLong bytesParsed = new AtomicLong();
+        AtomicReference<IOException> parseException = new AtomicReference<>();
+
+        Thread parserThread = new Thread(() -> {
+            PositionAwareInputStream positionAwareStream = new PositionAwareInputStream(inputStream);
+            try {
+                try {
+                    IteratorWithIOThrow<UncachedKeyRing> it = UncachedKeyRing.fromStream(positionAwareStream);
+                    while (it.hasNext()) {
+                        UncachedKeyRing keyRing = it.next();
+                        bytesParsed.set(positionAwareStream.position());
+                        pendingEntries.put(prepareExecutor.submit(() -> {
+                            if (keyRing.isSecret()) {
+                                return new BulkImportEntry(keyRing, null);
+                            }
+                            PreparedKeyRing preparedKeyRing =
+                                    workerRepositories.get().preparePublicKeyRing(keyRing, trustedKeys);
+                            return new BulkImportEntry(keyRing, preparedKeyRing);
+                        }));
+                    }
+                } catch (IOException e) {
+                    parseException.set(e);
+                }
+                pendingEntries.put(BULK_END_OF_INPUT);
+            } catch (InterruptedException e) {
+                // import was stopped, nothing left to do
+            } finally {
+                try {
+                    positionAwareStream.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }, "bulk-import-parser");
+
+        BulkImportAccumulator accumulator = new BulkImportAccumulator(log);
+        ArrayList<PreparedKeyRing> pendingWrites = new ArrayList<>(keysPerTransaction);
+        HashSet<Long> seenMasterKeyIds = new HashSet<>();
+        boolean cancelled = false;
+
+        parserThread.start();
+        try {
+            while (true) {
+                if (checkCancelled()) {
+                    cancelled = true;
+                    break;
+                }
+
+                Future<BulkImportEntry> pendingEntry = pendingEntries.take();
+                if (pendingEntry == BULK_END_OF_INPUT) {
+                    break;
+                }
+
+                BulkImportEntry entry;
+                try {
+                    entry = pendingEntry.get();
+                } catch (ExecutionException e) {
+                    Timber.e(e, "Encountered bad key on import!");
+                    accumulator.addBadKey();
+                    continue;
+                }
+
+                long masterKeyId = entry.keyRing.getMasterKeyId();
+                boolean isFirstOccurrence = seenMasterKeyIds.add(masterKeyId);
+                if (entry.preparedKeyRing != null && isFirstOccurrence) {
+                    pendingWrites.add(entry.preparedKeyRing);
+                    if (pendingWrites.size() >= keysPerTransaction) {
+                        writePendingKeyRings(pendingWrites, accumulator);
+                    }
+                } else {
+                    // the prepared data may be stale, or there was none. make sure all earlier
+                    // keyrings are written, then save this one the regular way.
+                    writePendingKeyRings(pendingWrites, accumulator);
+                    saveKeyRingSerially(entry.keyRing, accumulator);
+                }
+
+                if (inputSize > 0) {
+                    updateProgress((int) (100 * bytesParsed.get() / inputSize), 100);
+                }
+            }
+            writePendingKeyRings(pendingWrites, accumulator);
+        } catch (InterruptedException e) {
+            cancelled = true;
+        } finally {
+            parserThread.interrupt();
+            prepareExecutor.shutdownNow();
+        }
+
+        if (parseException.get() != null) {
+            Timber.e(parseException.get(), "Error reading keys for bulk import");
+            log.add(LogType.MSG_IMPORT_ERROR_IO, 1);
+            accumulator.addBadKey();
+        }
+
+        // Special: consolidate on secret key import (cannot be cancelled!)
+        if (!accumulator.secretMasterKeyIds.isEmpty()) {
+            setPreventCancel();
+            synchronized (mKeyRepository) {
+                UpdateTrustResult result =
+                        mKeyWritableRepository.updateTrustDb(accumulator.secretMasterKeyIds, mProgressable);
+                log.add(result, 1);
+            }
+        }
+
+        return accumulator.getResult(cancelled);
+    }
+
+    private void writePendingKeyRings(List<PreparedKeyRing> pendingWrites, BulkImportAccumulator accumulator) {
+        if (pendingWrites.isEmpty()) {
+            return;
+        }
+
+        boolean success;
+        synchronized (mKeyRepository) {
+            mKeyRepository.clearLog();
+            try {
+                mKeyWritableRepository.writePreparedKeyRings(pendingWrites);
+                success = true;
+            } catch (IOException e) {
+                Timber.e(e, "Error writing batch of keys on bulk import");
+                success = false;
+            }
+        }
+
+        for (PreparedKeyRing preparedKeyRing : pendingWrites) {
+            if (success) {
+                accumulator.addResult(preparedKeyRing.getMasterKeyId(), preparedKeyRing.getResult(), false);
+            } else {
+                accumulator.addBadKey();
+            }
+        }
+        pendingWrites.clear();
+    }
+
+    private void saveKeyRingSerially(UncachedKeyRing keyRing, BulkImportAccumulator accumulator) {
+        SaveKeyringResult result;
+        synchronized (mKeyRepository) {
+            mKeyRepository.clearLog();
+            if (keyRing.isSecret()) {
+                result = mKeyWritableRepository.saveSecretKeyRing(keyRing, null, false);
+            } else {
+                result = mKeyWritableRepository.savePublicKeyRing(keyRing, null, null, false, false);
+            }
+        }
+        accumulator.addResult(keyRing.getMasterKeyId(), result, keyRing.isSecret());
+    }
+
+    private static class BulkImportEntry {
+        final UncachedKeyRing keyRing;
+        // null if this keyring must be saved serially
+        final PreparedKeyRing preparedKeyRing;
+
+        BulkImportEntry(UncachedKeyRing keyRing, PreparedKeyRing preparedKeyRing) {
+            this.keyRing = keyRing;
+            this.preparedKeyRing = preparedKeyRing;
+        }
+    }
+
+    /**
+     * Accumulates results of a bulk import. Unlike KeyImportAccumulator, logs of successfully
+     * imported public keys are dropped, to keep the size of the log independent of the input.
+     */
+    private static class BulkImportAccumulator {
+        private final OperationLog log;
+        private final ArrayList<Long> importedMasterKeyIds = new ArrayList<>();
+        private final ArrayList<Long> secretMasterKeyIds = new ArrayList<>();
+        private int newKeys = 0, updatedKeys = 0, badKeys = 0, secretKeys = 0;
+
+        BulkImportAccumulator(OperationLog log) {
+            this.log = log;
+        }
+
+        void addBadKey() {
+            badKeys += 1;
+        }
+
+        void addResult(long masterKeyId, SaveKeyringResult result, boolean isSecret) {
+            if (!result.success()) {
+                badKeys += 1;
+                log.add(result, 2);
+                return;
+            }
+
+            if (result.updated()) {
+                updatedKeys += 1;
+            } else {
+                newKeys += 1;
+                if (isSecret) {
+                    secretMasterKeyIds.add(masterKeyId);
+                    secretKeys += 1;
+                }
+            }
+            importedMasterKeyIds.add(masterKeyId);
+
+            if (isSecret) {
+                log.add(result, 2);
+            }
+        }
+
+        /** Adds the result of importing a part of the keyrings, keeping its log only on errors. */
+        void addResult(ImportKeyResult result) {
+            newKeys += result.mNewKeys;
+            updatedKeys += result.mUpdatedKeys;
+            badKeys += result.mBadKeys;
+            secretKeys += result.mSecret;
+            for (long masterKeyId : result.getImportedMasterKeyIds()) {
+                importedMasterKeyIds.add(masterKeyId);
+            }
+
+            if (result.mBadKeys > 0) {
+                log.add(result, 1);
+            }
+        }
+
+        ImportKeyResult getResult(boolean cancelled) {
+            int resultType = 0;
+            if (cancelled) {
+                log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+                resultType |= ImportKeyResult.RESULT_CANCELLED;
+            }
+
+            if (badKeys == 0 && newKeys == 0 && updatedKeys == 0) {
+                resultType = ImportKeyResult.RESULT_FAIL_NOTHING;
+            } else {
+                if (newKeys > 0) {
+                    resultType |= ImportKeyResult.RESULT_OK_NEWKEYS;
+                }
+                if (updatedKeys > 0) {
+                    resultType |= ImportKeyResult.RESULT_OK_UPDATED;
+                }
+                if (badKeys > 0) {
+                    resultType |= ImportKeyResult.RESULT_WITH_ERRORS;
+                    if (newKeys == 0 && updatedKeys == 0) {
+                        resultType |= ImportKeyResult.RESULT_ERROR;
+                    }
+                }
+                if (log.containsWarnings()) {
+                    resultType |= ImportKeyResult.RESULT_WARNINGS;
+                }
+            }
+
+            if (!cancelled) {
+                if ((newKeys > 0 || updatedKeys > 0) && badKeys > 0) {
+                    log.add(LogType.MSG_IMPORT_PARTIAL, 1);
+                } else if (newKeys > 0 || updatedKeys > 0) {
+                    log.add(LogType.MSG_IMPORT_SUCCESS, 1);
+                } else {
+                    log.add(LogType.MSG_IMPORT_ERROR, 1);
+                }
+            }
+
+            long[] importedMasterKeyIdsArray = new long[importedMasterKeyIds.size()];
+            for (int i = 0; i < importedMasterKeyIds.size(); ++i) {
+                importedMasterKeyIdsArray[i] = importedMasterKeyIds.get(i);
+            }
+
+            ImportKeyResult result = new ImportKeyResult(resultType, log, newKeys, updatedKeys, 0, badKeys,
+                    secretKeys, importedMasterKeyIdsArray);
+            // canonicalized keyrings are not kept around in bulk mode
+            result.setCanonicalizedKeyRings(new ArrayList<>());
+            return result;
+        }
+    }
+
     @NonNull
     private ImportKeyResult multiThreadedKeyImport(List<ParcelableKeyRing> keyList, HkpKeyserverAddress keyServer,
             ParcelableProxy proxy, boolean skipSave, boolean forceReinsert) {
@@ -501,7 +1138,7 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
                     ProgressScaler ignoreProgressable = new ProgressScaler();
 
                     return serialKeyRingImport(list.iterator(), 1, keyServer, ignoreProgressable,
-                            proxy, skipSave, forceReinsert);
+                            proxy, skipSave, forceReinsert, null);
                 }
             };
 
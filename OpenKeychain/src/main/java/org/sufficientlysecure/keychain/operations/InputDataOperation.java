@@ -274,6 +274,8 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
                 PgpDecryptVerifyOperation op =
                         new PgpDecryptVerifyOperation(mContext, mKeyRepository, mProgressable);
                 DecryptVerifyResult verifyResult = op.execute(decryptInput, cryptoInput);
+                // only the signature result is needed, the signed data is already in a file
+                verifyResult.releaseOutput();
 
                 log.addByMerge(verifyResult, 4);
 
@@ -388,6 +390,7 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
 
                     if (decryptResult != null) {
                         decryptResult.setSignatureResult(mSignedDataResult.getSignatureResult());
+                        decryptResult.setSignatureResults(mSignedDataResult.getSignatureResults());
                     } else {
                         decryptResult = mSignedDataResult;
                     }
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import androidx.annotation.Nullable;
+
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.sufficientlysecure.keychain.daos.KeyRepository;
+import org.sufficientlysecure.keychain.daos.KeyRepository.NotFoundException;
+import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+
+
+/**
+ * The armored keyrings of a backup, as a stream.
+ * <p/>
+ * Keyrings are loaded in their export form and armored on a thread pool, in chunks of CHUNK_SIZE
+ * keys. Chunks are read in order, and only a few of them are prepared ahead of the reader,
+ * so memory use doesn't grow with the number of keys. The log entries of a chunk are added
+ * to the log when the reader reaches it, so the log is in the same order as the output.
+ * <p/>
+ * The total size is estimated up front from the sizes of the stored keyrings. The export form
+ * of a keyring is its stored data in almost all cases, so the estimate is only off by the armor
+ * headers.
+ * <p/>
+ * For incremental backups, the hash of each exported key is recorded in a new BackupManifest,
+ * and keys with the same hash in the manifest of the base backup are left out. The stream then
+ * starts with the header block of the new manifest. The estimate doesn't know which keys are
+ * unchanged, so it is the size of a full backup.
+ */
+class KeyRingBackupInputStream extends InputStream {
+    // this is a very simple matcher, we only need basic sanitization
+    private static final Pattern HEADER_PATTERN = Pattern.compile("[a-zA-Z0-9_-]+: [^\\n]+");
+
+    private static final int CHUNK_SIZE = 32;
+    // armor header and footer lines, and the checksum line
+    private static final int ARMOR_OVERHEAD_ESTIMATE = 90;
+    private static final int ARMOR_LINE_LENGTH = 64;
+
+    private final KeyRepository keyRepository;
+    private final OperationLog log;
+    private final List<UnifiedKeyInfo> keyInfos;
+    private final boolean exportSecret;
+    private final boolean exportPublic;
+    private final List<String> extraSecretKeyHeaders;
+    private final int extraSecretKeyHeadersIndex;
+    private final long estimatedSize;
+    @Nullable
+    private final BackupManifest baseManifest;
+    @Nullable
+    private final BackupManifest newManifest;
+
+    private final ExecutorService exportExecutor;
+    private final int maxPendingChunks;
+    private final ArrayDeque<Future<ExportedChunk>> pendingChunks = new ArrayDeque<>();
+    private int nextChunkStart;
+
+    private byte[] currentChunkData = new byte[0];
+    private int currentChunkPosition;
+
+    /**
+     * @param extraSecretKeyHeaders armor headers for the first secret keyring, or null
+     */
+    KeyRingBackupInputStream(KeyRepository keyRepository, OperationLog log, List<UnifiedKeyInfo> keyInfos,
+            boolean exportSecret, boolean exportPublic, List<String> extraSecretKeyHeaders) {
+        this(keyRepository, log, keyInfos, exportSecret, exportPublic, extraSecretKeyHeaders, null, null);
+    }
+
+    /**
+     * @param baseManifest manifest of the backup this one is based on, or null for a full backup
+     * @param newManifest if not null, the stream is an incremental backup, and the hash of each
+     *                    exported key is put in this manifest
+     */
+    KeyRingBackupInputStream(KeyRepository keyRepository, OperationLog log, List<UnifiedKeyInfo> keyInfos,
+            boolean exportSecret, boolean exportPublic, List<String> extraSecretKeyHeaders,
+            @Nullable BackupManifest baseManifest, @Nullable BackupManifest newManifest) {
+        this.keyRepository = keyRepository;
+        this.log = log;
+        this.keyInfos = keyInfos;
+        this.exportSecret = exportSecret;
+        this.exportPublic = exportPublic;
+
+        if (extraSecretKeyHeaders != null) {
+            for (String header : extraSecretKeyHeaders) {
+                if (!HEADER_PATTERN.matcher(header).matches()) {
+                    throw new IllegalArgumentException("bad header format");
+                }
+            }
+        }
+        this.extraSecretKeyHeaders = extraSecretKeyHeaders;
+
+        int firstSecretKeyIndex = -1;
+        long size = 0;
+        for (int i = 0; i < keyInfos.size(); i++) {
+            UnifiedKeyInfo keyInfo = keyInfos.get(i);
+            if (exportPublic) {
+                size += estimateArmoredSize(keyRepository.getPublicKeyRingSize(keyInfo.master_key_id()));
+            }
+            if (exportSecret && keyInfo.has_any_secret()) {
+                size += estimateArmoredSize(keyRepository.getSecretKeyRingSize(keyInfo.master_key_id()));
+                if (firstSecretKeyIndex == -1) {
+                    firstSecretKeyIndex = i;
+                }
+            }
+        }
+        if (extraSecretKeyHeaders != null && firstSecretKeyIndex != -1) {
+            for (String header : extraSecretKeyHeaders) {
+                size += header.length() + 1;
+            }
+        }
+        extraSecretKeyHeadersIndex = firstSecretKeyIndex;
+
+        this.baseManifest = baseManifest;
+        this.newManifest = newManifest;
+        if (newManifest != null) {
+            currentChunkData = newManifest.createHeaderBlock(baseManifest, getDeletedMasterKeyIds());
+            size += currentChunkData.length;
+        }
+        estimatedSize = size;
+
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        exportExecutor = Executors.newFixedThreadPool(threadCount);
+        maxPendingChunks = 2 * threadCount;
+    }
+
+    private long[] getDeletedMasterKeyIds() {
+        if (baseManifest == null) {
+            return new long[0];
+        }
+
+        HashSet<Long> masterKeyIds = new HashSet<>(keyInfos.size());
+        for (UnifiedKeyInfo keyInfo : keyInfos) {
+            masterKeyIds.add(keyInfo.master_key_id());
+        }
+        ArrayList<Long> deletedMasterKeyIds = new ArrayList<>();
+        for (long masterKeyId : baseManifest.getMasterKeyIds()) {
+            if (!masterKeyIds.contains(masterKeyId)) {
+                deletedMasterKeyIds.add(masterKeyId);
+            }
+        }
+
+        long[] result = new long[deletedMasterKeyIds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = deletedMasterKeyIds.get(i);
+        }
+        return result;
+    }
+
+    long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureChunkData()) {
+            return -1;
+        }
+        return currentChunkData[currentChunkPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureChunkData()) {
+            return -1;
+        }
+        int count = Math.min(len, currentChunkData.length - currentChunkPosition);
+        System.arraycopy(currentChunkData, currentChunkPosition, b, off, count);
+        currentChunkPosition += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return currentChunkData.length - currentChunkPosition;
+    }
+
+    @Override
+    public void close() {
+        exportExecutor.shutdownNow();
+        pendingChunks.clear();
+    }
+
+    /** Makes sure there is data left in the current chunk, returns false at the end of the stream. */
+    private boolean ensureChunkData() throws IOException {
+        while (currentChunkPosition == currentChunkData.length) {
+            submitChunks();
+
+            Future<ExportedChunk> nextChunk = pendingChunks.poll();
+            if (nextChunk == null) {
+                return false;
+            }
+
+            ExportedChunk chunk;
+            try {
+                chunk = nextChunk.get();
+            } catch (InterruptedException e) {
+                close();
+                throw new InterruptedIOException("backup was interrupted");
+            } catch (ExecutionException e) {
+                close();
+                throw new IOException("error exporting keyrings", e.getCause());
+            }
+
+            log.addAll(chunk.log.toList());
+            currentChunkData = chunk.data;
+            currentChunkPosition = 0;
+        }
+        return true;
+    }
+
+    private void submitChunks() {
+        while (pendingChunks.size() < maxPendingChunks && nextChunkStart < keyInfos.size()) {
+            final int chunkStart = nextChunkStart;
+            final int chunkEnd = Math.min(chunkStart + CHUNK_SIZE, keyInfos.size());
+            pendingChunks.add(exportExecutor.submit(() -> exportChunk(chunkStart, chunkEnd)));
+            nextChunkStart = chunkEnd;
+        }
+    }
+
+    private ExportedChunk exportChunk(int chunkStart, int chunkEnd) throws IOException {
+        OperationLog chunkLog = new OperationLog();
+        ByteArrayOutputStream chunkOut = new ByteArrayOutputStream();
+
+        for (int i = chunkStart; i < chunkEnd; i++) {
+            UnifiedKeyInfo keyInfo = keyInfos.get(i);
+            long masterKeyId = keyInfo.master_key_id();
+            chunkLog.add(LogType.MSG_BACKUP_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+
+            byte[] publicKeyRing = null;
+            if (exportPublic) {
+                publicKeyRing = encodePublicKeyRing(masterKeyId, chunkLog);
+            }
+
+            byte[] secretKeyRing = null;
+            boolean withSecret = exportSecret && keyInfo.has_any_secret();
+            if (withSecret) {
+                chunkLog.add(LogType.MSG_BACKUP_SECRET, 2, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+                secretKeyRing = encodeSecretKeyRing(masterKeyId, chunkLog);
+            }
+
+            // keys that failed to export are not put in the manifest, so they are tried again next time
+            boolean exportOk = (publicKeyRing != null || !exportPublic) && (secretKeyRing != null || !withSecret);
+            if (newManifest != null && exportOk) {
+                byte[] keyRingHash = BackupManifest.hashKeyRings(publicKeyRing, secretKeyRing);
+                newManifest.putKeyRingHash(masterKeyId, keyRingHash);
+                if (baseManifest != null && baseManifest.hasKeyRingHash(masterKeyId, keyRingHash)) {
+                    chunkLog.add(LogType.MSG_BACKUP_UNCHANGED, 2);
+                    continue;
+                }
+            }
+
+            if (publicKeyRing != null) {
+                writeArmored(publicKeyRing, chunkOut, null);
+            }
+            if (secretKeyRing != null) {
+                writeArmored(secretKeyRing, chunkOut, i == extraSecretKeyHeadersIndex ? extraSecretKeyHeaders : null);
+            }
+        }
+
+        return new ExportedChunk(chunkOut.toByteArray(), chunkLog);
+    }
+
+    @Nullable
+    private byte[] encodePublicKeyRing(long masterKeyId, OperationLog log) {
+        try {
+            return keyRepository.loadExportPublicKeyRingData(masterKeyId);
+        } catch (NotFoundException e) {
+            log.add(LogType.MSG_UPLOAD_ERROR_IO, 2);
+            return null;
+        }
+    }
+
+    @Nullable
+    private byte[] encodeSecretKeyRing(long masterKeyId, OperationLog log) {
+        try {
+            return keyRepository.loadExportSecretKeyRingData(masterKeyId);
+        } catch (NotFoundException e) {
+            log.add(LogType.MSG_UPLOAD_ERROR_IO, 2);
+            return null;
+        }
+    }
+
+    private static void writeArmored(byte[] keyRing, OutputStream outStream, @Nullable List<String> headers)
+            throws IOException {
+        ArmoredOutputStream arOutStream = new ArmoredOutputStream(outStream);
+        try {
+            if (headers != null) {
+                addExtraHeadersToStream(arOutStream, headers);
+            }
+            arOutStream.write(keyRing);
+        } finally {
+            arOutStream.close();
+        }
+    }
+
+    private static void addExtraHeadersToStream(ArmoredOutputStream arOutStream, List<String> headers) {
+        for (String header : headers) {
+            int sep = header.indexOf(':');
+            arOutStream.setHeader(header.substring(0, sep), header.substring(sep + 2));
+        }
+    }
+
+    /** Estimates the size of a keyring after ascii armoring, from its size in bytes. */
+    static long estimateArmoredSize(int dataSize) {
+        if (dataSize <= 0) {
+            return 0;
+        }
+        long base64Size = (dataSize + 2L) / 3 * 4;
+        long lineBreaks = (base64Size + ARMOR_LINE_LENGTH - 1) / ARMOR_LINE_LENGTH;
+        return base64Size + lineBreaks + ARMOR_OVERHEAD_ESTIMATE;
+    }
+
+    private static class ExportedChunk {
+        private final byte[] data;
+        private final OperationLog log;
+
+        ExportedChunk(byte[] data, OperationLog log) {
+            this.data = data;
+            this.log = log;
+        }
+    }
+}
@@ -20,6 +20,12 @@ package org.sufficientlysecure.keychain.operations;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
@@ -48,6 +54,12 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
  * <p/>
  * This operation is fail-fast: If any sign/encrypt sub-operation fails or returns
  * a pending result, it will terminate.
+ * <p/>
+ * Multiple input URIs are processed in parallel, on a worker pool sized to the number
+ * of available cores. Results are still collected in input order, and signatures that
+ * need a security token are batched into a single required input as before. The first
+ * file is processed on its own, so a missing passphrase is asked for before any other
+ * work is done.
  */
 public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
 
@@ -63,6 +75,10 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
         OperationLog log = new OperationLog();
         log.add(LogType.MSG_SE, 0);
 
+        if (input.getBytes() == null && input.getInputUris().size() > 1) {
+            return executeParallel(input, cryptoInput, log);
+        }
+
         ArrayDeque<Uri> inputUris = new ArrayDeque<>(input.getInputUris());
         ArrayDeque<Uri> outputUris = new ArrayDeque<>(input.getOutputUris());
         byte[] inputBytes = input.getBytes();
@@ -122,4 +138,177 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
                 results.get(results.size() - 1).getOutputBytes());
     }
 
+    @NonNull
+    private SignEncryptResult executeParallel(SignEncryptParcel input, CryptoInputParcel cryptoInput,
+            OperationLog log) {
+        List<Uri> inputUris = input.getInputUris();
+        List<Uri> outputUris = input.getOutputUris();
+        if (outputUris.size() > inputUris.size()) {
+            throw new AssertionError("Got outputs left but no inputs. This is a programming error, please report!");
+        }
+
+        int total = inputUris.size();
+        ArrayList<PgpSignEncryptResult> results = new ArrayList<>();
+        AggregatedProgress progress = new AggregatedProgress(mProgressable, total);
+        AtomicBoolean failed = new AtomicBoolean(false);
+
+        SecurityTokenSignOperationsBuilder pendingInputBuilder = null;
+        ExecutorService executor = null;
+        ArrayList<Future<PgpSignEncryptResult>> pendingResults = new ArrayList<>(total);
+
+        try {
+            for (int i = 0; i < total; i++) {
+                if (checkCancelled()) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+                }
+
+                PgpSignEncryptResult result;
+                if (i == 0) {
+                    result = signEncryptUri(input, cryptoInput, 0, progress);
+                } else {
+                    if (executor == null) {
+                        executor = startWorkers(input, cryptoInput, progress, failed, pendingResults);
+                    }
+                    result = pendingResults.get(i - 1).get();
+                    // a worker skipped this file, because of cancellation
+                    if (result == null) {
+                        log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                        return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+                    }
+                }
+
+                results.add(result);
+                log.add(result, 2);
+
+                if (result.isPending()) {
+                    RequiredInputParcel requiredInput = result.getRequiredInputParcel();
+                    // Passphrase returns immediately, nfc are aggregated
+                    if (requiredInput.mType == RequiredInputType.PASSPHRASE) {
+                        return new SignEncryptResult(log, requiredInput, results, cryptoInput);
+                    }
+                    if (pendingInputBuilder == null) {
+                        pendingInputBuilder = new SecurityTokenSignOperationsBuilder(requiredInput.mSignatureTime,
+                                requiredInput.getMasterKeyId(), requiredInput.getSubKeyId());
+                    }
+                    pendingInputBuilder.addAll(requiredInput);
+                } else if (!result.success()) {
+                    return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+        } catch (ExecutionException e) {
+            // PgpSignEncryptOperation does not throw, this is what would have happened on this thread
+            throw new RuntimeException(e);
+        } finally {
+            // stops workers from picking up further files if we returned early
+            failed.set(true);
+            if (executor != null) {
+                shutdownAndAwaitWorkers(executor);
+            }
+        }
+
+        if (pendingInputBuilder != null && !pendingInputBuilder.isEmpty()) {
+            return new SignEncryptResult(log, pendingInputBuilder.build(), results, cryptoInput);
+        }
+
+        log.add(LogType.MSG_SE_SUCCESS, 1);
+        return new SignEncryptResult(SignEncryptResult.RESULT_OK, log, results,
+                results.get(results.size() - 1).getOutputBytes());
+    }
+
+    private ExecutorService startWorkers(SignEncryptParcel input, CryptoInputParcel cryptoInput,
+            AggregatedProgress progress, AtomicBoolean failed, List<Future<PgpSignEncryptResult>> pendingResults) {
+        int total = input.getInputUris().size();
+        int threadCount = Math.min(Runtime.getRuntime().availableProcessors(), total - 1);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+
+        for (int i = 1; i < total; i++) {
+            final int index = i;
+            pendingResults.add(executor.submit(() -> {
+                if (failed.get() || checkCancelled()) {
+                    return null;
+                }
+                PgpSignEncryptResult result = signEncryptUri(input, cryptoInput, index, progress);
+                if (!result.success() && !result.isPending()) {
+                    failed.set(true);
+                }
+                return result;
+            }));
+        }
+
+        return executor;
+    }
+
+    /**
+     * Drops files no worker picked up yet, and waits for the ones in progress. No output is written
+     * after the result was returned, even if we returned early.
+     */
+    private static void shutdownAndAwaitWorkers(ExecutorService executor) {
+        executor.shutdownNow();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private PgpSignEncryptResult signEncryptUri(SignEncryptParcel input, CryptoInputParcel cryptoInput,
+            int index, AggregatedProgress progress) {
+        List<Uri> outputUris = input.getOutputUris();
+        Uri outputUri = index < outputUris.size() ? outputUris.get(index) : null;
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext, mKeyRepository,
+                progress.forFile(index), mCancelled);
+        PgpSignEncryptInputParcel inputParcel = PgpSignEncryptInputParcel.createForInputUri(
+                input.getSignEncryptData(), outputUri, input.getInputUris().get(index));
+        return op.execute(inputParcel, cryptoInput);
+    }
+
+    /** Sums up the progress of files that are processed concurrently. */
+    private static class AggregatedProgress {
+        private final Progressable progressable;
+        private final int[] fileProgress;
+        private int totalProgress;
+
+        AggregatedProgress(Progressable progressable, int fileCount) {
+            this.progressable = progressable;
+            this.fileProgress = new int[fileCount];
+        }
+
+        Progressable forFile(int index) {
+            return new Progressable() {
+                @Override
+                public void setProgress(Integer resourceId, int current, int total) {
+                    update(resourceId, index, total > 0 ? 100 * current / total : 0);
+                }
+
+                @Override
+                public void setPreventCancel() {
+                    if (progressable != null) {
+                        progressable.setPreventCancel();
+                    }
+                }
+            };
+        }
+
+        private synchronized void update(Integer resourceId, int index, int progress) {
+            totalProgress += progress - fileProgress[index];
+            fileProgress[index] = progress;
+            if (progressable != null) {
+                progressable.setProgress(resourceId, totalProgress, 100 * fileProgress.length);
+            }
+        }
+    }
+
 }
@@ -116,7 +116,7 @@ public class UploadOperation extends BaseOperation<UploadKeyringParcel> {
             Long masterKeyId = uploadInput.getMasterKeyId();
             if (masterKeyId != null) {
                 log.add(LogType.MSG_UPLOAD_KEY, 0, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
-                return mKeyRepository.getCanonicalizedPublicKeyRing(masterKeyId);
+                return mKeyRepository.getCanonicalizedPublicKeyRing(masterKeyId).forExport();
             }
 
             CanonicalizedKeyRing canonicalizedRing =
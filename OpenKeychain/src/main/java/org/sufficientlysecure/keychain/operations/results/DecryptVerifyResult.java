@@ -18,7 +18,14 @@
 package org.sufficientlysecure.keychain.operations.results;
 
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import android.net.Uri;
 import android.os.Parcel;
+import androidx.annotation.Nullable;
 
 import org.openintents.openpgp.OpenPgpDecryptionResult;
 import org.openintents.openpgp.OpenPgpMetadata;
@@ -26,6 +33,7 @@ import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.sufficientlysecure.keychain.pgp.DecryptVerifySecurityProblem;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+import org.sufficientlysecure.keychain.util.ChunkedBufferOutputStream;
 
 public class DecryptVerifyResult extends InputPendingResult {
 
@@ -33,13 +41,16 @@ public class DecryptVerifyResult extends InputPendingResult {
     public static final int RESULT_KEY_DISALLOWED = RESULT_ERROR + 32;
 
     OpenPgpSignatureResult mSignatureResult;
+    List<OpenPgpSignatureResult> mSignatureResults;
     OpenPgpDecryptionResult mDecryptionResult;
     OpenPgpMetadata mDecryptionMetadata;
     DecryptVerifySecurityProblem mSecurityProblem;
 
     CryptoInputParcel mCachedCryptoInputParcel;
 
-    byte[] mOutputBytes;
+    // not parcelled, the output stays with the process that decrypted it
+    ChunkedBufferOutputStream mOutputBuffer;
+    long mOutputSize;
 
     public long mOperationTime;
     private final long[] mSkippedDisallowedKeys;
@@ -69,6 +80,7 @@ public class DecryptVerifyResult extends InputPendingResult {
         mSkippedDisallowedKeys = source.createLongArray();
 
         mSecurityProblem = (DecryptVerifySecurityProblem) source.readSerializable();
+        mSignatureResults = source.createTypedArrayList(OpenPgpSignatureResult.CREATOR);
     }
 
 
@@ -84,6 +96,18 @@ public class DecryptVerifyResult extends InputPendingResult {
         mSignatureResult = signatureResult;
     }
 
+    /**
+     * Returns the results of all signatures, in the order they appear in the message. The one
+     * from getSignatureResult is among them, unless there were no signatures.
+     */
+    public List<OpenPgpSignatureResult> getSignatureResults() {
+        return mSignatureResults;
+    }
+
+    public void setSignatureResults(List<OpenPgpSignatureResult> signatureResults) {
+        mSignatureResults = signatureResults;
+    }
+
     public OpenPgpDecryptionResult getDecryptionResult() {
         return mDecryptionResult;
     }
@@ -108,12 +132,89 @@ public class DecryptVerifyResult extends InputPendingResult {
         mDecryptionMetadata = decryptMetadata;
     }
 
-    public void setOutputBytes(byte[] outputBytes) {
-        mOutputBytes = outputBytes;
+    public void setOutputBuffer(ChunkedBufferOutputStream outputBuffer) {
+        mOutputBuffer = outputBuffer;
+        mOutputSize = outputBuffer != null ? outputBuffer.getSize() : 0;
+    }
+
+    /** Returns true if the decrypted data was kept with this result, and hasn't been consumed yet. */
+    public boolean hasOutput() {
+        return mOutputBuffer != null;
+    }
+
+    /**
+     * Opens a stream over the decrypted data, which consumes it: the data is not copied, and is
+     * released once the returned stream is closed. Returns null if there is no output, or if it
+     * was already consumed.
+     */
+    @Nullable
+    public InputStream openOutputStream() throws IOException {
+        if (mOutputBuffer == null) {
+            return null;
+        }
+        final ChunkedBufferOutputStream outputBuffer = mOutputBuffer;
+        mOutputBuffer = null;
+
+        InputStream inputStream;
+        try {
+            inputStream = outputBuffer.openInputStream();
+        } catch (IOException e) {
+            outputBuffer.release();
+            throw e;
+        }
+        return new FilterInputStream(inputStream) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    outputBuffer.release();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the uri of a temporary file that holds the decrypted data. This is only available
+     * for large outputs, smaller ones are kept in memory and must be read with openOutputStream.
+     * The file is deleted by releaseOutput, which the caller must call once it is done with it.
+     */
+    @Nullable
+    public Uri getOutputUri() {
+        return mOutputBuffer != null ? mOutputBuffer.getSpillUri() : null;
+    }
+
+    public long getOutputSize() {
+        return mOutputSize;
     }
 
-    public byte[] getOutputBytes() {
-        return mOutputBytes;
+    /** Frees the decrypted data, if it wasn't consumed already. */
+    public void releaseOutput() {
+        if (mOutputBuffer != null) {
+            mOutputBuffer.release();
+            mOutputBuffer = null;
+        }
+    }
+
+    /**
+     * Returns a copy of the decrypted data, and releases the output. Like openOutputStream, this
+     * consumes the output: a second call returns null.
+     *
+     * @deprecated this copies all of the output into one array, use openOutputStream instead.
+     */
+    @Deprecated
+    @Nullable
+    public byte[] consumeOutputBytes() {
+        if (mOutputBuffer == null) {
+            return null;
+        }
+        try {
+            return mOutputBuffer.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Error reading output buffer", e);
+        } finally {
+            releaseOutput();
+        }
     }
 
     public long[] getSkippedDisallowedKeys() {
@@ -133,6 +234,7 @@ public class DecryptVerifyResult extends InputPendingResult {
         dest.writeLongArray(mSkippedDisallowedKeys);
 
         dest.writeSerializable(mSecurityProblem);
+        dest.writeTypedList(mSignatureResults);
     }
 
     public static final Creator<DecryptVerifyResult> CREATOR = new Creator<DecryptVerifyResult>() {
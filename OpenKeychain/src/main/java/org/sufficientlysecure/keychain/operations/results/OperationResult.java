@@ -654,6 +654,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_DC_OK_META_ONLY (LogLevel.OK, R.string.msg_dc_ok_meta_only),
         MSG_DC_OK (LogLevel.OK, R.string.msg_dc_ok),
         MSG_DC_PASS_CACHED (LogLevel.DEBUG, R.string.msg_dc_pass_cached),
+        MSG_DC_SESSION_KEY_CACHED (LogLevel.DEBUG, R.string.msg_dc_session_key_cached),
         MSG_DC_PENDING_NFC (LogLevel.INFO, R.string.msg_dc_pending_nfc),
         MSG_DC_PENDING_PASSPHRASE (LogLevel.INFO, R.string.msg_dc_pending_passphrase),
         MSG_DC_PREP_STREAMS (LogLevel.DEBUG, R.string.msg_dc_prep_streams),
@@ -750,6 +751,11 @@ public abstract class OperationResult implements Parcelable {
         MSG_CRT_WARN_UPLOAD_FAILED (LogLevel.WARN, R.string.msg_crt_warn_upload_failed),
 
         MSG_IMPORT (LogLevel.START, R.plurals.msg_import),
+        MSG_IMPORT_BULK (LogLevel.START, R.string.msg_import_bulk),
+        MSG_IMPORT_RESUME (LogLevel.INFO, R.string.msg_import_resume),
+        MSG_IMPORT_BACKUP_CHAIN (LogLevel.START, R.string.msg_import_backup_chain),
+        MSG_IMPORT_BACKUP_CHAIN_ERROR_BROKEN (LogLevel.ERROR, R.string.msg_import_backup_chain_error_broken),
+        MSG_IMPORT_BACKUP_CHAIN_ERROR_NO_HEADER (LogLevel.ERROR, R.string.msg_import_backup_chain_error_no_header),
 
         MSG_IMPORT_FETCH_ERROR (LogLevel.ERROR, R.string.msg_import_fetch_error),
         MSG_IMPORT_FETCH_ERROR_DECODE (LogLevel.ERROR, R.string.msg_import_fetch_error_decode),
@@ -770,6 +776,9 @@ public abstract class OperationResult implements Parcelable {
         MSG_BACKUP(LogLevel.START, R.plurals.msg_backup),
         MSG_BACKUP_PUBLIC(LogLevel.DEBUG, R.string.msg_backup_public),
         MSG_BACKUP_SECRET(LogLevel.DEBUG, R.string.msg_backup_secret),
+        MSG_BACKUP_UNCHANGED(LogLevel.DEBUG, R.string.msg_backup_unchanged),
+        MSG_BACKUP_INCREMENTAL(LogLevel.INFO, R.string.msg_backup_incremental),
+        MSG_BACKUP_INCREMENTAL_NEW_CHAIN(LogLevel.INFO, R.string.msg_backup_incremental_new_chain),
         MSG_BACKUP_ALL(LogLevel.START, R.string.msg_backup_all),
         MSG_BACKUP_ERROR_URI_OPEN(LogLevel.ERROR, R.string.msg_backup_error_uri_open),
         MSG_BACKUP_ERROR_DB(LogLevel.ERROR, R.string.msg_backup_error_db),
@@ -891,7 +900,10 @@ public abstract class OperationResult implements Parcelable {
         MSG_TRUST_KEY (LogLevel.INFO, R.string.msg_trust_key),
         MSG_TRUST_INITIALIZE (LogLevel.INFO, R.string.msg_trust_initialize),
         MSG_TRUST_COUNT_NONE (LogLevel.DEBUG, R.string.msg_trust_count_none),
-        MSG_TRUST_COUNT (LogLevel.DEBUG, R.plurals.msg_trust_count);
+        MSG_TRUST_COUNT (LogLevel.DEBUG, R.plurals.msg_trust_count),
+        MSG_TRUST_CERTS_UNCHANGED (LogLevel.DEBUG, R.string.msg_trust_certs_unchanged),
+        MSG_TRUST_CERTS_UPDATED (LogLevel.DEBUG, R.plurals.msg_trust_certs_updated),
+        MSG_TRUST_USER_PACKETS_REORDERED (LogLevel.DEBUG, R.string.msg_trust_user_packets_reordered);
 
         public final int mMsgId;
         public final LogLevel mLevel;
@@ -18,7 +18,9 @@
 package org.sufficientlysecure.keychain.pgp;
 
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
@@ -47,10 +49,14 @@ public class CanonicalizedPublicKeyRing extends CanonicalizedKeyRing {
     }
 
     public CanonicalizedPublicKeyRing(byte[] blob, VerificationStatus verified) {
+        this(new ByteArrayInputStream(blob), verified);
+    }
+
+    public CanonicalizedPublicKeyRing(InputStream blobStream, VerificationStatus verified) {
         super(verified);
         if(mRing == null) {
             // get first object in block
-            PGPObjectFactory factory = new PGPObjectFactory(blob, new JcaKeyFingerprintCalculator());
+            PGPObjectFactory factory = new PGPObjectFactory(blobStream, new JcaKeyFingerprintCalculator());
             try {
                 Object obj = factory.nextObject();
                 if (! (obj instanceof PGPPublicKeyRing)) {
@@ -91,6 +97,21 @@ public class CanonicalizedPublicKeyRing extends CanonicalizedKeyRing {
         });
     }
 
+    /**
+     * Returns this keyring as it is exported, without non-exportable certificates of the master
+     * key. Since the ring is canonicalized already, this is the same as canonicalizing it again
+     * for export, without verifying all signatures again.
+     */
+    public CanonicalizedPublicKeyRing forExport() {
+        PGPPublicKey masterPubKey = getRing().getPublicKey();
+        PGPPublicKey exportMasterPubKey = PGPPublicKeyUtils.removeLocalKeyCerts(masterPubKey);
+        if (exportMasterPubKey == masterPubKey) {
+            return this;
+        }
+        return new CanonicalizedPublicKeyRing(
+                PGPPublicKeyRing.insertPublicKey(getRing(), exportMasterPubKey), getVerified());
+    }
+
     /** Returns a minimized version of this key.
      *
      * The minimized version includes:
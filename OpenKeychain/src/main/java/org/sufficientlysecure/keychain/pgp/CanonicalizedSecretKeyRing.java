@@ -60,6 +60,19 @@ public class CanonicalizedSecretKeyRing extends CanonicalizedKeyRing {
         return mRing;
     }
 
+    /** Returns this keyring as it is exported, see CanonicalizedPublicKeyRing#forExport. */
+    public CanonicalizedSecretKeyRing forExport() {
+        PGPSecretKey masterSecretKey = getRing().getSecretKey();
+        PGPPublicKey masterPubKey = masterSecretKey.getPublicKey();
+        PGPPublicKey exportMasterPubKey = PGPPublicKeyUtils.removeLocalKeyCerts(masterPubKey);
+        if (exportMasterPubKey == masterPubKey) {
+            return this;
+        }
+        PGPSecretKey exportMasterSecretKey = PGPSecretKey.replacePublicKey(masterSecretKey, exportMasterPubKey);
+        return new CanonicalizedSecretKeyRing(
+                PGPSecretKeyRing.insertSecretKey(getRing(), exportMasterSecretKey), getVerified());
+    }
+
     public CanonicalizedSecretKey getSecretKey() {
         return new CanonicalizedSecretKey(this, getRing().getSecretKey());
     }
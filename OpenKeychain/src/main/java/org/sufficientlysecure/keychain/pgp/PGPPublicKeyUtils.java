@@ -104,6 +104,20 @@ class PGPPublicKeyUtils {
         return masterPubKey;
     }
 
+    /** Removes non-exportable direct key and revocation certificates of a master key. */
+    static PGPPublicKey removeLocalKeyCerts(PGPPublicKey masterPubKey) {
+        Iterator<PGPSignature> it = masterPubKey.getKeySignatures();
+
+        while (it.hasNext()) {
+            PGPSignature sig = it.next();
+            if (new WrappedSignature(sig).isLocal()) {
+                masterPubKey = PGPPublicKey.removeCertification(masterPubKey, sig);
+            }
+        }
+
+        return masterPubKey;
+    }
+
     static PGPPublicKey removeAllDirectKeyCerts(PGPPublicKey masterPubKey) {
         Iterator<PGPSignature> it = masterPubKey.getSignaturesOfType(PGPSignature.DIRECT_KEY);
 
@@ -18,6 +18,7 @@
 package org.sufficientlysecure.keychain.pgp;
 
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
@@ -25,7 +26,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.security.SignatureException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -78,6 +79,7 @@ import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.RequireAnyDecryptPassphraseBuilder;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.CharsetVerifier;
+import org.sufficientlysecure.keychain.util.ChunkedBufferOutputStream;
 import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Passphrase;
@@ -126,7 +128,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         }
 
         if (input.getOutputUri() == null) {
-            outputStream = new ByteArrayOutputStream();
+            outputStream = new ChunkedBufferOutputStream(mContext);
         } else {
             try {
                 outputStream = mContext.getContentResolver().openOutputStream(input.getOutputUri());
@@ -139,9 +141,18 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         }
 
         DecryptVerifyResult result = executeInternal(input, cryptoInput, inputData, outputStream);
-        if (outputStream instanceof ByteArrayOutputStream) {
-            byte[] outputData = ((ByteArrayOutputStream) outputStream).toByteArray();
-            result.setOutputBytes(outputData);
+        if (outputStream instanceof ChunkedBufferOutputStream) {
+            ChunkedBufferOutputStream outputBuffer = (ChunkedBufferOutputStream) outputStream;
+            try {
+                outputBuffer.close();
+            } catch (IOException e) {
+                Timber.e(e, "Error closing output buffer");
+            }
+            if (result.success()) {
+                result.setOutputBuffer(outputBuffer);
+            } else {
+                outputBuffer.release();
+            }
         }
 
         result.mOperationTime = System.currentTimeMillis() - startTime;
@@ -581,6 +592,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
         result.setCachedCryptoInputParcel(cryptoInput);
         result.setSignatureResult(signatureChecker.getSignatureResult());
+        result.setSignatureResults(signatureChecker.getSignatureResults());
         result.setDecryptionResult(decryptionResultBuilder.build());
         result.setSecurityProblemResult(securityProblemBuilder.build());
         result.setDecryptionMetadata(metadata);
@@ -607,6 +619,10 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         CachingDataDecryptorFactory cachedKeyDecryptorFactory = new CachingDataDecryptorFactory(
                 Constants.BOUNCY_CASTLE_PROVIDER_NAME, cryptoInput.getCryptoData());
 
+        SessionKeyCache sessionKeyCache = SessionKeyCache.getInstance(mContext);
+        boolean sessionKeyFromCache = false;
+        boolean passphraseFromCache = false;
+
         Passphrase passphrase = null;
 
         Iterator<?> it = enc.getEncryptedDataObjects();
@@ -672,6 +688,14 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                         continue;
                     }
 
+                    // check for insecure encryption key
+                    KeySecurityProblem keySecurityProblem =
+                            PgpSecurityConstants.checkForSecurityProblems(candidateDecryptionKey);
+                    if (keySecurityProblem != null) {
+                        log.add(LogType.MSG_DC_INSECURE_KEY, indent + 1);
+                        result.encryptionKeySecurityProblem = keySecurityProblem;
+                    }
+
                     if (secretKeyType == SecretKeyType.DIVERT_TO_CARD) {
                         passphrase = null;
                     } else if (secretKeyType == SecretKeyType.PASSPHRASE_EMPTY) {
@@ -695,14 +719,21 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                             requirePassphraseBuilder.add(masterKeyId, subKeyId);
                             continue;
                         }
-                    }
-
-                    // check for insecure encryption key
-                    KeySecurityProblem keySecurityProblem =
-                            PgpSecurityConstants.checkForSecurityProblems(candidateDecryptionKey);
-                    if (keySecurityProblem != null) {
-                        log.add(LogType.MSG_DC_INSECURE_KEY, indent + 1);
-                        result.encryptionKeySecurityProblem = keySecurityProblem;
+                        passphraseFromCache = true;
+
+                        // this message may have been decrypted with this key, while its passphrase was cached
+                        byte[] cachedSessionData = sessionKeyCache.get(masterKeyId, encData);
+                        if (cachedSessionData != null) {
+                            log.add(LogType.MSG_DC_SESSION_KEY_CACHED, indent + 1);
+                            cachedKeyDecryptorFactory = new CachingDataDecryptorFactory(
+                                    Constants.BOUNCY_CASTLE_PROVIDER_NAME, Collections.singletonMap(
+                                            ByteBuffer.wrap(encData.getSessionKey()[0]), cachedSessionData));
+                            decryptedSessionKeyAvailable = true;
+                            sessionKeyFromCache = true;
+                            asymmetricPacketFound = true;
+                            encryptedDataAsymmetric = encData;
+                            break;
+                        }
                     }
 
                     // we're good, write down the data for later
@@ -852,6 +883,12 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                 Entry<ByteBuffer, byte[]> entry = cachedSessionKeys.entrySet().iterator().next();
                 result.sessionKey = entry.getKey().array();
                 result.decryptedSessionKey = entry.getValue();
+
+                // only keep the session key as long as the passphrase that unlocked the key is cached
+                if (passphraseFromCache && !sessionKeyFromCache) {
+                    sessionKeyCache.put(decryptionKey.getRing().getMasterKeyId(), encryptedDataAsymmetric,
+                            entry.getValue());
+                }
             }
         } else {
             // there wasn't even any useful data
@@ -880,6 +917,12 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
      * This method verifies cleartext signatures
      * as defined in http://tools.ietf.org/html/rfc4880#section-7
      * <p/>
+     * The cleartext is read line by line in a single pass. Each line is written to the output
+     * with the local line separator, and in its canonical form (trailing whitespace removed,
+     * CRLF line endings) to a buffer for the signature. The signature packet only follows after
+     * the cleartext, so the canonical text can't be hashed before that. It is kept in a
+     * ChunkedBufferOutputStream, which moves to a temporary file for large texts.
+     * <p/>
      * The method is heavily based on
      * pg/src/main/java/org/bouncycastle/openpgp/examples/ClearSignedFileProcessor.java
      */
@@ -889,75 +932,98 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         OperationLog log = new OperationLog();
 
-        byte[] clearText;
-        { // read cleartext
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedBufferOutputStream canonicalText = new ChunkedBufferOutputStream(mContext);
+        try {
+            long clearTextLength = 0;
+            { // read cleartext
+                updateProgress(R.string.progress_reading_data, 0, 100);
 
-            updateProgress(R.string.progress_reading_data, 0, 100);
+                OutputStream out = outputStream != null ? new BufferedOutputStream(outputStream, 1 << 16) : null;
+                byte[] lineSep = getLineSeparator();
 
-            ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
-            int lookAhead = readInputLine(lineOut, aIn);
-            byte[] lineSep = getLineSeparator();
+                LineBuffer lineOut = new LineBuffer();
+                int lookAhead = readInputLine(lineOut, aIn);
+                clearTextLength += processCleartextLine(lineOut, out, lineSep, canonicalText, true);
 
-            byte[] line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
-            out.write(lineSep);
+                while (lookAhead != -1 && aIn.isClearText()) {
+                    lookAhead = readInputLine(lineOut, lookAhead, aIn);
+                    clearTextLength += processCleartextLine(lineOut, out, lineSep, canonicalText, false);
+                }
 
-            while (lookAhead != -1 && aIn.isClearText()) {
-                lookAhead = readInputLine(lineOut, lookAhead, aIn);
-                line = lineOut.toByteArray();
-                out.write(line, 0, getLengthWithoutSeparator(line));
-                out.write(lineSep);
+                canonicalText.close();
+                if (out != null) {
+                    out.close();
+                }
             }
 
-            out.close();
-            clearText = out.toByteArray();
-        }
+            updateProgress(R.string.progress_processing_signature, 60, 100);
+            JcaSkipMarkerPGPObjectFactory pgpFact = new JcaSkipMarkerPGPObjectFactory(aIn);
 
-        if (outputStream != null) {
-            outputStream.write(clearText);
-            outputStream.close();
-        }
+            DecryptVerifySecurityProblemBuilder securityProblemBuilder = new DecryptVerifySecurityProblemBuilder();
+            PgpSignatureChecker signatureChecker = new PgpSignatureChecker(mKeyRepository, input.getSenderAddress(),
+                    securityProblemBuilder);
 
-        updateProgress(R.string.progress_processing_signature, 60, 100);
-        JcaSkipMarkerPGPObjectFactory pgpFact = new JcaSkipMarkerPGPObjectFactory(aIn);
-
-        DecryptVerifySecurityProblemBuilder securityProblemBuilder = new DecryptVerifySecurityProblemBuilder();
-        PgpSignatureChecker signatureChecker = new PgpSignatureChecker(mKeyRepository, input.getSenderAddress(),
-                securityProblemBuilder);
-
-        Object o = pgpFact.nextObject();
-        if (!signatureChecker.initializeSignature(o, log, indent+1)) {
-            log.add(LogType.MSG_DC_ERROR_INVALID_DATA, 0);
-            return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
-        }
+            Object o = pgpFact.nextObject();
+            if (!signatureChecker.initializeSignature(o, log, indent+1)) {
+                log.add(LogType.MSG_DC_ERROR_INVALID_DATA, 0);
+                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+            }
 
-        if (signatureChecker.isInitialized()) {
-            try {
+            if (signatureChecker.isInitialized()) {
                 updateProgress(R.string.progress_verifying_signature, 90, 100);
 
-                signatureChecker.updateSignatureWithCleartext(clearText);
-                signatureChecker.verifySignature(log, indent);
+                InputStream canonicalTextIn = canonicalText.openInputStream();
+                try {
+                    byte[] buffer = new byte[1 << 16];
+                    int length;
+                    while ((length = canonicalTextIn.read(buffer)) > 0) {
+                        signatureChecker.updateSignatureData(buffer, 0, length);
+                    }
+                } finally {
+                    canonicalTextIn.close();
+                }
 
-            } catch (SignatureException e) {
-                Timber.d(e, "SignatureException");
-                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+                signatureChecker.verifySignature(log, indent);
             }
-        }
 
-        updateProgress(R.string.progress_done, 100, 100);
+            updateProgress(R.string.progress_done, 100, 100);
 
-        log.add(LogType.MSG_DC_OK, indent);
+            log.add(LogType.MSG_DC_OK, indent);
 
-        OpenPgpMetadata metadata = new OpenPgpMetadata("", "text/plain", -1, clearText.length, "utf-8");
+            OpenPgpMetadata metadata = new OpenPgpMetadata("", "text/plain", -1, clearTextLength, "utf-8");
 
-        DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
-        result.setSignatureResult(signatureChecker.getSignatureResult());
-        result.setDecryptionResult(
-                new OpenPgpDecryptionResult(OpenPgpDecryptionResult.RESULT_NOT_ENCRYPTED));
-        result.setSecurityProblemResult(securityProblemBuilder.build());
-        result.setDecryptionMetadata(metadata);
-        return result;
+            DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
+            result.setSignatureResult(signatureChecker.getSignatureResult());
+            result.setSignatureResults(signatureChecker.getSignatureResults());
+            result.setDecryptionResult(
+                    new OpenPgpDecryptionResult(OpenPgpDecryptionResult.RESULT_NOT_ENCRYPTED));
+            result.setSecurityProblemResult(securityProblemBuilder.build());
+            result.setDecryptionMetadata(metadata);
+            return result;
+        } finally {
+            canonicalText.release();
+        }
+    }
+
+    /**
+     * Writes a line of cleartext to the output, and its canonical form for the signature to
+     * canonicalText. Lines are separated by CRLF in the signed text, with no line ending after
+     * the last one. Returns the number of bytes written to the output.
+     */
+    private static int processCleartextLine(LineBuffer line, OutputStream out, byte[] lineSep,
+            OutputStream canonicalText, boolean isFirstLine) throws IOException {
+        if (!isFirstLine) {
+            canonicalText.write('\r');
+            canonicalText.write('\n');
+        }
+        canonicalText.write(line.getBuffer(), 0, getLengthWithoutWhiteSpace(line.getBuffer(), line.size()));
+
+        int length = getLengthWithoutSeparator(line.getBuffer(), line.size());
+        if (out != null) {
+            out.write(line.getBuffer(), 0, length);
+            out.write(lineSep);
+        }
+        return length + lineSep.length;
     }
 
     @NonNull
@@ -1033,6 +1099,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
         result.setSignatureResult(signatureChecker.getSignatureResult());
+        result.setSignatureResults(signatureChecker.getSignatureResults());
         result.setSecurityProblemResult(securityProblemBuilder.build());
         result.setDecryptionResult(
                 new OpenPgpDecryptionResult(OpenPgpDecryptionResult.RESULT_NOT_ENCRYPTED));
@@ -1090,8 +1157,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return lookAhead;
     }
 
-    private static int getLengthWithoutSeparator(byte[] line) {
-        int end = line.length - 1;
+    private static int getLengthWithoutSeparator(byte[] line, int length) {
+        int end = length - 1;
 
         while (end >= 0 && isLineEnding(line[end])) {
             end--;
@@ -1100,10 +1167,31 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return end + 1;
     }
 
+    private static int getLengthWithoutWhiteSpace(byte[] line, int length) {
+        int end = length - 1;
+
+        while (end >= 0 && isWhiteSpace(line[end])) {
+            end--;
+        }
+
+        return end + 1;
+    }
+
     private static boolean isLineEnding(byte b) {
         return b == '\r' || b == '\n';
     }
 
+    private static boolean isWhiteSpace(byte b) {
+        return b == '\r' || b == '\n' || b == '\t' || b == ' ';
+    }
+
+    /** A line buffer that gives access to its contents, to avoid a copy for each line. */
+    private static class LineBuffer extends ByteArrayOutputStream {
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
     private static byte[] getLineSeparator() {
         String nl = System.getProperty("line.separator");
         return nl.getBytes();
@@ -30,6 +30,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.SignatureException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
@@ -38,6 +39,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import android.content.Context;
 import android.net.Uri;
 import androidx.annotation.NonNull;
+import androidx.collection.LongSparseArray;
 
 import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.bouncycastle.bcpg.BCPGOutputStream;
@@ -335,19 +337,23 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 log.add(LogType.MSG_PSE_ASYMMETRIC, indent);
 
                 long additionalEncryptId = data.getAdditionalEncryptId();
+                LongSparseArray<List<Long>> encryptSubKeyIdsByMasterKeyId =
+                        loadEncryptionSubKeyIds(data.getEncryptionMasterKeyIds(), additionalEncryptId);
                 for (long encryptMasterKeyId : data.getEncryptionMasterKeyIds()) {
                     if (encryptMasterKeyId == additionalEncryptId) {
                         continue;
                     }
 
-                    boolean success = processEncryptionMasterKeyId(indent, log, data, cPk, encryptMasterKeyId);
+                    boolean success = processEncryptionMasterKeyId(indent, log, data, cPk, encryptMasterKeyId,
+                            encryptSubKeyIdsByMasterKeyId.get(encryptMasterKeyId));
                     if (!success) {
                         return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                     }
                 }
 
                 if (additionalEncryptId != Constants.key.none) {
-                    boolean success = processEncryptionMasterKeyId(indent, log, data, cPk, additionalEncryptId);
+                    boolean success = processEncryptionMasterKeyId(indent, log, data, cPk, additionalEncryptId,
+                            encryptSubKeyIdsByMasterKeyId.get(additionalEncryptId));
                     if (!success) {
                         return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                     }
@@ -440,7 +446,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
 
                     alreadyWritten += length;
                     if (inputData.getSize() > 0) {
-                        long progress = 100 * alreadyWritten / inputData.getSize();
+                        long progress = Math.min(100, 100 * alreadyWritten / inputData.getSize());
                         progressScaler.setProgress((int) progress, 100);
                     }
                 }
@@ -514,7 +520,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
 
                     alreadyWritten += length;
                     if (inputData.getSize() > 0) {
-                        long progress = 100 * alreadyWritten / inputData.getSize();
+                        long progress = Math.min(100, 100 * alreadyWritten / inputData.getSize());
                         progressScaler.setProgress((int) progress, 100);
                     }
                 }
@@ -554,7 +560,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
 
                     alreadyWritten += length;
                     if (inputData.getSize() > 0) {
-                        long progress = 100 * alreadyWritten / inputData.getSize();
+                        long progress = Math.min(100, 100 * alreadyWritten / inputData.getSize());
                         progressScaler.setProgress((int) progress, 100);
                     }
                 }
@@ -647,11 +653,22 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         return result;
     }
 
+    /** Looks up the encryption subkeys of all recipients at once, rather than with one query per recipient. */
+    private LongSparseArray<List<Long>> loadEncryptionSubKeyIds(long[] encryptMasterKeyIds, long additionalEncryptId) {
+        long[] allMasterKeyIds;
+        if (additionalEncryptId != Constants.key.none) {
+            allMasterKeyIds = Arrays.copyOf(encryptMasterKeyIds, encryptMasterKeyIds.length + 1);
+            allMasterKeyIds[encryptMasterKeyIds.length] = additionalEncryptId;
+        } else {
+            allMasterKeyIds = encryptMasterKeyIds;
+        }
+        return mKeyRepository.getPublicEncryptionIds(allMasterKeyIds);
+    }
+
     private boolean processEncryptionMasterKeyId(int indent, OperationLog log, PgpSignEncryptData data,
-            PGPEncryptedDataGenerator cPk, long encryptMasterKeyId) {
+            PGPEncryptedDataGenerator cPk, long encryptMasterKeyId, List<Long> encryptSubKeyIds) {
         try {
             CanonicalizedPublicKeyRing keyRing = mKeyRepository.getCanonicalizedPublicKeyRing(encryptMasterKeyId);
-            List<Long> encryptSubKeyIds = mKeyRepository.getPublicEncryptionIds(encryptMasterKeyId);
             for (Long subKeyId : encryptSubKeyIds) {
                 CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
                 cPk.addMethod(key.getPubKeyEncryptionGenerator(data.isHiddenRecipients()));
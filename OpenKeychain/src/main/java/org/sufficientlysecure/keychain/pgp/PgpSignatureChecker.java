@@ -18,12 +18,16 @@
 package org.sufficientlysecure.keychain.pgp;
 
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import androidx.collection.LongSparseArray;
 
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPOnePassSignature;
@@ -43,20 +47,31 @@ import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
 import timber.log.Timber;
 
 
-/** This class is used to track the state of a single signature verification.
+/** This class is used to track the state of the signature verifications of a message.
  *
+ * All signatures of a message are checked, each one with its own OpenPgpSignatureResultBuilder.
+ * The first signature made by a key from our database is the primary one, it determines the
+ * overall signature result and security problems, for compatibility with clients that only
+ * expect a single signature.
  *
+ * Signed data is read only once. If more than one signature can be checked, each chunk of data
+ * is fed to all of them in parallel.
  */
 class PgpSignatureChecker {
+    // hashing small chunks in parallel costs more than it saves
+    private static final int PARALLEL_UPDATE_MIN_LENGTH = 4096;
 
-    private final OpenPgpSignatureResultBuilder signatureResultBuilder;
-    private final DecryptVerifySecurityProblemBuilder securityProblemBuilder;
+    // threads are only kept around while signatures are being checked
+    private static final ExecutorService updateExecutor = new ThreadPoolExecutor(0,
+            Runtime.getRuntime().availableProcessors(), 30, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.CallerRunsPolicy());
 
-    private CanonicalizedPublicKey signingKey;
+    private final DecryptVerifySecurityProblemBuilder securityProblemBuilder;
+    private final String senderAddress;
 
-    private int signatureIndex;
-    private PGPOnePassSignature onePassSignature;
-    private PGPSignature signature;
+    private final ArrayList<SignatureVerification> verifications = new ArrayList<>();
+    private final ArrayList<SignatureVerification> initializedVerifications = new ArrayList<>();
+    private SignatureVerification primaryVerification;
 
     private KeyRepository mKeyRepository;
 
@@ -64,9 +79,7 @@ class PgpSignatureChecker {
             DecryptVerifySecurityProblemBuilder securityProblemBuilder) {
         mKeyRepository = keyRepository;
 
-        signatureResultBuilder = new OpenPgpSignatureResultBuilder(keyRepository);
-        signatureResultBuilder.setSenderAddress(senderAddress);
-
+        this.senderAddress = senderAddress;
         this.securityProblemBuilder = securityProblemBuilder;
     }
 
@@ -77,26 +90,25 @@ class PgpSignatureChecker {
         }
 
         PGPSignatureList sigList = (PGPSignatureList) dataChunk;
-        findAvailableSignature(sigList);
-
-        if (signingKey != null) {
-
-            // key found in our database!
-            signatureResultBuilder.initValid(signingKey);
-
-            JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                    new JcaPGPContentVerifierBuilderProvider()
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-            signature.init(contentVerifierBuilderProvider, signingKey.getPublicKey());
-            checkKeySecurity(log, indent);
 
+        long[] sigKeyIds = new long[sigList.size()];
+        for (int i = 0; i < sigList.size(); ++i) {
+            sigKeyIds[i] = sigList.get(i).getKeyID();
+        }
+        CanonicalizedPublicKey[] signingKeys = findSigningKeys(sigKeyIds);
 
-        } else if (!sigList.isEmpty()) {
-
-            signatureResultBuilder.setSignatureAvailable(true);
-            signatureResultBuilder.setKnownKey(false);
-            signatureResultBuilder.setKeyId(sigList.get(0).getKeyID());
+        for (int i = 0; i < sigList.size(); ++i) {
+            SignatureVerification verification = new SignatureVerification(i, sigKeyIds[i], signingKeys[i]);
+            verification.signature = sigList.get(i);
+
+            if (verification.signingKey != null) {
+                JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
+                        new JcaPGPContentVerifierBuilderProvider()
+                                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                verification.signature.init(contentVerifierBuilderProvider, verification.signingKey.getPublicKey());
+            }
 
+            addVerification(verification, log, indent);
         }
 
         return true;
@@ -112,123 +124,135 @@ class PgpSignatureChecker {
         log.add(LogType.MSG_DC_CLEAR_SIGNATURE, indent + 1);
 
         PGPOnePassSignatureList sigList = (PGPOnePassSignatureList) dataChunk;
-        findAvailableSignature(sigList);
 
-        if (signingKey != null) {
+        long[] sigKeyIds = new long[sigList.size()];
+        for (int i = 0; i < sigList.size(); ++i) {
+            sigKeyIds[i] = sigList.get(i).getKeyID();
+        }
+        CanonicalizedPublicKey[] signingKeys = findSigningKeys(sigKeyIds);
 
-            // key found in our database!
-            signatureResultBuilder.initValid(signingKey);
+        for (int i = 0; i < sigList.size(); ++i) {
+            SignatureVerification verification = new SignatureVerification(i, sigKeyIds[i], signingKeys[i]);
+            verification.onePassSignature = sigList.get(i);
+
+            if (verification.signingKey != null) {
+                JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
+                        new JcaPGPContentVerifierBuilderProvider()
+                                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                verification.onePassSignature.init(
+                        contentVerifierBuilderProvider, verification.signingKey.getPublicKey());
+            }
 
-            JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                    new JcaPGPContentVerifierBuilderProvider()
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-            onePassSignature.init(contentVerifierBuilderProvider, signingKey.getPublicKey());
+            addVerification(verification, log, indent);
+        }
 
-            checkKeySecurity(log, indent);
+        return true;
 
-        } else if (!sigList.isEmpty()) {
+    }
 
-            signatureResultBuilder.setSignatureAvailable(true);
-            signatureResultBuilder.setKnownKey(false);
-            signatureResultBuilder.setKeyId(sigList.get(0).getKeyID());
+    private void addVerification(SignatureVerification verification, OperationLog log, int indent) {
+        verifications.add(verification);
 
+        if (verification.signingKey == null) {
+            return;
         }
 
-        return true;
-
+        // key found in our database!
+        initializedVerifications.add(verification);
+        if (primaryVerification == null) {
+            primaryVerification = verification;
+        }
+        checkKeySecurity(verification, log, indent);
     }
 
-    private void checkKeySecurity(OperationLog log, int indent) {
+    private void checkKeySecurity(SignatureVerification verification, OperationLog log, int indent) {
         // TODO check primary key as well, not only the signing key
         KeySecurityProblem keySecurityProblem =
-                PgpSecurityConstants.checkForSecurityProblems(signingKey);
+                PgpSecurityConstants.checkForSecurityProblems(verification.signingKey);
         if (keySecurityProblem != null) {
             log.add(LogType.MSG_DC_INSECURE_KEY, indent + 1);
-            securityProblemBuilder.addSigningKeyProblem(keySecurityProblem);
-            signatureResultBuilder.setInsecure(true);
+            if (verification == primaryVerification) {
+                securityProblemBuilder.addSigningKeyProblem(keySecurityProblem);
+            }
+            verification.signatureResultBuilder.setInsecure(true);
         }
     }
 
     boolean isInitialized() {
-        return signingKey != null;
+        return !initializedVerifications.isEmpty();
     }
 
-    private void findAvailableSignature(PGPOnePassSignatureList sigList) {
-        // go through all signatures (should be just one), make sure we have
-        //  the key and it matches the one we’re looking for
-        for (int i = 0; i < sigList.size(); ++i) {
-            try {
-                long sigKeyId = sigList.get(i).getKeyID();
-                Long masterKeyId = mKeyRepository.getMasterKeyIdBySubkeyId(sigKeyId);
-                if (masterKeyId == null) {
-                    continue;
-                }
-                CanonicalizedPublicKeyRing signingRing = mKeyRepository.getCanonicalizedPublicKeyRing(masterKeyId);
-                CanonicalizedPublicKey keyCandidate = signingRing.getPublicKey(sigKeyId);
-                if ( ! keyCandidate.canSign()) {
-                    continue;
-                }
-                signatureIndex = i;
-                signingKey = keyCandidate;
-                onePassSignature = sigList.get(i);
-                return;
-            } catch (KeyWritableRepository.NotFoundException e) {
-                Timber.d("key not found, trying next signature...");
-            }
+    /**
+     * Looks up the signing keys for a list of key ids. The master key ids of all of them are
+     * looked up in a single query. Keys that are unknown or can't sign are returned as null.
+     */
+    private CanonicalizedPublicKey[] findSigningKeys(long[] sigKeyIds) {
+        CanonicalizedPublicKey[] signingKeys = new CanonicalizedPublicKey[sigKeyIds.length];
+        if (sigKeyIds.length == 0) {
+            return signingKeys;
         }
-    }
 
-    private void findAvailableSignature(PGPSignatureList sigList) {
-        // go through all signatures (should be just one), make sure we have
-        //  the key and it matches the one we’re looking for
-        for (int i = 0; i < sigList.size(); ++i) {
+        LongSparseArray<Long> masterKeyIds = mKeyRepository.getMasterKeyIdsBySubkeyIds(sigKeyIds);
+        LongSparseArray<CanonicalizedPublicKeyRing> signingRings = new LongSparseArray<>();
+        for (int i = 0; i < sigKeyIds.length; ++i) {
+            Long masterKeyId = masterKeyIds.get(sigKeyIds[i]);
+            if (masterKeyId == null) {
+                continue;
+            }
             try {
-                long sigKeyId = sigList.get(i).getKeyID();
-                Long masterKeyId = mKeyRepository.getMasterKeyIdBySubkeyId(sigKeyId);
-                if (masterKeyId == null) {
-                    continue;
+                CanonicalizedPublicKeyRing signingRing = signingRings.get(masterKeyId);
+                if (signingRing == null) {
+                    signingRing = mKeyRepository.getCanonicalizedPublicKeyRing(masterKeyId);
+                    signingRings.put(masterKeyId, signingRing);
                 }
-                CanonicalizedPublicKeyRing signingRing = mKeyRepository.getCanonicalizedPublicKeyRing(masterKeyId);
-                CanonicalizedPublicKey keyCandidate = signingRing.getPublicKey(sigKeyId);
-                if ( ! keyCandidate.canSign()) {
+                CanonicalizedPublicKey keyCandidate = signingRing.getPublicKey(sigKeyIds[i]);
+                if (keyCandidate == null || ! keyCandidate.canSign()) {
                     continue;
                 }
-                signatureIndex = i;
-                signingKey = keyCandidate;
-                signature = sigList.get(i);
-                return;
+                signingKeys[i] = keyCandidate;
             } catch (KeyWritableRepository.NotFoundException e) {
                 Timber.d("key not found, trying next signature...");
             }
         }
+        return signingKeys;
     }
 
-    public void updateSignatureWithCleartext(byte[] clearText) throws IOException, SignatureException {
-
-        InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
-
-        ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream();
-
-        int lookAhead = readInputLine(outputBuffer, sigIn);
-
-        processLine(signature, outputBuffer.toByteArray());
-
-        while (lookAhead != -1) {
-            lookAhead = readInputLine(outputBuffer, lookAhead, sigIn);
-
-            signature.update((byte) '\r');
-            signature.update((byte) '\n');
-
-            processLine(signature, outputBuffer.toByteArray());
+    public void updateSignatureData(final byte[] buf, final int off, final int len) {
+        int count = initializedVerifications.size();
+        if (count == 0) {
+            return;
+        }
+        if (count == 1 || len < PARALLEL_UPDATE_MIN_LENGTH) {
+            for (SignatureVerification verification : initializedVerifications) {
+                verification.update(buf, off, len);
+            }
+            return;
         }
 
-    }
-
-    public void updateSignatureData(byte[] buf, int off, int len) {
-        if (signature != null) {
-            signature.update(buf, off, len);
-        } else if (onePassSignature != null) {
-            onePassSignature.update(buf, off, len);
+        // the first signature is updated on this thread, the others on the executor
+        ArrayList<Future<?>> futures = new ArrayList<>(count - 1);
+        for (int i = 1; i < count; i++) {
+            final SignatureVerification verification = initializedVerifications.get(i);
+            futures.add(updateExecutor.submit(() -> verification.update(buf, off, len)));
+        }
+        initializedVerifications.get(0).update(buf, off, len);
+
+        // the buffer is reused by the caller, so all updates must be done before returning
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Error updating signature", e.getCause());
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -236,26 +260,15 @@ class PgpSignatureChecker {
 
         log.add(LogType.MSG_DC_CLEAR_SIGNATURE_CHECK, indent);
 
-        // Verify signature
-        boolean validSignature = signature.verify();
-        if (validSignature) {
-            log.add(LogType.MSG_DC_CLEAR_SIGNATURE_OK, indent + 1);
-        } else {
-            log.add(LogType.MSG_DC_CLEAR_SIGNATURE_BAD, indent + 1);
-        }
+        for (SignatureVerification verification : initializedVerifications) {
+            PGPSignature signature = verification.signature;
 
-        // check for insecure hash algorithms
-        InsecureSigningAlgorithm signatureSecurityProblem =
-                PgpSecurityConstants.checkSignatureAlgorithmForSecurityProblems(signature.getHashAlgorithm());
-        if (signatureSecurityProblem != null) {
-            log.add(LogType.MSG_DC_INSECURE_HASH_ALGO, indent + 1);
-            securityProblemBuilder.addSignatureSecurityProblem(signatureSecurityProblem);
-            signatureResultBuilder.setInsecure(true);
+            // Verify signature
+            boolean validSignature = signature.verify();
+            checkSignatureResult(verification, validSignature, signature.getHashAlgorithm(), log, indent);
+            verification.signatureResultBuilder.setSignatureTimestamp(signature.getCreationTime());
         }
 
-        signatureResultBuilder.setSignatureTimestamp(signature.getCreationTime());
-        signatureResultBuilder.setValidSignature(validSignature);
-
     }
 
     boolean verifySignatureOnePass(Object o, OperationLog log, int indent) throws PGPException {
@@ -265,17 +278,38 @@ class PgpSignatureChecker {
             return false;
         }
         PGPSignatureList signatureList = (PGPSignatureList) o;
-        if (signatureList.size() <= signatureIndex) {
-            log.add(LogType.MSG_DC_ERROR_NO_SIGNATURE, indent);
-            return false;
+
+        for (SignatureVerification verification : verifications) {
+            if (signatureList.size() <= verification.signatureIndex) {
+                if (verification.signingKey == null) {
+                    continue;
+                }
+                log.add(LogType.MSG_DC_ERROR_NO_SIGNATURE, indent);
+                return false;
+            }
+
+            // PGPOnePassSignature and PGPSignature packets are "bracketed",
+            // so we need to take the last-minus-index'th element here
+            PGPSignature messageSignature =
+                    signatureList.get(signatureList.size() - 1 - verification.signatureIndex);
+            verification.signatureResultBuilder.setSignatureTimestamp(messageSignature.getCreationTime());
+
+            if (verification.signingKey == null) {
+                continue;
+            }
+
+            // Verify signature
+            boolean validSignature = verification.onePassSignature.verify(messageSignature);
+            checkSignatureResult(verification, validSignature,
+                    verification.onePassSignature.getHashAlgorithm(), log, indent);
         }
 
-        // PGPOnePassSignature and PGPSignature packets are "bracketed",
-        // so we need to take the last-minus-index'th element here
-        PGPSignature messageSignature = signatureList.get(signatureList.size() - 1 - signatureIndex);
+        return true;
+
+    }
 
-        // Verify signature
-        boolean validSignature = onePassSignature.verify(messageSignature);
+    private void checkSignatureResult(SignatureVerification verification, boolean validSignature,
+            int hashAlgorithm, OperationLog log, int indent) {
         if (validSignature) {
             log.add(LogType.MSG_DC_CLEAR_SIGNATURE_OK, indent + 1);
         } else {
@@ -284,103 +318,75 @@ class PgpSignatureChecker {
 
         // check for insecure hash algorithms
         InsecureSigningAlgorithm signatureSecurityProblem =
-                PgpSecurityConstants.checkSignatureAlgorithmForSecurityProblems(onePassSignature.getHashAlgorithm());
+                PgpSecurityConstants.checkSignatureAlgorithmForSecurityProblems(hashAlgorithm);
         if (signatureSecurityProblem != null) {
             log.add(LogType.MSG_DC_INSECURE_HASH_ALGO, indent + 1);
-            securityProblemBuilder.addSignatureSecurityProblem(signatureSecurityProblem);
-            signatureResultBuilder.setInsecure(true);
+            if (verification == primaryVerification) {
+                securityProblemBuilder.addSignatureSecurityProblem(signatureSecurityProblem);
+            }
+            verification.signatureResultBuilder.setInsecure(true);
         }
 
-        signatureResultBuilder.setSignatureTimestamp(messageSignature.getCreationTime());
-        signatureResultBuilder.setValidSignature(validSignature);
-
-        return true;
-
+        verification.signatureResultBuilder.setValidSignature(validSignature);
     }
 
     public byte[] getSigningFingerprint() {
-        return signingKey.getFingerprint();
-    }
-
-    public OpenPgpSignatureResult getSignatureResult() {
-        return signatureResultBuilder.build();
+        return primaryVerification.signingKey.getFingerprint();
     }
 
     /**
-     * Mostly taken from ClearSignedFileProcessor in Bouncy Castle
+     * Returns the result of the primary signature. If no signature was made by a known key,
+     * this is the result of the first signature.
      */
-
-    private static void processLine(PGPSignature sig, byte[] line)
-            throws SignatureException {
-        int length = getLengthWithoutWhiteSpace(line);
-        if (length > 0) {
-            sig.update(line, 0, length);
+    public OpenPgpSignatureResult getSignatureResult() {
+        if (primaryVerification != null) {
+            return primaryVerification.signatureResultBuilder.build();
         }
-    }
-
-    private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int lookAhead = -1;
-        int ch;
-
-        while ((ch = fIn.read()) >= 0) {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
-            }
+        if (!verifications.isEmpty()) {
+            return verifications.get(0).signatureResultBuilder.build();
         }
-
-        return lookAhead;
+        return new OpenPgpSignatureResultBuilder(mKeyRepository).build();
     }
 
-    private static int readInputLine(ByteArrayOutputStream bOut, int lookAhead, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int ch = lookAhead;
-
-        do {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
-            }
-        } while ((ch = fIn.read()) >= 0);
-
-        if (ch < 0) {
-            lookAhead = -1;
+    /** Returns a result for each signature, in the order they appear in the message. */
+    public ArrayList<OpenPgpSignatureResult> getSignatureResults() {
+        ArrayList<OpenPgpSignatureResult> results = new ArrayList<>(verifications.size());
+        for (SignatureVerification verification : verifications) {
+            results.add(verification.signatureResultBuilder.build());
         }
-
-        return lookAhead;
+        return results;
     }
 
-    private static int readPastEOL(ByteArrayOutputStream bOut, int lastCh, InputStream fIn)
-            throws IOException {
-        int lookAhead = fIn.read();
-
-        if (lastCh == '\r' && lookAhead == '\n') {
-            bOut.write(lookAhead);
-            lookAhead = fIn.read();
+    private class SignatureVerification {
+        final int signatureIndex;
+        final CanonicalizedPublicKey signingKey;
+        final OpenPgpSignatureResultBuilder signatureResultBuilder;
+
+        PGPSignature signature;
+        PGPOnePassSignature onePassSignature;
+
+        SignatureVerification(int signatureIndex, long sigKeyId, CanonicalizedPublicKey signingKey) {
+            this.signatureIndex = signatureIndex;
+            this.signingKey = signingKey;
+
+            signatureResultBuilder = new OpenPgpSignatureResultBuilder(mKeyRepository);
+            signatureResultBuilder.setSenderAddress(senderAddress);
+            if (signingKey != null) {
+                signatureResultBuilder.initValid(signingKey);
+            } else {
+                signatureResultBuilder.setSignatureAvailable(true);
+                signatureResultBuilder.setKnownKey(false);
+                signatureResultBuilder.setKeyId(sigKeyId);
+            }
         }
 
-        return lookAhead;
-    }
-
-    private static int getLengthWithoutWhiteSpace(byte[] line) {
-        int end = line.length - 1;
-
-        while (end >= 0 && isWhiteSpace(line[end])) {
-            end--;
+        void update(byte[] buf, int off, int len) {
+            if (signature != null) {
+                signature.update(buf, off, len);
+            } else {
+                onePassSignature.update(buf, off, len);
+            }
         }
-
-        return end + 1;
-    }
-
-    private static boolean isWhiteSpace(byte b) {
-        return b == '\r' || b == '\n' || b == '\t' || b == ' ';
     }
 
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
+
+import org.bouncycastle.openpgp.PGPPublicKeyEncryptedData;
+import org.sufficientlysecure.keychain.Constants;
+
+
+/**
+ * Process-wide cache of decrypted session keys, so opening the same message again doesn't
+ * repeat the private key operation, or the round trip to a security token.
+ * <p/>
+ * Entries are keyed by a hash of the public key encrypted session key packet, and bound to the
+ * master key that decrypted them. Only session keys that were decrypted with a passphrase from
+ * PassphraseCache are stored, and they live exactly as long as that passphrase: callers only
+ * look them up after the passphrase was served from the cache again, and PassphraseCache
+ * broadcasts BROADCAST_ACTION_CLEAR whenever a passphrase times out or is cleared, which drops
+ * the session keys of that key in all processes. Session keys are zeroed when they are removed
+ * from the cache.
+ */
+public class SessionKeyCache {
+    public static final String BROADCAST_ACTION_CLEAR = Constants.INTENT_PREFIX + "SESSION_KEY_CACHE_CLEAR";
+    public static final String EXTRA_MASTER_KEY_ID = "master_key_id";
+
+    private static final int MAX_ENTRIES = 64;
+
+    private static SessionKeyCache sInstance;
+
+    private final LruCache<ByteBuffer, CachedSessionKey> cachedSessionKeys =
+            new LruCache<ByteBuffer, CachedSessionKey>(MAX_ENTRIES) {
+                @Override
+                protected void entryRemoved(boolean evicted, ByteBuffer key,
+                        CachedSessionKey oldValue, CachedSessionKey newValue) {
+                    Arrays.fill(oldValue.sessionData, (byte) 0);
+                }
+            };
+
+    private long hitCount;
+    private long missCount;
+
+    public static synchronized SessionKeyCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SessionKeyCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SessionKeyCache(Context context) {
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.hasExtra(EXTRA_MASTER_KEY_ID)) {
+                    clear(intent.getLongExtra(EXTRA_MASTER_KEY_ID, 0L));
+                } else {
+                    clear();
+                }
+            }
+        };
+        context.registerReceiver(receiver, new IntentFilter(BROADCAST_ACTION_CLEAR));
+    }
+
+    /**
+     * Returns a copy of the cached session data for this packet, if it was decrypted with the
+     * given master key before. The passphrase of that key must have been served from
+     * PassphraseCache right before, since entries aren't checked against it here.
+     */
+    @Nullable
+    public synchronized byte[] get(long masterKeyId, PGPPublicKeyEncryptedData encData) {
+        ByteBuffer cacheKey = getCacheKey(encData);
+        CachedSessionKey cachedSessionKey = cachedSessionKeys.get(cacheKey);
+        if (cachedSessionKey == null || cachedSessionKey.masterKeyId != masterKeyId) {
+            missCount += 1;
+            return null;
+        }
+        hitCount += 1;
+        // the decryptor may hold on to the array, which must not be zeroed under its feet
+        return cachedSessionKey.sessionData.clone();
+    }
+
+    /**
+     * Stores the session data of a packet. This must only be called if it was decrypted with a
+     * passphrase from PassphraseCache, since the entry is only dropped when that passphrase goes
+     * away. Never call this for keys on a security token, or with an empty passphrase.
+     */
+    public synchronized void put(long masterKeyId, PGPPublicKeyEncryptedData encData, byte[] sessionData) {
+        cachedSessionKeys.put(getCacheKey(encData), new CachedSessionKey(masterKeyId, sessionData.clone()));
+    }
+
+    public synchronized void clear() {
+        cachedSessionKeys.evictAll();
+    }
+
+    public synchronized void clear(long masterKeyId) {
+        for (Map.Entry<ByteBuffer, CachedSessionKey> entry : cachedSessionKeys.snapshot().entrySet()) {
+            if (entry.getValue().masterKeyId == masterKeyId) {
+                cachedSessionKeys.remove(entry.getKey());
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return cachedSessionKeys.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized float getHitRate() {
+        long requestCount = hitCount + missCount;
+        return requestCount == 0 ? 0 : (float) hitCount / requestCount;
+    }
+
+    /** Hashes the recipient key id, algorithm and encrypted session key of the packet. */
+    private static ByteBuffer getCacheKey(PGPPublicKeyEncryptedData encData) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ByteBuffer.allocate(12).putLong(encData.getKeyID()).putInt(encData.getAlgorithm()).array());
+            for (byte[] sessionKeyPart : encData.getSessionKey()) {
+                digest.update(sessionKeyPart);
+            }
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always available");
+        }
+    }
+
+    private static class CachedSessionKey {
+        private final long masterKeyId;
+        private final byte[] sessionData;
+
+        CachedSessionKey(long masterKeyId, byte[] sessionData) {
+            this.masterKeyId = masterKeyId;
+            this.sessionData = sessionData;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import androidx.collection.LruCache;
+
+import timber.log.Timber;
+
+
+/**
+ * Process-wide cache of successful certificate verifications, so canonicalizing an unchanged
+ * keyring again doesn't repeat the public key operation for every signature on it.
+ * <p/>
+ * Entries are keyed by a hash of the signature packet, the key that issued it, and the signed
+ * material, see WrappedSignature. A hit only means that this exact signature over this exact
+ * material was valid for this exact key before, which doesn't change over time, so entries are
+ * never invalidated. Failed verifications are not cached.
+ * <p/>
+ * In the main process, entries are appended to a file in batches, and read back on first use.
+ * The file is rewritten with only the entries in memory once it has grown to twice MAX_ENTRIES,
+ * or if its last entry is incomplete.
+ */
+public class SignatureVerificationCache {
+    private static final int FORMAT_VERSION = 1;
+    private static final String FILE_NAME = "signature_verification_cache";
+    private static final int MAX_ENTRIES = 32 * 1024;
+    static final int HASH_LENGTH = 32;
+
+    private static SignatureVerificationCache sInstance;
+
+    private final LruCache<ByteBuffer, Boolean> verifiedHashes = new LruCache<>(MAX_ENTRIES);
+    private final List<byte[]> pendingHashes = new ArrayList<>();
+
+    private File persistentFile;
+    private boolean loaded;
+
+    private long hitCount;
+    private long missCount;
+
+    public static synchronized SignatureVerificationCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new SignatureVerificationCache();
+        }
+        return sInstance;
+    }
+
+    private SignatureVerificationCache() {
+    }
+
+    /** Keeps the cache in a file of this context, so it outlives the process. */
+    public synchronized void enablePersistence(Context context) {
+        persistentFile = new File(context.getFilesDir(), FILE_NAME);
+        loaded = false;
+    }
+
+    synchronized boolean isVerified(byte[] verificationHash) {
+        loadIfNecessary();
+        if (verifiedHashes.get(ByteBuffer.wrap(verificationHash)) == null) {
+            missCount += 1;
+            return false;
+        }
+        hitCount += 1;
+        return true;
+    }
+
+    synchronized void putVerified(byte[] verificationHash) {
+        loadIfNecessary();
+        if (verifiedHashes.put(ByteBuffer.wrap(verificationHash), Boolean.TRUE) == null
+                && persistentFile != null) {
+            pendingHashes.add(verificationHash);
+        }
+    }
+
+    /** Appends the entries added since the last call to the file, if persistence is enabled. */
+    public synchronized void persist() {
+        if (persistentFile == null || pendingHashes.isEmpty()) {
+            return;
+        }
+
+        try {
+            boolean writeHeader = persistentFile.length() == 0;
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(persistentFile, true)));
+            try {
+                if (writeHeader) {
+                    outputStream.writeInt(FORMAT_VERSION);
+                }
+                for (byte[] verificationHash : pendingHashes) {
+                    outputStream.write(verificationHash);
+                }
+            } finally {
+                outputStream.close();
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Error writing signature verification cache");
+        }
+        pendingHashes.clear();
+    }
+
+    private void loadIfNecessary() {
+        if (loaded || persistentFile == null) {
+            return;
+        }
+        loaded = true;
+
+        int entryCount = 0;
+        DataInputStream inputStream;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(persistentFile)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            if (inputStream.readInt() != FORMAT_VERSION) {
+                throw new IOException("unknown format version");
+            }
+            while (true) {
+                byte[] verificationHash = new byte[HASH_LENGTH];
+                inputStream.readFully(verificationHash);
+                verifiedHashes.put(ByteBuffer.wrap(verificationHash), Boolean.TRUE);
+                entryCount += 1;
+            }
+        } catch (EOFException e) {
+            // end of file, or an incomplete last entry
+        } catch (IOException e) {
+            Timber.e(e, "Error reading signature verification cache, starting over");
+            verifiedHashes.evictAll();
+            //noinspection ResultOfMethodCallIgnored
+            persistentFile.delete();
+            return;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                // nvm
+            }
+        }
+
+        // an incomplete last entry would misalign everything appended after it
+        boolean isIncomplete = (persistentFile.length() - 4) % HASH_LENGTH != 0;
+        if (isIncomplete || entryCount >= 2 * MAX_ENTRIES) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        File tempFile = new File(persistentFile.getPath() + ".tmp");
+        try {
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tempFile)));
+            try {
+                outputStream.writeInt(FORMAT_VERSION);
+                // least recently used first, so the order survives the next load
+                for (ByteBuffer verificationHash : verifiedHashes.snapshot().keySet()) {
+                    outputStream.write(verificationHash.array());
+                }
+            } finally {
+                outputStream.close();
+            }
+            if (!tempFile.renameTo(persistentFile)) {
+                throw new IOException("could not rename signature verification cache!");
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Error compacting signature verification cache");
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Hashes the parts of a verification. Each part is length prefixed, so no two different
+     * lists of parts can be hashed to the same input.
+     */
+    static byte[] hashVerification(byte[]... parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always available");
+        }
+        for (byte[] part : parts) {
+            digest.update(ByteBuffer.allocate(4).putInt(part.length).array());
+            digest.update(part);
+        }
+        return digest.digest();
+    }
+}
@@ -156,8 +156,13 @@ public class UncachedKeyRing {
 
     public static UncachedKeyRing decodeFromData(byte[] data)
             throws PgpGeneralException, IOException {
+        return decodeFromStream(new ByteArrayInputStream(data));
+    }
+
+    public static UncachedKeyRing decodeFromStream(InputStream stream)
+            throws PgpGeneralException, IOException {
 
-        IteratorWithIOThrow<UncachedKeyRing> parsed = fromStream(new ByteArrayInputStream(data));
+        IteratorWithIOThrow<UncachedKeyRing> parsed = fromStream(stream);
 
         if ( ! parsed.hasNext()) {
             throw new PgpGeneralException("Object not recognized as PGPKeyRing!");
@@ -1109,6 +1114,8 @@ public class UncachedKeyRing {
             log.add(LogType.MSG_KC_SUCCESS, indent);
         }
 
+        SignatureVerificationCache.getInstance().persist();
+
         return isSecret() ? new CanonicalizedSecretKeyRing((PGPSecretKeyRing) ring, VerificationStatus.VERIFIED_SECRET)
                           : new CanonicalizedPublicKeyRing((PGPPublicKeyRing) ring, VerificationStatus.UNVERIFIED);
     }
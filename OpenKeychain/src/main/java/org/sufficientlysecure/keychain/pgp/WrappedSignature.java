@@ -18,6 +18,7 @@
 package org.sufficientlysecure.keychain.pgp;
 
 import org.bouncycastle.bcpg.SignatureSubpacket;
+import org.bouncycastle.bcpg.UserAttributeSubpacket;
 import org.bouncycastle.bcpg.SignatureSubpacketTags;
 import org.bouncycastle.bcpg.sig.Exportable;
 import org.bouncycastle.bcpg.sig.NotationData;
@@ -31,10 +32,12 @@ import org.bouncycastle.openpgp.PGPSignatureList;
 import org.bouncycastle.openpgp.PGPUserAttributeSubpacketVector;
 import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.bouncycastle.util.Strings;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import timber.log.Timber;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
@@ -47,6 +50,10 @@ import java.util.HashMap;
  * for verification of various signatures (uid binding, subkey binding, generic
  * bytes), and a static method for construction from bytes.
  *
+ * Successful certificate verifications are remembered in the
+ * SignatureVerificationCache, so they are not repeated for the same
+ * signature, key and signed material.
+ *
  */
 public class WrappedSignature {
 
@@ -56,7 +63,13 @@ public class WrappedSignature {
     public static final int POSITIVE_CERTIFICATION = PGPSignature.POSITIVE_CERTIFICATION;
     public static final int CERTIFICATION_REVOCATION = PGPSignature.CERTIFICATION_REVOCATION;
 
+    // distinguishes the kinds of signed material in verification hashes
+    private static final byte[] MATERIAL_KEY = { 1 };
+    private static final byte[] MATERIAL_USER_ID = { 2 };
+    private static final byte[] MATERIAL_USER_ATTRIBUTE = { 3 };
+
     final PGPSignature mSig;
+    private PGPPublicKey mVerificationKey;
 
     WrappedSignature(PGPSignature sig) {
         mSig = sig;
@@ -153,6 +166,7 @@ public class WrappedSignature {
                     new JcaPGPContentVerifierBuilderProvider()
                             .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
             mSig.init(contentVerifierBuilderProvider, key);
+            mVerificationKey = key;
         } catch(PGPException e) {
             throw new PgpGeneralException(e);
         }
@@ -175,45 +189,130 @@ public class WrappedSignature {
     }
 
     boolean verifySignature(PGPPublicKey key) throws PgpGeneralException {
+        byte[] verificationHash = hashVerification(MATERIAL_KEY, encodeKey(key));
+        if (isVerifiedBefore(verificationHash)) {
+            return true;
+        }
         try {
-            return mSig.verifyCertification(key);
+            return rememberIfValid(verificationHash, mSig.verifyCertification(key));
         } catch (PGPException e) {
             throw new PgpGeneralException("Error!", e);
         }
     }
 
     boolean verifySignature(PGPPublicKey masterKey, PGPPublicKey subKey) throws PgpGeneralException {
+        byte[] verificationHash = hashVerification(
+                MATERIAL_KEY, encodeKey(masterKey), MATERIAL_KEY, encodeKey(subKey));
+        if (isVerifiedBefore(verificationHash)) {
+            return true;
+        }
         try {
-            return mSig.verifyCertification(masterKey, subKey);
+            return rememberIfValid(verificationHash, mSig.verifyCertification(masterKey, subKey));
         } catch (PGPException e) {
             throw new PgpGeneralException("Error!", e);
         }
     }
 
     boolean verifySignature(PGPPublicKey key, String uid) throws PgpGeneralException {
+        // this is the encoding bouncycastle certifies
+        byte[] verificationHash = hashVerification(
+                MATERIAL_KEY, encodeKey(key), MATERIAL_USER_ID, Strings.toUTF8ByteArray(uid));
+        if (isVerifiedBefore(verificationHash)) {
+            return true;
+        }
         try {
-            return mSig.verifyCertification(uid, key);
+            return rememberIfValid(verificationHash, mSig.verifyCertification(uid, key));
         } catch (PGPException e) {
             throw new PgpGeneralException("Error!", e);
         }
     }
 
     boolean verifySignature(PGPPublicKey key, byte[] rawUserId) throws PgpGeneralException {
+        byte[] verificationHash = hashVerification(
+                MATERIAL_KEY, encodeKey(key), MATERIAL_USER_ID, rawUserId);
+        if (isVerifiedBefore(verificationHash)) {
+            return true;
+        }
         try {
-            return mSig.verifyCertification(rawUserId, key);
+            return rememberIfValid(verificationHash, mSig.verifyCertification(rawUserId, key));
         } catch (PGPException e) {
             throw new PgpGeneralException("Error!", e);
         }
     }
 
     boolean verifySignature(PGPPublicKey key, PGPUserAttributeSubpacketVector attribute) throws PgpGeneralException {
+        byte[] verificationHash = hashVerification(
+                MATERIAL_KEY, encodeKey(key), MATERIAL_USER_ATTRIBUTE, encodeUserAttribute(attribute));
+        if (isVerifiedBefore(verificationHash)) {
+            return true;
+        }
         try {
-            return mSig.verifyCertification(attribute, key);
+            return rememberIfValid(verificationHash, mSig.verifyCertification(attribute, key));
         } catch (PGPException e) {
             throw new PgpGeneralException("Error!", e);
         }
     }
 
+    /**
+     * Hashes this signature, the key it was initialized with, and the given signed material.
+     * Returns null if that isn't possible, in which case the verification isn't cached.
+     */
+    private byte[] hashVerification(byte[]... signedMaterial) {
+        if (mVerificationKey == null) {
+            return null;
+        }
+        byte[] signature, verificationKey;
+        try {
+            signature = mSig.getEncoded();
+            verificationKey = encodeKey(mVerificationKey);
+        } catch (IOException e) {
+            return null;
+        }
+        for (byte[] part : signedMaterial) {
+            if (part == null) {
+                return null;
+            }
+        }
+
+        byte[][] parts = new byte[signedMaterial.length + 2][];
+        parts[0] = signature;
+        parts[1] = verificationKey;
+        System.arraycopy(signedMaterial, 0, parts, 2, signedMaterial.length);
+        return SignatureVerificationCache.hashVerification(parts);
+    }
+
+    private static boolean isVerifiedBefore(byte[] verificationHash) {
+        return verificationHash != null
+                && SignatureVerificationCache.getInstance().isVerified(verificationHash);
+    }
+
+    private static boolean rememberIfValid(byte[] verificationHash, boolean isValid) {
+        if (isValid && verificationHash != null) {
+            SignatureVerificationCache.getInstance().putVerified(verificationHash);
+        }
+        return isValid;
+    }
+
+    private static byte[] encodeKey(PGPPublicKey key) {
+        try {
+            return key.getPublicKeyPacket().getEncodedContents();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] encodeUserAttribute(PGPUserAttributeSubpacketVector attribute) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            for (UserAttributeSubpacket subpacket : attribute.toSubpacketArray()) {
+                subpacket.encode(out);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
     public boolean verifySignature(UncachedPublicKey key, byte[] rawUserId) throws PgpGeneralException {
         return verifySignature(key.getPublicKey(), rawUserId);
     }
@@ -5,15 +5,31 @@ import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import org.sufficientlysecure.keychain.service.PassphraseCache;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 
+
+/**
+ * Internal provider of the main process. It owns the passphrase cache, which other processes
+ * access through {@link #call}.
+ */
 public class KeychainProvider extends ContentProvider {
 
     @Override
     public boolean onCreate() {
-        return false;
+        PassphraseCache.createInstance(getContext());
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        return PassphraseCacheService.handlePassphraseCacheCall(getContext(), method,
+                extras != null ? extras : new Bundle());
     }
 
     @Nullable
@@ -242,7 +242,7 @@ public class KeychainExternalProvider extends ContentProvider {
         return autocryptInteractor.determineAutocryptRecommendations(selectionArgs);
     }
 
-    private int getPeerStateValue(AutocryptState autocryptState) {
+    static int getPeerStateValue(AutocryptState autocryptState) {
         switch (autocryptState) {
             case DISABLE: return AutocryptStatus.AUTOCRYPT_PEER_DISABLED;
             case DISCOURAGED_OLD: return AutocryptStatus.AUTOCRYPT_PEER_DISCOURAGED_OLD;
@@ -107,7 +107,8 @@ public class OpenPgpService extends Service {
         mApiAppDao = ApiAppDao.getInstance(this);
         mApiPermissionHelper = new ApiPermissionHelper(this, mApiAppDao);
         mApiPendingIntentFactory = new ApiPendingIntentFactory(getBaseContext());
-        mKeyIdExtractor = OpenPgpServiceKeyIdExtractor.getInstance(getContentResolver(), mApiPendingIntentFactory);
+        mKeyIdExtractor = OpenPgpServiceKeyIdExtractor.getInstance(
+                RecipientResolver.getInstance(this), mApiPendingIntentFactory);
     }
 
     private Intent signImpl(Intent data, InputStream inputStream,
@@ -627,7 +628,7 @@ public class OpenPgpService extends Service {
 
             try {
                 CanonicalizedPublicKeyRing keyRing =
-                        mKeyRepository.getCanonicalizedPublicKeyRing(masterKeyId);
+                        mKeyRepository.getCanonicalizedPublicKeyRing(masterKeyId).forExport();
 
                 Intent result = new Intent();
                 result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
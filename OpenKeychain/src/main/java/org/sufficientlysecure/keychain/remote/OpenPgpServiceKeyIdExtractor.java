@@ -59,15 +59,23 @@ class OpenPgpServiceKeyIdExtractor {
 
     private final ApiPendingIntentFactory apiPendingIntentFactory;
     private final ContentResolver contentResolver;
+    private final RecipientResolver recipientResolver;
 
 
     static OpenPgpServiceKeyIdExtractor getInstance(ContentResolver contentResolver, ApiPendingIntentFactory apiPendingIntentFactory) {
-        return new OpenPgpServiceKeyIdExtractor(contentResolver, apiPendingIntentFactory);
+        return new OpenPgpServiceKeyIdExtractor(contentResolver, null, apiPendingIntentFactory);
     }
 
-    private OpenPgpServiceKeyIdExtractor(ContentResolver contentResolver,
+    /** Resolves addresses in-process through the given RecipientResolver, instead of querying the provider. */
+    static OpenPgpServiceKeyIdExtractor getInstance(RecipientResolver recipientResolver,
+            ApiPendingIntentFactory apiPendingIntentFactory) {
+        return new OpenPgpServiceKeyIdExtractor(null, recipientResolver, apiPendingIntentFactory);
+    }
+
+    private OpenPgpServiceKeyIdExtractor(ContentResolver contentResolver, RecipientResolver recipientResolver,
             ApiPendingIntentFactory apiPendingIntentFactory) {
         this.contentResolver = contentResolver;
+        this.recipientResolver = recipientResolver;
         this.apiPendingIntentFactory = apiPendingIntentFactory;
     }
 
@@ -182,13 +190,18 @@ class OpenPgpServiceKeyIdExtractor {
         return first < second ? first : second;
     }
 
-    /** This method queries the KeychainExternalProvider for all addresses given in encryptionUserIds.
+    /** This method queries the KeychainExternalProvider (or the RecipientResolver, if one was given) for all
+     * addresses given in encryptionUserIds.
      * It returns a map with one UserIdStatus per queried address. If multiple key candidates exist,
      * the one with the highest verification status is selected. If two candidates with the same
      * verification status exist, the first one is returned and marked as having a duplicate.
      */
     @NonNull
     private HashMap<String, AddressQueryResult> getStatusMapForQueriedAddresses(String[] encryptionUserIds, String callingPackageName) {
+        if (recipientResolver != null) {
+            return recipientResolver.resolveAddresses(callingPackageName, encryptionUserIds);
+        }
+
         HashMap<String,AddressQueryResult> keyRows = new HashMap<>();
         Uri queryUri = AutocryptStatus.CONTENT_URI.buildUpon().appendPath(callingPackageName).build();
         Cursor cursor = contentResolver.query(queryUri, PROJECTION_MAIL_STATUS, null, encryptionUserIds, null);
@@ -221,7 +234,7 @@ class OpenPgpServiceKeyIdExtractor {
         return keyRows;
     }
 
-    private static class AddressQueryResult {
+    static class AddressQueryResult {
         private final Long uidMasterKeyId;
         private final int uidKeyStatus;
         private boolean uidHasMultipleCandidates;
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.daos.DatabaseNotifyManager;
+import org.sufficientlysecure.keychain.daos.UserIdDao;
+import org.sufficientlysecure.keychain.model.UserPacket.UidStatus;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing.VerificationStatus;
+import org.sufficientlysecure.keychain.provider.KeychainExternalContract;
+import org.sufficientlysecure.keychain.remote.AutocryptInteractor.AutocryptRecommendationResult;
+import org.sufficientlysecure.keychain.remote.OpenPgpServiceKeyIdExtractor.AddressQueryResult;
+
+
+/**
+ * In-process counterpart to the AUTOCRYPT_STATUS_INTERNAL uri of KeychainExternalProvider.
+ * <p/>
+ * All queried addresses are resolved with one batched query for user ids and one for
+ * autocrypt peers, without building a cursor. Results are cached per calling package
+ * for a short time, and the whole cache is dropped on any change notified through
+ * DatabaseNotifyManager for keys or api apps.
+ */
+class RecipientResolver {
+    private static final long CACHE_TTL_MILLIS = 30 * 1000;
+
+    private static RecipientResolver sInstance;
+
+    private final Context context;
+    private final UserIdDao userIdDao;
+
+    private final HashMap<String, HashMap<String, CachedResult>> cachedResultsByPackage = new HashMap<>();
+    private long cacheVersion;
+    private long hitCount;
+    private long missCount;
+
+    static synchronized RecipientResolver getInstance(Context context) {
+        if (sInstance == null || Constants.IS_RUNNING_UNITTEST) {
+            Context applicationContext = context.getApplicationContext();
+            sInstance = new RecipientResolver(applicationContext, UserIdDao.getInstance(applicationContext));
+            sInstance.registerInvalidationObserver();
+        }
+        return sInstance;
+    }
+
+    private RecipientResolver(Context context, UserIdDao userIdDao) {
+        this.context = context;
+        this.userIdDao = userIdDao;
+    }
+
+    private void registerInvalidationObserver() {
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                invalidate();
+            }
+        };
+        context.getContentResolver().registerContentObserver(
+                DatabaseNotifyManager.getNotifyUriAllKeys(), true, observer);
+        context.getContentResolver().registerContentObserver(
+                DatabaseNotifyManager.getNotifyUriAllApps(), true, observer);
+    }
+
+    /** Returns one AddressQueryResult per queried address, for the given calling package. */
+    @NonNull
+    HashMap<String, AddressQueryResult> resolveAddresses(String callingPackageName, String[] addresses) {
+        HashMap<String, AddressQueryResult> result = new HashMap<>(addresses.length);
+        ArrayList<String> uncachedAddresses = new ArrayList<>();
+
+        long loadedVersion;
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            loadedVersion = cacheVersion;
+            HashMap<String, CachedResult> cachedResults = cachedResultsByPackage.get(callingPackageName);
+            for (String address : addresses) {
+                CachedResult cachedResult = cachedResults != null ? cachedResults.get(address) : null;
+                if (cachedResult != null && !cachedResult.isExpired(now)) {
+                    result.put(address, cachedResult.result);
+                    hitCount += 1;
+                } else {
+                    uncachedAddresses.add(address);
+                    missCount += 1;
+                }
+            }
+        }
+
+        if (uncachedAddresses.isEmpty()) {
+            return result;
+        }
+
+        HashMap<String, AddressQueryResult> loadedResults = loadAddresses(
+                callingPackageName, uncachedAddresses.toArray(new String[uncachedAddresses.size()]));
+        result.putAll(loadedResults);
+
+        synchronized (this) {
+            // a change was notified while we were loading, so the results may already be stale
+            if (loadedVersion == cacheVersion) {
+                HashMap<String, CachedResult> cachedResults = cachedResultsByPackage.get(callingPackageName);
+                if (cachedResults == null) {
+                    cachedResults = new HashMap<>();
+                    cachedResultsByPackage.put(callingPackageName, cachedResults);
+                }
+                removeExpired(cachedResults, now);
+                for (Map.Entry<String, AddressQueryResult> entry : loadedResults.entrySet()) {
+                    cachedResults.put(entry.getKey(), new CachedResult(entry.getValue(), now));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    synchronized void invalidate() {
+        cacheVersion += 1;
+        cachedResultsByPackage.clear();
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+
+    private HashMap<String, AddressQueryResult> loadAddresses(String callingPackageName, String[] addresses) {
+        Map<String, UidStatus> uidStatuses = userIdDao.getUidStatusByEmail(addresses);
+        Map<String, AutocryptRecommendationResult> autocryptStates =
+                AutocryptInteractor.getInstance(context, callingPackageName).determineAutocryptRecommendations(addresses);
+
+        HashMap<String, AddressQueryResult> result = new HashMap<>(addresses.length);
+        for (String address : addresses) {
+            UidStatus uidStatus = uidStatuses.get(address);
+            AutocryptRecommendationResult autocryptResult = autocryptStates.get(address);
+
+            Long uidMasterKeyId = null;
+            int uidKeyStatus = 0;
+            boolean uidHasMultipleCandidates = false;
+            if (uidStatus != null) {
+                uidMasterKeyId = uidStatus.master_key_id();
+                uidKeyStatus = uidStatus.keyStatus() == VerificationStatus.VERIFIED_SECRET ?
+                        KeychainExternalContract.KEY_STATUS_VERIFIED : KeychainExternalContract.KEY_STATUS_UNVERIFIED;
+                uidHasMultipleCandidates = uidStatus.candidates() > 1;
+            }
+
+            Long autocryptMasterKeyId = null;
+            int autocryptKeyStatus = 0;
+            int autocryptPeerState = 0;
+            if (autocryptResult != null) {
+                autocryptMasterKeyId = autocryptResult.masterKeyId;
+                autocryptKeyStatus = autocryptResult.isVerified ?
+                        KeychainExternalContract.KEY_STATUS_VERIFIED : KeychainExternalContract.KEY_STATUS_UNVERIFIED;
+                autocryptPeerState = KeychainExternalProvider.getPeerStateValue(autocryptResult.autocryptState);
+            }
+
+            result.put(address, new AddressQueryResult(uidMasterKeyId, uidKeyStatus, uidHasMultipleCandidates,
+                    autocryptMasterKeyId, autocryptKeyStatus, autocryptPeerState));
+        }
+        return result;
+    }
+
+    private static void removeExpired(HashMap<String, CachedResult> cachedResults, long now) {
+        Iterator<CachedResult> it = cachedResults.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isExpired(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static class CachedResult {
+        private final AddressQueryResult result;
+        private final long loadTime;
+
+        CachedResult(AddressQueryResult result, long loadTime) {
+            this.result = result;
+            this.loadTime = loadTime;
+        }
+
+        boolean isExpired(long now) {
+            return now - loadTime >= CACHE_TTL_MILLIS;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.Set;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.SparseArray;
+import androidx.annotation.Nullable;
+import androidx.collection.LongSparseArray;
+
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.daos.DatabaseNotifyManager;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
+import org.sufficientlysecure.keychain.pgp.SshPublicKey;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+
+
+/**
+ * Short-lived cache for SshAuthenticationService, so that a burst of agent requests doesn't
+ * repeat the same lookups for every connection.
+ * <p/>
+ * It holds the permission decision and allowed keys per calling uid, and the authentication
+ * subkey of each master key together with its public key encodings. Only positive permission
+ * decisions are cached, anything else goes through ApiPermissionHelper every time. Entries
+ * expire after a short time, and the whole cache is dropped on any change notified through
+ * DatabaseNotifyManager for keys or api apps.
+ */
+class SshAuthenticationCache {
+    private static final long CACHE_TTL_MILLIS = 30 * 1000;
+
+    private static SshAuthenticationCache sInstance;
+
+    private final Context context;
+
+    private final SparseArray<AllowedCaller> allowedCallers = new SparseArray<>();
+    private final LongSparseArray<AuthenticationKeyInfo> authenticationKeyInfos = new LongSparseArray<>();
+    private long cacheVersion;
+    private long hitCount;
+    private long missCount;
+
+    static synchronized SshAuthenticationCache getInstance(Context context) {
+        if (sInstance == null || Constants.IS_RUNNING_UNITTEST) {
+            sInstance = new SshAuthenticationCache(context.getApplicationContext());
+            sInstance.registerInvalidationObserver();
+        }
+        return sInstance;
+    }
+
+    private SshAuthenticationCache(Context context) {
+        this.context = context;
+    }
+
+    private void registerInvalidationObserver() {
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                invalidate();
+            }
+        };
+        context.getContentResolver().registerContentObserver(
+                DatabaseNotifyManager.getNotifyUriAllKeys(), true, observer);
+        context.getContentResolver().registerContentObserver(
+                DatabaseNotifyManager.getNotifyUriAllApps(), true, observer);
+    }
+
+    /** Returns the current version, to be passed to the put methods after loading. */
+    synchronized long getVersion() {
+        return cacheVersion;
+    }
+
+    /** Returns the caller with this uid, if it was allowed to use the api a short time ago. */
+    @Nullable
+    synchronized AllowedCaller getAllowedCaller(int uid) {
+        AllowedCaller allowedCaller = allowedCallers.get(uid);
+        if (allowedCaller == null || allowedCaller.isExpired(SystemClock.elapsedRealtime())) {
+            missCount += 1;
+            return null;
+        }
+        hitCount += 1;
+        return allowedCaller;
+    }
+
+    synchronized void putAllowedCaller(long loadedVersion, int uid, AllowedCaller allowedCaller) {
+        // a change was notified while we were loading, so the result may already be stale
+        if (loadedVersion == cacheVersion) {
+            allowedCallers.put(uid, allowedCaller);
+        }
+    }
+
+    @Nullable
+    synchronized AuthenticationKeyInfo getAuthenticationKeyInfo(long masterKeyId) {
+        AuthenticationKeyInfo keyInfo = authenticationKeyInfos.get(masterKeyId);
+        if (keyInfo == null || keyInfo.isExpired(SystemClock.elapsedRealtime())) {
+            missCount += 1;
+            return null;
+        }
+        hitCount += 1;
+        return keyInfo;
+    }
+
+    synchronized void putAuthenticationKeyInfo(long loadedVersion, AuthenticationKeyInfo keyInfo) {
+        if (loadedVersion == cacheVersion) {
+            authenticationKeyInfos.put(keyInfo.masterKeyId, keyInfo);
+        }
+    }
+
+    synchronized void invalidate() {
+        cacheVersion += 1;
+        allowedCallers.clear();
+        authenticationKeyInfos.clear();
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+
+    static class AllowedCaller {
+        final String packageName;
+        final Set<Long> allowedKeyIds;
+        private final long loadTime;
+
+        AllowedCaller(String packageName, Set<Long> allowedKeyIds, long loadTime) {
+            this.packageName = packageName;
+            this.allowedKeyIds = Collections.unmodifiableSet(allowedKeyIds);
+            this.loadTime = loadTime;
+        }
+
+        boolean isExpired(long now) {
+            return now - loadTime >= CACHE_TTL_MILLIS;
+        }
+    }
+
+    /**
+     * The effective authentication subkey of a master key. The SSH and X.509 encodings of its
+     * public key are computed on first use, and kept for later requests.
+     */
+    static class AuthenticationKeyInfo {
+        final long masterKeyId;
+        final long authSubKeyId;
+        final int algorithm;
+        @Nullable
+        final String curveOid;
+        private final CanonicalizedPublicKey publicKey;
+        private final long loadTime;
+
+        private String sshPublicKey;
+        private PublicKey jcaPublicKey;
+
+        AuthenticationKeyInfo(long masterKeyId, CanonicalizedPublicKey publicKey, long loadTime) {
+            this.masterKeyId = masterKeyId;
+            this.authSubKeyId = publicKey.getKeyId();
+            this.algorithm = publicKey.getAlgorithm();
+            this.curveOid = algorithm == PublicKeyAlgorithmTags.ECDSA ? publicKey.getCurveOid() : null;
+            this.publicKey = publicKey;
+            this.loadTime = loadTime;
+        }
+
+        synchronized String getSshPublicKey() throws PgpGeneralException, NoSuchAlgorithmException {
+            if (sshPublicKey == null) {
+                sshPublicKey = new SshPublicKey(publicKey).getEncodedKey();
+            }
+            return sshPublicKey;
+        }
+
+        synchronized PublicKey getJcaPublicKey() throws PgpGeneralException {
+            if (jcaPublicKey == null) {
+                jcaPublicKey = publicKey.getJcaPublicKey();
+            }
+            return jcaPublicKey;
+        }
+
+        boolean isExpired(long now) {
+            return now - loadTime >= CACHE_TTL_MILLIS;
+        }
+    }
+}
@@ -22,13 +22,15 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
+import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 
 import org.bouncycastle.bcpg.HashAlgorithmTags;
 import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
@@ -46,15 +48,17 @@ import org.sufficientlysecure.keychain.daos.KeyRepository.NotFoundException;
 import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
-import org.sufficientlysecure.keychain.pgp.SshPublicKey;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
+import org.sufficientlysecure.keychain.remote.SshAuthenticationCache.AllowedCaller;
+import org.sufficientlysecure.keychain.remote.SshAuthenticationCache.AuthenticationKeyInfo;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ssh.AuthenticationData;
 import org.sufficientlysecure.keychain.ssh.AuthenticationOperation;
 import org.sufficientlysecure.keychain.ssh.AuthenticationParcel;
 import org.sufficientlysecure.keychain.ssh.AuthenticationResult;
+import org.sufficientlysecure.keychain.ssh.SshSignerCache;
 import org.sufficientlysecure.keychain.ssh.signature.SshSignatureConverter;
 import timber.log.Timber;
 
@@ -64,6 +68,8 @@ public class SshAuthenticationService extends Service {
     private KeyRepository mKeyRepository;
     private ApiAppDao mApiAppDao;
     private ApiPendingIntentFactory mApiPendingIntentFactory;
+    private SshAuthenticationCache mAuthenticationCache;
+    private SshSignerCache mSignerCache;
 
     private static final List<Integer> SUPPORTED_VERSIONS = Collections.unmodifiableList(Collections.singletonList(1));
     private static final int INVALID_API_VERSION = -1;
@@ -78,6 +84,8 @@ public class SshAuthenticationService extends Service {
         mApiAppDao = ApiAppDao.getInstance(this);
 
         mApiPendingIntentFactory = new ApiPendingIntentFactory(getBaseContext());
+        mAuthenticationCache = SshAuthenticationCache.getInstance(this);
+        mSignerCache = SshSignerCache.getInstance(this);
     }
 
     private final ISshAuthenticationService.Stub mSSHAgent = new ISshAuthenticationService.Stub() {
@@ -143,23 +151,19 @@ public class SshAuthenticationService extends Service {
         AuthenticationData.Builder authData = AuthenticationData.builder();
         authData.setAuthenticationMasterKeyId(masterKeyId);
 
-        long authSubKeyId;
-        int authSubKeyAlgorithm;
-        String authSubKeyCurveOid = null;
+        AuthenticationKeyInfo authKeyInfo;
         try {
-            // get first usable subkey capable of authentication
-            authSubKeyId = mKeyRepository.getEffectiveAuthenticationKeyId(masterKeyId);
+            // first usable subkey capable of authentication, its algorithm and curve are
             // needed for encoding the resulting signature
-            authSubKeyAlgorithm = getPublicKey(masterKeyId).getAlgorithm();
-            if (authSubKeyAlgorithm == PublicKeyAlgorithmTags.ECDSA) {
-                authSubKeyCurveOid = getPublicKey(masterKeyId).getCurveOid();
-            }
+            authKeyInfo = getAuthenticationKeyInfo(masterKeyId);
         } catch (NotFoundException e) {
             return createExceptionErrorResult(SshAuthenticationApiError.NO_SUCH_KEY,
                     "Key for master key id not found", e);
         }
+        int authSubKeyAlgorithm = authKeyInfo.algorithm;
+        String authSubKeyCurveOid = authKeyInfo.curveOid;
 
-        authData.setAuthenticationSubKeyId(authSubKeyId);
+        authData.setAuthenticationSubKeyId(authKeyInfo.authSubKeyId);
 
         authData.setAllowedAuthenticationKeyIds(getAllowedKeyIds());
 
@@ -175,7 +179,7 @@ public class SshAuthenticationService extends Service {
                 .createAuthenticationParcel(authData.build(), challenge);
 
         // execute authentication operation!
-        AuthenticationOperation authOperation = new AuthenticationOperation(this, mKeyRepository);
+        AuthenticationOperation authOperation = new AuthenticationOperation(this, mKeyRepository, mSignerCache);
         AuthenticationResult authResult = authOperation.execute(authData.build(), inputParcel, authParcel);
 
         if (authResult.isPending()) {
@@ -322,7 +326,7 @@ public class SshAuthenticationService extends Service {
 
         PublicKey publicKey;
         try {
-            publicKey = getPublicKey(masterKeyId).getJcaPublicKey();
+            publicKey = getAuthenticationKeyInfo(masterKeyId).getJcaPublicKey();
         } catch (PgpGeneralException e) { // this should probably never happen
             return createExceptionErrorResult(SshAuthenticationApiError.GENERIC_ERROR,
                     "Error converting public key", e);
@@ -351,12 +355,11 @@ public class SshAuthenticationService extends Service {
     }
 
     private Intent getSSHPublicKey(long masterKeyId) throws KeyRepository.NotFoundException {
-        CanonicalizedPublicKey publicKey = getPublicKey(masterKeyId);
+        AuthenticationKeyInfo authKeyInfo = getAuthenticationKeyInfo(masterKeyId);
 
-        SshPublicKey sshPublicKey = new SshPublicKey(publicKey);
         String sshPublicKeyBlob;
         try {
-            sshPublicKeyBlob = sshPublicKey.getEncodedKey();
+            sshPublicKeyBlob = authKeyInfo.getSshPublicKey();
         } catch (PgpGeneralException | NoSuchAlgorithmException e) {
             return createExceptionErrorResult(SshAuthenticationApiError.GENERIC_ERROR,
                     "Error converting public key to SSH format", e);
@@ -365,10 +368,19 @@ public class SshAuthenticationService extends Service {
         return new SshPublicKeyResponse(sshPublicKeyBlob).toIntent();
     }
 
-    private CanonicalizedPublicKey getPublicKey(long masterKeyId) throws NotFoundException {
-        KeyRepository keyRepository = KeyRepository.create(getApplicationContext());
-        long authKeyId = keyRepository.getEffectiveAuthenticationKeyId(masterKeyId);
-        return keyRepository.getCanonicalizedPublicKeyRing(masterKeyId).getPublicKey(authKeyId);
+    private AuthenticationKeyInfo getAuthenticationKeyInfo(long masterKeyId) throws NotFoundException {
+        AuthenticationKeyInfo authKeyInfo = mAuthenticationCache.getAuthenticationKeyInfo(masterKeyId);
+        if (authKeyInfo != null) {
+            return authKeyInfo;
+        }
+
+        long loadedVersion = mAuthenticationCache.getVersion();
+        long authKeyId = mKeyRepository.getEffectiveAuthenticationKeyId(masterKeyId);
+        CanonicalizedPublicKey publicKey =
+                mKeyRepository.getCanonicalizedPublicKeyRing(masterKeyId).getPublicKey(authKeyId);
+        authKeyInfo = new AuthenticationKeyInfo(masterKeyId, publicKey, SystemClock.elapsedRealtime());
+        mAuthenticationCache.putAuthenticationKeyInfo(loadedVersion, authKeyInfo);
+        return authKeyInfo;
     }
 
     private String getDescription(long masterKeyId) throws NotFoundException {
@@ -382,7 +394,11 @@ public class SshAuthenticationService extends Service {
         return description;
     }
 
-    private HashSet<Long> getAllowedKeyIds() {
+    private Set<Long> getAllowedKeyIds() {
+        AllowedCaller allowedCaller = mAuthenticationCache.getAllowedCaller(Binder.getCallingUid());
+        if (allowedCaller != null) {
+            return allowedCaller.allowedKeyIds;
+        }
         String currentPkg = mApiPermissionHelper.getCurrentCallingPackage();
         return mApiAppDao.getAllowedKeyIdsForApp(currentPkg);
     }
@@ -405,12 +421,22 @@ public class SshAuthenticationService extends Service {
             return createErrorResult(SshAuthenticationApiError.INCOMPATIBLE_API_VERSIONS, errorMsg);
         }
 
-        // check if caller is allowed to access OpenKeychain
+        // check if caller is allowed to access OpenKeychain, unless it was a short time ago
+        int callingUid = Binder.getCallingUid();
+        if (mAuthenticationCache.getAllowedCaller(callingUid) != null) {
+            return null;
+        }
+
+        long loadedVersion = mAuthenticationCache.getVersion();
         Intent result = mApiPermissionHelper.isAllowedOrReturnIntent(data);
         if (result != null) {
             return result; // disallowed, redirect to registration
         }
 
+        String currentPkg = mApiPermissionHelper.getCurrentCallingPackage();
+        mAuthenticationCache.putAllowedCaller(loadedVersion, callingUid, new AllowedCaller(currentPkg,
+                mApiAppDao.getAllowedKeyIdsForApp(currentPkg), SystemClock.elapsedRealtime()));
+
         return null;
     }
 
@@ -34,6 +34,7 @@ import android.text.TextUtils;
 import org.openintents.openpgp.util.OpenPgpUtils;
 import org.openintents.openpgp.util.OpenPgpUtils.UserId;
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.daos.KeyRepository;
 import org.sufficientlysecure.keychain.model.ApiApp;
 import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
@@ -43,6 +44,7 @@ import org.sufficientlysecure.keychain.daos.ApiAppDao;
 import org.sufficientlysecure.keychain.remote.ui.dialog.RemoteSelectIdKeyActivity.RemoteSelectIdViewModel;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.ui.util.KeySearchMatcher;
 import timber.log.Timber;
 
 
@@ -60,12 +62,14 @@ class RemoteSelectIdentityKeyPresenter {
     private byte[] generatedKeyData;
     private ApiAppDao apiAppDao;
     private ApiApp apiApp;
+    private final KeySearchMatcher keySearchMatcher;
 
 
     RemoteSelectIdentityKeyPresenter(Context context, LifecycleOwner lifecycleOwner) {
         this.context = context;
         this.lifecycleOwner = lifecycleOwner;
         this.apiAppDao = ApiAppDao.getInstance(context);
+        this.keySearchMatcher = new KeySearchMatcher(KeyRepository.create(context));
 
         packageManager = context.getPackageManager();
     }
@@ -128,11 +132,10 @@ class RemoteSelectIdentityKeyPresenter {
         if (viewModel.isListAllKeys() || TextUtils.isEmpty(filterString)) {
             return keyInfoData;
         }
-        filterString = filterString.toLowerCase().trim();
         if (viewModel.filteredKeyInfo == null) {
             viewModel.filteredKeyInfo = new ArrayList<>();
             for (UnifiedKeyInfo unifiedKeyInfo : keyInfoData) {
-                if (unifiedKeyInfo.uidSearchString().contains(filterString)) {
+                if (keySearchMatcher.matches(filterString, unifiedKeyInfo.master_key_id())) {
                     viewModel.filteredKeyInfo.add(unifiedKeyInfo);
                 }
             }
@@ -40,22 +40,30 @@ public abstract class BackupKeyringParcel implements Parcelable {
     public abstract Uri getOutputUri();
     @Nullable
     public abstract List<String> getExtraHeaders();
+    // if set, only keys changed since the last incremental backup are included, see BackupManifest
+    public abstract boolean getIsIncremental();
 
     public static BackupKeyringParcel create(long[] masterKeyIds, boolean exportSecret,
             boolean isEncrypted, boolean enableAsciiArmorOutput, Uri outputUri) {
         return new AutoValue_BackupKeyringParcel(
-                masterKeyIds, exportSecret, true, isEncrypted, enableAsciiArmorOutput, outputUri, null);
+                masterKeyIds, exportSecret, true, isEncrypted, enableAsciiArmorOutput, outputUri, null, false);
     }
 
     public static BackupKeyringParcel create(long[] masterKeyIds, boolean exportSecret,
             boolean isEncrypted, boolean enableAsciiArmorOutput, Uri outputUri, List<String> extraHeaders) {
         return new AutoValue_BackupKeyringParcel(
-                masterKeyIds, exportSecret, true, isEncrypted, enableAsciiArmorOutput, outputUri, extraHeaders);
+                masterKeyIds, exportSecret, true, isEncrypted, enableAsciiArmorOutput, outputUri, extraHeaders, false);
+    }
+
+    public static BackupKeyringParcel createIncremental(boolean exportSecret, boolean isEncrypted,
+            boolean enableAsciiArmorOutput, Uri outputUri) {
+        return new AutoValue_BackupKeyringParcel(
+                null, exportSecret, true, isEncrypted, enableAsciiArmorOutput, outputUri, null, true);
     }
 
     public static BackupKeyringParcel createExportAutocryptSetupMessage(long[] masterKeyIds,
             List<String> extraHeaders) {
         return new AutoValue_BackupKeyringParcel(
-                masterKeyIds, true, false, true, true, null, extraHeaders);
+                masterKeyIds, true, false, true, true, null, extraHeaders, false);
     }
 }
\ No newline at end of file
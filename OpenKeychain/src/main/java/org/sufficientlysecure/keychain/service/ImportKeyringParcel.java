@@ -21,6 +21,7 @@ package org.sufficientlysecure.keychain.service;
 import java.util.Collections;
 import java.util.List;
 
+import android.net.Uri;
 import android.os.Parcelable;
 import androidx.annotation.Nullable;
 
@@ -36,36 +37,55 @@ public abstract class ImportKeyringParcel implements Parcelable {
     public abstract HkpKeyserverAddress getKeyserver();
     public abstract boolean isSkipSave();
     public abstract boolean isForceReinsert();
+    @Nullable // if set, keys are streamed from this uri and imported in bulk
+    public abstract Uri getBulkImportUri();
+    public abstract int getBulkKeysPerTransaction();
+    // if set, keys are read from the source of a KeyRingIndex, which is passed in a cache file
+    public abstract boolean isFromKeyRingIndex();
+    @Nullable // if set, these backups are restored, a full backup followed by incremental ones
+    public abstract List<Uri> getBackupChainUris();
 
     public static ImportKeyringParcel createImportKeyringParcel(List<ParcelableKeyRing> keyList,
             HkpKeyserverAddress keyserver) {
-        return new AutoValue_ImportKeyringParcel(keyList, keyserver, false, false);
+        return new AutoValue_ImportKeyringParcel(keyList, keyserver, false, false, null, 0, false, null);
     }
 
     public static ImportKeyringParcel createImportKeyringParcel(List<ParcelableKeyRing> keyList,
             HkpKeyserverAddress keyserver, boolean forceReinsert) {
-        return new AutoValue_ImportKeyringParcel(keyList, keyserver, false, forceReinsert);
+        return new AutoValue_ImportKeyringParcel(keyList, keyserver, false, forceReinsert, null, 0, false, null);
     }
 
     public static ImportKeyringParcel createWithSkipSave(List<ParcelableKeyRing> keyList,
             HkpKeyserverAddress keyserver) {
-        return new AutoValue_ImportKeyringParcel(keyList, keyserver, true, false);
+        return new AutoValue_ImportKeyringParcel(keyList, keyserver, true, false, null, 0, false, null);
     }
 
     public static ImportKeyringParcel createImportKeyringParcel(ParcelableKeyRing key) {
-        return new AutoValue_ImportKeyringParcel(Collections.singletonList(key), null, false, false);
+        return new AutoValue_ImportKeyringParcel(Collections.singletonList(key), null, false, false, null, 0, false, null);
     }
 
     public static ImportKeyringParcel createFromBytes(byte[] keyData) {
         ParcelableKeyRing keyRing = ParcelableKeyRing.createFromEncodedBytes(keyData);
-        return new AutoValue_ImportKeyringParcel(Collections.singletonList(keyRing), null, false, false);
+        return new AutoValue_ImportKeyringParcel(Collections.singletonList(keyRing), null, false, false, null, 0, false, null);
     }
 
     public static ImportKeyringParcel createFromFileCacheWithSkipSave() {
-        return new AutoValue_ImportKeyringParcel(null, null, true, false);
+        return new AutoValue_ImportKeyringParcel(null, null, true, false, null, 0, false, null);
     }
 
     public static ImportKeyringParcel createFromFileCache() {
-        return new AutoValue_ImportKeyringParcel(null, null, false, false);
+        return new AutoValue_ImportKeyringParcel(null, null, false, false, null, 0, false, null);
     }
-}
\ No newline at end of file
+
+    public static ImportKeyringParcel createFromKeyRingIndex() {
+        return new AutoValue_ImportKeyringParcel(null, null, false, false, null, 0, true, null);
+    }
+
+    public static ImportKeyringParcel createFromBackupChain(List<Uri> backupUris) {
+        return new AutoValue_ImportKeyringParcel(null, null, false, false, null, 0, false, backupUris);
+    }
+
+    public static ImportKeyringParcel createBulkImportFromUri(Uri inputUri, int keysPerTransaction) {
+        return new AutoValue_ImportKeyringParcel(null, null, false, false, inputUri, keysPerTransaction, false, null);
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.daos.KeyRepository;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
+import org.sufficientlysecure.keychain.pgp.SessionKeyCache;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
+import timber.log.Timber;
+
+
+/**
+ * The in-memory passphrase cache. There is one instance, in the process of KeychainProvider,
+ * which creates it. Code in that process uses it directly, other processes go through
+ * KeychainProvider.call - see the static methods of PassphraseCacheService.
+ * <p/>
+ * Lookups are plain reads from a ConcurrentHashMap, so they don't block each other or wait for
+ * writers. Timeouts are scheduled on a single background thread. Since that thread doesn't run
+ * while the device sleeps, lookups check the deadline of an entry as well.
+ * <p/>
+ * PassphraseCacheService only holds the notification, and keeps the process alive while
+ * passphrases are cached. It is started whenever the content of the cache changes.
+ */
+public class PassphraseCache {
+    private static volatile PassphraseCache sInstance;
+
+    private final Context context;
+    private final KeyRepository keyRepository;
+    private final boolean notifyService;
+
+    private final ConcurrentHashMap<Long, CachedPassphrase> cachedPassphrases = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timeoutExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "PassphraseCacheTimeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Creates the instance for this process. This is called by KeychainProvider. */
+    public static synchronized void createInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PassphraseCache(context.getApplicationContext(),
+                    KeyRepository.create(context.getApplicationContext()), true);
+        }
+    }
+
+    /** Returns the cache if it lives in this process, or null otherwise. */
+    @Nullable
+    public static PassphraseCache getLocalInstance() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    PassphraseCache(Context context, KeyRepository keyRepository, boolean notifyService) {
+        this.context = context;
+        this.keyRepository = keyRepository;
+        this.notifyService = notifyService;
+    }
+
+    public void addCachedPassphrase(long masterKeyId, long subKeyId, Passphrase passphrase,
+            String primaryUserId, long timeoutTtl) {
+        Timber.d("PassphraseCache: adding passphrase for masterKeyId " + masterKeyId + ", subKeyId "
+                + subKeyId + ", ttl " + timeoutTtl);
+
+        // if we don't cache by specific subkey id, or the requested subkey is the master key,
+        // just add master key id to the cache, otherwise, add this specific subkey to the cache
+        long referenceKeyId =
+                Preferences.getPreferences(context).getPassphraseCacheSubs() ? subKeyId : masterKeyId;
+
+        CachedPassphrase cachedPassphrase;
+        if (timeoutTtl == 0L) {
+            cachedPassphrase = new CachedPassphrase(masterKeyId, passphrase, primaryUserId, TimeoutMode.LOCK, 0);
+        } else if (timeoutTtl >= Integer.MAX_VALUE) {
+            cachedPassphrase = new CachedPassphrase(masterKeyId, passphrase, primaryUserId, TimeoutMode.NEVER, 0);
+        } else {
+            long timeoutMillis = timeoutTtl * 1000;
+            CachedPassphrase ttlPassphrase = new CachedPassphrase(masterKeyId, passphrase, primaryUserId, TimeoutMode.TTL,
+                    SystemClock.elapsedRealtime() + timeoutMillis);
+            ttlPassphrase.timeoutFuture = timeoutExecutor.schedule(
+                    () -> removeCachedPassphrase(referenceKeyId, ttlPassphrase),
+                    timeoutMillis, TimeUnit.MILLISECONDS);
+            cachedPassphrase = ttlPassphrase;
+        }
+
+        CachedPassphrase previous = cachedPassphrases.put(referenceKeyId, cachedPassphrase);
+        if (previous != null) {
+            previous.removeFromMemory();
+        }
+
+        onCacheChanged();
+    }
+
+    /**
+     * Returns a copy of the cached passphrase for a key, or null if none is cached.
+     *
+     * @throws KeyRepository.NotFoundException if the secret key is not available
+     */
+    @Nullable
+    public Passphrase getCachedPassphrase(long masterKeyId, long subKeyId) throws KeyRepository.NotFoundException {
+        // on "none" key, just do nothing
+        if (masterKeyId == Constants.key.none) {
+            return null;
+        }
+
+        // passphrase for symmetric encryption?
+        if (masterKeyId == Constants.key.symmetric) {
+            return copyIfValid(Constants.key.symmetric);
+        }
+
+        // get the type of key (from the database)
+        SecretKeyType keyType = keyRepository.getSecretKeyType(subKeyId);
+        switch (keyType) {
+            case PASSPHRASE_EMPTY:
+                return new Passphrase("");
+            case UNAVAILABLE:
+                throw new KeyRepository.NotFoundException("secret key for this subkey is not available");
+            case GNU_DUMMY:
+                throw new KeyRepository.NotFoundException("secret key for stripped subkey is not available");
+        }
+
+        Passphrase passphrase = copyIfValid(subKeyId);
+        // if we cache strictly by subkey, or this is the master key, there is nothing else to try
+        if (passphrase != null || subKeyId == masterKeyId
+                || Preferences.getPreferences(context).getPassphraseCacheSubs()) {
+            return passphrase;
+        }
+        return copyIfValid(masterKeyId);
+    }
+
+    /**
+     * Returns a copy, so the cached passphrase can be cleared from memory while the returned one
+     * is still in use.
+     */
+    @Nullable
+    private Passphrase copyIfValid(long referenceKeyId) {
+        CachedPassphrase cachedPassphrase = cachedPassphrases.get(referenceKeyId);
+        if (cachedPassphrase == null) {
+            return null;
+        }
+        if (cachedPassphrase.isTimedOut()) {
+            removeCachedPassphrase(referenceKeyId, cachedPassphrase);
+            return null;
+        }
+        return cachedPassphrase.passphrase != null ? cachedPassphrase.passphrase.copy() : null;
+    }
+
+    /** Removes the passphrase of a key, and the session keys decrypted with it. */
+    public void clearCachedPassphrase(long masterKeyId, long subKeyId) {
+        long referenceKeyId =
+                Preferences.getPreferences(context).getPassphraseCacheSubs() ? subKeyId : masterKeyId;
+        CachedPassphrase cachedPassphrase = cachedPassphrases.remove(referenceKeyId);
+        if (cachedPassphrase != null) {
+            cachedPassphrase.removeFromMemory();
+        }
+
+        sendClearSessionKeysBroadcast(masterKeyId);
+
+        onCacheChanged();
+    }
+
+    /** Removes all passphrases, and all cached session keys. */
+    public void clearCachedPassphrases() {
+        for (Long referenceKeyId : cachedPassphrases.keySet()) {
+            CachedPassphrase cachedPassphrase = cachedPassphrases.remove(referenceKeyId);
+            if (cachedPassphrase != null) {
+                cachedPassphrase.removeFromMemory();
+            }
+        }
+
+        sendClearSessionKeysBroadcast(null);
+
+        onCacheChanged();
+    }
+
+    void removeScreenLockPassphrases() {
+        Timber.d("PassphraseCache: removing all cached-until-lock passphrases from memory!");
+        for (Map.Entry<Long, CachedPassphrase> entry : cachedPassphrases.entrySet()) {
+            if (entry.getValue().timeoutMode == TimeoutMode.LOCK) {
+                removeCachedPassphrase(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes an entry, unless it was replaced in the meantime, along with the session keys
+     * decrypted with it.
+     */
+    private void removeCachedPassphrase(long referenceKeyId, CachedPassphrase cachedPassphrase) {
+        if (cachedPassphrases.remove(referenceKeyId, cachedPassphrase)) {
+            Timber.d("PassphraseCache: passphrase of keyId " + referenceKeyId + " removed from memory!");
+            cachedPassphrase.removeFromMemory();
+            sendClearSessionKeysBroadcast(cachedPassphrase.masterKeyId);
+            onCacheChanged();
+        }
+    }
+
+    /**
+     * Tells SessionKeyCache in all processes to drop the session keys of a master key, or all
+     * of them if masterKeyId is null. Session keys are only cached while the passphrase they
+     * were decrypted with is, so this must be sent whenever a passphrase goes away.
+     */
+    private void sendClearSessionKeysBroadcast(@Nullable Long masterKeyId) {
+        Intent clearSessionKeysIntent = new Intent(SessionKeyCache.BROADCAST_ACTION_CLEAR);
+        clearSessionKeysIntent.setPackage(context.getPackageName());
+        if (masterKeyId != null) {
+            clearSessionKeysIntent.putExtra(SessionKeyCache.EXTRA_MASTER_KEY_ID, masterKeyId);
+        }
+        context.sendBroadcast(clearSessionKeysIntent);
+    }
+
+    public int size() {
+        return cachedPassphrases.size();
+    }
+
+    List<String> getPrimaryUserIds() {
+        ArrayList<String> primaryUserIds = new ArrayList<>();
+        for (CachedPassphrase cachedPassphrase : cachedPassphrases.values()) {
+            primaryUserIds.add(cachedPassphrase.primaryUserId);
+        }
+        return primaryUserIds;
+    }
+
+    private void onCacheChanged() {
+        if (notifyService) {
+            // the service looks at the cache to update its notification, or stop itself
+            context.startService(new Intent(context, PassphraseCacheService.class));
+        }
+    }
+
+    private enum TimeoutMode {
+        NEVER, TTL, LOCK
+    }
+
+    private static class CachedPassphrase {
+        private final long masterKeyId;
+        private final Passphrase passphrase;
+        private final String primaryUserId;
+        private final TimeoutMode timeoutMode;
+        private final long timeoutRealtime;
+        private volatile ScheduledFuture<?> timeoutFuture;
+
+        CachedPassphrase(long masterKeyId, Passphrase passphrase, String primaryUserId, TimeoutMode timeoutMode,
+                long timeoutRealtime) {
+            this.masterKeyId = masterKeyId;
+            this.passphrase = passphrase;
+            this.primaryUserId = primaryUserId;
+            this.timeoutMode = timeoutMode;
+            this.timeoutRealtime = timeoutRealtime;
+        }
+
+        boolean isTimedOut() {
+            return timeoutMode == TimeoutMode.TTL && SystemClock.elapsedRealtime() >= timeoutRealtime;
+        }
+
+        void removeFromMemory() {
+            if (timeoutFuture != null) {
+                timeoutFuture.cancel(false);
+            }
+            if (passphrase != null) {
+                passphrase.removeFromMemory();
+            }
+        }
+    }
+}
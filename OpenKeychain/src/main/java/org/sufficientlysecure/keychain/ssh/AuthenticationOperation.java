@@ -22,6 +22,7 @@ import java.util.Collection;
 
 import android.content.Context;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.bouncycastle.openpgp.AuthenticationSignatureGenerator;
 import org.bouncycastle.openpgp.PGPException;
@@ -58,8 +59,21 @@ public class AuthenticationOperation extends BaseOperation<AuthenticationParcel>
 
     private static final String TAG = "AuthenticationOperation";
 
+    @Nullable
+    private final SshSignerCache mSignerCache;
+
     public AuthenticationOperation(Context context, KeyRepository keyRepository) {
+        this(context, keyRepository, null);
+    }
+
+    /**
+     * If a signer cache is given, keys unlocked without user input are kept in it, and
+     * requests without a passphrase in their CryptoInputParcel use the cached keys.
+     */
+    public AuthenticationOperation(Context context, KeyRepository keyRepository,
+                                   @Nullable SshSignerCache signerCache) {
         super(context, keyRepository, null);
+        mSignerCache = signerCache;
     }
 
     @NonNull
@@ -76,6 +90,24 @@ public class AuthenticationOperation extends BaseOperation<AuthenticationParcel>
         return executeInternal(data, cryptoInput, authenticationParcel);
     }
 
+    /**
+     * Returns true if the passphrase cache serves a passphrase for this key. For keys without a
+     * passphrase, that is always the empty one.
+     */
+    private boolean hasCachedPassphrase(long masterKeyId, long subKeyId) {
+        Passphrase passphrase;
+        try {
+            passphrase = getCachedPassphrase(masterKeyId, subKeyId);
+        } catch (PassphraseCacheInterface.NoSecretKeyException e) {
+            return false;
+        }
+        if (passphrase == null) {
+            return false;
+        }
+        passphrase.removeFromMemory();
+        return true;
+    }
+
     /**
      * Signs challenge based on given parameters
      */
@@ -110,17 +142,6 @@ public class AuthenticationOperation extends BaseOperation<AuthenticationParcel>
             }
         }
 
-        // Get keyring with the authentication key
-        CanonicalizedSecretKeyRing authKeyRing;
-        try {
-            authKeyRing = mKeyRepository.getCanonicalizedSecretKeyRing(authMasterKeyId);
-        } catch (KeyRepository.NotFoundException e) {
-            log.add(LogType.MSG_AUTH_ERROR_KEY_AUTH, indent);
-            return new AuthenticationResult(AuthenticationResult.RESULT_ERROR, log);
-        }
-
-        CanonicalizedSecretKey authKey = authKeyRing.getSecretKey(authSubKeyId);
-
         // Make sure the client is allowed to access this key
         Collection<Long> allowedAuthenticationKeyIds = data.getAllowedAuthenticationKeyIds();
         if (allowedAuthenticationKeyIds != null && !allowedAuthenticationKeyIds.contains(authMasterKeyId)) {
@@ -129,84 +150,118 @@ public class AuthenticationOperation extends BaseOperation<AuthenticationParcel>
             return new AuthenticationResult(AuthenticationResult.RESULT_KEY_DISALLOWED, log);
         }
 
-        // Make sure key is not expired or revoked
-        if (authKeyRing.isExpired() || authKeyRing.isRevoked()
-                || authKey.isExpired() || authKey.isRevoked()) {
-            log.add(LogType.MSG_AUTH_ERROR_REVOKED_OR_EXPIRED, indent);
-            return new AuthenticationResult(AuthenticationResult.RESULT_ERROR, log);
+        CanonicalizedSecretKey authKey = null;
+        long signerCacheVersion = 0;
+        if (mSignerCache != null) {
+            signerCacheVersion = mSignerCache.getVersion();
+            // an explicitly given passphrase is always checked, and a cached key is only used
+            // while the passphrase it was unlocked with is still cached
+            if (cryptoInput.getPassphrase() == null && hasCachedPassphrase(authMasterKeyId, authSubKeyId)) {
+                authKey = mSignerCache.get(authMasterKeyId, authSubKeyId);
+            }
         }
 
-        // Make sure the selected key is allowed to authenticate
-        if (!authKey.canAuthenticate()) {
-            log.add(LogType.MSG_AUTH_ERROR_KEY_AUTH, indent);
-            return new AuthenticationResult(AuthenticationResult.RESULT_ERROR, log);
-        }
+        if (authKey == null) {
+            // Get keyring with the authentication key
+            CanonicalizedSecretKeyRing authKeyRing;
+            try {
+                authKeyRing = mKeyRepository.getCanonicalizedSecretKeyRing(authMasterKeyId);
+            } catch (KeyRepository.NotFoundException e) {
+                log.add(LogType.MSG_AUTH_ERROR_KEY_AUTH, indent);
+                return new AuthenticationResult(AuthenticationResult.RESULT_ERROR, log);
+            }
 
-        CanonicalizedSecretKey.SecretKeyType secretKeyType;
-        try {
-            secretKeyType = mKeyRepository.getSecretKeyType(authSubKeyId);
-        } catch (KeyRepository.NotFoundException e) {
-            log.add(LogType.MSG_AUTH_ERROR_KEY_AUTH, indent);
-            return new AuthenticationResult(AuthenticationResult.RESULT_ERROR, log);
-        }
+            authKey = authKeyRing.getSecretKey(authSubKeyId);
 
-        switch (secretKeyType) {
-            case DIVERT_TO_CARD:
-            case PASSPHRASE_EMPTY: {
-                boolean isUnlocked;
-                try {
-                    isUnlocked = authKey.unlock(new Passphrase());
-                } catch (PgpGeneralException e) {
-                    log.add(LogType.MSG_AUTH_ERROR_UNLOCK, indent);
-                    return new AuthenticationResult(AuthenticationResult.RESULT_ERROR, log);
-                }
+            // Make sure key is not expired or revoked
+            if (authKeyRing.isExpired() || authKeyRing.isRevoked()
+                    || authKey.isExpired() || authKey.isRevoked()) {
+                log.add(LogType.MSG_AUTH_ERROR_REVOKED_OR_EXPIRED, indent);
+                return new AuthenticationResult(AuthenticationResult.RESULT_ERROR, log);
+            }
 
-                if (!isUnlocked) {
-                    throw new AssertionError(
-                            "PASSPHRASE_EMPTY/DIVERT_TO_CARD keyphrase not unlocked with empty passphrase."
-                                    + " This is a programming error!");
-                }
-                break;
+            // Make sure the selected key is allowed to authenticate
+            if (!authKey.canAuthenticate()) {
+                log.add(LogType.MSG_AUTH_ERROR_KEY_AUTH, indent);
+                return new AuthenticationResult(AuthenticationResult.RESULT_ERROR, log);
+            }
+
+            CanonicalizedSecretKey.SecretKeyType secretKeyType;
+            try {
+                secretKeyType = mKeyRepository.getSecretKeyType(authSubKeyId);
+            } catch (KeyRepository.NotFoundException e) {
+                log.add(LogType.MSG_AUTH_ERROR_KEY_AUTH, indent);
+                return new AuthenticationResult(AuthenticationResult.RESULT_ERROR, log);
             }
 
-            case PASSPHRASE: {
-                Passphrase localPassphrase = cryptoInput.getPassphrase();
-                if (localPassphrase == null) {
+            // only keys unlocked without user input may be kept in the signer cache
+            boolean isCacheable;
+            switch (secretKeyType) {
+                case DIVERT_TO_CARD:
+                case PASSPHRASE_EMPTY: {
+                    boolean isUnlocked;
                     try {
-                        localPassphrase = getCachedPassphrase(authMasterKeyId, authKey.getKeyId());
-                    } catch (PassphraseCacheInterface.NoSecretKeyException ignored) {
+                        isUnlocked = authKey.unlock(new Passphrase());
+                    } catch (PgpGeneralException e) {
+                        log.add(LogType.MSG_AUTH_ERROR_UNLOCK, indent);
+                        return new AuthenticationResult(AuthenticationResult.RESULT_ERROR, log);
+                    }
+
+                    if (!isUnlocked) {
+                        throw new AssertionError(
+                                "PASSPHRASE_EMPTY/DIVERT_TO_CARD keyphrase not unlocked with empty passphrase."
+                                        + " This is a programming error!");
                     }
+                    isCacheable = secretKeyType == CanonicalizedSecretKey.SecretKeyType.PASSPHRASE_EMPTY;
+                    break;
                 }
-                if (localPassphrase == null) {
-                    log.add(LogType.MSG_AUTH_PENDING_PASSPHRASE, indent + 1);
-                    return new AuthenticationResult(log,
-                            RequiredInputParcel.createRequiredAuthenticationPassphrase(
-                                    authMasterKeyId, authKey.getKeyId()),
-                            cryptoInput);
+
+                case PASSPHRASE: {
+                    Passphrase localPassphrase = cryptoInput.getPassphrase();
+                    boolean isCachedPassphrase = false;
+                    if (localPassphrase == null) {
+                        try {
+                            localPassphrase = getCachedPassphrase(authMasterKeyId, authKey.getKeyId());
+                            isCachedPassphrase = true;
+                        } catch (PassphraseCacheInterface.NoSecretKeyException ignored) {
+                        }
+                    }
+                    if (localPassphrase == null) {
+                        log.add(LogType.MSG_AUTH_PENDING_PASSPHRASE, indent + 1);
+                        return new AuthenticationResult(log,
+                                RequiredInputParcel.createRequiredAuthenticationPassphrase(
+                                        authMasterKeyId, authKey.getKeyId()),
+                                cryptoInput);
+                    }
+
+                    boolean isUnlocked;
+                    try {
+                        isUnlocked = authKey.unlock(localPassphrase);
+                    } catch (PgpGeneralException e) {
+                        log.add(LogType.MSG_AUTH_ERROR_UNLOCK, indent);
+                        return new AuthenticationResult(AuthenticationResult.RESULT_ERROR, log);
+                    }
+                    if (!isUnlocked) {
+                        log.add(LogType.MSG_AUTH_ERROR_BAD_PASSPHRASE, indent);
+                        return new AuthenticationResult(AuthenticationResult.RESULT_ERROR, log);
+                    }
+                    isCacheable = isCachedPassphrase;
+                    break;
                 }
 
-                boolean isUnlocked;
-                try {
-                    isUnlocked = authKey.unlock(localPassphrase);
-                } catch (PgpGeneralException e) {
+                case GNU_DUMMY: {
                     log.add(LogType.MSG_AUTH_ERROR_UNLOCK, indent);
                     return new AuthenticationResult(AuthenticationResult.RESULT_ERROR, log);
                 }
-                if (!isUnlocked) {
-                    log.add(LogType.MSG_AUTH_ERROR_BAD_PASSPHRASE, indent);
-                    return new AuthenticationResult(AuthenticationResult.RESULT_ERROR, log);
+                default: {
+                    throw new AssertionError("Unhandled SecretKeyType! (should not happen)");
                 }
-                break;
-            }
 
-            case GNU_DUMMY: {
-                log.add(LogType.MSG_AUTH_ERROR_UNLOCK, indent);
-                return new AuthenticationResult(AuthenticationResult.RESULT_ERROR, log);
-            }
-            default: {
-                throw new AssertionError("Unhandled SecretKeyType! (should not happen)");
             }
 
+            if (mSignerCache != null && isCacheable) {
+                mSignerCache.put(signerCacheVersion, authMasterKeyId, authKey);
+            }
         }
 
         AuthenticationSignatureGenerator signatureGenerator;
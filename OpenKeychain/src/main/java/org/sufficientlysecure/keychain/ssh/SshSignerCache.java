@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ssh;
+
+
+import java.util.Map;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.daos.DatabaseNotifyManager;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
+import org.sufficientlysecure.keychain.pgp.SessionKeyCache;
+
+
+/**
+ * Process-wide cache of unlocked authentication keys, so an SSH agent signing request for a
+ * key that was used shortly before doesn't load the secret keyring and unlock it again.
+ * <p/>
+ * Only keys unlocked with an empty passphrase, or with a passphrase from the passphrase cache,
+ * are stored. Like SessionKeyCache, an entry lives exactly as long as that passphrase: callers
+ * only look it up after the passphrase was served from the cache again, and the
+ * BROADCAST_ACTION_CLEAR of SessionKeyCache, which PassphraseCache sends whenever a passphrase
+ * times out or is cleared, drops the keys of that keyring. Any change to the keys in the
+ * database drops all entries, so a revoked or deleted key can't be used from the cache.
+ * Keys on security tokens are never cached, since every signature needs the token anyway.
+ */
+public class SshSignerCache {
+    private static final int MAX_ENTRIES = 16;
+
+    private static SshSignerCache sInstance;
+
+    private final Context context;
+
+    private final LruCache<Long, CachedSigner> cachedSigners = new LruCache<>(MAX_ENTRIES);
+
+    private long version;
+    private long hitCount;
+    private long missCount;
+
+    public static synchronized SshSignerCache getInstance(Context context) {
+        if (sInstance == null || Constants.IS_RUNNING_UNITTEST) {
+            sInstance = new SshSignerCache(context.getApplicationContext());
+            sInstance.registerInvalidationReceivers();
+        }
+        return sInstance;
+    }
+
+    private SshSignerCache(Context context) {
+        this.context = context;
+    }
+
+    private void registerInvalidationReceivers() {
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.hasExtra(SessionKeyCache.EXTRA_MASTER_KEY_ID)) {
+                    clear(intent.getLongExtra(SessionKeyCache.EXTRA_MASTER_KEY_ID, 0L));
+                } else {
+                    clear();
+                }
+            }
+        };
+        context.registerReceiver(receiver, new IntentFilter(SessionKeyCache.BROADCAST_ACTION_CLEAR));
+
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                clear();
+            }
+        };
+        context.getContentResolver().registerContentObserver(
+                DatabaseNotifyManager.getNotifyUriAllKeys(), true, observer);
+    }
+
+    /**
+     * Returns the unlocked authentication key with this subkey id, if it is cached, belongs to
+     * the given master key, and neither the key nor its keyring expired in the meantime. The
+     * passphrase of the key must have been served from PassphraseCache right before, since
+     * entries aren't checked against it here.
+     */
+    @Nullable
+    public synchronized CanonicalizedSecretKey get(long masterKeyId, long subKeyId) {
+        CachedSigner cachedSigner = cachedSigners.get(subKeyId);
+        if (cachedSigner == null || cachedSigner.masterKeyId != masterKeyId) {
+            missCount += 1;
+            return null;
+        }
+        if (cachedSigner.key.isExpired() || cachedSigner.key.getRing().isExpired()) {
+            cachedSigners.remove(subKeyId);
+            missCount += 1;
+            return null;
+        }
+        hitCount += 1;
+        return cachedSigner.key;
+    }
+
+    /** Returns the current version, to be passed to put() after the key was loaded. */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Stores an unlocked key. If the cache was cleared since loadedVersion was obtained, the key
+     * may already be outdated, and it is not stored. This must only be called for keys unlocked
+     * with an empty passphrase or one from PassphraseCache, since the entry is only dropped when
+     * that passphrase goes away.
+     */
+    public synchronized void put(long loadedVersion, long masterKeyId, CanonicalizedSecretKey key) {
+        if (loadedVersion != version) {
+            return;
+        }
+        cachedSigners.put(key.getKeyId(), new CachedSigner(masterKeyId, key));
+    }
+
+    public synchronized void clear() {
+        version += 1;
+        cachedSigners.evictAll();
+    }
+
+    public synchronized void clear(long masterKeyId) {
+        version += 1;
+        for (Map.Entry<Long, CachedSigner> entry : cachedSigners.snapshot().entrySet()) {
+            if (entry.getValue().masterKeyId == masterKeyId) {
+                cachedSigners.remove(entry.getKey());
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return cachedSigners.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    private static class CachedSigner {
+        private final long masterKeyId;
+        private final CanonicalizedSecretKey key;
+
+        CachedSigner(long masterKeyId, CanonicalizedSecretKey key) {
+            this.masterKeyId = masterKeyId;
+            this.key = key;
+        }
+    }
+}
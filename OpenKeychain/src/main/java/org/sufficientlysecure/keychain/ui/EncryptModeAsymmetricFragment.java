@@ -42,6 +42,7 @@ import org.sufficientlysecure.keychain.livedata.GenericLiveData;
 import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
 import org.sufficientlysecure.keychain.ui.chips.EncryptRecipientChipsInput;
 import org.sufficientlysecure.keychain.ui.chips.EncryptRecipientChipsInput.EncryptRecipientChip;
+import org.sufficientlysecure.keychain.ui.util.KeySearchMatcher;
 import org.sufficientlysecure.keychain.ui.widget.KeySpinner;
 import org.sufficientlysecure.keychain.util.Passphrase;
 
@@ -161,9 +162,11 @@ public class EncryptModeAsymmetricFragment extends EncryptModeFragment {
                 encryptRecipientLiveData = new GenericLiveData<>(context, () -> {
                     KeyRepository keyRepository = KeyRepository.create(context);
                     List<UnifiedKeyInfo> keyInfos = keyRepository.getAllUnifiedKeyInfo();
+                    KeySearchMatcher keySearchMatcher = new KeySearchMatcher(keyRepository);
                     ArrayList<EncryptRecipientChip> result = new ArrayList<>();
                     for (UnifiedKeyInfo keyInfo : keyInfos) {
-                        EncryptRecipientChip chip = EncryptRecipientChipsInput.chipFromUnifiedKeyInfo(keyInfo);
+                        EncryptRecipientChip chip =
+                                EncryptRecipientChipsInput.chipFromUnifiedKeyInfo(keyInfo, keySearchMatcher);
                         result.add(chip);
                     }
                     return result;
@@ -23,9 +23,11 @@ import java.util.ArrayList;
 import java.util.List;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.nfc.NfcAdapter;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
@@ -38,6 +40,9 @@ import org.sufficientlysecure.keychain.compatibility.ClipboardReflection;
 import org.sufficientlysecure.keychain.keyimport.FacebookKeyserverClient;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserverAddress;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.keyimport.KeyImportWorker;
+import org.sufficientlysecure.keychain.keyimport.KeyRingFileCache;
+import org.sufficientlysecure.keychain.keyimport.KeyRingIndex;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.keyimport.processing.ImportKeysListener;
 import org.sufficientlysecure.keychain.keyimport.processing.ImportKeysOperationCallback;
@@ -51,7 +56,6 @@ import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.ui.util.Notify.Style;
-import org.sufficientlysecure.keychain.util.ParcelableFileCache;
 import org.sufficientlysecure.keychain.util.Preferences;
 import timber.log.Timber;
 
@@ -88,6 +92,9 @@ public class ImportKeysActivity extends BaseActivity implements ImportKeysListen
     public static final String TAG_FRAG_LIST = "frag_list";
     public static final String TAG_FRAG_TOP = "frag_top";
 
+    // imports of at least this many keys run in the background, see importKeysInBackground
+    private static final int BACKGROUND_IMPORT_MIN_KEYS = 1000;
+
     private boolean mFreshIntent;
     private CryptoOperationHelper<ImportKeyringParcel, ImportKeyResult> mOpHelper;
 
@@ -391,9 +398,8 @@ public class ImportKeysActivity extends BaseActivity implements ImportKeysListen
         try {
             // We parcel this iteratively into a file - anything we can
             // display here, we should be able to import.
-            ParcelableFileCache<ParcelableKeyRing> cache =
-                    new ParcelableFileCache<>(this, ImportOperation.CACHE_FILE_NAME);
-            cache.writeCache(entries.size(), keyRings.iterator());
+            KeyRingFileCache cache = new KeyRingFileCache(this, ImportOperation.CACHE_FILE_NAME);
+            cache.writeCache(keyRings.iterator());
         } catch (IOException e) {
             Timber.e(e, "Problem writing cache file");
             Notify.create(this, "Problem writing cache file!", Notify.Style.ERROR).show();
@@ -406,6 +412,71 @@ public class ImportKeysActivity extends BaseActivity implements ImportKeysListen
         mOpHelper.cryptoOperation();
     }
 
+    @Override
+    public void importKeys(KeyRingIndex keyRingIndex) {
+        boolean returnsResult = ACTION_IMPORT_KEY_FROM_FILE_AND_RETURN.equals(getIntent().getAction());
+        if (!returnsResult && keyRingIndex.size() >= BACKGROUND_IMPORT_MIN_KEYS) {
+            importKeysInBackground(keyRingIndex);
+            return;
+        }
+
+        // without secret keyrings, the order of the data doesn't matter and it can be imported in a
+        // single pass. the result doesn't include the canonicalized keyrings in that case.
+        if (!returnsResult && !keyRingIndex.hasSecretKeyRings()) {
+            ImportKeyringParcel inputParcel = ImportKeyringParcel.createBulkImportFromUri(
+                    keyRingIndex.getDataUri(), 0);
+            ImportKeysOperationCallback callback = new ImportKeysOperationCallback(this, inputParcel, null);
+            mOpHelper = new CryptoOperationHelper<>(1, this, callback, R.string.progress_importing);
+            mOpHelper.cryptoOperation();
+            return;
+        }
+
+        // only the offsets of the keyrings are passed on, the import reads them from the source
+        try {
+            keyRingIndex.writeCache(this);
+        } catch (IOException e) {
+            Timber.e(e, "Problem writing cache file");
+            Notify.create(this, "Problem writing cache file!", Notify.Style.ERROR).show();
+            return;
+        }
+
+        ImportKeyringParcel inputParcel = ImportKeyringParcel.createFromKeyRingIndex();
+        ImportKeysOperationCallback callback = new ImportKeysOperationCallback(this, inputParcel, null);
+        mOpHelper = new CryptoOperationHelper<>(1, this, callback, R.string.progress_importing);
+        mOpHelper.cryptoOperation();
+    }
+
+    /**
+     * Large imports are handed to KeyImportWorker, which continues after the process was killed.
+     * The keyrings are copied to its own cache file first, since the source may not be readable
+     * after this activity is gone.
+     */
+    private void importKeysInBackground(KeyRingIndex keyRingIndex) {
+        Context context = getApplicationContext();
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                try {
+                    KeyImportWorker.enqueueImport(context, keyRingIndex.openImportIterator(context));
+                    return true;
+                } catch (IOException e) {
+                    Timber.e(e, "Problem writing cache file");
+                    return false;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Boolean success) {
+                if (success) {
+                    Notify.create(ImportKeysActivity.this, getString(R.string.import_background_started,
+                            keyRingIndex.size()), Notify.Style.OK).show();
+                } else {
+                    Notify.create(ImportKeysActivity.this, "Problem writing cache file!", Notify.Style.ERROR).show();
+                }
+            }
+        }.execute();
+    }
+
     @Override
     public void handleResult(ImportKeyResult result, Integer position) {
         String intentAction = getIntent().getAction();
@@ -38,6 +38,7 @@ import android.view.ViewGroup;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.databinding.ImportKeysListFragmentBinding;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.keyimport.KeyRingIndex;
 import org.sufficientlysecure.keychain.keyimport.processing.AsyncTaskResultWrapper;
 import org.sufficientlysecure.keychain.keyimport.processing.BytesLoaderState;
 import org.sufficientlysecure.keychain.keyimport.processing.CloudLoaderState;
@@ -54,10 +55,10 @@ import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.Preferences.CloudSearchPrefs;
 import org.sufficientlysecure.keychain.network.orbot.OrbotHelper;
 
-import java.util.ArrayList;
+import java.util.List;
 
 public class ImportKeysListFragment extends Fragment implements
-        LoaderManager.LoaderCallbacks<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
+        LoaderManager.LoaderCallbacks<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> {
 
     private static final String ARG_DATA_URI = "uri";
     private static final String ARG_BYTES = "bytes";
@@ -166,7 +167,12 @@ public class ImportKeysListFragment extends Fragment implements
         mBinding.basic.importKeys.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View view) {
-                mListener.importKeys(mAdapter.getEntries());
+                KeyRingIndex keyRingIndex = mAdapter.getKeyRingIndex();
+                if (keyRingIndex != null) {
+                    mListener.importKeys(keyRingIndex);
+                } else {
+                    mListener.importKeys(mAdapter.getEntries());
+                }
             }
         });
         mBinding.basic.listKeys.setOnClickListener(new OnClickListener() {
@@ -246,10 +252,10 @@ public class ImportKeysListFragment extends Fragment implements
     }
 
     @Override
-    public Loader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> onCreateLoader(
+    public Loader<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> onCreateLoader(
             int id, Bundle args) {
 
-        Loader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> loader = null;
+        Loader<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> loader = null;
         switch (id) {
             case LOADER_ID_BYTES: {
                 loader = new ImportKeysListLoader(mActivity, (BytesLoaderState) mLoaderState);
@@ -271,8 +277,8 @@ public class ImportKeysListFragment extends Fragment implements
 
     @Override
     public void onLoadFinished(
-            Loader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> loader,
-            AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> data) {
+            Loader<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> loader,
+            AsyncTaskResultWrapper<List<ImportKeysListEntry>> data) {
 
         mAdapter.setData(data.getResult());
         int size = mAdapter.getItemCount();
@@ -342,7 +348,7 @@ public class ImportKeysListFragment extends Fragment implements
 
     @Override
     public void onLoaderReset(
-            Loader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> loader) {
+            Loader<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> loader) {
 
         mAdapter.clearData();
     }
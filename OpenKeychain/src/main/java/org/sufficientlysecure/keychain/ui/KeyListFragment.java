@@ -75,6 +75,7 @@ import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
 import org.sufficientlysecure.keychain.ui.base.RecyclerFragment;
 import org.sufficientlysecure.keychain.ui.keyview.GenericViewModel;
 import org.sufficientlysecure.keychain.ui.keyview.ViewKeyActivity;
+import org.sufficientlysecure.keychain.ui.util.KeySearchMatcher;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.ui.util.Notify.Style;
 import org.sufficientlysecure.keychain.util.FabContainer;
@@ -97,6 +98,7 @@ public class KeyListFragment extends RecyclerFragment<FlexibleAdapter<FlexibleKe
     private FloatingActionsMenu mFab;
 
     private KeyRepository keyRepository;
+    private KeySearchMatcher keySearchMatcher;
     private FlexibleKeyItemFactory flexibleKeyItemFactory;
 
     private Long queuedHighlightMasterKeyId;
@@ -239,7 +241,8 @@ public class KeyListFragment extends RecyclerFragment<FlexibleAdapter<FlexibleKe
         setLayoutManager(new LinearLayoutManager(activity));
 
         keyRepository = KeyRepository.create(requireContext());
-        flexibleKeyItemFactory = new FlexibleKeyItemFactory(requireContext().getResources());
+        keySearchMatcher = new KeySearchMatcher(keyRepository);
+        flexibleKeyItemFactory = new FlexibleKeyItemFactory(requireContext().getResources(), keySearchMatcher);
 
         Intent intent = getActivity().getIntent();
         if (intent != null && intent.hasExtra(ImportKeyResult.EXTRA_RESULT)) {
@@ -258,6 +261,8 @@ public class KeyListFragment extends RecyclerFragment<FlexibleAdapter<FlexibleKe
     @WorkerThread
     private List<FlexibleKeyItem> loadFlexibleKeyItems() {
         List<UnifiedKeyInfo> unifiedKeyInfo = keyRepository.getAllUnifiedKeyInfo();
+        // the key list changed, so search results must be queried again
+        keySearchMatcher.invalidate();
         return flexibleKeyItemFactory.mapUnifiedKeyInfoToFlexibleKeyItems(unifiedKeyInfo);
     }
 
@@ -18,15 +18,18 @@ import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
 import org.sufficientlysecure.keychain.ui.adapter.FlexibleKeyDetailsItem.FlexibleKeyItemViewHolder;
 import org.sufficientlysecure.keychain.ui.adapter.FlexibleKeyItem.FlexibleSectionableKeyItem;
 import org.sufficientlysecure.keychain.ui.util.KeyInfoFormatter;
+import org.sufficientlysecure.keychain.ui.util.KeySearchMatcher;
 
 
 public class FlexibleKeyDetailsItem extends FlexibleSectionableKeyItem<FlexibleKeyItemViewHolder>
         implements IFilterable<String> {
     public final UnifiedKeyInfo keyInfo;
+    private final KeySearchMatcher keySearchMatcher;
 
-    FlexibleKeyDetailsItem(UnifiedKeyInfo keyInfo, FlexibleKeyHeader header) {
+    FlexibleKeyDetailsItem(UnifiedKeyInfo keyInfo, FlexibleKeyHeader header, KeySearchMatcher keySearchMatcher) {
         super(header);
         this.keyInfo = keyInfo;
+        this.keySearchMatcher = keySearchMatcher;
 
         setSelectable(true);
     }
@@ -66,7 +69,7 @@ public class FlexibleKeyDetailsItem extends FlexibleSectionableKeyItem<FlexibleK
 
     @Override
     public boolean filter(String constraint) {
-        return constraint == null || keyInfo.uidSearchString().contains(constraint);
+        return keySearchMatcher.matches(constraint, keyInfo.master_key_id());
     }
 
     class FlexibleKeyItemViewHolder extends FlexibleViewHolder {
@@ -11,16 +11,19 @@ import androidx.annotation.NonNull;
 
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
+import org.sufficientlysecure.keychain.ui.util.KeySearchMatcher;
 
 
 public class FlexibleKeyItemFactory {
     private final Resources resources;
+    private final KeySearchMatcher keySearchMatcher;
     private Map<String, FlexibleKeyHeader> initialsHeaderMap = new HashMap<>();
     private FlexibleKeyHeader myKeysHeader;
     private FlexibleKeyItem dummyItem;
 
-    public FlexibleKeyItemFactory(Resources resources) {
+    public FlexibleKeyItemFactory(Resources resources, KeySearchMatcher keySearchMatcher) {
         this.resources = resources;
+        this.keySearchMatcher = keySearchMatcher;
         String myKeysHeaderText = resources.getString(R.string.my_keys);
         myKeysHeader = new FlexibleKeyHeader(myKeysHeaderText);
     }
@@ -35,7 +38,7 @@ public class FlexibleKeyItemFactory {
         }
         for (UnifiedKeyInfo unifiedKeyInfo : unifiedKeyInfos) {
             FlexibleKeyHeader header = getFlexibleKeyHeader(unifiedKeyInfo);
-            FlexibleKeyItem flexibleKeyItem = new FlexibleKeyDetailsItem(unifiedKeyInfo, header);
+            FlexibleKeyItem flexibleKeyItem = new FlexibleKeyDetailsItem(unifiedKeyInfo, header, keySearchMatcher);
             result.add(flexibleKeyItem);
         }
         return result;
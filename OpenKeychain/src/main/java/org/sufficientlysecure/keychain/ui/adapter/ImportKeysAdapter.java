@@ -24,6 +24,7 @@ import java.util.Date;
 import java.util.List;
 
 import android.content.Intent;
+import android.util.SparseArray;
 import androidx.databinding.DataBindingUtil;
 import androidx.fragment.app.FragmentActivity;
 import androidx.recyclerview.widget.RecyclerView;
@@ -32,6 +33,7 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 
+import androidx.annotation.Nullable;
 import androidx.databinding.DataBindingUtil;
 import androidx.fragment.app.FragmentActivity;
 import androidx.recyclerview.widget.RecyclerView;
@@ -40,10 +42,13 @@ import org.sufficientlysecure.keychain.daos.KeyRepository;
 import org.sufficientlysecure.keychain.databinding.ImportKeysListItemBinding;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserverAddress;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.keyimport.KeyRingFileCache;
+import org.sufficientlysecure.keychain.keyimport.KeyRingIndex;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.keyimport.processing.ImportKeysListener;
 import org.sufficientlysecure.keychain.keyimport.processing.ImportKeysOperationCallback;
 import org.sufficientlysecure.keychain.keyimport.processing.ImportKeysResultListener;
+import org.sufficientlysecure.keychain.keyimport.processing.KeyRingIndexEntryList;
 import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
 import org.sufficientlysecure.keychain.operations.ImportOperation;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
@@ -54,7 +59,6 @@ import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
 import org.sufficientlysecure.keychain.ui.keyview.ViewKeyActivity;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.Notify;
-import org.sufficientlysecure.keychain.util.ParcelableFileCache;
 import timber.log.Timber;
 
 
@@ -66,7 +70,8 @@ public class ImportKeysAdapter extends RecyclerView.Adapter<ImportKeysAdapter.Vi
     private boolean mNonInteractive;
 
     private List<ImportKeysListEntry> mData;
-    private KeyState[] mKeyStates;
+    // created on demand, lists from files may be very long
+    private SparseArray<KeyState> mKeyStates;
 
     private KeyRepository mKeyRepository;
 
@@ -82,12 +87,26 @@ public class ImportKeysAdapter extends RecyclerView.Adapter<ImportKeysAdapter.Vi
 
     public void setData(List<ImportKeysListEntry> data) {
         mData = data;
+        mKeyStates = new SparseArray<>();
 
-        mKeyStates = new KeyState[data.size()];
-        for (int i = 0; i < mKeyStates.length; i++) {
-            ImportKeysListEntry entry = mData.get(i);
+        // If there is only one key, get it automatically
+        if (mData.size() == 1) {
+            getKeyWithProgress(0, getKeyState(0).mEntry, true);
+        }
 
-            KeyState keyState = new KeyState();
+        notifyDataSetChanged();
+    }
+
+    private KeyState getKeyState(int position) {
+        KeyState keyState = mKeyStates.get(position);
+        if (keyState != null) {
+            return keyState;
+        }
+
+        // the state holds on to the entry, which may be updated after it was downloaded
+        ImportKeysListEntry entry = mData.get(position);
+        keyState = new KeyState(entry);
+        if (entry.getKeyIdHex() != null) {
             long keyId = KeyFormattingUtils.convertKeyIdHexToKeyId(entry.getKeyIdHex());
             try {
                 VerificationStatus verified;
@@ -101,16 +120,10 @@ public class ImportKeysAdapter extends RecyclerView.Adapter<ImportKeysAdapter.Vi
                 keyState.mVerified = verified != null && verified != VerificationStatus.UNVERIFIED;
             } catch (KeyRepository.NotFoundException ignored) {
             }
-
-            mKeyStates[i] = keyState;
-        }
-
-        // If there is only one key, get it automatically
-        if (mData.size() == 1) {
-            getKeyWithProgress(0, mData.get(0), true);
         }
 
-        notifyDataSetChanged();
+        mKeyStates.put(position, keyState);
+        return keyState;
     }
 
     public void clearData() {
@@ -126,6 +139,10 @@ public class ImportKeysAdapter extends RecyclerView.Adapter<ImportKeysAdapter.Vi
      * @see ImportOperation
      */
     public List<ImportKeysListEntry> getEntries() {
+        if (mData instanceof KeyRingIndexEntryList) {
+            throw new IllegalStateException("Entries of an indexed file must be imported by index!");
+        }
+
         ArrayList<ImportKeysListEntry> result = new ArrayList<>();
         ArrayList<ImportKeysListEntry> secrets = new ArrayList<>();
         if (mData == null) {
@@ -140,6 +157,18 @@ public class ImportKeysAdapter extends RecyclerView.Adapter<ImportKeysAdapter.Vi
         return result;
     }
 
+    /**
+     * Returns the index of the file or data the entries were loaded from, or null if they were
+     * not loaded from a file. If there is an index, it should be used to import all entries.
+     */
+    @Nullable
+    public KeyRingIndex getKeyRingIndex() {
+        if (mData instanceof KeyRingIndexEntryList) {
+            return ((KeyRingIndexEntryList) mData).getKeyRingIndex();
+        }
+        return null;
+    }
+
     public class ViewHolder extends RecyclerView.ViewHolder {
         public ImportKeysListItemBinding b;
 
@@ -159,11 +188,10 @@ public class ImportKeysAdapter extends RecyclerView.Adapter<ImportKeysAdapter.Vi
     @Override
     public void onBindViewHolder(ViewHolder holder, final int position) {
         final ImportKeysListItemBinding b = holder.b;
-        final ImportKeysListEntry entry = mData.get(position);
+        final KeyState keyState = getKeyState(position);
+        final ImportKeysListEntry entry = keyState.mEntry;
         b.setEntry(entry);
 
-        final KeyState keyState = mKeyStates[position];
-
         b.card.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -228,8 +256,7 @@ public class ImportKeysAdapter extends RecyclerView.Adapter<ImportKeysAdapter.Vi
             try {
                 // We parcel this iteratively into a file - anything we can
                 // display here, we should be able to import.
-                ParcelableFileCache<ParcelableKeyRing> cache =
-                        new ParcelableFileCache<>(mActivity, ImportOperation.CACHE_FILE_NAME);
+                KeyRingFileCache cache = new KeyRingFileCache(mActivity, ImportOperation.CACHE_FILE_NAME);
                 cache.writeCache(keyRing);
             } catch (IOException e) {
                 Timber.e(e, "Problem writing cache file");
@@ -271,12 +298,12 @@ public class ImportKeysAdapter extends RecyclerView.Adapter<ImportKeysAdapter.Vi
                         "| isRev: " + keyRing.isRevoked() + "| isExp: " + keyRing.isExpired()
                         + "| isSec: " + keyRing.isSecure());
 
-                ImportKeysListEntry entry = mData.get(position);
+                ImportKeysListEntry entry = getKeyState(position).mEntry;
                 entry.setUpdated(result.isOkUpdated());
 
                 mergeEntryWithKey(entry, keyRing);
 
-                mKeyStates[position].mDownloaded = true;
+                getKeyState(position).mDownloaded = true;
                 changeShowed(position, true);
             } else {
                 throw new RuntimeException("getKey retrieved more than one key ("
@@ -315,27 +342,33 @@ public class ImportKeysAdapter extends RecyclerView.Adapter<ImportKeysAdapter.Vi
     }
 
     private class KeyState {
+        final ImportKeysListEntry mEntry;
+
         boolean mAlreadyPresent = false;
         boolean mVerified = false;
 
         boolean mProgress = false;
         boolean mDownloaded = false;
         boolean mShowed = false;
+
+        KeyState(ImportKeysListEntry entry) {
+            mEntry = entry;
+        }
     }
 
     private void changeShowed(int position, boolean showed) {
-        KeyState keyState = mKeyStates[position];
+        KeyState keyState = getKeyState(position);
         keyState.mShowed = showed;
         notifyItemChanged(position);
     }
 
     private boolean isLoading(int position) {
-        KeyState keyState = mKeyStates[position];
+        KeyState keyState = getKeyState(position);
         return keyState.mProgress;
     }
 
     private void changeProgress(int position, boolean progress) {
-        KeyState keyState = mKeyStates[position];
+        KeyState keyState = getKeyState(position);
         keyState.mProgress = progress;
         notifyItemChanged(position);
     }
@@ -12,6 +12,7 @@ import org.sufficientlysecure.materialchips.ChipsInput;
 import org.sufficientlysecure.materialchips.adapter.FilterableAdapter.FilterableItem;
 import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
 import org.sufficientlysecure.keychain.ui.chips.EncryptRecipientChipsInput.EncryptRecipientChip;
+import org.sufficientlysecure.keychain.ui.util.KeySearchMatcher;
 
 
 public class EncryptRecipientChipsInput extends ChipsInput<EncryptRecipientChip> {
@@ -55,9 +56,11 @@ public class EncryptRecipientChipsInput extends ChipsInput<EncryptRecipientChip>
 
     public static class EncryptRecipientChip implements FilterableItem {
         public final UnifiedKeyInfo keyInfo;
+        private final KeySearchMatcher keySearchMatcher;
 
-        EncryptRecipientChip(UnifiedKeyInfo keyInfo) {
+        EncryptRecipientChip(UnifiedKeyInfo keyInfo, KeySearchMatcher keySearchMatcher) {
             this.keyInfo = keyInfo;
+            this.keySearchMatcher = keySearchMatcher;
         }
 
         @Override
@@ -67,11 +70,12 @@ public class EncryptRecipientChipsInput extends ChipsInput<EncryptRecipientChip>
 
         @Override
         public boolean isKeptForConstraint(CharSequence constraint) {
-            return keyInfo.uidSearchString().contains(constraint);
+            return keySearchMatcher.matches(constraint.toString(), keyInfo.master_key_id());
         }
     }
 
-    public static EncryptRecipientChip chipFromUnifiedKeyInfo(UnifiedKeyInfo keyInfo) {
-        return new EncryptRecipientChip(keyInfo);
+    public static EncryptRecipientChip chipFromUnifiedKeyInfo(UnifiedKeyInfo keyInfo,
+            KeySearchMatcher keySearchMatcher) {
+        return new EncryptRecipientChip(keyInfo, keySearchMatcher);
     }
 }
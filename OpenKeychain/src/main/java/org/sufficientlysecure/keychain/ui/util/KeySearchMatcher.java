@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.util;
+
+
+import java.util.Set;
+
+import android.text.TextUtils;
+
+import org.sufficientlysecure.keychain.daos.KeyRepository;
+
+
+/**
+ * Matches keys against a search string, using the search index of KeyRepository. Filters call
+ * this once per item, so the matching master key ids are queried only once per search string.
+ */
+public class KeySearchMatcher {
+    private final KeyRepository keyRepository;
+
+    private String lastSearchString;
+    private Set<Long> lastMatchingMasterKeyIds;
+
+    public KeySearchMatcher(KeyRepository keyRepository) {
+        this.keyRepository = keyRepository;
+    }
+
+    public synchronized boolean matches(String searchString, long masterKeyId) {
+        if (TextUtils.isEmpty(searchString)) {
+            return true;
+        }
+        if (!searchString.equals(lastSearchString)) {
+            lastMatchingMasterKeyIds = keyRepository.getMasterKeyIdsBySearch(searchString);
+            lastSearchString = searchString;
+        }
+        return lastMatchingMasterKeyIds == null || lastMatchingMasterKeyIds.contains(masterKeyId);
+    }
+
+    /** Forgets the last result, so the next call queries the search index again. */
+    public synchronized void invalidate() {
+        lastSearchString = null;
+        lastMatchingMasterKeyIds = null;
+    }
+}
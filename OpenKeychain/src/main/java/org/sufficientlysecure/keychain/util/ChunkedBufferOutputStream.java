@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
+import timber.log.Timber;
+
+
+/**
+ * An output stream that collects data in fixed-size chunks, as a replacement for
+ * ByteArrayOutputStream where the output may be large. Chunks are never grown or copied, and
+ * the data can be read back through {@link #openInputStream()} without creating another copy.
+ * <p/>
+ * Once more than the spill threshold has been written, the data is moved to a file from
+ * TemporaryFileProvider, and all further data is written there. The file is available as a
+ * uri through {@link #getSpillUri()}.
+ * <p/>
+ * Chunks are taken from a small shared pool, and are cleared and returned to it on
+ * {@link #release()}. Streams opened with {@link #openInputStream()} must not be used after that.
+ */
+public class ChunkedBufferOutputStream extends OutputStream {
+    static final int CHUNK_SIZE = 64 * 1024;
+    public static final long DEFAULT_SPILL_THRESHOLD = 8 * 1024 * 1024;
+
+    private static final int MAX_POOLED_CHUNKS = 32;
+    private static final ArrayDeque<byte[]> chunkPool = new ArrayDeque<>();
+
+    private final Context context;
+    private final long spillThreshold;
+
+    private final ArrayList<byte[]> chunks = new ArrayList<>();
+    private int lastChunkLength;
+    private long size;
+
+    private Uri spillUri;
+    private OutputStream spillOutputStream;
+
+    private boolean closed;
+    private boolean released;
+
+    public ChunkedBufferOutputStream(Context context) {
+        this(context, DEFAULT_SPILL_THRESHOLD);
+    }
+
+    public ChunkedBufferOutputStream(Context context, long spillThreshold) {
+        this.context = context;
+        this.spillThreshold = spillThreshold;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed!");
+        }
+
+        if (spillOutputStream == null && size + len > spillThreshold) {
+            spillToFile();
+        }
+        if (spillOutputStream != null) {
+            spillOutputStream.write(b, off, len);
+            size += len;
+            return;
+        }
+
+        while (len > 0) {
+            if (chunks.isEmpty() || lastChunkLength == CHUNK_SIZE) {
+                chunks.add(obtainChunk());
+                lastChunkLength = 0;
+            }
+            int count = Math.min(len, CHUNK_SIZE - lastChunkLength);
+            System.arraycopy(b, off, chunks.get(chunks.size() - 1), lastChunkLength, count);
+            lastChunkLength += count;
+            size += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    private void spillToFile() throws IOException {
+        Uri uri = TemporaryFileProvider.createFile(context);
+        if (uri == null) {
+            throw new IOException("Could not create temporary file!");
+        }
+        spillUri = uri;
+        spillOutputStream = context.getContentResolver().openOutputStream(uri);
+        if (spillOutputStream == null) {
+            throw new IOException("Could not open temporary file!");
+        }
+
+        for (int i = 0; i < chunks.size(); i++) {
+            spillOutputStream.write(chunks.get(i), 0, getChunkLength(i));
+        }
+        recycleChunks();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (spillOutputStream != null) {
+            spillOutputStream.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (spillOutputStream != null) {
+            spillOutputStream.close();
+        }
+    }
+
+    /** Returns the number of bytes written. */
+    public long getSize() {
+        return size;
+    }
+
+    /** Returns the uri of the temporary file the data was moved to, or null if it is held in memory. */
+    @Nullable
+    public Uri getSpillUri() {
+        return spillUri;
+    }
+
+    /** Opens a stream over the written data. This may be called more than once, but only after close. */
+    public InputStream openInputStream() throws IOException {
+        if (!closed) {
+            throw new IllegalStateException("Stream must be closed before reading!");
+        }
+        if (released) {
+            throw new IllegalStateException("Buffer was already released!");
+        }
+
+        if (spillUri != null) {
+            InputStream inputStream = context.getContentResolver().openInputStream(spillUri);
+            if (inputStream == null) {
+                throw new FileNotFoundException("Could not open temporary file!");
+            }
+            return inputStream;
+        }
+        return new ChunkInputStream();
+    }
+
+    /**
+     * Returns the written data as a single array. This copies all data, and should be avoided
+     * where the size of the output isn't bounded.
+     */
+    public byte[] toByteArray() throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Data is too large for an array!");
+        }
+        byte[] result = new byte[(int) size];
+        InputStream in = openInputStream();
+        try {
+            int offset = 0;
+            for (int read; offset < result.length && (read = in.read(result, offset, result.length - offset)) != -1; ) {
+                offset += read;
+            }
+            if (offset < result.length) {
+                throw new IOException("Unexpected end of data!");
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    /** Returns all chunks to the pool, and deletes the temporary file if there is one. */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        recycleChunks();
+        if (spillUri != null) {
+            try {
+                close();
+            } catch (IOException e) {
+                Timber.e(e, "Error closing temporary file");
+            }
+            context.getContentResolver().delete(spillUri, null, null);
+        }
+    }
+
+    private int getChunkLength(int index) {
+        return index == chunks.size() - 1 ? lastChunkLength : CHUNK_SIZE;
+    }
+
+    private void recycleChunks() {
+        synchronized (chunkPool) {
+            for (byte[] chunk : chunks) {
+                // chunks may hold plaintext, don't leave it lying around for the next user
+                Arrays.fill(chunk, (byte) 0);
+                if (chunkPool.size() < MAX_POOLED_CHUNKS) {
+                    chunkPool.push(chunk);
+                }
+            }
+        }
+        chunks.clear();
+        lastChunkLength = 0;
+    }
+
+    private static byte[] obtainChunk() {
+        synchronized (chunkPool) {
+            byte[] chunk = chunkPool.poll();
+            if (chunk != null) {
+                return chunk;
+            }
+        }
+        return new byte[CHUNK_SIZE];
+    }
+
+    private class ChunkInputStream extends InputStream {
+        private int chunkIndex;
+        private int chunkOffset;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (released) {
+                throw new IOException("Buffer was released!");
+            }
+            if (len == 0) {
+                return 0;
+            }
+
+            int totalRead = 0;
+            while (len > 0 && chunkIndex < chunks.size()) {
+                int chunkLength = getChunkLength(chunkIndex);
+                if (chunkOffset == chunkLength) {
+                    chunkIndex += 1;
+                    chunkOffset = 0;
+                    continue;
+                }
+                int count = Math.min(len, chunkLength - chunkOffset);
+                System.arraycopy(chunks.get(chunkIndex), chunkOffset, b, off, count);
+                chunkOffset += count;
+                totalRead += count;
+                off += count;
+                len -= count;
+            }
+            return totalRead > 0 ? totalRead : -1;
+        }
+
+        @Override
+        public int available() {
+            if (chunkIndex >= chunks.size()) {
+                return 0;
+            }
+            return getChunkLength(chunkIndex) - chunkOffset;
+        }
+    }
+}
@@ -81,6 +81,18 @@ public class Passphrase implements Parcelable {
         setEmpty();
     }
 
+    /** Returns a copy of this passphrase, including its cached session keys. */
+    public Passphrase copy() {
+        Passphrase copy = new Passphrase(mPassphrase.clone());
+        if (mCachedSessionKeys != null) {
+            copy.mCachedSessionKeys = new HashMap<>();
+            for (Entry<ParcelableS2K, byte[]> entry : mCachedSessionKeys.entrySet()) {
+                copy.mCachedSessionKeys.put(entry.getKey(), entry.getValue().clone());
+            }
+        }
+        return copy;
+    }
+
     public char[] getCharArray() {
         return mPassphrase;
     }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Locale;
+
+
+/**
+ * A minimal benchmark harness for code that needs the Robolectric environment, which JMH
+ * can't provide in its forked JVMs.
+ * <p/>
+ * Each benchmark is warmed up, then measured over a number of fixed-length iterations as
+ * average time per operation. Results are written in the JSON format of JMH, so they can be
+ * compared between commits with the usual JMH tooling.
+ */
+public class MicroBenchmark {
+    public static final String RESULT_FILE_PROPERTY = "benchmark.resultFile";
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 1000L * 1000 * 1000;
+    // two-sided 99.9% quantile of the normal distribution
+    private static final double CONFIDENCE_QUANTILE = 3.291;
+
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    // shared by all benchmark classes, they run in the same test JVM and write to the same file
+    private static final ArrayList<Result> results = new ArrayList<>();
+
+    /** Runs a benchmark, and returns its average time per operation in microseconds. */
+    public synchronized double run(String benchmarkName, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runIteration(operation);
+        }
+
+        double[] scores = new double[MEASUREMENT_ITERATIONS];
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            scores[i] = runIteration(operation);
+        }
+
+        Result result = new Result(benchmarkName, scores);
+        synchronized (results) {
+            results.add(result);
+        }
+        System.out.println(String.format(Locale.ENGLISH, "%s: %.3f ± %.3f us/op",
+                benchmarkName, result.score, result.scoreError));
+        return result.score;
+    }
+
+    private static double runIteration(Operation operation) throws Exception {
+        long operations = 0;
+        long startTime = System.nanoTime();
+        long elapsed;
+        do {
+            operation.run();
+            operations += 1;
+            elapsed = System.nanoTime() - startTime;
+        } while (elapsed < ITERATION_NANOS);
+        return elapsed / 1000.0 / operations;
+    }
+
+    /** Writes the results of all benchmarks so far to the file in the benchmark.resultFile property, if any. */
+    public synchronized void writeResults() throws IOException {
+        String resultFileName = System.getProperty(RESULT_FILE_PROPERTY);
+        if (resultFileName == null) {
+            return;
+        }
+
+        File resultFile = new File(resultFileName);
+        File resultDir = resultFile.getParentFile();
+        if (resultDir != null && !resultDir.exists() && !resultDir.mkdirs()) {
+            throw new IOException("Could not create benchmark result directory!");
+        }
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(resultFile), "UTF-8");
+        try {
+            ArrayList<Result> results;
+            synchronized (MicroBenchmark.results) {
+                results = new ArrayList<>(MicroBenchmark.results);
+            }
+            writer.write("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                writer.write(results.get(i).toJson());
+                writer.write(i < results.size() - 1 ? ",\n" : "\n");
+            }
+            writer.write("]\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static class Result {
+        final String benchmarkName;
+        final double[] scores;
+        final double score;
+        final double scoreError;
+
+        Result(String benchmarkName, double[] scores) {
+            this.benchmarkName = benchmarkName;
+            this.scores = scores;
+
+            double sum = 0;
+            for (double value : scores) {
+                sum += value;
+            }
+            score = sum / scores.length;
+
+            double squaredDeviations = 0;
+            for (double value : scores) {
+                squaredDeviations += (value - score) * (value - score);
+            }
+            double standardDeviation = Math.sqrt(squaredDeviations / (scores.length - 1));
+            scoreError = CONFIDENCE_QUANTILE * standardDeviation / Math.sqrt(scores.length);
+        }
+
+        String toJson() {
+            StringBuilder rawData = new StringBuilder();
+            for (int i = 0; i < scores.length; i++) {
+                rawData.append(i > 0 ? ", " : "").append(formatDouble(scores[i]));
+            }
+
+            return "    {\n" +
+                    "        \"benchmark\" : \"" + benchmarkName + "\",\n" +
+                    "        \"mode\" : \"avgt\",\n" +
+                    "        \"threads\" : 1,\n" +
+                    "        \"forks\" : 0,\n" +
+                    "        \"warmupIterations\" : " + WARMUP_ITERATIONS + ",\n" +
+                    "        \"warmupTime\" : \"1 s\",\n" +
+                    "        \"measurementIterations\" : " + MEASUREMENT_ITERATIONS + ",\n" +
+                    "        \"measurementTime\" : \"1 s\",\n" +
+                    "        \"primaryMetric\" : {\n" +
+                    "            \"score\" : " + formatDouble(score) + ",\n" +
+                    "            \"scoreError\" : " + formatDouble(scoreError) + ",\n" +
+                    "            \"scoreConfidence\" : [ " + formatDouble(score - scoreError) + ", " +
+                    formatDouble(score + scoreError) + " ],\n" +
+                    "            \"scoreUnit\" : \"us/op\",\n" +
+                    "            \"rawData\" : [ [ " + rawData + " ] ]\n" +
+                    "        }\n" +
+                    "    }";
+        }
+
+        private static String formatDouble(double value) {
+            return String.format(Locale.ENGLISH, "%.3f", value);
+        }
+    }
+}
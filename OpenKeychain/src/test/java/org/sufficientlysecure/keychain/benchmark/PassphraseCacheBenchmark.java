@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.PassphraseCache;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+/**
+ * Benchmarks for passphrase cache lookups, as they happen in every sign or decrypt operation.
+ * Run them with
+ * <pre>./gradlew testFdroidDebugUnitTest -Pbenchmark</pre>
+ * <p/>
+ * Lookups used to start a HandlerThread, send an intent to the service and wait for its reply.
+ * lookupWithThreadHandoff reproduces the thread creation and handoff of that path around a
+ * direct lookup, as a lower bound for it - the intent and Messenger round trip can't be
+ * reproduced here.
+ */
+@RunWith(KeychainTestRunner.class)
+public class PassphraseCacheBenchmark {
+    private static final MicroBenchmark benchmark = new MicroBenchmark();
+
+    private static UncachedKeyRing secretRing;
+
+    private long masterKeyId;
+    private long subKeyId;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        secretRing = KeyringTestingHelper.readRingFromResource("/test-keys/encrypt_decrypt_key_1.sec");
+    }
+
+    @AfterClass
+    public static void tearDownOnce() throws Exception {
+        benchmark.writeResults();
+    }
+
+    @Before
+    public void setUp() {
+        KeyWritableRepository.create(RuntimeEnvironment.application).saveSecretKeyRing(secretRing);
+
+        masterKeyId = secretRing.getMasterKeyId();
+        subKeyId = KeyringTestingHelper.getSubkeyId(secretRing, 1);
+        // the cache lives in this process, as it would in the main process
+        PassphraseCache.createInstance(RuntimeEnvironment.application);
+        PassphraseCacheService.addCachedPassphrase(RuntimeEnvironment.application, masterKeyId, subKeyId,
+                new Passphrase("RsKrW^raOPcnQ=ZJr-pP"), "benchmark", Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void lookupDirect() throws Exception {
+        benchmark.run(benchmarkName("lookupDirect"), this::lookup);
+    }
+
+    @Test
+    public void lookupWithThreadHandoff() throws Exception {
+        benchmark.run(benchmarkName("lookupWithThreadHandoff"), () -> {
+            final Object mutex = new Object();
+            final Passphrase[] result = new Passphrase[1];
+
+            Thread lookupThread = new Thread(() -> {
+                Passphrase passphrase = lookup();
+                synchronized (mutex) {
+                    result[0] = passphrase;
+                    mutex.notify();
+                }
+            });
+
+            synchronized (mutex) {
+                lookupThread.start();
+                while (result[0] == null) {
+                    mutex.wait();
+                }
+            }
+        });
+    }
+
+    private Passphrase lookup() {
+        try {
+            Passphrase passphrase = PassphraseCacheService.getCachedPassphrase(
+                    RuntimeEnvironment.application, masterKeyId, subKeyId);
+            Assert.assertNotNull(passphrase);
+            return passphrase;
+        } catch (PassphraseCacheService.KeyNotFoundException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String benchmarkName(String methodName) {
+        return PassphraseCacheBenchmark.class.getName() + "." + methodName;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Security;
+import java.util.Random;
+
+import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+/**
+ * Benchmarks for the PGP hot paths. These are excluded from the regular unit tests, run them with
+ * <pre>./gradlew testFdroidDebugUnitTest -Pbenchmark</pre>
+ * Results are written to build/reports/benchmarks/ as JMH-compatible JSON.
+ */
+@RunWith(KeychainTestRunner.class)
+public class PgpHotPathBenchmark {
+    private static final int PLAINTEXT_SIZE = 64 * 1024;
+
+    private static final MicroBenchmark benchmark = new MicroBenchmark();
+
+    private static UncachedKeyRing secretRing;
+    private static Passphrase secretRingPassphrase;
+    private static UncachedKeyRing publicRing;
+    private static byte[] plaintext;
+
+    private KeyWritableRepository keyWritableRepository;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        secretRing = KeyringTestingHelper.readRingFromResource("/test-keys/encrypt_decrypt_key_1.sec");
+        secretRingPassphrase = new Passphrase("RsKrW^raOPcnQ=ZJr-pP");
+        publicRing = KeyringTestingHelper.readRingFromResource("/test-keys/testring.pub");
+
+        plaintext = new byte[PLAINTEXT_SIZE];
+        new Random(0).nextBytes(plaintext);
+    }
+
+    @AfterClass
+    public static void tearDownOnce() throws Exception {
+        benchmark.writeResults();
+    }
+
+    @Before
+    public void setUp() {
+        keyWritableRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        keyWritableRepository.saveSecretKeyRing(secretRing);
+    }
+
+    @Test
+    public void signEncrypt() throws Exception {
+        benchmark.run(benchmarkName("signEncrypt"), this::signEncryptPlaintext);
+    }
+
+    @Test
+    public void decryptVerify() throws Exception {
+        byte[] ciphertext = signEncryptPlaintext();
+        benchmark.run(benchmarkName("decryptVerify"), () -> decryptVerify(ciphertext));
+    }
+
+    @Test
+    public void verifySignature() throws Exception {
+        byte[] signedData = signPlaintext();
+        // no encryption, so this is all PgpSignatureChecker
+        benchmark.run(benchmarkName("verifySignature"), () -> decryptVerify(signedData));
+    }
+
+    @Test
+    public void canonicalize() throws Exception {
+        benchmark.run(benchmarkName("canonicalize"), () -> {
+            Assert.assertNotNull(publicRing.canonicalize(new OperationLog(), 0));
+        });
+    }
+
+    @Test
+    public void merge() throws Exception {
+        benchmark.run(benchmarkName("merge"), () -> {
+            Assert.assertNotNull(publicRing.merge(publicRing, new OperationLog(), 0));
+        });
+    }
+
+    @Test
+    public void savePublicKeyRing() throws Exception {
+        benchmark.run(benchmarkName("savePublicKeyRing"), () -> {
+            Assert.assertTrue(keyWritableRepository.savePublicKeyRing(publicRing, true).success());
+        });
+    }
+
+    @Test
+    public void armorEncode() throws Exception {
+        benchmark.run(benchmarkName("armorEncode"), () -> armor(plaintext));
+    }
+
+    @Test
+    public void armorDecode() throws Exception {
+        byte[] armoredData = armor(plaintext);
+        benchmark.run(benchmarkName("armorDecode"), () -> {
+            InputStream in = new ArmoredInputStream(new ByteArrayInputStream(armoredData));
+            byte[] buf = new byte[8192];
+            int decodedBytes = 0;
+            for (int read; (read = in.read(buf)) != -1; ) {
+                decodedBytes += read;
+            }
+            Assert.assertEquals(PLAINTEXT_SIZE, decodedBytes);
+        });
+    }
+
+    private byte[] signEncryptPlaintext() {
+        PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+        pgpData.setEncryptionMasterKeyIds(new long[] { secretRing.getMasterKeyId() });
+        pgpData.setSymmetricEncryptionAlgorithm(PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+        pgpData.setSignatureMasterKeyId(secretRing.getMasterKeyId());
+        pgpData.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(secretRing, 1));
+        return signEncrypt(pgpData.build());
+    }
+
+    private byte[] signPlaintext() {
+        PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+        pgpData.setSignatureMasterKeyId(secretRing.getMasterKeyId());
+        pgpData.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(secretRing, 1));
+        pgpData.setCleartextSignature(false);
+        pgpData.setDetachedSignature(false);
+        return signEncrypt(pgpData.build());
+    }
+
+    private byte[] signEncrypt(PgpSignEncryptData pgpData) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                keyWritableRepository, null);
+        PgpSignEncryptResult result = op.execute(pgpData,
+                CryptoInputParcel.createCryptoInputParcel(secretRingPassphrase),
+                new InputData(in, in.available()), out);
+        Assert.assertTrue("signing and encryption must succeed", result.success());
+
+        return out.toByteArray();
+    }
+
+    private void decryptVerify(byte[] ciphertext) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+
+        PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(RuntimeEnvironment.application,
+                keyWritableRepository, null);
+        DecryptVerifyResult result = op.execute(PgpDecryptVerifyInputParcel.builder().build(),
+                CryptoInputParcel.createCryptoInputParcel(secretRingPassphrase),
+                new InputData(in, in.available()), out);
+        Assert.assertTrue("decryption and verification must succeed", result.success());
+    }
+
+    private static byte[] armor(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArmoredOutputStream armorOut = new ArmoredOutputStream(out);
+        armorOut.write(data);
+        armorOut.close();
+        return out.toByteArray();
+    }
+
+    private static String benchmarkName(String methodName) {
+        return PgpHotPathBenchmark.class.getName() + "." + methodName;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.security.Security;
+import java.util.Locale;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyRepository;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.PassphraseCache;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.ssh.AuthenticationData;
+import org.sufficientlysecure.keychain.ssh.AuthenticationOperation;
+import org.sufficientlysecure.keychain.ssh.AuthenticationParcel;
+import org.sufficientlysecure.keychain.ssh.AuthenticationResult;
+import org.sufficientlysecure.keychain.ssh.SshSignerCache;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+/**
+ * Benchmarks for SSH agent signatures, as requested over SshAuthenticationService. Run them with
+ * <pre>./gradlew testFdroidDebugUnitTest -Pbenchmark</pre>
+ * <p/>
+ * Both sign a challenge with the passphrase taken from the passphrase cache. signColdSigner
+ * loads and unlocks the key for every signature, signWarmSigner uses the SshSignerCache.
+ * Throughput is printed as signatures per second, the JSON results are in us/op.
+ */
+@RunWith(KeychainTestRunner.class)
+public class SshAuthenticationBenchmark {
+    private static final MicroBenchmark benchmark = new MicroBenchmark();
+
+    private static UncachedKeyRing secretRing;
+
+    private KeyRepository keyRepository;
+    private AuthenticationData authenticationData;
+    private AuthenticationParcel authenticationParcel;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        secretRing = KeyringTestingHelper.readRingFromResource("/test-keys/authenticate_ecdsa.sec");
+    }
+
+    @AfterClass
+    public static void tearDownOnce() throws Exception {
+        benchmark.writeResults();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        KeyWritableRepository.create(RuntimeEnvironment.application).saveSecretKeyRing(secretRing);
+        keyRepository = KeyRepository.create(RuntimeEnvironment.application);
+
+        long masterKeyId = secretRing.getMasterKeyId();
+        long authSubKeyId = keyRepository.getEffectiveAuthenticationKeyId(masterKeyId);
+        // the cache lives in this process, as it would in the main process
+        PassphraseCache.createInstance(RuntimeEnvironment.application);
+        PassphraseCacheService.addCachedPassphrase(RuntimeEnvironment.application, masterKeyId, authSubKeyId,
+                new Passphrase("x"), "benchmark", Integer.MAX_VALUE);
+
+        authenticationData = AuthenticationData.builder()
+                .setAuthenticationMasterKeyId(masterKeyId)
+                .setAuthenticationSubKeyId(authSubKeyId)
+                .setHashAlgorithm(HashAlgorithmTags.SHA256)
+                .build();
+        authenticationParcel = AuthenticationParcel.createAuthenticationParcel(
+                authenticationData, "ssh session challenge".getBytes());
+    }
+
+    @Test
+    public void signColdSigner() throws Exception {
+        runSignatureBenchmark("signColdSigner", null);
+    }
+
+    @Test
+    public void signWarmSigner() throws Exception {
+        runSignatureBenchmark("signWarmSigner", SshSignerCache.getInstance(RuntimeEnvironment.application));
+    }
+
+    private void runSignatureBenchmark(String methodName, SshSignerCache signerCache) throws Exception {
+        double microsPerSignature = benchmark.run(benchmarkName(methodName), () -> {
+            AuthenticationOperation op = new AuthenticationOperation(RuntimeEnvironment.application,
+                    keyRepository, signerCache);
+            AuthenticationResult result = op.execute(authenticationData,
+                    CryptoInputParcel.createCryptoInputParcel(), authenticationParcel);
+            Assert.assertTrue("authentication must succeed", result.success());
+        });
+        System.out.println(String.format(Locale.ENGLISH, "%s: %.1f signatures/s",
+                benchmarkName(methodName), 1000000 / microsPerSignature));
+    }
+
+    private static String benchmarkName(String methodName) {
+        return SshAuthenticationBenchmark.class.getName() + "." + methodName;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.operations.CertifyOperation;
+import org.sufficientlysecure.keychain.operations.results.CertifyResult;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+
+/**
+ * Benchmarks for updating the trust database after a secret key was added. Run them with
+ * <pre>./gradlew testFdroidDebugUnitTest -Pbenchmark</pre>
+ * <p/>
+ * fullResave reproduces what updateTrustDb did before it updated certifications in place.
+ */
+@RunWith(KeychainTestRunner.class)
+public class TrustDbUpdateBenchmark {
+    private static final int NUM_CERTIFIED_KEYS = 20;
+
+    private static final MicroBenchmark benchmark = new MicroBenchmark();
+
+    private static UncachedKeyRing signerRing;
+    private static ArrayList<UncachedKeyRing> certifiedRings = new ArrayList<>();
+
+    private KeyWritableRepository keyWritableRepository;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        Passphrase signerPassphrase = TestingUtils.testPassphrase0;
+        signerRing = KeyringTestingHelper.createKeyRing("signer", signerPassphrase);
+
+        KeyWritableRepository keyWritableRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        keyWritableRepository.saveSecretKeyRing(signerRing);
+
+        CertifyActionsParcel.Builder actions = CertifyActionsParcel.builder(signerRing.getMasterKeyId());
+        ArrayList<Long> certifiedMasterKeyIds = new ArrayList<>();
+        for (int i = 0; i < NUM_CERTIFIED_KEYS; i++) {
+            UncachedKeyRing publicRing = KeyringTestingHelper.createKeyRing("certified " + i).extractPublicKeyRing();
+            keyWritableRepository.savePublicKeyRing(publicRing);
+            actions.addAction(CertifyAction.createForUserIds(publicRing.getMasterKeyId(),
+                    publicRing.getPublicKey().getUnorderedUserIds()));
+            certifiedMasterKeyIds.add(publicRing.getMasterKeyId());
+        }
+
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application, keyWritableRepository, null, null);
+        CertifyResult result = op.execute(actions.build(),
+                CryptoInputParcel.createCryptoInputParcel(new Date(), signerPassphrase));
+        Assert.assertTrue("certification must succeed", result.success());
+
+        for (long masterKeyId : certifiedMasterKeyIds) {
+            certifiedRings.add(keyWritableRepository.getCanonicalizedPublicKeyRing(masterKeyId).getUncachedKeyRing());
+        }
+    }
+
+    @AfterClass
+    public static void tearDownOnce() throws Exception {
+        benchmark.writeResults();
+    }
+
+    @Before
+    public void setUp() {
+        keyWritableRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        for (UncachedKeyRing certifiedRing : certifiedRings) {
+            keyWritableRepository.savePublicKeyRing(certifiedRing);
+        }
+        keyWritableRepository.saveSecretKeyRing(signerRing);
+    }
+
+    @Test
+    public void incrementalUpdate() throws Exception {
+        benchmark.run(benchmarkName("incrementalUpdate"), () -> {
+            Assert.assertTrue(keyWritableRepository.updateTrustDb(
+                    Collections.singletonList(signerRing.getMasterKeyId()), new ProgressScaler()).success());
+        });
+    }
+
+    @Test
+    public void fullResave() throws Exception {
+        benchmark.run(benchmarkName("fullResave"), () -> {
+            for (UncachedKeyRing certifiedRing : certifiedRings) {
+                UncachedKeyRing storedRing = UncachedKeyRing.decodeFromData(
+                        keyWritableRepository.loadPublicKeyRingData(certifiedRing.getMasterKeyId()));
+                keyWritableRepository.clearLog();
+                Assert.assertTrue(keyWritableRepository.savePublicKeyRing(storedRing, true).success());
+            }
+        });
+    }
+
+    private static String benchmarkName(String methodName) {
+        return TrustDbUpdateBenchmark.class.getName() + "." + methodName;
+    }
+}
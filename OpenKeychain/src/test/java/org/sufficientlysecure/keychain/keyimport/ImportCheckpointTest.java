@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+
+@RunWith(KeychainTestRunner.class)
+public class ImportCheckpointTest {
+    KeyRingFileCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new KeyRingFileCache(RuntimeEnvironment.application, "test.kcache");
+        cache.writeCache(createKeyRings(10, (byte) 1).iterator());
+    }
+
+    @Test
+    public void testResumeAtCommittedPosition() throws Exception {
+        ImportCheckpoint checkpoint = ImportCheckpoint.loadOrCreate(cache);
+        Assert.assertEquals("new checkpoint must start at the beginning", 0, checkpoint.getCommittedPosition());
+
+        checkpoint.commit(4);
+
+        ImportCheckpoint resumedCheckpoint = ImportCheckpoint.loadOrCreate(cache);
+        Assert.assertEquals(4, resumedCheckpoint.getCommittedPosition());
+    }
+
+    @Test
+    public void testCheckpointOfDifferentDataIsIgnored() throws Exception {
+        ImportCheckpoint.loadOrCreate(cache).commit(4);
+
+        cache.writeCache(createKeyRings(10, (byte) 2).iterator());
+
+        ImportCheckpoint checkpoint = ImportCheckpoint.loadOrCreate(cache);
+        Assert.assertEquals("checkpoint must not be used for other data", 0, checkpoint.getCommittedPosition());
+    }
+
+    @Test
+    public void testDeletedCheckpoint() throws Exception {
+        ImportCheckpoint checkpoint = ImportCheckpoint.loadOrCreate(cache);
+        checkpoint.commit(4);
+        checkpoint.delete();
+
+        Assert.assertEquals(0, ImportCheckpoint.loadOrCreate(cache).getCommittedPosition());
+    }
+
+    private static ArrayList<ParcelableKeyRing> createKeyRings(int count, byte tag) {
+        ArrayList<ParcelableKeyRing> list = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            list.add(ParcelableKeyRing.createFromEncodedBytes(new byte[] { tag, (byte) i }));
+        }
+        return list;
+    }
+}
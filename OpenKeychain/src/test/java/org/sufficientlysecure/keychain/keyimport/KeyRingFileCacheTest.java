@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.util.IteratorWithSize;
+
+
+@RunWith(KeychainTestRunner.class)
+public class KeyRingFileCacheTest {
+
+    @Test
+    public void testInputOutput() throws Exception {
+        KeyRingFileCache cache = new KeyRingFileCache(RuntimeEnvironment.application, "test.kcache");
+        ArrayList<ParcelableKeyRing> list = createKeyRings(50);
+
+        cache.writeCache(list.iterator());
+
+        IteratorWithSize<ParcelableKeyRing> it = cache.readCache();
+        Assert.assertEquals("number of entries must be correct", list.size(), it.getSize());
+        for (ParcelableKeyRing keyRing : list) {
+            Assert.assertTrue(it.hasNext());
+            Assert.assertEquals("output values should be equal to input values", keyRing, it.next());
+        }
+        Assert.assertFalse(it.hasNext());
+
+        Assert.assertFalse("cache file must be deleted after read",
+                new File(RuntimeEnvironment.application.getCacheDir(), "test.kcache").exists());
+    }
+
+    @Test
+    public void testRandomAccess() throws Exception {
+        KeyRingFileCache cache = new KeyRingFileCache(RuntimeEnvironment.application, "test.kcache");
+        ArrayList<ParcelableKeyRing> list = createKeyRings(20);
+        cache.writeCache(list.iterator());
+
+        KeyRingFileCache.Reader reader = cache.openReader();
+        try {
+            Assert.assertEquals(list.size(), reader.size());
+            Assert.assertEquals(list.get(13), reader.get(13));
+            Assert.assertEquals(list.get(2), reader.get(2));
+            Assert.assertEquals(list.get(19), reader.get(19));
+        } finally {
+            reader.close();
+        }
+
+        Assert.assertTrue("cache file must not be deleted by reader", cache.delete());
+    }
+
+    @Test
+    public void testLargeEntry() throws Exception {
+        KeyRingFileCache cache = new KeyRingFileCache(RuntimeEnvironment.application, "test.kcache");
+        byte[] largeBytes = new byte[200 * 1024];
+        for (int i = 0; i < largeBytes.length; i++) {
+            largeBytes[i] = (byte) i;
+        }
+        ArrayList<ParcelableKeyRing> list = createKeyRings(3);
+        list.add(1, ParcelableKeyRing.createFromEncodedBytes(largeBytes));
+        cache.writeCache(list.iterator());
+
+        KeyRingFileCache.Reader reader = cache.openReader();
+        try {
+            for (int i = 0; i < list.size(); i++) {
+                Assert.assertEquals(list.get(i), reader.get(i));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsUnknownFormat() throws Exception {
+        File cacheFile = new File(RuntimeEnvironment.application.getCacheDir(), "test.kcache");
+        FileOutputStream outputStream = new FileOutputStream(cacheFile);
+        outputStream.write(new byte[] { 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 8 });
+        outputStream.close();
+
+        new KeyRingFileCache(RuntimeEnvironment.application, "test.kcache").readCache();
+    }
+
+    private static ArrayList<ParcelableKeyRing> createKeyRings(int count) {
+        ArrayList<ParcelableKeyRing> list = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (i % 2 == 0) {
+                list.add(ParcelableKeyRing.createFromEncodedBytes(new byte[] { (byte) i, 1, 2, 3 }));
+            } else {
+                list.add(ParcelableKeyRing.createFromReference(
+                        new byte[] { (byte) i, 4, 5 }, "0x" + Integer.toHexString(i), i % 3 == 0 ? null : "user" + i));
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.IteratorWithSize;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(KeychainTestRunner.class)
+public class KeyRingIndexTest {
+    static UncachedKeyRing secretRingA;
+    static UncachedKeyRing publicRingB;
+    static UncachedKeyRing publicRingC;
+
+    ContentResolver mockResolver;
+    Application spyApplication;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        secretRingA = KeyringTestingHelper.createKeyRing("Alice <alice@example.com>");
+        publicRingB = KeyringTestingHelper.createKeyRing("Bob <bob@example.org>").extractPublicKeyRing();
+        publicRingC = KeyringTestingHelper.createKeyRing("Carol <carol@example.net>").extractPublicKeyRing();
+    }
+
+    @Before
+    public void setUp() {
+        mockResolver = mock(ContentResolver.class);
+        spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+    }
+
+    @Test
+    public void testBinaryInputIsIndexedInPlace() throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(secretRingA.getEncoded());
+        data.write(publicRingB.getEncoded());
+        data.write(publicRingC.getEncoded());
+        final byte[] bytes = data.toByteArray();
+
+        Uri sourceUri = Uri.parse("content://fake/keys.gpg");
+        when(mockResolver.openInputStream(sourceUri)).thenAnswer(invocation -> new ByteArrayInputStream(bytes));
+
+        KeyRingIndex index = KeyRingIndex.build(spyApplication, new ByteArrayInputStream(bytes), sourceUri);
+
+        verify(mockResolver, never()).insert(any(Uri.class), any(ContentValues.class));
+        Assert.assertEquals(3, index.size());
+        Assert.assertTrue(index.isSecret(0));
+        Assert.assertFalse(index.isSecret(1));
+        Assert.assertFalse(index.isSecret(2));
+
+        List<byte[]> keyRings = index.readKeyRings(spyApplication, 1, 3);
+        Assert.assertArrayEquals(publicRingB.getEncoded(), keyRings.get(0));
+        Assert.assertArrayEquals(publicRingC.getEncoded(), keyRings.get(1));
+
+        index.deleteDecodedCopy(spyApplication);
+        verify(mockResolver, never()).delete(any(), any(), any());
+    }
+
+    @Test
+    public void testArmoredInputIsDecoded() throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        // several consecutive armor blocks, with text in between
+        secretRingA.encodeArmored(data, null);
+        publicRingB.encodeArmored(data, null);
+        data.write("\n".getBytes());
+        publicRingC.encodeArmored(data, null);
+
+        final ByteArrayOutputStream decodedOutputStream = new ByteArrayOutputStream();
+        Uri fakeTempFileUri = Uri.parse("content://fake/out/1");
+        when(mockResolver.insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class)))
+                .thenReturn(fakeTempFileUri);
+        when(mockResolver.openOutputStream(fakeTempFileUri)).thenReturn(decodedOutputStream);
+        when(mockResolver.openInputStream(fakeTempFileUri)).thenAnswer(
+                invocation -> new ByteArrayInputStream(decodedOutputStream.toByteArray()));
+
+        KeyRingIndex index = KeyRingIndex.build(
+                spyApplication, new ByteArrayInputStream(data.toByteArray()), null);
+
+        Assert.assertEquals(3, index.size());
+        List<byte[]> keyRings = index.readKeyRings(spyApplication, 0, 3);
+        Assert.assertEquals(secretRingA.getMasterKeyId(), UncachedKeyRing.decodeFromData(keyRings.get(0)).getMasterKeyId());
+        Assert.assertEquals(publicRingB.getMasterKeyId(), UncachedKeyRing.decodeFromData(keyRings.get(1)).getMasterKeyId());
+        Assert.assertEquals(publicRingC.getMasterKeyId(), UncachedKeyRing.decodeFromData(keyRings.get(2)).getMasterKeyId());
+
+        index.deleteDecodedCopy(spyApplication);
+        verify(mockResolver).delete(fakeTempFileUri, null, null);
+    }
+
+    @Test
+    public void testDecodedCopyIsDeletedOnError() throws Exception {
+        Uri fakeTempFileUri = Uri.parse("content://fake/out/1");
+        when(mockResolver.insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class)))
+                .thenReturn(fakeTempFileUri);
+        when(mockResolver.openOutputStream(fakeTempFileUri)).thenReturn(new ByteArrayOutputStream());
+
+        byte[] truncated = Arrays.copyOf(publicRingB.getEncoded(), 10);
+        try {
+            KeyRingIndex.build(spyApplication, new ByteArrayInputStream(truncated), null);
+            Assert.fail("input without a complete keyring must not be indexed");
+        } catch (IOException e) {
+            // expected
+        }
+
+        verify(mockResolver).delete(fakeTempFileUri, null, null);
+    }
+
+    @Test
+    public void testTruncatedInputKeepsCompleteKeyRings() throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(publicRingB.getEncoded());
+        byte[] encodedC = publicRingC.getEncoded();
+        data.write(encodedC, 0, encodedC.length / 2);
+        final byte[] bytes = data.toByteArray();
+
+        Uri sourceUri = Uri.parse("content://fake/keys.gpg");
+        KeyRingIndex index = KeyRingIndex.build(spyApplication, new ByteArrayInputStream(bytes), sourceUri);
+
+        Assert.assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testImportIteratorFromCache() throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(secretRingA.getEncoded());
+        data.write(publicRingB.getEncoded());
+        data.write(publicRingC.getEncoded());
+        final byte[] bytes = data.toByteArray();
+
+        Uri sourceUri = Uri.parse("content://fake/keys.gpg");
+        when(mockResolver.openInputStream(sourceUri)).thenAnswer(invocation -> new ByteArrayInputStream(bytes));
+
+        KeyRingIndex.build(spyApplication, new ByteArrayInputStream(bytes), sourceUri).writeCache(spyApplication);
+        KeyRingIndex index = KeyRingIndex.readCache(spyApplication);
+
+        IteratorWithSize<ParcelableKeyRing> it = index.openImportIterator(spyApplication);
+        Assert.assertEquals(3, it.getSize());
+        ArrayList<Long> masterKeyIds = new ArrayList<>();
+        while (it.hasNext()) {
+            masterKeyIds.add(UncachedKeyRing.decodeFromData(it.next().getBytes()).getMasterKeyId());
+        }
+
+        // public keys must be imported before secret ones
+        Assert.assertEquals(3, masterKeyIds.size());
+        Assert.assertEquals(publicRingB.getMasterKeyId(), (long) masterKeyIds.get(0));
+        Assert.assertEquals(publicRingC.getMasterKeyId(), (long) masterKeyIds.get(1));
+        Assert.assertEquals(secretRingA.getMasterKeyId(), (long) masterKeyIds.get(2));
+    }
+}
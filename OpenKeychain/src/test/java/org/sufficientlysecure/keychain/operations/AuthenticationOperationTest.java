@@ -33,11 +33,14 @@ import org.sufficientlysecure.keychain.daos.KeyRepository;
 import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.PassphraseCache;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ssh.AuthenticationData;
 import org.sufficientlysecure.keychain.ssh.AuthenticationOperation;
 import org.sufficientlysecure.keychain.ssh.AuthenticationParcel;
 import org.sufficientlysecure.keychain.ssh.AuthenticationResult;
+import org.sufficientlysecure.keychain.ssh.SshSignerCache;
 import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
 import org.sufficientlysecure.keychain.util.Passphrase;
 
@@ -391,4 +394,128 @@ public class AuthenticationOperationTest {
             Assert.assertFalse("authentication must fail with selected key disallowed", result.success());
         }
     }
+
+    @Test
+    public void testAuthenticate_signerCachedUntilKeyChange() throws Exception {
+
+        byte[] challenge = "dies ist ein challenge ☭".getBytes();
+
+        KeyRepository keyRepository = KeyRepository.create(RuntimeEnvironment.application);
+
+        long masterKeyId = mStaticRingRsa.getMasterKeyId();
+        Long authSubKeyId = keyRepository.getEffectiveAuthenticationKeyId(masterKeyId);
+
+        PassphraseCache.createInstance(RuntimeEnvironment.application);
+        PassphraseCacheService.addCachedPassphrase(RuntimeEnvironment.application, masterKeyId, authSubKeyId,
+                new Passphrase("x"), "test", Integer.MAX_VALUE);
+        SshSignerCache signerCache = SshSignerCache.getInstance(RuntimeEnvironment.application);
+
+        AuthenticationData.Builder authData = AuthenticationData.builder();
+        authData.setAuthenticationMasterKeyId(masterKeyId);
+        authData.setAuthenticationSubKeyId(authSubKeyId);
+        authData.setHashAlgorithm(HashAlgorithmTags.SHA512);
+
+        AuthenticationParcel authenticationParcel = AuthenticationParcel
+                .createAuthenticationParcel(authData.build(), challenge);
+
+        for (int i = 0; i < 2; i++) {
+            AuthenticationOperation op = new AuthenticationOperation(RuntimeEnvironment.application,
+                    keyRepository, signerCache);
+            AuthenticationResult result = op.execute(authData.build(),
+                    CryptoInputParcel.createCryptoInputParcel(), authenticationParcel);
+            Assert.assertTrue("authentication must succeed", result.success());
+
+            PublicKey publicKey = keyRepository.getCanonicalizedPublicKeyRing(masterKeyId)
+                    .getPublicKey(authSubKeyId).getJcaPublicKey();
+            Signature signatureVerifier = Signature.getInstance("SHA512withRSA");
+            signatureVerifier.initVerify(publicKey);
+            signatureVerifier.update(challenge);
+            Assert.assertTrue("signature must be valid", signatureVerifier.verify(result.getSignature()));
+        }
+        Assert.assertEquals("second signature must use the cached signer", 1, signerCache.getHitCount());
+
+        KeyWritableRepository.create(RuntimeEnvironment.application).deleteKeyRing(masterKeyId);
+        Assert.assertEquals("key change must drop cached signers", 0, signerCache.size());
+
+        AuthenticationOperation op = new AuthenticationOperation(RuntimeEnvironment.application,
+                keyRepository, signerCache);
+        AuthenticationResult result = op.execute(authData.build(),
+                CryptoInputParcel.createCryptoInputParcel(), authenticationParcel);
+        Assert.assertFalse("authentication must fail for deleted key", result.success());
+    }
+
+    @Test
+    public void testAuthenticate_signerNotUsedAfterPassphraseCleared() throws Exception {
+
+        byte[] challenge = "dies ist ein challenge ☭".getBytes();
+
+        KeyRepository keyRepository = KeyRepository.create(RuntimeEnvironment.application);
+
+        long masterKeyId = mStaticRingEcDsa.getMasterKeyId();
+        Long authSubKeyId = keyRepository.getEffectiveAuthenticationKeyId(masterKeyId);
+
+        PassphraseCache.createInstance(RuntimeEnvironment.application);
+        PassphraseCacheService.addCachedPassphrase(RuntimeEnvironment.application, masterKeyId, authSubKeyId,
+                new Passphrase("x"), "test", Integer.MAX_VALUE);
+        SshSignerCache signerCache = SshSignerCache.getInstance(RuntimeEnvironment.application);
+
+        AuthenticationData.Builder authData = AuthenticationData.builder();
+        authData.setAuthenticationMasterKeyId(masterKeyId);
+        authData.setAuthenticationSubKeyId(authSubKeyId);
+        authData.setHashAlgorithm(HashAlgorithmTags.SHA512);
+
+        AuthenticationParcel authenticationParcel = AuthenticationParcel
+                .createAuthenticationParcel(authData.build(), challenge);
+
+        AuthenticationResult result = new AuthenticationOperation(RuntimeEnvironment.application,
+                keyRepository, signerCache).execute(authData.build(),
+                CryptoInputParcel.createCryptoInputParcel(), authenticationParcel);
+        Assert.assertTrue("authentication must succeed", result.success());
+        Assert.assertEquals(1, signerCache.size());
+
+        PassphraseCacheService.clearCachedPassphrase(RuntimeEnvironment.application, masterKeyId, authSubKeyId);
+
+        result = new AuthenticationOperation(RuntimeEnvironment.application,
+                keyRepository, signerCache).execute(authData.build(),
+                CryptoInputParcel.createCryptoInputParcel(), authenticationParcel);
+        Assert.assertTrue("without cached passphrase, the passphrase must be requested", result.isPending());
+        Assert.assertEquals(0, signerCache.getHitCount());
+    }
+
+    @Test
+    public void testAuthenticate_givenPassphraseBypassesSignerCache() throws Exception {
+
+        byte[] challenge = "dies ist ein challenge ☭".getBytes();
+
+        KeyRepository keyRepository = KeyRepository.create(RuntimeEnvironment.application);
+
+        long masterKeyId = mStaticRingEcDsa.getMasterKeyId();
+        Long authSubKeyId = keyRepository.getEffectiveAuthenticationKeyId(masterKeyId);
+
+        PassphraseCache.createInstance(RuntimeEnvironment.application);
+        PassphraseCacheService.addCachedPassphrase(RuntimeEnvironment.application, masterKeyId, authSubKeyId,
+                new Passphrase("x"), "test", Integer.MAX_VALUE);
+        SshSignerCache signerCache = SshSignerCache.getInstance(RuntimeEnvironment.application);
+
+        AuthenticationData.Builder authData = AuthenticationData.builder();
+        authData.setAuthenticationMasterKeyId(masterKeyId);
+        authData.setAuthenticationSubKeyId(authSubKeyId);
+        authData.setHashAlgorithm(HashAlgorithmTags.SHA512);
+
+        AuthenticationParcel authenticationParcel = AuthenticationParcel
+                .createAuthenticationParcel(authData.build(), challenge);
+
+        AuthenticationResult result = new AuthenticationOperation(RuntimeEnvironment.application,
+                keyRepository, signerCache).execute(authData.build(),
+                CryptoInputParcel.createCryptoInputParcel(), authenticationParcel);
+        Assert.assertTrue("authentication must succeed", result.success());
+        Assert.assertEquals(1, signerCache.size());
+
+        CryptoInputParcel inputParcel = CryptoInputParcel.createCryptoInputParcel()
+                .withPassphrase(new Passphrase("wrong"), authSubKeyId);
+        result = new AuthenticationOperation(RuntimeEnvironment.application,
+                keyRepository, signerCache).execute(authData.build(), inputParcel, authenticationParcel);
+        Assert.assertFalse("a given passphrase must be checked, even if the key is cached", result.success());
+        Assert.assertEquals(0, signerCache.getHitCount());
+    }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository.PreparedKeyRing;
+import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(KeychainTestRunner.class)
+public class ImportOperationTest {
+    private static final int KEYS_PER_TRANSACTION = 2;
+
+    static UncachedKeyRing[] mStaticRings = new UncachedKeyRing[5];
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        PgpKeyOperation op = new PgpKeyOperation(null);
+        for (int i = 0; i < mStaticRings.length; i++) {
+            SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+            builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+            builder.addUserId("bulk " + i);
+            builder.setNewUnlock(ChangeUnlockParcel.createUnLockParcelForNewKey(new Passphrase("1234")));
+
+            PgpEditKeyResult result = op.createSecretKeyRing(builder.build());
+            assertTrue("initial test key creation must succeed", result.success());
+            assertNotNull("initial test key creation must succeed", result.getRing());
+
+            mStaticRings[i] = result.getRing();
+        }
+    }
+
+    @Test
+    public void testBulkImport_writesInBatches() throws Exception {
+        KeyWritableRepository repository = spy(KeyWritableRepository.create(RuntimeEnvironment.application));
+
+        ImportKeyResult result = runBulkImport(repository, null, publicRings(0, 1, 2, 3, 4));
+
+        assertTrue("bulk import must succeed", result.success());
+        assertEquals("all keys must be new", 5, result.mNewKeys);
+        assertEquals(0, result.mBadKeys);
+        // two full batches, and one with the remaining key
+        verify(repository, times(3)).writePreparedKeyRings(anyListOf(PreparedKeyRing.class));
+        for (UncachedKeyRing ring : mStaticRings) {
+            assertNotNull("key must be imported", repository.getUnifiedKeyInfo(ring.getMasterKeyId()));
+        }
+    }
+
+    @Test
+    public void testBulkImport_duplicateKeysAreSavedSerially() throws Exception {
+        KeyWritableRepository repository = spy(KeyWritableRepository.create(RuntimeEnvironment.application));
+
+        ImportKeyResult result = runBulkImport(repository, null, publicRings(0, 1, 0));
+
+        assertTrue("bulk import must succeed", result.success());
+        assertEquals(0, result.mBadKeys);
+        assertEquals("every occurrence is reported", 3, result.getImportedMasterKeyIds().length);
+        // the second occurrence is merged with the stored keyring, not written from stale prepared data
+        verify(repository).savePublicKeyRing(any(UncachedKeyRing.class), isNull(), isNull(), eq(false), eq(false));
+        assertNotNull(repository.getUnifiedKeyInfo(mStaticRings[0].getMasterKeyId()));
+        assertNotNull(repository.getUnifiedKeyInfo(mStaticRings[1].getMasterKeyId()));
+    }
+
+    @Test
+    public void testBulkImport_secretKeyRings() throws Exception {
+        KeyWritableRepository repository = KeyWritableRepository.create(RuntimeEnvironment.application);
+
+        ImportKeyResult result = runBulkImport(repository, null,
+                mStaticRings[0].extractPublicKeyRing(), mStaticRings[0], mStaticRings[1].extractPublicKeyRing());
+
+        assertTrue("bulk import must succeed", result.success());
+        assertEquals(0, result.mBadKeys);
+        assertEquals("secret key must be counted", 1, result.mSecret);
+        UnifiedKeyInfo secretKeyInfo = repository.getUnifiedKeyInfo(mStaticRings[0].getMasterKeyId());
+        assertTrue("secret key must be available", secretKeyInfo.has_any_secret());
+        UnifiedKeyInfo publicKeyInfo = repository.getUnifiedKeyInfo(mStaticRings[1].getMasterKeyId());
+        assertNotNull("public key after secret key must be imported", publicKeyInfo);
+    }
+
+    @Test
+    public void testBulkImport_cancelledAfterFirstBatch() throws Exception {
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        KeyWritableRepository repository = spy(KeyWritableRepository.create(RuntimeEnvironment.application));
+        doAnswer(invocation -> {
+            invocation.callRealMethod();
+            cancelled.set(true);
+            return null;
+        }).when(repository).writePreparedKeyRings(anyListOf(PreparedKeyRing.class));
+
+        ImportKeyResult result = runBulkImport(repository, cancelled, publicRings(0, 1, 2, 3, 4));
+
+        assertTrue("import must be cancelled", result.cancelled());
+        assertEquals("only the first batch is imported", KEYS_PER_TRANSACTION, result.mNewKeys);
+        assertNotNull(repository.getUnifiedKeyInfo(mStaticRings[1].getMasterKeyId()));
+        assertNull("keys after cancellation must not be imported",
+                repository.getUnifiedKeyInfo(mStaticRings[2].getMasterKeyId()));
+    }
+
+    @Test
+    public void testBulkImport_failedBatchIsReportedAndSkipped() throws Exception {
+        KeyWritableRepository repository = spy(KeyWritableRepository.create(RuntimeEnvironment.application));
+        // the first batch fails as a whole, the repository rolls it back
+        doThrow(new IOException("error writing batch")).doCallRealMethod()
+                .when(repository).writePreparedKeyRings(anyListOf(PreparedKeyRing.class));
+
+        ImportKeyResult result = runBulkImport(repository, null, publicRings(0, 1, 2, 3));
+
+        assertEquals("keys of the failed batch are bad", KEYS_PER_TRANSACTION, result.mBadKeys);
+        assertEquals("keys of later batches are imported", 2, result.mNewKeys);
+        assertNull(repository.getUnifiedKeyInfo(mStaticRings[0].getMasterKeyId()));
+        assertNull(repository.getUnifiedKeyInfo(mStaticRings[1].getMasterKeyId()));
+        assertNotNull(repository.getUnifiedKeyInfo(mStaticRings[2].getMasterKeyId()));
+        assertNotNull(repository.getUnifiedKeyInfo(mStaticRings[3].getMasterKeyId()));
+    }
+
+    private ImportKeyResult runBulkImport(KeyWritableRepository repository, AtomicBoolean cancelled,
+            UncachedKeyRing... keyRings) throws Exception {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        for (UncachedKeyRing keyRing : keyRings) {
+            keyRing.encode(input);
+        }
+
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        Uri fakeInputUri = Uri.parse("content://fake/in/1");
+        when(mockResolver.openInputStream(fakeInputUri)).thenReturn(new ByteArrayInputStream(input.toByteArray()));
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        ImportOperation op = new ImportOperation(spyApplication, repository, null, cancelled);
+        return op.execute(ImportKeyringParcel.createBulkImportFromUri(fakeInputUri, KEYS_PER_TRANSACTION),
+                CryptoInputParcel.createCryptoInputParcel());
+    }
+
+    private static UncachedKeyRing[] publicRings(int... indexes) throws IOException {
+        List<UncachedKeyRing> publicRings = new ArrayList<>();
+        for (int index : indexes) {
+            publicRings.add(mStaticRings[index].extractPublicKeyRing());
+        }
+        return publicRings.toArray(new UncachedKeyRing[0]);
+    }
+}
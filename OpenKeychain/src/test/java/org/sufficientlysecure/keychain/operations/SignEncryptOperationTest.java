@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openintents.openpgp.OpenPgpSignatureResult;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
+import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.RequiredInputType;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(KeychainTestRunner.class)
+public class SignEncryptOperationTest {
+    private static final int FILE_COUNT = 6;
+
+    static UncachedKeyRing mStaticRing1, mStaticRingDivertToCard;
+    static Passphrase mKeyPhrase1 = new Passphrase("RsKrW^raOPcnQ=ZJr-pP");
+
+    ContentResolver mockResolver;
+    Application spyApplication;
+    List<Uri> inputUris = new ArrayList<>();
+    List<Uri> outputUris = new ArrayList<>();
+    CountDownLatch lastFileRead = new CountDownLatch(1);
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        mStaticRing1 = KeyringTestingHelper.readRingFromResource("/test-keys/encrypt_decrypt_key_1.sec");
+        mStaticRingDivertToCard = KeyringTestingHelper.readRingFromResource("/test-keys/divert_to_card_sec.asc");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        KeyWritableRepository databaseInteractor = KeyWritableRepository.create(RuntimeEnvironment.application);
+        databaseInteractor.saveSecretKeyRing(mStaticRing1);
+        databaseInteractor.saveSecretKeyRing(mStaticRingDivertToCard);
+
+        mockResolver = mock(ContentResolver.class);
+        for (int i = 0; i < FILE_COUNT; i++) {
+            Uri inputUri = Uri.parse("content://fake/in/" + i);
+            InputStream inputStream = new ByteArrayInputStream(getPlaintext(i));
+            if (i == 1) {
+                // make sure later files are done first
+                inputStream = new AwaitingInputStream(inputStream, lastFileRead);
+            } else if (i == FILE_COUNT - 1) {
+                inputStream = new SignalingInputStream(inputStream, lastFileRead);
+            }
+            when(mockResolver.openInputStream(inputUri)).thenReturn(inputStream);
+            inputUris.add(inputUri);
+
+            Uri outputUri = Uri.parse("content://fake/out/" + i);
+            when(mockResolver.openOutputStream(outputUri)).thenReturn(new ByteArrayOutputStream());
+            outputUris.add(outputUri);
+        }
+
+        spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+    }
+
+    @Test
+    public void testParallel_resultsAreInInputOrder() throws Exception {
+        PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+        pgpData.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+        pgpData.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+        pgpData.setDetachedSignature(true);
+
+        SignEncryptResult result = execute(pgpData.build(), null,
+                CryptoInputParcel.createCryptoInputParcel(new Date(), mKeyPhrase1));
+
+        assertTrue("signing must succeed", result.success());
+        assertEquals(FILE_COUNT, result.getResults().size());
+        for (int i = 0; i < FILE_COUNT; i++) {
+            byte[] detachedSignature = result.getResults().get(i).getDetachedSignature();
+            assertTrue("result " + i + " must belong to input " + i,
+                    verifyDetachedSignature(getPlaintext(i), detachedSignature));
+        }
+    }
+
+    @Test
+    public void testParallel_securityTokenSignaturesAreBatched() throws Exception {
+        PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+        pgpData.setSignatureMasterKeyId(mStaticRingDivertToCard.getMasterKeyId());
+        pgpData.setDetachedSignature(true);
+
+        SignEncryptResult result = execute(pgpData.build(), null,
+                CryptoInputParcel.createCryptoInputParcel(new Date()));
+
+        assertTrue("signing must be pending", result.isPending());
+        assertEquals("every file must have a result", FILE_COUNT, result.getResults().size());
+        RequiredInputParcel requiredInput = result.getRequiredInputParcel();
+        assertEquals(RequiredInputType.SECURITY_TOKEN_SIGN, requiredInput.mType);
+        assertEquals("one security token operation must cover all files",
+                FILE_COUNT, requiredInput.mInputData.length);
+    }
+
+    @Test
+    public void testParallel_cancelledAfterFirstFile() throws Exception {
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        when(mockResolver.openOutputStream(outputUris.get(0))).thenReturn(new ByteArrayOutputStream() {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                cancelled.set(true);
+            }
+        });
+
+        PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+        pgpData.setSymmetricPassphrase(TestingUtils.testPassphrase0);
+        pgpData.setSymmetricEncryptionAlgorithm(PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+
+        SignEncryptResult result = execute(pgpData.build(), cancelled,
+                CryptoInputParcel.createCryptoInputParcel(new Date()));
+
+        assertTrue("operation must be cancelled", result.cancelled());
+        assertEquals("only the first file is done", 1, result.getResults().size());
+        for (int i = 1; i < FILE_COUNT; i++) {
+            verify(mockResolver, never()).openOutputStream(outputUris.get(i));
+        }
+    }
+
+    private SignEncryptResult execute(PgpSignEncryptData data, AtomicBoolean cancelled,
+            CryptoInputParcel cryptoInput) {
+        SignEncryptParcel input = SignEncryptParcel.builder(data)
+                .addInputUris(inputUris)
+                .addOutputUris(outputUris)
+                .build();
+        SignEncryptOperation op = new SignEncryptOperation(spyApplication,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null, cancelled);
+        return op.execute(input, cryptoInput);
+    }
+
+    private boolean verifyDetachedSignature(byte[] plaintext, byte[] detachedSignature) {
+        ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+        InputData data = new InputData(in, in.available());
+
+        PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null);
+        PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                .setDetachedSignature(detachedSignature)
+                .build();
+        DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(), data,
+                new ByteArrayOutputStream());
+        return result.success() && result.getSignatureResult().getResult()
+                == OpenPgpSignatureResult.RESULT_VALID_KEY_CONFIRMED;
+    }
+
+    private static byte[] getPlaintext(int index) {
+        return ("plaintext of file " + index).getBytes();
+    }
+
+    /** Blocks the first read until the latch is released. */
+    private static class AwaitingInputStream extends FilterInputStream {
+        private final CountDownLatch latch;
+
+        AwaitingInputStream(InputStream in, CountDownLatch latch) {
+            super(in);
+            this.latch = latch;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                // with a single worker thread, later files can't overtake this one, so don't wait forever
+                latch.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return super.read(b, off, len);
+        }
+    }
+
+    /** Releases the latch once the stream was read to its end. */
+    private static class SignalingInputStream extends FilterInputStream {
+        private final CountDownLatch latch;
+
+        SignalingInputStream(InputStream in, CountDownLatch latch) {
+            super(in);
+            this.latch = latch;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1) {
+                latch.countDown();
+            }
+            return read;
+        }
+    }
+}
\ No newline at end of file
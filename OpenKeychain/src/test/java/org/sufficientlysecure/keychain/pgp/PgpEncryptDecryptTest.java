@@ -24,8 +24,11 @@ import java.io.InputStream;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 
 import org.apache.tools.ant.util.StringUtils;
 import org.bouncycastle.bcpg.BCPGInputStream;
@@ -36,6 +39,8 @@ import org.bouncycastle.bcpg.PublicKeyEncSessionPacket;
 import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.util.io.Streams;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -160,6 +165,8 @@ public class PgpEncryptDecryptTest {
 
         // ok NOW log verbosely!
         ShadowLog.stream = System.out;
+
+        SessionKeyCache.getInstance(RuntimeEnvironment.application).clear();
     }
 
     @Test
@@ -404,6 +411,78 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testAsymmetricSignCleartext_manyLines() {
+
+        // more than one buffer chunk, with trailing whitespace and lines that need dash-escaping
+        StringBuilder plaintextBuilder = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            plaintextBuilder.append(i % 7 == 0 ? "- dashed line " : "line ").append(i)
+                    .append(i % 5 == 0 ? " \t" : "").append(i % 3 == 0 ? "\r\n" : "\n");
+        }
+        String plaintext = plaintextBuilder.toString();
+        byte[] ciphertext;
+
+        { // sign data with key
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    KeyWritableRepository.create(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+
+            PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+            pgpData.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            pgpData.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            pgpData.setCleartextSignature(true);
+            pgpData.setEnableAsciiArmorOutput(true);
+            pgpData.setDetachedSignature(false);
+
+            PgpSignEncryptResult result = op.execute(pgpData.build(),
+                    CryptoInputParcel.createCryptoInputParcel(mKeyPhrase1), data, out);
+            Assert.assertTrue("signing must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        { // verification should succeed
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder().build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(), data, out);
+
+            Assert.assertTrue("verification must succeed", result.success());
+            Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                    OpenPgpSignatureResult.RESULT_VALID_KEY_CONFIRMED, result.getSignatureResult().getResult());
+            Assert.assertTrue("verification text should contain all lines",
+                    new String(out.toByteArray()).contains("- dashed line 4998" + StringUtils.LINE_SEP));
+            Assert.assertEquals("filesize must be correct",
+                    out.toByteArray().length, result.getDecryptionMetadata().getOriginalSize());
+        }
+
+        { // verification of modified text should fail
+
+            byte[] modifiedCiphertext = new String(ciphertext).replace("line 2500", "line 2501").getBytes();
+            ByteArrayInputStream in = new ByteArrayInputStream(modifiedCiphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder().build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(),
+                    data, new ByteArrayOutputStream());
+
+            Assert.assertTrue("verification must finish", result.success());
+            Assert.assertEquals("signatureResult should be RESULT_INVALID_SIGNATURE",
+                    OpenPgpSignatureResult.RESULT_INVALID_SIGNATURE, result.getSignatureResult().getResult());
+        }
+
+    }
+
     @Test
     public void testAsymmetricSignDetached() {
 
@@ -461,6 +540,66 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testAsymmetricSignDetached_multipleSignatures() throws Exception {
+
+        // large enough that the signatures are updated in parallel
+        byte[] plaintext = new byte[100 * 1024];
+        new Random(0).nextBytes(plaintext);
+
+        // a detached signature from each key, joined into one signature list
+        ByteArrayOutputStream joinedSignatures = new ByteArrayOutputStream();
+        joinedSignatures.write(signDetached(plaintext, mStaticRing1, mKeyPhrase1));
+        joinedSignatures.write(signDetached(plaintext, mStaticRing2, mKeyPhrase2));
+
+        { // verification should succeed for both signatures
+
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                    .setDetachedSignature(joinedSignatures.toByteArray())
+                    .build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(),
+                    data, new ByteArrayOutputStream());
+
+            Assert.assertTrue("verification must succeed", result.success());
+            Assert.assertEquals("primary signature must be the first one",
+                    mStaticRing1.getMasterKeyId(), result.getSignatureResult().getKeyId());
+
+            List<OpenPgpSignatureResult> signatureResults = result.getSignatureResults();
+            Assert.assertEquals("there must be a result for each signature", 2, signatureResults.size());
+            Assert.assertEquals(mStaticRing1.getMasterKeyId(), signatureResults.get(0).getKeyId());
+            Assert.assertEquals(OpenPgpSignatureResult.RESULT_VALID_KEY_CONFIRMED,
+                    signatureResults.get(0).getResult());
+            Assert.assertEquals(mStaticRing2.getMasterKeyId(), signatureResults.get(1).getKeyId());
+            Assert.assertEquals(OpenPgpSignatureResult.RESULT_VALID_KEY_CONFIRMED,
+                    signatureResults.get(1).getResult());
+        }
+
+    }
+
+    private byte[] signDetached(byte[] plaintext, UncachedKeyRing ring, Passphrase passphrase) throws Exception {
+        ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null);
+
+        PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+        pgpData.setSignatureMasterKeyId(ring.getMasterKeyId());
+        pgpData.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(ring, 1));
+        pgpData.setDetachedSignature(true);
+
+        PgpSignEncryptResult result = op.execute(pgpData.build(),
+                CryptoInputParcel.createCryptoInputParcel(passphrase),
+                new InputData(in, in.available()), new ByteArrayOutputStream());
+        Assert.assertTrue("signing must succeed", result.success());
+
+        // strip armor, if any
+        return Streams.readAll(PGPUtil.getDecoderStream(new ByteArrayInputStream(result.getDetachedSignature())));
+    }
+
     @Test
     public void testAsymmetricEncryptDecrypt() {
 
@@ -560,6 +699,117 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testAsymmetricEncryptDecrypt_sessionKeyCache() {
+
+        String plaintext = "dies ist ein plaintext ☭";
+        byte[] ciphertext;
+
+        { // encrypt data with key
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    KeyWritableRepository.create(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+
+            PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+            pgpData.setEncryptionMasterKeyIds(new long[] { mStaticRing1.getMasterKeyId() });
+
+            PgpSignEncryptResult result = op.execute(pgpData.build(),
+                    CryptoInputParcel.createCryptoInputParcel(new Date()),
+                    data, out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        SessionKeyCache sessionKeyCache = SessionKeyCache.getInstance(RuntimeEnvironment.application);
+
+        { // decryption with provided passphrase must not store the session key
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder().build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(mKeyPhrase1), data, out);
+
+            Assert.assertTrue("decryption with provided passphrase must succeed", result.success());
+            Assert.assertEquals("session key must not be cached", 0, sessionKeyCache.size());
+        }
+
+        { // decryption with cached passphrase stores the session key
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder().build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption with cached passphrase must succeed", result.success());
+            Assert.assertEquals("session key must be cached", 1, sessionKeyCache.size());
+        }
+
+        { // decryption with cached passphrase should use the cached session key
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            long hitCount = sessionKeyCache.getHitCount();
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder().build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption with cached session key must succeed", result.success());
+            Assert.assertArrayEquals("decrypted ciphertext with cached session key should equal plaintext",
+                    out.toByteArray(), plaintext.getBytes());
+            Assert.assertTrue("log must contain cached session key entry",
+                    result.getLog().containsType(LogType.MSG_DC_SESSION_KEY_CACHED));
+            Assert.assertEquals("lookup must be a cache hit", hitCount + 1, sessionKeyCache.getHitCount());
+        }
+
+        { // the cached session key must not be usable if the key isn't allowed
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                    .setAllowedKeyIds(Collections.singletonList(mStaticRing2.getMasterKeyId()))
+                    .build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(), data, out);
+
+            Assert.assertFalse("decryption with disallowed key must fail", result.success());
+            Assert.assertEquals("must not output anything", 0, out.size());
+        }
+
+        { // without a cached passphrase, the cached session key must not be used
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    null, mStaticRing1.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder().build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption without cached passphrase should return pending", result.isPending());
+            Assert.assertEquals("decryption without cached passphrase should return pending passphrase",
+                    RequiredInputType.PASSPHRASE, result.getRequiredInputParcel().mType);
+        }
+
+        { // clearing the passphrase of the key removes its session keys
+            sessionKeyCache.clear(mStaticRing1.getMasterKeyId());
+            Assert.assertEquals("session key must be removed", 0, sessionKeyCache.size());
+        }
+
+    }
+
     @Test
     public void testMultiSubkeyEncryptSkipStripOrBadFlag() throws Exception {
 
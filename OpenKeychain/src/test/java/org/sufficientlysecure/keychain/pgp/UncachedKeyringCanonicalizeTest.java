@@ -585,6 +585,32 @@ public class UncachedKeyringCanonicalizeTest {
 
     }
 
+    @Test
+    public void testCachedVerification() throws Exception {
+        SignatureVerificationCache cache = SignatureVerificationCache.getInstance();
+
+        // make sure all certificates of the ring were verified once
+        ring.canonicalize(new OperationLog(), 0);
+
+        long hitCount = cache.getHitCount();
+        long missCount = cache.getMissCount();
+        CanonicalizedKeyRing canonicalized = ring.canonicalize(log, 0);
+        Assert.assertArrayEquals("canonicalization with cached verifications must have the same result",
+                ring.getEncoded(), canonicalized.getEncoded());
+        Assert.assertEquals("no certificate should be verified again", missCount, cache.getMissCount());
+        Assert.assertTrue("certificates should be found in the cache", cache.getHitCount() > hitCount);
+
+        // a cached verification must not apply to different signed material
+        UncachedPublicKey masterKey = ring.getPublicKey();
+        WrappedSignature sig = masterKey.getSignaturesForRawId(Strings.toUTF8ByteArray("twi")).next();
+        sig.init(masterKey);
+        Assert.assertTrue("certificate should be valid for its user id",
+                sig.verifySignature(masterKey, Strings.toUTF8ByteArray("twi")));
+        sig.init(masterKey);
+        Assert.assertFalse("certificate must not be valid for a different user id",
+                sig.verifySignature(masterKey, Strings.toUTF8ByteArray("pink")));
+    }
+
     private static final int[] sigtypes_direct = new int[] {
         PGPSignature.KEY_REVOCATION,
         PGPSignature.DIRECT_KEY,
@@ -44,6 +44,7 @@ import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.support.TestDataUtil;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
@@ -78,7 +79,7 @@ public class Cv25519Test {
         byte[] encryptedText = readBytesFromResource("/test-keys/cv25519-encrypted.asc");
         DecryptVerifyResult result = simpleDecryptText(encryptedText);
 
-        assertArrayEquals(ENCRYPTED_PLAINTEXT, result.getOutputBytes());
+        assertArrayEquals(ENCRYPTED_PLAINTEXT, result.consumeOutputBytes());
     }
 
     @Test
@@ -99,7 +100,7 @@ public class Cv25519Test {
         DecryptVerifyResult decryptResult = simpleDecryptText(result.getOutputBytes());
 
         assertTrue(decryptResult.success());
-        assertArrayEquals(ENCRYPTED_PLAINTEXT, decryptResult.getOutputBytes());
+        assertArrayEquals(ENCRYPTED_PLAINTEXT, TestDataUtil.readFully(decryptResult.openOutputStream()));
     }
 
     private UncachedKeyRing loadSecretKeyringFromResource(String name) throws Exception {
@@ -27,8 +27,11 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.KeychainDatabase;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyRingBlobStore;
 import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository.PreparedKeyRing;
 import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
@@ -39,8 +42,10 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 
+import java.util.AbstractList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 @SuppressWarnings("WeakerAccess")
 @RunWith(KeychainTestRunner.class)
@@ -255,6 +260,149 @@ public class KeyRepositorySaveTest {
 
     }
 
+    @Test
+    public void testPreparePublicKeyRing_staleAfterSave() throws Exception {
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+
+        KeyWritableRepository workerRepository = mDatabaseInteractor.createWorkerRepository();
+        PreparedKeyRing preparedKeyRing = workerRepository.preparePublicKeyRing(
+                pubkey, mDatabaseInteractor.getTrustedMasterKeys(), null, false);
+        Assert.assertTrue("keyring should be prepared", preparedKeyRing.getResult().success());
+        Assert.assertFalse("nothing changed, prepared keyring is current",
+                mDatabaseInteractor.isPreparedKeyRingStale(preparedKeyRing));
+
+        SaveKeyringResult result = mDatabaseInteractor.savePublicKeyRing(pubkey);
+        Assert.assertTrue("public keyring import should succeed", result.success());
+        Assert.assertTrue("keyring was saved in the meantime, prepared keyring must be stale",
+                mDatabaseInteractor.isPreparedKeyRingStale(preparedKeyRing));
+
+        preparedKeyRing = workerRepository.preparePublicKeyRing(
+                pubkey, mDatabaseInteractor.getTrustedMasterKeys(), null, false);
+        Assert.assertTrue("keyring is identical", preparedKeyRing.getResult().updated());
+        Assert.assertFalse("identical keyring needs no write", preparedKeyRing.needsWrite());
+
+        preparedKeyRing = workerRepository.preparePublicKeyRing(
+                pubkey, mDatabaseInteractor.getTrustedMasterKeys(), null, true);
+        Assert.assertTrue("forced refresh must be written", preparedKeyRing.needsWrite());
+    }
+
+    @Test
+    public void testPreparePublicKeyRing_storedBlobIsSkipped() throws Exception {
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        SaveKeyringResult result = mDatabaseInteractor.savePublicKeyRing(pubkey);
+        Assert.assertTrue("public keyring import should succeed", result.success());
+
+        // the exact stored blob, as found in a backup or on a retried import
+        UncachedKeyRing storedRing = UncachedKeyRing.decodeFromData(
+                mDatabaseInteractor.loadPublicKeyRingData(pubkey.getMasterKeyId()));
+        PreparedKeyRing preparedKeyRing = mDatabaseInteractor.createWorkerRepository().preparePublicKeyRing(
+                storedRing, mDatabaseInteractor.getTrustedMasterKeys(), null, false);
+
+        Assert.assertTrue("stored keyring is identical", preparedKeyRing.getResult().updated());
+        Assert.assertFalse("identical keyring needs no write", preparedKeyRing.needsWrite());
+        Assert.assertNull("identical keyring is not canonicalized again", preparedKeyRing.getCanonicalizedKeyRing());
+        Assert.assertFalse(mDatabaseInteractor.isPreparedKeyRingStale(preparedKeyRing));
+    }
+
+    @Test
+    public void testPreparePublicKeyRing_storedBlobWithoutRowsIsWritten() throws Exception {
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        SaveKeyringResult result = mDatabaseInteractor.savePublicKeyRing(pubkey);
+        Assert.assertTrue("public keyring import should succeed", result.success());
+        long masterKeyId = pubkey.getMasterKeyId();
+
+        // the database lost the keyring, while the keyring store still has it
+        KeychainDatabase.getInstance(RuntimeEnvironment.application).getWritableDatabase()
+                .execSQL("DELETE FROM keyrings_public WHERE master_key_id = ?", new Object[] { masterKeyId });
+        Assert.assertTrue(mDatabaseInteractor.getSubKeysByMasterKeyId(masterKeyId).isEmpty());
+
+        UncachedKeyRing storedRing = UncachedKeyRing.decodeFromData(
+                mDatabaseInteractor.loadPublicKeyRingData(masterKeyId));
+        PreparedKeyRing preparedKeyRing = mDatabaseInteractor.createWorkerRepository().preparePublicKeyRing(
+                storedRing, mDatabaseInteractor.getTrustedMasterKeys(), null, false);
+        Assert.assertTrue("keyring should be prepared", preparedKeyRing.getResult().success());
+        Assert.assertTrue("keyring without rows must be written", preparedKeyRing.needsWrite());
+
+        mDatabaseInteractor.writePreparedKeyRings(Arrays.asList(preparedKeyRing));
+        Assert.assertFalse("rows must be restored", mDatabaseInteractor.getSubKeysByMasterKeyId(masterKeyId).isEmpty());
+        Assert.assertNotNull(mDatabaseInteractor.getUnifiedKeyInfo(masterKeyId));
+    }
+
+    @Test
+    public void testPreparePublicKeyRing_expectedFingerprint() throws Exception {
+        UncachedKeyRing first =
+                readRingFromResource("/test-keys/cooperpair/9E669861368BCA0BE42DAF7DDDA252EBB8EBE1AF.asc");
+
+        KeyWritableRepository workerRepository = mDatabaseInteractor.createWorkerRepository();
+        PreparedKeyRing preparedKeyRing = workerRepository.preparePublicKeyRing(first,
+                mDatabaseInteractor.getTrustedMasterKeys(),
+                Hex.decode("A55120427374F3F7AA5F1166DDA252EBB8EBE1AF"), false);
+        Assert.assertFalse("wrong fingerprint must fail", preparedKeyRing.getResult().success());
+
+        preparedKeyRing = workerRepository.preparePublicKeyRing(first,
+                mDatabaseInteractor.getTrustedMasterKeys(),
+                Hex.decode("9E669861368BCA0BE42DAF7DDDA252EBB8EBE1AF"), false);
+        Assert.assertTrue("matching fingerprint must succeed", preparedKeyRing.getResult().success());
+        mDatabaseInteractor.writePreparedKeyRings(Arrays.asList(preparedKeyRing));
+        Assert.assertNotNull("prepared keyring must be written",
+                mDatabaseInteractor.getCanonicalizedPublicKeyRing(first.getMasterKeyId()));
+    }
+
+    @Test
+    public void testWritePreparedKeyRings_rollsBackOnError() throws Exception {
+        UncachedKeyRing first =
+                readRingFromResource("/test-keys/cooperpair/9E669861368BCA0BE42DAF7DDDA252EBB8EBE1AF.asc");
+
+        KeyWritableRepository workerRepository = mDatabaseInteractor.createWorkerRepository();
+        final PreparedKeyRing firstPrepared =
+                workerRepository.preparePublicKeyRing(first, mDatabaseInteractor.getTrustedMasterKeys());
+
+        // fails after the first keyring was written inside the transaction
+        List<PreparedKeyRing> failingBatch = new AbstractList<PreparedKeyRing>() {
+            @Override
+            public PreparedKeyRing get(int index) {
+                if (index > 0) {
+                    throw new IllegalStateException("error in second keyring");
+                }
+                return firstPrepared;
+            }
+
+            @Override
+            public int size() {
+                return 2;
+            }
+        };
+        try {
+            mDatabaseInteractor.writePreparedKeyRings(failingBatch);
+            Assert.fail("failing batch must throw");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        Assert.assertNull("keyring of failed batch must not be in the database",
+                mDatabaseInteractor.getUnifiedKeyInfo(first.getMasterKeyId()));
+        Assert.assertFalse("keyring data of failed batch must be rolled back",
+                KeyRingBlobStore.getPublicKeyRingStore(RuntimeEnvironment.application)
+                        .contains(first.getMasterKeyId()));
+    }
+
+    @Test
+    public void testDeleteKeyRing() throws Exception {
+        UncachedKeyRing seckey = readRingFromResource("/test-keys/encrypt_decrypt_key_1.sec");
+        long masterKeyId = seckey.getMasterKeyId();
+        Assert.assertTrue("secret keyring import should succeed",
+                mDatabaseInteractor.saveSecretKeyRing(seckey).success());
+
+        Assert.assertTrue("keyring should be deleted", mDatabaseInteractor.deleteKeyRing(masterKeyId));
+
+        Assert.assertNull("deleted keyring must not be in the database",
+                mDatabaseInteractor.getUnifiedKeyInfo(masterKeyId));
+        Assert.assertFalse("public keyring data must be deleted",
+                KeyRingBlobStore.getPublicKeyRingStore(RuntimeEnvironment.application).contains(masterKeyId));
+        Assert.assertFalse("secret keyring data must be deleted",
+                KeyRingBlobStore.getSecretKeyRingStore(RuntimeEnvironment.application).contains(masterKeyId));
+    }
+
     UncachedKeyRing readRingFromResource(String name) throws Exception {
         return UncachedKeyRing.fromStream(KeyRepositorySaveTest.class.getResourceAsStream(name)).next();
     }
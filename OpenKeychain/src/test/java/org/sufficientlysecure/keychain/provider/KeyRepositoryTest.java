@@ -27,8 +27,11 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RuntimeEnvironment;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.DatabaseNotifyManager;
 import org.sufficientlysecure.keychain.daos.KeyRepository;
 import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.daos.ParsedKeyRingCache;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
@@ -68,4 +71,40 @@ public class KeyRepositoryTest {
         Assert.assertEquals(expectedEncryptSubKeyId, (long) publicEncryptionIds.get(0));
     }
 
+    @Test
+    public void testParsedKeyRingCache() throws Exception {
+        KeyRepository keyRepository = KeyRepository.create(RuntimeEnvironment.application);
+        ParsedKeyRingCache parsedKeyRingCache = ParsedKeyRingCache.getInstance();
+        long masterKeyId = testKeyring.getMasterKeyId();
+
+        CanonicalizedPublicKeyRing firstKeyRing = keyRepository.getCanonicalizedPublicKeyRing(masterKeyId);
+        long hitCount = parsedKeyRingCache.getHitCount();
+        CanonicalizedPublicKeyRing secondKeyRing = keyRepository.getCanonicalizedPublicKeyRing(masterKeyId);
+
+        Assert.assertSame(firstKeyRing, secondKeyRing);
+        Assert.assertEquals(hitCount + 1, parsedKeyRingCache.getHitCount());
+
+        DatabaseNotifyManager.create(RuntimeEnvironment.application).notifyKeyChange(masterKeyId);
+        CanonicalizedPublicKeyRing reloadedKeyRing = keyRepository.getCanonicalizedPublicKeyRing(masterKeyId);
+
+        Assert.assertNotSame(firstKeyRing, reloadedKeyRing);
+        Assert.assertEquals(masterKeyId, reloadedKeyRing.getMasterKeyId());
+        Assert.assertEquals(hitCount + 1, parsedKeyRingCache.getHitCount());
+    }
+
+    @Test
+    public void testParsedKeyRingCache_invalidatedByOtherProcess() throws Exception {
+        KeyRepository keyRepository = KeyRepository.create(RuntimeEnvironment.application);
+        long masterKeyId = testKeyring.getMasterKeyId();
+
+        CanonicalizedPublicKeyRing firstKeyRing = keyRepository.getCanonicalizedPublicKeyRing(masterKeyId);
+        Assert.assertSame(firstKeyRing, keyRepository.getCanonicalizedPublicKeyRing(masterKeyId));
+
+        // another process only reaches us through the notify uri
+        RuntimeEnvironment.application.getContentResolver().notifyChange(
+                DatabaseNotifyManager.getNotifyUriMasterKeyId(masterKeyId), null);
+
+        Assert.assertNotSame(firstKeyRing, keyRepository.getCanonicalizedPublicKeyRing(masterKeyId));
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.io.File;
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyRingBlobStore;
+
+
+@RunWith(KeychainTestRunner.class)
+public class KeyRingBlobStoreTest {
+    private static final long KEY_ID_A = 0x1234567890abcdefL;
+    private static final long KEY_ID_B = 0xfedcba0987654321L;
+
+    private KeyRingBlobStore store;
+    private File otherProcessDirectory;
+
+    @Before
+    public void setUp() {
+        store = KeyRingBlobStore.getSecretKeyRingStore(RuntimeEnvironment.application);
+        otherProcessDirectory = new File(RuntimeEnvironment.application.getFilesDir(), "other_process_store");
+    }
+
+    @Test
+    public void testPutReadDelete() throws Exception {
+        Assert.assertNull(store.read(KEY_ID_A));
+
+        store.put(KEY_ID_A, new byte[] { 1, 2, 3 });
+        store.put(KEY_ID_B, new byte[] { 4, 5 });
+        store.sync();
+
+        Assert.assertTrue(store.contains(KEY_ID_A));
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, store.read(KEY_ID_A));
+        Assert.assertEquals(2, store.getSize(KEY_ID_B));
+
+        store.put(KEY_ID_A, new byte[] { 6 });
+        store.delete(KEY_ID_B);
+        store.sync();
+
+        Assert.assertArrayEquals(new byte[] { 6 }, store.read(KEY_ID_A));
+        Assert.assertFalse(store.contains(KEY_ID_B));
+        Assert.assertNull(store.openInputStream(KEY_ID_B));
+    }
+
+    @Test
+    public void testCompact_keepsLiveBlobs() throws Exception {
+        store.put(KEY_ID_A, new byte[] { 1, 2, 3 });
+        store.put(KEY_ID_A, new byte[] { 4, 5, 6 });
+        store.put(KEY_ID_B, new byte[] { 7 });
+        store.delete(KEY_ID_B);
+        store.sync();
+
+        store.compact();
+
+        Assert.assertFalse(store.contains(KEY_ID_B));
+        InputStream inputStream = store.openInputStream(KEY_ID_A);
+        Assert.assertNotNull(inputStream);
+        Assert.assertEquals(3, inputStream.available());
+        Assert.assertEquals(4, inputStream.read());
+    }
+
+    @Test
+    public void testWritesOfOtherProcess_areVisible() throws Exception {
+        KeyRingBlobStore mainStore = KeyRingBlobStore.createForTesting(otherProcessDirectory, true);
+        KeyRingBlobStore otherStore = KeyRingBlobStore.createForTesting(otherProcessDirectory, true);
+
+        mainStore.put(KEY_ID_A, new byte[] { 1, 2, 3 });
+        mainStore.sync();
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, otherStore.read(KEY_ID_A));
+
+        otherStore.put(KEY_ID_B, new byte[] { 4, 5 });
+        otherStore.put(KEY_ID_A, new byte[] { 6 });
+        otherStore.sync();
+        Assert.assertArrayEquals(new byte[] { 6 }, mainStore.read(KEY_ID_A));
+        Assert.assertArrayEquals(new byte[] { 4, 5 }, mainStore.read(KEY_ID_B));
+
+        // both append to the same segment, so neither may overwrite records of the other
+        mainStore.put(KEY_ID_A, new byte[] { 7 });
+        mainStore.sync();
+        KeyRingBlobStore reopenedStore = KeyRingBlobStore.createForTesting(otherProcessDirectory, true);
+        Assert.assertArrayEquals(new byte[] { 7 }, reopenedStore.read(KEY_ID_A));
+        Assert.assertArrayEquals(new byte[] { 4, 5 }, reopenedStore.read(KEY_ID_B));
+    }
+
+    @Test
+    public void testCompactionOfOtherProcess_rebuildsIndex() throws Exception {
+        KeyRingBlobStore mainStore = KeyRingBlobStore.createForTesting(otherProcessDirectory, true);
+        KeyRingBlobStore otherStore = KeyRingBlobStore.createForTesting(otherProcessDirectory, true);
+
+        mainStore.put(KEY_ID_A, new byte[] { 1, 2, 3 });
+        mainStore.put(KEY_ID_B, new byte[] { 4, 5 });
+        mainStore.sync();
+        Assert.assertTrue(otherStore.contains(KEY_ID_B));
+
+        mainStore.delete(KEY_ID_B);
+        mainStore.compact();
+
+        Assert.assertFalse(otherStore.contains(KEY_ID_B));
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, otherStore.read(KEY_ID_A));
+    }
+
+    @Test
+    public void testRollback_restoresReplacedBlobs() throws Exception {
+        store.put(KEY_ID_A, new byte[] { 1, 2, 3 });
+        store.sync();
+
+        KeyRingBlobStore.UndoLog undoLog = new KeyRingBlobStore.UndoLog();
+        store.put(KEY_ID_A, new byte[] { 4 }, undoLog);
+        store.put(KEY_ID_A, new byte[] { 5 }, undoLog);
+        store.put(KEY_ID_B, new byte[] { 6 }, undoLog);
+        store.sync();
+        store.rollback(undoLog);
+
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, store.read(KEY_ID_A));
+        Assert.assertFalse(store.contains(KEY_ID_B));
+    }
+}
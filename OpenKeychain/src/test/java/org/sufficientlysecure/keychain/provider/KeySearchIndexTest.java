@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.security.Security;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+
+
+@RunWith(KeychainTestRunner.class)
+public class KeySearchIndexTest {
+    static UncachedKeyRing ringA;
+    static UncachedKeyRing ringB;
+
+    KeyWritableRepository keyWritableRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        ringA = KeyringTestingHelper.createKeyRing("Alice Liddell (work) <alice@example.com>");
+        ringB = KeyringTestingHelper.createKeyRing("Bob <bob@example.org>");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        keyWritableRepository.savePublicKeyRing(ringA.extractPublicKeyRing());
+        keyWritableRepository.savePublicKeyRing(ringB.extractPublicKeyRing());
+    }
+
+    @Test
+    public void testSearchByUserId() {
+        assertSearchResult("ali", ringA);
+        assertSearchResult("LIDD", ringA);
+        assertSearchResult("work", ringA);
+        assertSearchResult("alice@exa", ringA);
+        assertSearchResult("example", ringA, ringB);
+        assertSearchResult("example.org", ringB);
+        assertSearchResult("carol");
+    }
+
+    @Test
+    public void testSearchByKeyIdAndFingerprint() {
+        String keyIdHex = String.format(Locale.ENGLISH, "%016x", ringA.getMasterKeyId());
+        assertSearchResult(keyIdHex.substring(0, 6), ringA);
+        assertSearchResult("0x" + keyIdHex.substring(8).toUpperCase(Locale.ENGLISH), ringA);
+    }
+
+    @Test
+    public void testSearch_noWords() {
+        Assert.assertNull(keyWritableRepository.getMasterKeyIdsBySearch(" <> "));
+    }
+
+    @Test
+    public void testSearch_updatedOnDelete() {
+        keyWritableRepository.deleteKeyRing(ringA.getMasterKeyId());
+
+        assertSearchResult("alice");
+        assertSearchResult("example", ringB);
+    }
+
+    @Test
+    public void testGetUnifiedKeyInfosByMailAddress() {
+        List<UnifiedKeyInfo> unifiedKeyInfos = keyWritableRepository.getUnifiedKeyInfosByMailAddress("bob@example.org");
+        Assert.assertEquals(1, unifiedKeyInfos.size());
+        Assert.assertEquals(ringB.getMasterKeyId(), unifiedKeyInfos.get(0).master_key_id());
+
+        // matches the search index, but not the mail address
+        Assert.assertTrue(keyWritableRepository.getUnifiedKeyInfosByMailAddress("liddell").isEmpty());
+        // no words to search the index for, so only the mail address is checked
+        Assert.assertEquals(2, keyWritableRepository.getUnifiedKeyInfosByMailAddress("@").size());
+    }
+
+    private void assertSearchResult(String searchString, UncachedKeyRing... expectedRings) {
+        HashSet<Long> expectedMasterKeyIds = new HashSet<>();
+        for (UncachedKeyRing ring : expectedRings) {
+            expectedMasterKeyIds.add(ring.getMasterKeyId());
+        }
+        Assert.assertEquals("search for " + searchString,
+                expectedMasterKeyIds, keyWritableRepository.getMasterKeyIdsBySearch(searchString));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteProgram;
+import androidx.sqlite.db.SupportSQLiteQuery;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainDatabase;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.model.SubKey;
+import org.sufficientlysecure.keychain.model.UserPacket;
+
+
+/** Makes sure the hot lookups by key id, master key id and email don't regress to full table scans. */
+@RunWith(KeychainTestRunner.class)
+public class QueryPlanTest {
+    private static final long KEY_ID = 0x1234567890abcdefL;
+    private static final long NOW = 1500000000L;
+
+    private SupportSQLiteDatabase db;
+
+    @Before
+    public void setUp() {
+        db = KeychainDatabase.getInstance(RuntimeEnvironment.application).getReadableDatabase();
+    }
+
+    @Test
+    public void testLookupsByKeyId() {
+        assertNoFullScan(SubKey.FACTORY.selectMasterKeyIdBySubkey(KEY_ID));
+        assertNoFullScan(SubKey.FACTORY.selectSecretKeyType(KEY_ID));
+        assertNoFullScan(SubKey.FACTORY.selectFingerprintByKeyId(KEY_ID));
+    }
+
+    @Test
+    public void testEffectiveKeyLookups() {
+        assertNoFullScan(SubKey.FACTORY.selectEffectiveEncryptionKeyIdsByMasterKeyId(KEY_ID, NOW));
+        assertNoFullScan(SubKey.FACTORY.selectEffectiveEncryptionKeyIdsByMasterKeyIds(new long[] { KEY_ID, 1L }, NOW));
+        assertNoFullScan(SubKey.FACTORY.selectEffectiveSignKeyIdByMasterKeyId(KEY_ID, NOW));
+        assertNoFullScan(SubKey.FACTORY.selectEffectiveAuthKeyIdByMasterKeyId(KEY_ID, NOW));
+    }
+
+    @Test
+    public void testUnifiedKeyInfoLookup() {
+        assertNoFullScan(SubKey.FACTORY.selectUnifiedKeyInfoByMasterKeyId(KEY_ID));
+    }
+
+    @Test
+    public void testUidStatusLookupByEmail() {
+        assertNoFullScan(UserPacket.FACTORY.selectUserIdStatusByEmail(
+                new String[] { "alice@example.com", "bob@example.com" }, NOW, NOW));
+    }
+
+    private void assertNoFullScan(SupportSQLiteQuery query) {
+        for (String detail : explainQueryPlan(query)) {
+            boolean isFullScan = detail.startsWith("SCAN") && !detail.contains("SUBQUERY");
+            Assert.assertFalse("query must not scan a full table: " + query.getSql() + "\n" + detail, isFullScan);
+        }
+    }
+
+    private List<String> explainQueryPlan(SupportSQLiteQuery query) {
+        SupportSQLiteQuery explainQuery = new SupportSQLiteQuery() {
+            @Override
+            public String getSql() {
+                return "EXPLAIN QUERY PLAN " + query.getSql();
+            }
+
+            @Override
+            public void bindTo(SupportSQLiteProgram statement) {
+                query.bindTo(statement);
+            }
+
+            @Override
+            public int getArgCount() {
+                return query.getArgCount();
+            }
+        };
+
+        ArrayList<String> result = new ArrayList<>();
+        try (Cursor cursor = db.query(explainQuery)) {
+            int detailColumn = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                result.add(cursor.getString(detailColumn));
+            }
+        }
+        return result;
+    }
+}
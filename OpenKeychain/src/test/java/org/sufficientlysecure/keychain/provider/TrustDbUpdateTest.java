@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.daos.TrustedMasterKeyCache;
+import org.sufficientlysecure.keychain.model.UserPacket.UserId;
+import org.sufficientlysecure.keychain.operations.CertifyOperation;
+import org.sufficientlysecure.keychain.operations.results.CertifyResult;
+import org.sufficientlysecure.keychain.operations.results.UpdateTrustResult;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+
+@RunWith(KeychainTestRunner.class)
+public class TrustDbUpdateTest {
+    private static final int NUM_CERTIFIED_KEYS = 20;
+
+    static UncachedKeyRing signerRing;
+    static ArrayList<UncachedKeyRing> certifiedRings = new ArrayList<>();
+    static Passphrase signerPassphrase = TestingUtils.testPassphrase0;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        signerRing = KeyringTestingHelper.createKeyRing("signer", signerPassphrase);
+
+        ArrayList<UncachedKeyRing> publicRings = new ArrayList<>();
+        for (int i = 0; i < NUM_CERTIFIED_KEYS; i++) {
+            publicRings.add(KeyringTestingHelper.createKeyRing("certified " + i, new Passphrase()).extractPublicKeyRing());
+        }
+
+        KeyWritableRepository keyWritableRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        keyWritableRepository.saveSecretKeyRing(signerRing);
+
+        CertifyActionsParcel.Builder actions = CertifyActionsParcel.builder(signerRing.getMasterKeyId());
+        for (UncachedKeyRing publicRing : publicRings) {
+            keyWritableRepository.savePublicKeyRing(publicRing);
+            actions.addAction(CertifyAction.createForUserIds(publicRing.getMasterKeyId(),
+                    publicRing.getPublicKey().getUnorderedUserIds()));
+        }
+
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application, keyWritableRepository, null, null);
+        CertifyResult result = op.execute(actions.build(),
+                CryptoInputParcel.createCryptoInputParcel(new Date(), signerPassphrase));
+        Assert.assertTrue("certification must succeed", result.success());
+
+        for (UncachedKeyRing publicRing : publicRings) {
+            certifiedRings.add(keyWritableRepository
+                    .getCanonicalizedPublicKeyRing(publicRing.getMasterKeyId()).getUncachedKeyRing());
+        }
+    }
+
+    @Test
+    public void testUpdateTrustDb_verifiesCertifications() throws Exception {
+        KeyWritableRepository keyWritableRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        for (UncachedKeyRing certifiedRing : certifiedRings) {
+            keyWritableRepository.savePublicKeyRing(certifiedRing);
+        }
+        assertAllCertifiedKeysVerified(keyWritableRepository, false);
+
+        keyWritableRepository.saveSecretKeyRing(signerRing);
+        UpdateTrustResult result = keyWritableRepository.updateTrustDb(
+                Collections.singletonList(signerRing.getMasterKeyId()), new ProgressScaler());
+
+        Assert.assertTrue("trust db update must succeed", result.success());
+        assertAllCertifiedKeysVerified(keyWritableRepository, true);
+    }
+
+    @Test
+    public void testUpdateTrustDb_matchesFullResave() throws Exception {
+        KeyWritableRepository keyWritableRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        for (UncachedKeyRing certifiedRing : certifiedRings) {
+            keyWritableRepository.savePublicKeyRing(certifiedRing);
+        }
+        keyWritableRepository.saveSecretKeyRing(signerRing);
+
+        keyWritableRepository.updateTrustDb(
+                Collections.singletonList(signerRing.getMasterKeyId()), new ProgressScaler());
+        List<List<UserId>> incrementalUserIds = getCertifiedUserIds(keyWritableRepository);
+
+        // this is what updateTrustDb did before the incremental update
+        for (UncachedKeyRing certifiedRing : certifiedRings) {
+            UncachedKeyRing storedRing = UncachedKeyRing.decodeFromData(
+                    keyWritableRepository.loadPublicKeyRingData(certifiedRing.getMasterKeyId()));
+            keyWritableRepository.clearLog();
+            keyWritableRepository.savePublicKeyRing(storedRing, true);
+        }
+
+        Assert.assertEquals("incremental update must yield the same user ids as a full re-save",
+                getCertifiedUserIds(keyWritableRepository), incrementalUserIds);
+    }
+
+    @Test
+    public void testTrustedMasterKeyCache_invalidatedBySecretKeyChanges() throws Exception {
+        KeyWritableRepository keyWritableRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        TrustedMasterKeyCache cache = TrustedMasterKeyCache.getInstance();
+        long signerId = signerRing.getMasterKeyId();
+
+        Assert.assertEquals(0, keyWritableRepository.getTrustedMasterKeys().size());
+
+        keyWritableRepository.saveSecretKeyRing(signerRing);
+        long missCount = cache.getMissCount();
+        Assert.assertNotNull(keyWritableRepository.getTrustedMasterKeys().get(signerId));
+        Assert.assertEquals("saving a secret key must invalidate the cache", missCount + 1, cache.getMissCount());
+
+        long hitCount = cache.getHitCount();
+        for (UncachedKeyRing certifiedRing : certifiedRings) {
+            keyWritableRepository.savePublicKeyRing(certifiedRing);
+        }
+        Assert.assertEquals("saving public keys must not reload trusted keys",
+                hitCount + NUM_CERTIFIED_KEYS, cache.getHitCount());
+
+        keyWritableRepository.deleteKeyRing(signerId);
+        Assert.assertEquals(0, keyWritableRepository.getTrustedMasterKeys().size());
+    }
+
+    private void assertAllCertifiedKeysVerified(KeyWritableRepository keyWritableRepository, boolean expected) {
+        for (List<UserId> userIds : getCertifiedUserIds(keyWritableRepository)) {
+            for (UserId userId : userIds) {
+                Assert.assertEquals(expected, userId.isVerified());
+            }
+        }
+    }
+
+    private List<List<UserId>> getCertifiedUserIds(KeyWritableRepository keyWritableRepository) {
+        List<List<UserId>> result = new ArrayList<>();
+        for (UncachedKeyRing certifiedRing : certifiedRings) {
+            result.add(keyWritableRepository.getUserIds(certifiedRing.getMasterKeyId()));
+        }
+        return result;
+    }
+}
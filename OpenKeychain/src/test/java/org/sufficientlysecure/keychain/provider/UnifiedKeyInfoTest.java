@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.model.SubKey.UnifiedKeyInfo;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+
+
+@RunWith(KeychainTestRunner.class)
+public class UnifiedKeyInfoTest {
+    static UncachedKeyRing ringA;
+    static UncachedKeyRing ringB;
+
+    KeyWritableRepository keyWritableRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        ringA = KeyringTestingHelper.createKeyRingWithEncryptionSubkey("Alice <alice@example.com>");
+        ringB = KeyringTestingHelper.createKeyRingWithEncryptionSubkey("alice <ALICE@example.com>");
+    }
+
+    @Test
+    public void testSavePublicKeyRing() throws Exception {
+        keyWritableRepository.savePublicKeyRing(ringA.extractPublicKeyRing());
+
+        UnifiedKeyInfo unifiedKeyInfo = keyWritableRepository.getUnifiedKeyInfo(ringA.getMasterKeyId());
+        Assert.assertNotNull(unifiedKeyInfo);
+        Assert.assertEquals("Alice", unifiedKeyInfo.name());
+        Assert.assertEquals("alice@example.com", unifiedKeyInfo.email());
+        Assert.assertTrue(unifiedKeyInfo.has_encrypt_key());
+        Assert.assertFalse(unifiedKeyInfo.has_auth_key());
+        Assert.assertFalse(unifiedKeyInfo.has_any_secret());
+        Assert.assertFalse(unifiedKeyInfo.has_duplicate());
+    }
+
+    @Test
+    public void testSaveSecretKeyRing_updatesHasSecret() throws Exception {
+        keyWritableRepository.savePublicKeyRing(ringA.extractPublicKeyRing());
+        keyWritableRepository.saveSecretKeyRing(ringA);
+
+        UnifiedKeyInfo unifiedKeyInfo = keyWritableRepository.getUnifiedKeyInfo(ringA.getMasterKeyId());
+        Assert.assertTrue(unifiedKeyInfo.has_any_secret());
+        Assert.assertEquals(1, keyWritableRepository.getAllUnifiedKeyInfoWithSecret().size());
+    }
+
+    @Test
+    public void testDuplicates_updatedOnSaveAndDelete() throws Exception {
+        keyWritableRepository.savePublicKeyRing(ringA.extractPublicKeyRing());
+        keyWritableRepository.savePublicKeyRing(ringB.extractPublicKeyRing());
+
+        Assert.assertTrue(keyWritableRepository.getUnifiedKeyInfo(ringA.getMasterKeyId()).has_duplicate());
+        Assert.assertTrue(keyWritableRepository.getUnifiedKeyInfo(ringB.getMasterKeyId()).has_duplicate());
+
+        keyWritableRepository.deleteKeyRing(ringB.getMasterKeyId());
+
+        Assert.assertNull(keyWritableRepository.getUnifiedKeyInfo(ringB.getMasterKeyId()));
+        Assert.assertFalse(keyWritableRepository.getUnifiedKeyInfo(ringA.getMasterKeyId()).has_duplicate());
+        Assert.assertEquals(1, keyWritableRepository.getAllUnifiedKeyInfo().size());
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.util.ArrayList;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeyRepositorySaveTest;
+import org.sufficientlysecure.keychain.remote.OpenPgpServiceKeyIdExtractor.KeyIdResult;
+import org.sufficientlysecure.keychain.remote.OpenPgpServiceKeyIdExtractor.KeyIdResultStatus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(KeychainTestRunner.class)
+public class RecipientResolverTest {
+    static final String PACKAGE_NAME = "test.package";
+    static final String MAIL_ADDRESS_1 = "twi@openkeychain.org";
+    static final long KEY_ID_PUBLIC = 0x9A282CE2AB44A382L;
+
+    KeyWritableRepository databaseInteractor = KeyWritableRepository.create(RuntimeEnvironment.application);
+    ApiPendingIntentFactory apiPendingIntentFactory;
+    RecipientResolver recipientResolver;
+    OpenPgpServiceKeyIdExtractor keyIdExtractor;
+
+    @Before
+    public void setUp() throws Exception {
+        apiPendingIntentFactory = mock(ApiPendingIntentFactory.class);
+        recipientResolver = RecipientResolver.getInstance(RuntimeEnvironment.application);
+        keyIdExtractor = OpenPgpServiceKeyIdExtractor.getInstance(recipientResolver, apiPendingIntentFactory);
+    }
+
+    @Test
+    public void testResolve_cachedUntilKeyChange() throws Exception {
+        UncachedKeyRing ring = readRingFromResource("/test-keys/testring.pub");
+        SaveKeyringResult saveKeyringResult = databaseInteractor.savePublicKeyRing(ring);
+        assertTrue(saveKeyringResult.success());
+
+        KeyIdResult keyIdResult = resolve(MAIL_ADDRESS_1);
+        assertEquals(KeyIdResultStatus.OK, keyIdResult.getStatus());
+        assertArrayEquals(new long[] { KEY_ID_PUBLIC }, keyIdResult.getKeyIds());
+        assertEquals(0, recipientResolver.getHitCount());
+
+        keyIdResult = resolve(MAIL_ADDRESS_1);
+        assertEquals(KeyIdResultStatus.OK, keyIdResult.getStatus());
+        assertEquals(1, recipientResolver.getHitCount());
+
+        databaseInteractor.deleteKeyRing(KEY_ID_PUBLIC);
+        when(apiPendingIntentFactory.createSelectPublicKeyPendingIntent(
+                any(Intent.class), any(long[].class), any(ArrayList.class), any(ArrayList.class), any(Boolean.class)))
+                .thenReturn(mock(PendingIntent.class));
+
+        keyIdResult = resolve(MAIL_ADDRESS_1);
+        assertEquals(KeyIdResultStatus.MISSING, keyIdResult.getStatus());
+        assertEquals(1, recipientResolver.getHitCount());
+    }
+
+    private KeyIdResult resolve(String... addresses) {
+        return keyIdExtractor.returnKeyIdsFromEmails(new Intent(), addresses, PACKAGE_NAME);
+    }
+
+    private UncachedKeyRing readRingFromResource(String name) throws Exception {
+        return UncachedKeyRing.fromStream(KeyRepositorySaveTest.class.getResourceAsStream(name)).next();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.security.Security;
+import java.util.List;
+
+import android.content.Intent;
+import android.os.SystemClock;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowApplication;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.daos.KeyRepository;
+import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.pgp.SessionKeyCache;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+@RunWith(KeychainTestRunner.class)
+public class PassphraseCacheTest {
+    static UncachedKeyRing secretRing;
+
+    long masterKeyId;
+    long subKeyId;
+    PassphraseCache passphraseCache;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        secretRing = KeyringTestingHelper.readRingFromResource("/test-keys/encrypt_decrypt_key_1.sec");
+    }
+
+    @Before
+    public void setUp() {
+        KeyWritableRepository keyWritableRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        keyWritableRepository.saveSecretKeyRing(secretRing);
+
+        masterKeyId = secretRing.getMasterKeyId();
+        subKeyId = KeyringTestingHelper.getSubkeyId(secretRing, 1);
+        passphraseCache = new PassphraseCache(RuntimeEnvironment.application, keyWritableRepository, false);
+    }
+
+    @Test
+    public void testAddAndGet() throws Exception {
+        Assert.assertNull("nothing must be cached yet", passphraseCache.getCachedPassphrase(masterKeyId, subKeyId));
+
+        passphraseCache.addCachedPassphrase(masterKeyId, subKeyId, new Passphrase("swordfish"), "uid", Integer.MAX_VALUE);
+
+        Passphrase passphrase = passphraseCache.getCachedPassphrase(masterKeyId, subKeyId);
+        Assert.assertEquals("subkey lookup must return the passphrase of the keyring",
+                new Passphrase("swordfish"), passphrase);
+
+        passphrase.removeFromMemory();
+        Assert.assertEquals("lookups must return a copy, which can be cleared independently",
+                new Passphrase("swordfish"), passphraseCache.getCachedPassphrase(masterKeyId, masterKeyId));
+    }
+
+    @Test
+    public void testTtlTimeout() throws Exception {
+        passphraseCache.addCachedPassphrase(masterKeyId, subKeyId, new Passphrase("swordfish"), "uid", 60);
+        Assert.assertNotNull(passphraseCache.getCachedPassphrase(masterKeyId, subKeyId));
+
+        SystemClock.sleep(61 * 1000);
+
+        Assert.assertNull("passphrase must time out", passphraseCache.getCachedPassphrase(masterKeyId, subKeyId));
+        Assert.assertEquals("timed out passphrase must be removed", 0, passphraseCache.size());
+    }
+
+    @Test
+    public void testTtlTimeout_clearsSessionKeys() throws Exception {
+        passphraseCache.addCachedPassphrase(masterKeyId, subKeyId, new Passphrase("swordfish"), "uid", 60);
+
+        SystemClock.sleep(61 * 1000);
+        passphraseCache.getCachedPassphrase(masterKeyId, subKeyId);
+
+        List<Intent> broadcastIntents = ShadowApplication.getInstance().getBroadcastIntents();
+        Intent clearIntent = broadcastIntents.get(broadcastIntents.size() - 1);
+        Assert.assertEquals("timed out passphrase must clear its session keys",
+                SessionKeyCache.BROADCAST_ACTION_CLEAR, clearIntent.getAction());
+        Assert.assertEquals(masterKeyId, clearIntent.getLongExtra(SessionKeyCache.EXTRA_MASTER_KEY_ID, 0L));
+    }
+
+    @Test
+    public void testScreenLock() throws Exception {
+        passphraseCache.addCachedPassphrase(masterKeyId, subKeyId, new Passphrase("swordfish"), "uid", 0);
+        passphraseCache.addCachedPassphrase(Constants.key.symmetric, Constants.key.symmetric,
+                new Passphrase("symmetric"), "symmetric", Integer.MAX_VALUE);
+
+        passphraseCache.removeScreenLockPassphrases();
+
+        Assert.assertNull("passphrase cached until lock must be removed",
+                passphraseCache.getCachedPassphrase(masterKeyId, subKeyId));
+        Assert.assertEquals("passphrase cached without timeout must be kept", new Passphrase("symmetric"),
+                passphraseCache.getCachedPassphrase(Constants.key.symmetric, Constants.key.symmetric));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        passphraseCache.addCachedPassphrase(masterKeyId, subKeyId, new Passphrase("swordfish"), "uid", Integer.MAX_VALUE);
+
+        passphraseCache.clearCachedPassphrase(masterKeyId, subKeyId);
+
+        Assert.assertNull(passphraseCache.getCachedPassphrase(masterKeyId, subKeyId));
+        Assert.assertEquals(0, passphraseCache.size());
+    }
+
+    @Test(expected = KeyRepository.NotFoundException.class)
+    public void testUnknownKey() throws Exception {
+        passphraseCache.getCachedPassphrase(masterKeyId + 1, masterKeyId + 1);
+    }
+}
@@ -33,12 +33,21 @@ import java.util.List;
 
 import android.content.Context;
 
+import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.util.Arrays;
+import org.junit.Assert;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.daos.KeyRepository;
 import org.sufficientlysecure.keychain.daos.KeyWritableRepository;
+import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
+import org.sufficientlysecure.keychain.util.Passphrase;
 
 /** Helper methods for keyring tests. */
 public class KeyringTestingHelper {
@@ -367,4 +376,35 @@ public class KeyringTestingHelper {
     public static UncachedKeyRing readRingFromResource(String name) throws Exception {
         return UncachedKeyRing.fromStream(KeyringTestingHelper.class.getResourceAsStream(name)).next();
     }
+
+    /** Creates a secret keyring with a single P-256 certification key, without passphrase. */
+    public static UncachedKeyRing createKeyRing(String userId) {
+        return createKeyRing(userId, new Passphrase(), false);
+    }
+
+    /** Creates a secret keyring with a single P-256 certification key. */
+    public static UncachedKeyRing createKeyRing(String userId, Passphrase passphrase) {
+        return createKeyRing(userId, passphrase, false);
+    }
+
+    /** Creates a secret keyring with a P-256 certification key and encryption subkey, without passphrase. */
+    public static UncachedKeyRing createKeyRingWithEncryptionSubkey(String userId) {
+        return createKeyRing(userId, new Passphrase(), true);
+    }
+
+    private static UncachedKeyRing createKeyRing(String userId, Passphrase passphrase, boolean withEncryptionSubkey) {
+        SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        if (withEncryptionSubkey) {
+            builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                    Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+        }
+        builder.addUserId(userId);
+        builder.setNewUnlock(ChangeUnlockParcel.createUnLockParcelForNewKey(passphrase));
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(builder.build());
+        Assert.assertTrue("test key creation must succeed", result.success());
+        return result.getRing();
+    }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(KeychainTestRunner.class)
+public class ChunkedBufferOutputStreamTest {
+
+    @Test
+    public void testInMemory() throws Exception {
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        // spans several chunks, and ends in the middle of one
+        byte[] data = randomBytes(3 * ChunkedBufferOutputStream.CHUNK_SIZE + 123);
+
+        ChunkedBufferOutputStream out = new ChunkedBufferOutputStream(spyApplication);
+        writeInUnevenPieces(out, data);
+        out.close();
+
+        Assert.assertEquals(data.length, out.getSize());
+        Assert.assertNull("data must be kept in memory", out.getSpillUri());
+        Assert.assertArrayEquals(data, readFully(out.openInputStream()));
+        Assert.assertArrayEquals("streams can be opened more than once", data, out.toByteArray());
+        verify(mockResolver, never()).insert(any(Uri.class), any(ContentValues.class));
+
+        out.release();
+    }
+
+    @Test
+    public void testSpillToTemporaryFile() throws Exception {
+        ByteArrayOutputStream fileOutputStream = new ByteArrayOutputStream();
+        Uri fakeTempFileUri = Uri.parse("content://fake/out/1");
+
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        when(mockResolver.insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class)))
+                .thenReturn(fakeTempFileUri);
+        when(mockResolver.openOutputStream(fakeTempFileUri, "w")).thenReturn(fileOutputStream);
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        byte[] data = randomBytes(2 * ChunkedBufferOutputStream.CHUNK_SIZE + 42);
+
+        ChunkedBufferOutputStream out =
+                new ChunkedBufferOutputStream(spyApplication, ChunkedBufferOutputStream.CHUNK_SIZE + 1);
+        writeInUnevenPieces(out, data);
+        out.close();
+
+        Assert.assertEquals(data.length, out.getSize());
+        Assert.assertEquals("data must be moved to the temporary file", fakeTempFileUri, out.getSpillUri());
+        Assert.assertArrayEquals(data, fileOutputStream.toByteArray());
+
+        when(mockResolver.openInputStream(fakeTempFileUri))
+                .thenReturn(new ByteArrayInputStream(fileOutputStream.toByteArray()));
+        Assert.assertArrayEquals(data, readFully(out.openInputStream()));
+
+        out.release();
+        verify(mockResolver).delete(fakeTempFileUri, null, null);
+    }
+
+    @Test
+    public void testDecryptResult_spilledOutputIsDeletedWhenConsumed() throws Exception {
+        ByteArrayOutputStream fileOutputStream = new ByteArrayOutputStream();
+        Uri fakeTempFileUri = Uri.parse("content://fake/out/1");
+
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        when(mockResolver.insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class)))
+                .thenReturn(fakeTempFileUri);
+        when(mockResolver.openOutputStream(fakeTempFileUri, "w")).thenReturn(fileOutputStream);
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        byte[] data = randomBytes(2 * ChunkedBufferOutputStream.CHUNK_SIZE + 42);
+
+        ChunkedBufferOutputStream out =
+                new ChunkedBufferOutputStream(spyApplication, ChunkedBufferOutputStream.CHUNK_SIZE + 1);
+        writeInUnevenPieces(out, data);
+        out.close();
+
+        DecryptVerifyResult result = new DecryptVerifyResult(OperationResult.RESULT_OK, new OperationLog());
+        result.setOutputBuffer(out);
+        Assert.assertEquals(fakeTempFileUri, result.getOutputUri());
+
+        when(mockResolver.openInputStream(fakeTempFileUri))
+                .thenReturn(new ByteArrayInputStream(fileOutputStream.toByteArray()));
+        InputStream outputStream = result.openOutputStream();
+        Assert.assertFalse("output must be consumed by opening it", result.hasOutput());
+        Assert.assertEquals("size must still be known", data.length, result.getOutputSize());
+        verify(mockResolver, never()).delete(fakeTempFileUri, null, null);
+
+        Assert.assertArrayEquals(data, readFully(outputStream));
+        verify(mockResolver).delete(fakeTempFileUri, null, null);
+
+        // releasing again must do nothing
+        result.releaseOutput();
+        verify(mockResolver).delete(fakeTempFileUri, null, null);
+    }
+
+    private static void writeInUnevenPieces(ChunkedBufferOutputStream out, byte[] data) throws Exception {
+        int offset = 0;
+        int pieceSize = 1;
+        while (offset < data.length) {
+            int len = Math.min(pieceSize, data.length - offset);
+            out.write(data, offset, len);
+            offset += len;
+            pieceSize = pieceSize * 3 + 7;
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(0).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readFully(InputStream in) throws Exception {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        for (int read; (read = in.read(buf)) != -1; ) {
+            result.write(buf, 0, read);
+        }
+        in.close();
+        return result.toByteArray();
+    }
+}